@@ -0,0 +1,104 @@
+package org.mitre.honeyclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base64 in the legacy protocol: the reader decoding a request's document
+ * into its spool file, and the writer encoding an output file into the
+ * response.  Whole-array commons-codec calls, the way requests were handled
+ * before the reader and writer streamed, are measured alongside; their
+ * allocation, seen with -prof gc, is what streaming saves.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+
+    @Param({"10240", "102400", "1048576", "5242880"})
+    int size;
+
+    private byte[] document;
+    private byte[] encoded;
+    private byte[] legacyRequest;
+    private File outputFile;
+    private Response response;
+    private JsonFactory factory;
+
+    @Setup
+    public void setup() throws IOException {
+        Payloads.quietLogging();
+
+        document = Payloads.document(size);
+        encoded = Base64.encodeBase64(document);
+        legacyRequest = Payloads.legacyRequest(document);
+        outputFile = Payloads.documentFile(document, ".html");
+
+        response = new Response("Success; output returned in Base64 format", "document.html", null);
+        response.setId("bench");
+
+        factory = new ObjectMapper().getJsonFactory();
+    }
+
+    @TearDown
+    public void tearDown() {
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public long decodeLegacyRequest() throws IOException {
+        LegacyRequestReader reader = new LegacyRequestReader(new ByteArrayInputStream(legacyRequest), Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        try {
+            Request request = reader.read();
+            return reader.getSpoolFile(request).length();
+        } finally {
+            reader.release();
+        }
+    }
+
+    @Benchmark
+    public byte[] decodeWholeArray() {
+        return Base64.decodeBase64(encoded);
+    }
+
+    @Benchmark
+    public long encodeLegacyResponse() throws IOException {
+        CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+        LegacyResponseWriter.write(factory, out, response, Collections.singletonMap(response, outputFile));
+        return out.getByteCount();
+    }
+
+    @Benchmark
+    public byte[] encodeWholeArray() {
+        return Base64.encodeBase64(document);
+    }
+}
@@ -0,0 +1,108 @@
+package org.mitre.honeyclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How the front end tells where a request ends: scanning a legacy request
+ * for its closing brace as it arrives, and the length prefixes of a v2
+ * frame.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    /** what one read off the socket delivers at most, as in NioFrontEnd */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"10240", "102400", "1048576", "5242880"})
+    int size;
+
+    private byte[] legacyRequest;
+    private byte[] frameHead;
+    private byte[] frameHeader;
+
+    @Setup
+    public void setup() throws IOException {
+        Payloads.quietLogging();
+
+        legacyRequest = Payloads.legacyRequest(Payloads.document(size));
+
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        new ObjectMapper().writeValue(headerOut, Payloads.frameRequest());
+        frameHeader = headerOut.toByteArray();
+
+        ByteArrayOutputStream frameOut = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(frameOut);
+        FramedProtocol.writeHeader(dataOut, frameHeader);
+        dataOut.writeLong(size);
+        dataOut.flush();
+        frameHead = frameOut.toByteArray();
+    }
+
+    /**
+     * The legacy request a socket read at a time until the scanner finds its
+     * end.
+     */
+    @Benchmark
+    public int scanLegacyRequest() {
+        JsonObjectScanner scanner = new JsonObjectScanner();
+        int position = 0;
+
+        while (position < legacyRequest.length) {
+            ByteBuffer read = ByteBuffer.wrap(legacyRequest, position, Math.min(READ_BUFFER_SIZE, legacyRequest.length - position));
+            int end = scanner.scan(read);
+
+            if (end >= 0) {
+                return position + end;
+            }
+
+            position += read.remaining();
+        }
+
+        return -1;
+    }
+
+    @Benchmark
+    public long readFrameHead() throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frameHead));
+        byte[] header = FramedProtocol.readHeader(in);
+        return header.length + FramedProtocol.readBodyLength(in);
+    }
+
+    @Benchmark
+    public int writeFrameHead() throws IOException {
+        ByteArrayOutputStream frameOut = new ByteArrayOutputStream(frameHeader.length + 12);
+        DataOutputStream dataOut = new DataOutputStream(frameOut);
+        FramedProtocol.writeHeader(dataOut, frameHeader);
+        dataOut.writeLong(size);
+        dataOut.flush();
+        return frameOut.size();
+    }
+}
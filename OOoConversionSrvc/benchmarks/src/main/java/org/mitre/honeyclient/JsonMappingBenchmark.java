@@ -0,0 +1,125 @@
+package org.mitre.honeyclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Jackson mapping of Request and Response as v2 frame headers, and the
+ * streaming reader and writer of the legacy protocol with no document
+ * attached, so only the JSON is measured.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonMappingBenchmark {
+
+    private ObjectMapper mapper;
+
+    private byte[] requestHeader;
+    private byte[] batchRequestHeader;
+    private byte[] legacyPathRequest;
+
+    private Response response;
+    private Response batchResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        Payloads.quietLogging();
+
+        mapper = new ObjectMapper();
+
+        requestHeader = writeValue(Payloads.frameRequest());
+
+        List<Request> items = new ArrayList<Request>();
+        List<Response> responses = new ArrayList<Response>();
+
+        for (int i = 0; i < RequestHandler.MAX_BATCH_ITEMS; i++) {
+            Request item = Payloads.frameRequest();
+            item.setId(Integer.toString(i));
+            item.setLength(10240L);
+            items.add(item);
+
+            Response itemResponse = new Response("Success; output returned in the frame body", "document.html", null);
+            itemResponse.setId(Integer.toString(i));
+            itemResponse.setLength(10240L);
+            responses.add(itemResponse);
+        }
+
+        Request batch = new Request();
+        batch.setId("bench");
+        batch.setItems(items);
+        batchRequestHeader = writeValue(batch);
+
+        legacyPathRequest = "{\"id\":\"bench\",\"inputFilename\":\"/tmp/document.doc\",\"outputFilename\":\"/tmp/document.html\"}".getBytes("UTF-8");
+
+        response = new Response("Success; output returned in the frame body", "document.html", null);
+        response.setId("bench");
+
+        batchResponse = new Response("Success; " + items.size() + " of " + items.size() + " documents converted", null, null);
+        batchResponse.setId("bench");
+        batchResponse.setItems(responses);
+    }
+
+    private byte[] writeValue(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mapper.writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Request readRequestHeader() throws IOException {
+        return mapper.readValue(requestHeader, 0, requestHeader.length, Request.class);
+    }
+
+    @Benchmark
+    public Request readBatchRequestHeader() throws IOException {
+        return mapper.readValue(batchRequestHeader, 0, batchRequestHeader.length, Request.class);
+    }
+
+    @Benchmark
+    public byte[] writeResponseHeader() throws IOException {
+        return writeValue(response);
+    }
+
+    @Benchmark
+    public byte[] writeBatchResponseHeader() throws IOException {
+        return writeValue(batchResponse);
+    }
+
+    @Benchmark
+    public Request readLegacyRequest() throws IOException {
+        return new LegacyRequestReader(new ByteArrayInputStream(legacyPathRequest), Integer.MAX_VALUE, Integer.MAX_VALUE).read();
+    }
+
+    @Benchmark
+    public int writeLegacyResponse() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LegacyResponseWriter.write(mapper.getJsonFactory(), out, batchResponse, Collections.<Response, File>emptyMap());
+        return out.size();
+    }
+}
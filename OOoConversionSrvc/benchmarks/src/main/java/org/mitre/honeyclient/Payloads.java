@@ -0,0 +1,100 @@
+package org.mitre.honeyclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * What the benchmarks feed the server: documents of a given size, and the
+ * requests that carry them.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+final class Payloads {
+
+    /** held so the level set on it isn't lost to garbage collection */
+    private static final Logger SERVER_LOGGER = Logger.getLogger("org.mitre.honeyclient");
+
+    private Payloads() {
+    }
+
+    /**
+     * Keeps the server's per-request INFO lines off the console, where they
+     * would swamp JMH's output and time the terminal rather than the server.
+     */
+    static void quietLogging() {
+        SERVER_LOGGER.setLevel(Level.WARNING);
+    }
+
+    /**
+     * size bytes of noise, the same every run; random bytes don't compress,
+     * as office documents mostly don't.
+     */
+    static byte[] document(int size) {
+        byte[] document = new byte[size];
+        new Random(size).nextBytes(document);
+        return document;
+    }
+
+    static File documentFile(byte[] document, String suffix) throws IOException {
+        File file = File.createTempFile("document", suffix);
+        FileUtils.writeByteArrayToFile(file, document);
+        return file;
+    }
+
+    /**
+     * A legacy request converting document from .doc to .html, as the Ruby
+     * client sends it.
+     */
+    static byte[] legacyRequest(byte[] document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(document.length * 4 / 3 + 256);
+
+        out.write("{\"id\":\"bench\",\"inputFilename\":\"document.doc\",\"outputFilename\":\"document.html\",\"inputBase64FileContents\":\"".getBytes("US-ASCII"));
+        out.write(Base64.encodeBase64(document));
+        out.write("\"}".getBytes("US-ASCII"));
+
+        return out.toByteArray();
+    }
+
+    static Request frameRequest() {
+        Request request = new Request();
+        request.setId("bench");
+        request.setInputFilename("document.doc");
+        request.setOutputFilename("document.html");
+        return request;
+    }
+
+    /**
+     * Takes whatever it's given, as a client reading as fast as the network
+     * allows.
+     */
+    static class NullChannel implements WritableByteChannel {
+
+        long written = 0;
+
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
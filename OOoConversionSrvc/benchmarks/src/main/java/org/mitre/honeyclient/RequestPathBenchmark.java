@@ -0,0 +1,110 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One request end to end, from the bytes the front end has spooled to the
+ * response written out, with office faked so the figure is the server's
+ * own overhead per document.  Socket handling and worker hand-off are left
+ * out, they are the same for every request.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPathBenchmark {
+
+    @Param({"10240", "102400", "1048576", "5242880"})
+    int size;
+
+    private OOoConversionServer server;
+    private RequestHandler handler;
+
+    private byte[] document;
+    private byte[] legacyRequest;
+
+    @Setup
+    public void setup() throws IOException {
+        Payloads.quietLogging();
+
+        // enough instances that threads never wait on one
+        int[] ports = new int[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = i + 1;
+        }
+
+        OfficeInstancePool officePool = FakeOfficeManager.createPool(ports, 0, 0);
+        officePool.start();
+
+        server = new OOoConversionServer(officePool, size, size, 1, 1);
+        handler = new RequestHandler(server);
+
+        document = Payloads.document(size);
+        legacyRequest = Payloads.legacyRequest(document);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.getWorkerExecutor().shutdown();
+        server.getBatchExecutor().shutdown();
+    }
+
+    @Benchmark
+    public long legacy() throws IOException {
+        File requestFile = File.createTempFile("request", ".json");
+        OutgoingResponse outgoing;
+
+        try {
+            FileUtils.writeByteArrayToFile(requestFile, legacyRequest);
+            outgoing = handler.handleLegacy(requestFile);
+        } finally {
+            requestFile.delete();
+        }
+
+        return send(outgoing);
+    }
+
+    @Benchmark
+    public long frame() throws IOException {
+        Request request = Payloads.frameRequest();
+        File bodyFile = server.getScratch().createFile(request.getInputFilename());
+
+        FileUtils.writeByteArrayToFile(bodyFile, document);
+
+        return send(handler.handleFrame(request, bodyFile));
+    }
+
+    private static long send(OutgoingResponse outgoing) throws IOException {
+        Payloads.NullChannel channel = new Payloads.NullChannel();
+
+        try {
+            outgoing.writeTo(channel);
+        } finally {
+            outgoing.release();
+        }
+
+        return channel.written;
+    }
+}
@@ -0,0 +1,98 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The disk side of a request: staging a document, as every upload is, in a
+ * randomly named temp file or in the scratch space's per-thread directory,
+ * and sending an output file back with transferTo.  Run with
+ * -Djava.io.tmpdir pointed at the disk the server would use.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TempFileBenchmark {
+
+    @Param({"10240", "102400", "1048576", "5242880"})
+    int size;
+
+    private byte[] document;
+    private File outputFile;
+    private ScratchSpace scratch;
+
+    @Setup
+    public void setup() throws IOException {
+        Payloads.quietLogging();
+
+        document = Payloads.document(size);
+        outputFile = Payloads.documentFile(document, ".html");
+
+        scratch = new ScratchSpace(new File(System.getProperty("java.io.tmpdir"), "OOoConversionSrvc-scratch-bench"), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public long createWriteDelete() throws IOException {
+        return writeDelete(File.createTempFile("document", ".doc"));
+    }
+
+    @Benchmark
+    public long scratchWriteDelete() throws IOException {
+        return writeDelete(scratch.createFile("document.doc"));
+    }
+
+    private long writeDelete(File file) throws IOException {
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(document);
+            } finally {
+                out.close();
+            }
+            return file.length();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public long sendOutputFile() throws IOException {
+        Payloads.NullChannel channel = new Payloads.NullChannel();
+        OutgoingResponse outgoing = new OutgoingResponse(null, outputFile, false);
+
+        try {
+            outgoing.writeTo(channel);
+        } finally {
+            outgoing.release();
+        }
+
+        return channel.written;
+    }
+}
@@ -2,4 +2,6 @@
 cd ..
 mvn -e -D maven.test.skip=true clean compile package pre-site install
 cp ./target/OOoConversionSrvc-1.0-SNAPSHOT-executable.jar ./executable/.
-cd ./bin
\ No newline at end of file
+cd ./client
+mvn -e clean install
+cd ../bin
\ No newline at end of file
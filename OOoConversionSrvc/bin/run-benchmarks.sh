@@ -0,0 +1,8 @@
+#!/bin/sh
+# builds the service and the benchmarks against it, then hands any arguments
+# to JMH; for example, ./run-benchmarks.sh Base64 -prof gc
+cd ..
+mvn -e -D maven.test.skip=true install
+cd ./benchmarks
+mvn -e clean package
+java -jar ./target/benchmarks.jar $*
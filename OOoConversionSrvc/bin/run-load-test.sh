@@ -0,0 +1,4 @@
+#!/bin/sh
+# replays a directory of documents against a running service; for example,
+# ./run-load-test.sh --documents ~/samples --concurrency 16 --duration 120
+java -cp ../executable/OOoConversionSrvc-1.0-SNAPSHOT-executable.jar org.mitre.honeyclient.LoadGenerator $*
@@ -0,0 +1,763 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * A Java client of the service over the framed protocol (v2).  Requests go
+ * out on a small pool of connections kept open between them, several at a
+ * time on each, as the server reads up to eight frames ahead per
+ * connection; responses, which come back in the order they are finished,
+ * are told apart by an ID the client gives each request.
+ *
+ * Documents are streamed from disk into the frame body, and outputs from
+ * the frame body to disk, never as Base64 or whole in the heap.  A request
+ * answered "Busy; ..." or lost with its connection is sent again after a
+ * backoff doubling from retryBackoff up to retryBackoffMax, until it has
+ * been tried maxRetries times more; conversions are safe to repeat, a
+ * repeated submit may leave a job behind.
+ *
+ * Futures are completed on threads of the client's own, never on those
+ * reading the connections, so what a caller chains onto them holds up no
+ * other response.
+ *
+ * Settings are read when the first request is sent.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionClient implements Closeable {
+
+    /** frames the server reads ahead on one connection before waiting */
+    public static final int SERVER_PIPELINE_DEPTH = 8;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final TypeReference<Map<String, Object>> RESPONSE_VALUES = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final String host;
+    private final int port;
+
+    private int maxConnections = 4;
+    private int pipelineDepth = SERVER_PIPELINE_DEPTH;
+    private int connectTimeout = 10000;
+    private int responseTimeout = 360000;
+    private int maxRetries = 5;
+    private long retryBackoff = 250;
+    private long retryBackoffMax = 8000;
+    private Path spoolDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final List<Link> links = new ArrayList<Link>();
+
+    /** connections being made, counted against maxConnections */
+    private int connecting = 0;
+
+    /** calls waiting out a backoff, failed if the client closes first */
+    private final Set<Call> backingOff = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+
+    private ThreadPoolExecutor senders;
+    private ScheduledExecutorService retries;
+    private ExecutorService completions;
+    private volatile boolean closed = false;
+
+    public ConversionClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param maxConnections connections kept to the server, each sending
+     *        on a thread of its own
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param pipelineDepth requests outstanding on one connection, more than
+     *        SERVER_PIPELINE_DEPTH only wait in the socket
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param responseTimeout the milliseconds a connection with requests
+     *        outstanding may go without a response before it is taken for
+     *        dead, 0 for no limit
+     */
+    public void setResponseTimeout(int responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    /**
+     * How hard a busy or lost request is retried.
+     *
+     * @param maxRetries retries after the first attempt, 0 for none
+     */
+    public void setRetryPolicy(int maxRetries, long retryBackoff, long retryBackoffMax) {
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.retryBackoffMax = retryBackoffMax;
+    }
+
+    /**
+     * @param spoolDirectory where streamed uploads and outputs are spooled,
+     *        the default temp directory otherwise
+     */
+    public void setSpoolDirectory(Path spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * Converts a document to the format of outputFilename's extension.
+     */
+    public CompletableFuture<ConversionResult> convertAsync(Path input, String outputFilename) {
+        Request request = new Request();
+        request.setInputFilename(input.getFileName().toString());
+        request.setOutputFilename(outputFilename);
+        return sendAsync(request, input);
+    }
+
+    /**
+     * Sends a request without a body: stats, health, a job query, or a
+     * conversion of files on the server's own disk.
+     */
+    public CompletableFuture<ConversionResult> sendAsync(Request request) {
+        return sendAsync(request, (Path) null);
+    }
+
+    /**
+     * Sends a request with body as its frame body, the document, or the
+     * documents of a batch one after another, streamed from disk when the
+     * request is sent, and again on each retry.
+     */
+    public CompletableFuture<ConversionResult> sendAsync(Request request, Path body) {
+        CompletableFuture<ConversionResult> future = new CompletableFuture<ConversionResult>();
+
+        try {
+            start();
+            senders.execute(new Send(new Call(request, body, false, future)));
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a request with what is left of body as its frame body.  The
+     * stream is spooled to disk before this returns, so it is read once
+     * whatever the retries, and may be closed as soon as this returns.
+     */
+    public CompletableFuture<ConversionResult> sendAsync(Request request, InputStream body) throws IOException {
+        Path spoolFile = Files.createTempFile(spoolDirectory, "upload", ".tmp");
+
+        try {
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(spoolFile), BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = body.read(buf)) >= 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(spoolFile);
+            throw e;
+        }
+
+        CompletableFuture<ConversionResult> future = new CompletableFuture<ConversionResult>();
+
+        try {
+            start();
+            senders.execute(new Send(new Call(request, spoolFile, true, future)));
+        } catch (IOException e) {
+            Files.deleteIfExists(spoolFile);
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(spoolFile);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Sends a request and waits for its answer.
+     */
+    public ConversionResult send(Request request, Path body) throws IOException, InterruptedException {
+        try {
+            return sendAsync(request, body).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Converts input to the format of output's extension, and writes it
+     * there when the conversion succeeds.
+     *
+     * @return the server's response
+     */
+    public Response convert(Path input, Path output) throws IOException, InterruptedException {
+        Request request = new Request();
+        request.setInputFilename(input.getFileName().toString());
+        request.setOutputFilename(output.getFileName().toString());
+
+        ConversionResult result = send(request, input);
+
+        try {
+            if (result.isSuccess() && (result.getOutput() != null)) {
+                result.moveOutput(output);
+            }
+            return result.getResponse();
+        } finally {
+            result.release();
+        }
+    }
+
+    /**
+     * Closes every connection; requests still waiting or outstanding fail.
+     */
+    public void close() {
+        List<Link> closing;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closing = new ArrayList<Link>(links);
+            links.clear();
+        }
+
+        IOException e = new IOException("Fail; client closed.");
+
+        if (senders != null) {
+            for (Runnable waiting : senders.shutdownNow()) {
+                if (waiting instanceof Send) {
+                    ((Send) waiting).call.fail(e);
+                }
+            }
+            retries.shutdownNow();
+
+            for (Call call : new ArrayList<Call>(backingOff)) {
+                if (backingOff.remove(call)) {
+                    call.fail(e);
+                }
+            }
+        }
+
+        for (Link link : closing) {
+            link.close(e);
+        }
+
+        if (completions != null) {
+            // what is queued still completes
+            completions.shutdown();
+        }
+    }
+
+    private synchronized void start() throws IOException {
+        if (closed) {
+            throw new IOException("Fail; client closed.");
+        }
+
+        if (senders != null) {
+            return;
+        }
+
+        senders = new ThreadPoolExecutor(maxConnections, maxConnections, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("client-sender-"));
+        retries = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("client-retry-"));
+        completions = Executors.newCachedThreadPool(new DaemonThreadFactory("client-completion-"));
+    }
+
+    /**
+     * Runs a future's completion, and so whatever was chained onto it, on
+     * a completion thread, or here once the client is closed.
+     */
+    private void complete(Runnable completion) {
+        try {
+            completions.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    static boolean isBusy(Response response) {
+        return (response.getMsg() != null) && response.getMsg().startsWith("Busy;");
+    }
+
+    /**
+     * A connection with a slot free: an idle one, else a new one while
+     * there is room, else the least loaded, waited on.  A new connection is
+     * made outside the client's lock, so a slow connect holds up only the
+     * sender making it.
+     */
+    private Link lease() throws IOException, InterruptedException {
+        Link chosen;
+
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Fail; client closed.");
+                }
+
+                chosen = null;
+
+                for (Iterator<Link> iterator = links.iterator(); iterator.hasNext();) {
+                    Link link = iterator.next();
+
+                    if (link.closed) {
+                        iterator.remove();
+                    } else if ((chosen == null) || (link.permits.availablePermits() > chosen.permits.availablePermits())) {
+                        chosen = link;
+                    }
+                }
+
+                if (((chosen == null) || (chosen.permits.availablePermits() < pipelineDepth)) && (links.size() + connecting < maxConnections)) {
+                    connecting++;
+                    chosen = null;
+                    break;
+                }
+
+                if (chosen != null) {
+                    break;
+                }
+
+                // every connection there is room for is still being made
+                wait();
+            }
+        }
+
+        if (chosen == null) {
+            chosen = connect();
+        }
+
+        chosen.permits.acquire();
+
+        if (chosen.closed) {
+            chosen.permits.release();
+            throw new IOException("Fail; connection closed.");
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Makes a connection whose place lease() has kept.
+     */
+    private Link connect() throws IOException {
+        Link link = null;
+        boolean kept = false;
+
+        try {
+            link = new Link();
+        } finally {
+            synchronized (this) {
+                connecting--;
+                if ((link != null) && !closed) {
+                    links.add(link);
+                    kept = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (!kept) {
+            link.close(null);
+            throw new IOException("Fail; client closed.");
+        }
+
+        return link;
+    }
+
+    /**
+     * A request on its way, through however many attempts.
+     */
+    private class Call {
+
+        final Request request;
+        final Path body;
+        final boolean spooled;
+        final CompletableFuture<ConversionResult> future;
+
+        /** the request's own ID, the wire carries the client's */
+        final String id;
+        final String wireId;
+        final byte[] header;
+        int attempts = 0;
+
+        Call(Request request, Path body, boolean spooled, CompletableFuture<ConversionResult> future) throws IOException {
+            this.request = request;
+            this.body = body;
+            this.spooled = spooled;
+            this.future = future;
+
+            id = request.getId();
+            wireId = "c" + nextId.incrementAndGet();
+
+            // the header is written once, the request may be reused at once
+            ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+            request.setId(wireId);
+            try {
+                mapper.writeValue(headerOut, request);
+            } finally {
+                request.setId(id);
+            }
+            header = headerOut.toByteArray();
+
+            if (header.length > FramedProtocol.MAX_HEADER_LENGTH) {
+                throw new IOException("Fail; request header of " + header.length + " bytes is too long.");
+            }
+        }
+
+        void answered(Response response, Path output) {
+            if (isBusy(response) && retry()) {
+                delete(output);
+                return;
+            }
+
+            response.setId(id);
+            done();
+
+            final ConversionResult result = new ConversionResult(response, output, spoolDirectory);
+            complete(new Runnable() {
+
+                public void run() {
+                    future.complete(result);
+                }
+            });
+        }
+
+        void fail(final IOException e) {
+            if (retry()) {
+                Logger.getLogger(ConversionClient.class.getName()).log(Level.FINE, "retrying " + wireId + ", " + e.getMessage());
+                return;
+            }
+
+            done();
+            complete(new Runnable() {
+
+                public void run() {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+
+        /**
+         * Schedules the next attempt, if any is left.
+         */
+        private boolean retry() {
+            if (closed || (attempts > maxRetries)) {
+                return false;
+            }
+
+            long delay = retryBackoff;
+            for (int i = 1; (i < attempts) && (delay < retryBackoffMax); i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, retryBackoffMax);
+
+            backingOff.add(this);
+
+            try {
+                retries.schedule(new Runnable() {
+
+                    public void run() {
+                        if (!backingOff.remove(Call.this)) {
+                            // failed by close() meanwhile
+                            return;
+                        }
+
+                        try {
+                            senders.execute(new Send(Call.this));
+                        } catch (RejectedExecutionException e) {
+                            fail(new IOException("Fail; client closed."));
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // the client is closing
+                backingOff.remove(this);
+                return false;
+            }
+        }
+
+        private void done() {
+            if (spooled) {
+                delete(body);
+            }
+        }
+    }
+
+    /**
+     * One attempt at a call, on a sender thread.
+     */
+    private class Send implements Runnable {
+
+        final Call call;
+
+        Send(Call call) {
+            this.call = call;
+        }
+
+        public void run() {
+            call.attempts++;
+            Link link;
+
+            try {
+                link = lease();
+            } catch (IOException e) {
+                call.fail(e);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                call.fail(new InterruptedIOException("Fail; interrupted."));
+                return;
+            }
+
+            try {
+                link.send(call);
+            } catch (IOException e) {
+                // fails the call along with the rest outstanding on the link
+                link.close(e);
+            }
+        }
+    }
+
+    /**
+     * One connection to the server, its frames written by whichever sender
+     * holds it and read back by a thread of its own.
+     */
+    private class Link implements Runnable {
+
+        final Socket socket = new Socket();
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Semaphore permits = new Semaphore(pipelineDepth);
+        final Map<String, Call> outstanding = new ConcurrentHashMap<String, Call>();
+        volatile boolean closed = false;
+
+        Link() throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeout);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(responseTimeout);
+
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+                out.write(FramedProtocol.MAGIC);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            Thread reader = new DaemonThreadFactory("client-reader-").newThread(this);
+            reader.start();
+        }
+
+        void send(Call call) throws IOException {
+            outstanding.put(call.wireId, call);
+
+            synchronized (out) {
+                long length = (call.body == null) ? 0 : Files.size(call.body);
+
+                FramedProtocol.writeHeader(out, call.header);
+                out.writeLong(length);
+
+                if (call.body != null) {
+                    InputStream bodyIn = Files.newInputStream(call.body);
+                    try {
+                        FramedProtocol.copy(bodyIn, out, length);
+                    } finally {
+                        bodyIn.close();
+                    }
+                }
+
+                out.flush();
+            }
+        }
+
+        /**
+         * Reads responses until the connection closes.  One closed by the
+         * server with nothing outstanding, idle too long, is simply let go.
+         */
+        public void run() {
+            try {
+                while (true) {
+                    byte[] header;
+
+                    try {
+                        header = FramedProtocol.readHeader(in);
+                    } catch (SocketTimeoutException e) {
+                        if (outstanding.isEmpty()) {
+                            continue;
+                        }
+                        throw e;
+                    }
+
+                    if (header == null) {
+                        if (outstanding.isEmpty()) {
+                            close(null);
+                            return;
+                        }
+                        throw new EOFException("Fail; the server closed the connection.");
+                    }
+
+                    long length = FramedProtocol.readBodyLength(in);
+                    Map<String, Object> values = mapper.readValue(header, 0, header.length, RESPONSE_VALUES);
+                    Response response = Response.fromValues(values);
+                    Call call = (response.getId() == null) ? null : outstanding.remove(response.getId());
+
+                    if (call == null) {
+                        // not one of ours, nothing can be told from it
+                        throw new IOException("Fail; response for an unknown request, " + response.getMsg());
+                    }
+
+                    Path output = null;
+
+                    if (length > 0) {
+                        try {
+                            output = Files.createTempFile(spoolDirectory, "output", ".tmp");
+                            OutputStream outputOut = new BufferedOutputStream(Files.newOutputStream(output), BUFFER_SIZE);
+                            try {
+                                FramedProtocol.copy(in, outputOut, length);
+                            } finally {
+                                outputOut.close();
+                            }
+                        } catch (IOException e) {
+                            // failed with the rest when the link closes
+                            delete(output);
+                            outstanding.put(call.wireId, call);
+                            throw e;
+                        }
+                    }
+
+                    permits.release();
+                    call.answered(response, output);
+                }
+            } catch (IOException e) {
+                close(e);
+            } catch (RuntimeException e) {
+                Logger.getLogger(ConversionClient.class.getName()).log(Level.SEVERE, "reading from " + host + ":" + port, e);
+                close(new IOException(e.getMessage()));
+            }
+        }
+
+        /**
+         * Closes the connection, failing whatever is outstanding on it, and
+         * wakes senders waiting for a slot so they go elsewhere.
+         *
+         * @param e why, or null for a clean close
+         */
+        void close(IOException e) {
+            closed = true;
+
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                //swallow
+            }
+
+            permits.release(pipelineDepth);
+
+            IOException failure = (e == null) ? new IOException("Fail; connection closed.") : e;
+
+            for (String wireId : new ArrayList<String>(outstanding.keySet())) {
+                Call call = outstanding.remove(wireId);
+                if (call != null) {
+                    call.fail(failure);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path file) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            //swallow
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger count = new AtomicInteger();
+        private final String prefix;
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
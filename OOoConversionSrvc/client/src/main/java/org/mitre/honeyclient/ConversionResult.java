@@ -0,0 +1,158 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server's answer to one request: its response, and the frame body that
+ * came with it spooled to a file rather than held in the heap.  A response
+ * with items carries each converted output in turn in the body, their
+ * lengths on the items; getOutputs() cuts the body into one file each.
+ *
+ * The files are the caller's, to move away or release().
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionResult {
+
+    private final Response response;
+    private final Path body;
+    private final Path spoolDirectory;
+    private Map<Response, Path> outputs;
+
+    ConversionResult(Response response, Path body, Path spoolDirectory) {
+        this.response = response;
+        this.body = body;
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+    public String getMsg() {
+        return response.getMsg();
+    }
+
+    public boolean isSuccess() {
+        return (response.getMsg() != null) && response.getMsg().startsWith("Success");
+    }
+
+    /**
+     * @return whether the server was still busy once the client's retries
+     *         ran out
+     */
+    public boolean isBusy() {
+        return ConversionClient.isBusy(response);
+    }
+
+    /**
+     * @return the whole frame body, the output of a single document
+     *         request, or null when there was none
+     */
+    public Path getOutput() {
+        return body;
+    }
+
+    /**
+     * Moves the output of a single document request to target.
+     */
+    public void moveOutput(Path target) throws IOException {
+        if (body == null) {
+            throw new IOException("Fail; the response carried no output.");
+        }
+        Files.move(body, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * The output of each leaf of a response with items, depth first as the
+     * server lays them out, leaves without an output left out.
+     */
+    public synchronized Map<Response, Path> getOutputs() throws IOException {
+        if (outputs != null) {
+            return outputs;
+        }
+
+        List<Response> leaves = new ArrayList<Response>();
+        if (response.getItems() != null) {
+            collectLeaves(response, leaves);
+        }
+
+        Map<Response, Path> split = new IdentityHashMap<Response, Path>();
+
+        if (body != null) {
+            InputStream in = new BufferedInputStream(Files.newInputStream(body));
+
+            try {
+                for (Response leaf : leaves) {
+                    if ((leaf.getLength() == null) || (leaf.getLength() == 0)) {
+                        continue;
+                    }
+
+                    Path output = Files.createTempFile(spoolDirectory, "output", ".tmp");
+                    split.put(leaf, output);
+
+                    OutputStream out = new BufferedOutputStream(Files.newOutputStream(output));
+                    try {
+                        FramedProtocol.copy(in, out, leaf.getLength());
+                    } finally {
+                        out.close();
+                    }
+                }
+            } catch (IOException e) {
+                deleteAll(split.values());
+                throw e;
+            } finally {
+                in.close();
+            }
+        }
+
+        outputs = Collections.unmodifiableMap(split);
+        return outputs;
+    }
+
+    private static void collectLeaves(Response response, List<Response> leaves) {
+        for (Response item : response.getItems()) {
+            if (item.getItems() != null) {
+                collectLeaves(item, leaves);
+            } else {
+                leaves.add(item);
+            }
+        }
+    }
+
+    /**
+     * Deletes whatever files are left.
+     */
+    public synchronized void release() {
+        if (body != null) {
+            deleteAll(Collections.singletonList(body));
+        }
+        if (outputs != null) {
+            deleteAll(outputs.values());
+        }
+    }
+
+    private static void deleteAll(Iterable<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                //swallow
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * The client against a server of the test's own that speaks just enough of
+ * the framed protocol: it echoes each document back, holding responses to
+ * answer several at once in reverse order, and answers busy as often as it
+ * is told.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionClientTest extends TestCase {
+
+    private EchoServer server;
+    private ConversionClient client;
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new EchoServer();
+        client = new ConversionClient("localhost", server.getPort());
+        client.setRetryPolicy(0, 1, 10);
+        directory = Files.createTempDirectory("client-test");
+        client.setSpoolDirectory(directory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        server.close();
+
+        for (Path file : Files.newDirectoryStream(directory)) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    public void testPipelinesOnOneConnection() throws Exception {
+        client.setMaxConnections(1);
+        server.holdFrames = ConversionClient.SERVER_PIPELINE_DEPTH;
+
+        List<CompletableFuture<ConversionResult>> futures = new ArrayList<CompletableFuture<ConversionResult>>();
+
+        for (int i = 0; i < ConversionClient.SERVER_PIPELINE_DEPTH; i++) {
+            futures.add(client.convertAsync(document("d" + i + ".txt", "document " + i), "d" + i + ".pdf"));
+        }
+
+        // answered only once every frame is in, so all were sent unanswered
+        for (int i = 0; i < futures.size(); i++) {
+            ConversionResult result = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertTrue(result.isSuccess());
+            assertEquals("d" + i + ".pdf", result.getResponse().getOutputFilename());
+            assertEquals("document " + i, read(result));
+            result.release();
+        }
+
+        assertEquals(1, server.connections.get());
+    }
+
+    public void testMatchesResponsesByIdAndRestoresTheCallersId() throws Exception {
+        client.setMaxConnections(1);
+        server.holdFrames = 3;
+
+        List<CompletableFuture<ConversionResult>> futures = new ArrayList<CompletableFuture<ConversionResult>>();
+
+        for (int i = 0; i < 3; i++) {
+            Request request = new Request();
+            request.setId("mine-" + i);
+            request.setInputFilename("d" + i + ".txt");
+            request.setOutputFilename("d" + i + ".html");
+            futures.add(client.sendAsync(request, document("d" + i + ".txt", "document " + i)));
+        }
+
+        for (int i = 0; i < 3; i++) {
+            ConversionResult result = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals("mine-" + i, result.getResponse().getId());
+            assertEquals("document " + i, read(result));
+            result.release();
+        }
+
+        // the wire never carried the caller's IDs, which need not be unique
+        for (String id : server.ids) {
+            assertFalse(id.startsWith("mine-"));
+        }
+        assertEquals(3, new HashSet<String>(server.ids).size());
+    }
+
+    public void testCompletesOffTheReadingThread() throws Exception {
+        client.setMaxConnections(1);
+        server.holdFrames = 2;
+        server.gate = new CountDownLatch(1);
+
+        final CompletableFuture<ConversionResult> first = client.convertAsync(document("a.txt", "a"), "a.pdf");
+        CompletableFuture<ConversionResult> second = client.convertAsync(document("b.txt", "b"), "b.pdf");
+
+        // the second is answered first; a stage on it that waits for the
+        // first would block the connection, were it run by its reader
+        CompletableFuture<String> chained = second.thenApply(result -> {
+            try {
+                return read(result) + read(first.get(10, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        server.gate.countDown();
+
+        assertEquals("ba", chained.get(10, TimeUnit.SECONDS));
+    }
+
+    public void testRetriesBusyAnswers() throws Exception {
+        client.setRetryPolicy(3, 1, 10);
+        server.busyAnswers = 2;
+
+        ConversionResult result = client.convertAsync(document("a.txt", "a"), "a.pdf").get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccess());
+        assertEquals("a", read(result));
+        assertEquals(3, server.attempts.get("a.txt").get());
+        result.release();
+    }
+
+    public void testGivesUpOnBusyOnceRetriesRunOut() throws Exception {
+        client.setRetryPolicy(1, 1, 10);
+        server.busyAnswers = 5;
+
+        ConversionResult result = client.convertAsync(document("a.txt", "a"), "a.pdf").get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isBusy());
+        assertNull(result.getOutput());
+        assertEquals(2, server.attempts.get("a.txt").get());
+    }
+
+    public void testCloseFailsWhatIsOutstanding() throws Exception {
+        server.holdFrames = 2;
+
+        CompletableFuture<ConversionResult> future = client.convertAsync(document("a.txt", "a"), "a.pdf");
+        server.received.await(10, TimeUnit.SECONDS);
+        client.close();
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("completed after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private Path document(String name, String contents) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, contents.getBytes("UTF-8"));
+        return file;
+    }
+
+    private static String read(ConversionResult result) throws IOException {
+        return new String(Files.readAllBytes(result.getOutput()), "UTF-8");
+    }
+
+    /**
+     * Echoes each document back as its output, a thread per connection.
+     */
+    private static class EchoServer implements Runnable {
+
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final ObjectMapper mapper = new ObjectMapper();
+        final AtomicInteger connections = new AtomicInteger();
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<String, AtomicInteger>();
+        final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch received = new CountDownLatch(1);
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        /** frames read before any is answered, then answered last first */
+        volatile int holdFrames = 1;
+
+        /** busy answers given each document before it is echoed */
+        volatile int busyAnswers = 0;
+
+        /** what held frames wait for before they are answered, or null */
+        volatile CountDownLatch gate;
+
+        EchoServer() throws IOException {
+            Thread thread = new Thread(this, "echo-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    connections.incrementAndGet();
+
+                    Thread thread = new Thread(new Runnable() {
+
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "echo-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void serve(Socket socket) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                byte[] magic = new byte[FramedProtocol.MAGIC.length];
+                in.readFully(magic);
+
+                List<Map<String, Object>> held = new ArrayList<Map<String, Object>>();
+
+                while (true) {
+                    byte[] header = FramedProtocol.readHeader(in);
+                    if (header == null) {
+                        return;
+                    }
+
+                    Map<String, Object> request = mapper.readValue(header, 0, header.length, new TypeReference<Map<String, Object>>() {
+                    });
+
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    FramedProtocol.copy(in, body, FramedProtocol.readBodyLength(in));
+
+                    String inputFilename = (String) request.get("inputFilename");
+                    attempts.putIfAbsent(inputFilename, new AtomicInteger());
+                    int attempt = attempts.get(inputFilename).incrementAndGet();
+
+                    ids.add((String) request.get("id"));
+                    received.countDown();
+
+                    Map<String, Object> response = new LinkedHashMap<String, Object>();
+                    response.put("id", request.get("id"));
+
+                    if (attempt <= busyAnswers) {
+                        response.put("msg", Response.MSG_BUSY);
+                    } else {
+                        response.put("msg", "Success; output returned in the frame body");
+                        response.put("outputFilename", request.get("outputFilename"));
+                        response.put("body", body.toByteArray());
+                    }
+
+                    held.add(response);
+
+                    if (held.size() < holdFrames) {
+                        continue;
+                    }
+
+                    if (gate != null) {
+                        gate.await();
+                    }
+
+                    for (int i = held.size() - 1; i >= 0; i--) {
+                        Map<String, Object> answer = new HashMap<String, Object>(held.get(i));
+                        byte[] answerBody = (byte[]) answer.remove("body");
+
+                        ByteArrayOutputStream answerHeader = new ByteArrayOutputStream();
+                        mapper.writeValue(answerHeader, answer);
+
+                        FramedProtocol.writeHeader(out, answerHeader.toByteArray());
+                        out.writeLong((answerBody == null) ? 0 : answerBody.length);
+                        if (answerBody != null) {
+                            out.write(answerBody);
+                        }
+                    }
+                    out.flush();
+                    held.clear();
+                }
+            } catch (IOException e) {
+                // the client went away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One line per request handled, at INFO on a logger of its own so it can be
+ * sent to a file apart from the rest:
+ *
+ * <pre>
+ * legacy id="a1" mode=convert documents=1 status=Success in=13962 out=10240 decode=2 convert=517 encode=3 total=522
+ * </pre>
+ *
+ * Bytes in are as read off the wire, bytes out are the outputs returned,
+ * before any encoding; times are in milliseconds.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class AccessLog {
+
+    static final String PROTOCOL_LEGACY = "legacy";
+    static final String PROTOCOL_FRAME = "v2";
+
+    private AccessLog() {
+    }
+
+    /**
+     * @param request null when it could not be read
+     * @param start when handling began, as System.nanoTime()
+     * @param decoded when the documents had been decoded
+     * @param converted when they had been converted, and encoding began
+     * @param end when the response was ready to send
+     */
+    static void log(String protocol, Request request, Response response, long bytesIn, Map<Response, File> returned, long start, long decoded, long converted, long end) {
+        Logger logger = Logger.getLogger(AccessLog.class.getName());
+
+        if (!logger.isLoggable(Level.INFO)) {
+            return;
+        }
+
+        long bytesOut = 0;
+        for (File file : returned.values()) {
+            bytesOut += file.length();
+        }
+
+        String mode = (request == null) ? null : ((request.getMode() == null) ? Request.MODE_CONVERT : request.getMode());
+        int documents = (request == null) ? 0 : ((request.getItems() == null) ? 1 : request.getItems().size());
+        String msg = (response.getMsg() == null) ? "" : response.getMsg();
+        int statusEnd = msg.indexOf(';');
+
+        logger.log(Level.INFO, protocol
+                + " id=" + ((request == null || request.getId() == null) ? "-" : "\"" + request.getId() + "\"")
+                + " mode=" + ((mode == null) ? "-" : mode)
+                + " documents=" + documents
+                + " status=" + ((statusEnd < 0) ? "\"" + msg + "\"" : msg.substring(0, statusEnd))
+                + " in=" + bytesIn
+                + " out=" + bytesOut
+                + " decode=" + millis(decoded - start)
+                + " convert=" + millis(converted - decoded)
+                + " encode=" + millis(end - converted)
+                + " total=" + millis(end - start));
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
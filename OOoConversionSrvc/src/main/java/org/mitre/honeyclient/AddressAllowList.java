@@ -0,0 +1,115 @@
+package org.mitre.honeyclient;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The client addresses allowed to connect, as a list of IP/CIDR blocks such
+ * as "127.0.0.0/8,::1".  Matching is done on the raw address, no name
+ * lookups are involved.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class AddressAllowList {
+
+    private final List<byte[]> networks = new ArrayList<byte[]>();
+    private final List<Integer> prefixLengths = new ArrayList<Integer>();
+
+    /**
+     * @param spec comma separated IP addresses, each optionally followed by
+     *        /prefix-length
+     */
+    public AddressAllowList(String spec) {
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+
+            if (entry.length() == 0) {
+                continue;
+            }
+
+            int slash = entry.indexOf('/');
+            String host = (slash < 0) ? entry : entry.substring(0, slash);
+
+            if (!isLiteral(host)) {
+                throw new IllegalArgumentException("allowed client '" + entry + "' is not an IP address");
+            }
+
+            byte[] network;
+            try {
+                network = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("allowed client '" + entry + "' is not an IP address");
+            }
+
+            int prefixLength = network.length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(entry.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("allowed client '" + entry + "' has a bad prefix length");
+                }
+                if (prefixLength < 0 || prefixLength > network.length * 8) {
+                    throw new IllegalArgumentException("allowed client '" + entry + "' has a bad prefix length");
+                }
+            }
+
+            networks.add(network);
+            prefixLengths.add(prefixLength);
+        }
+    }
+
+    /**
+     * Keeps InetAddress.getByName from ever resolving a name.
+     */
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(c == '.' || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+
+        return host.length() > 0;
+    }
+
+    public boolean isAllowed(InetAddress address) {
+        byte[] candidate = address.getAddress();
+
+        for (int i = 0; i < networks.size(); i++) {
+            if (matches(networks.get(i), prefixLengths.get(i), candidate)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean matches(byte[] network, int prefixLength, byte[] candidate) {
+        if (network.length != candidate.length) {
+            return false;
+        }
+
+        int fullBytes = prefixLength / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (network[i] != candidate[i]) {
+                return false;
+            }
+        }
+
+        int remainingBits = prefixLength % 8;
+        if (remainingBits == 0) {
+            return true;
+        }
+
+        int mask = (0xFF << (8 - remainingBits)) & 0xFF;
+        return (network[fullBytes] & mask) == (candidate[fullBytes] & mask);
+    }
+}
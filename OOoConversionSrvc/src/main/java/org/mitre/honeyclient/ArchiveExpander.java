@@ -0,0 +1,531 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Expands zip, tar, gzip and bzip2 archives into the scratch space, a member
+ * at a time as the archive is read, and the archives within them in turn.
+ * Archives are untrusted: one nested too deep, holding too many members or
+ * expanding to too many bytes is refused as soon as it is seen to, by what
+ * is actually read rather than what its headers claim, so a zip bomb costs
+ * no more than the limits allow.
+ *
+ * The JDK has no bzip2 decoder, bzip2 archives are left to the bzip2
+ * command.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ArchiveExpander implements ArchiveExpanderMBean {
+
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    /** the longest GNU long name or pax header read, anything longer is no name */
+    private static final int MAX_TAR_HEADER_DATA = 65536;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final ScratchSpace scratch;
+    private final int maxDepth;
+    private final int maxMembers;
+    private final long maxBytes;
+
+    private final AtomicLong expanded = new AtomicLong();
+    private final AtomicLong members = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param maxDepth how many archives deep members may be, 1 for none
+     *        within the archive itself
+     * @param maxMembers the most members, archives within included, one
+     *        archive may hold
+     * @param maxBytes the most bytes one archive may expand to, archives
+     *        within included
+     */
+    public ArchiveExpander(ScratchSpace scratch, int maxDepth, int maxMembers, long maxBytes) {
+        this.scratch = scratch;
+        this.maxDepth = maxDepth;
+        this.maxMembers = maxMembers;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Whether a document of the type DocumentSniffer tells is one this
+     * expands.
+     */
+    static boolean isArchive(String type) {
+        return DocumentSniffer.TYPE_ZIP.equals(type) || DocumentSniffer.TYPE_TAR.equals(type) || DocumentSniffer.TYPE_GZIP.equals(type) || DocumentSniffer.TYPE_BZIP2.equals(type);
+    }
+
+    /**
+     * Expands an archive, and the archives within it, into its documents.
+     *
+     * @param name the archive's name, which names the one member of a gzip
+     *        or bzip2 archive
+     * @return the documents, in the order the archive holds them, theirs to
+     *         delete for the caller; archives within are expanded in place
+     *         and not themselves among them
+     */
+    public List<Member> expand(File archive, String name) throws IOException {
+        String type = DocumentSniffer.sniff(archive);
+
+        if (!isArchive(type)) {
+            throw new RuntimeException("Fail; not a zip, tar, gzip or bzip2 archive.");
+        }
+
+        Expansion expansion = new Expansion();
+        boolean done = false;
+
+        try {
+            expansion.expand(archive, type, null, FilenameUtils.getName(name), 1);
+            done = true;
+        } finally {
+            if (!done) {
+                refused.incrementAndGet();
+                expansion.delete();
+            }
+        }
+
+        expanded.incrementAndGet();
+        members.addAndGet(expansion.members.size());
+
+        return expansion.members;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxMembers() {
+        return maxMembers;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getExpanded() {
+        return expanded.get();
+    }
+
+    public long getMembers() {
+        return members.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * A document expanded from an archive.
+     */
+    public static class Member {
+
+        private final String path;
+        private final File file;
+
+        Member(String path, File file) {
+            this.path = path;
+            this.file = file;
+        }
+
+        /**
+         * Where the document is in the archive, by the paths of the
+         * archives it is within, for example docs.tar/a.zip/b.doc.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * One archive's expansion, counting towards its limits.
+     */
+    private class Expansion {
+
+        final List<Member> members = new ArrayList<Member>();
+        int entries = 0;
+        long bytes = 0;
+
+        /**
+         * @param parent the path of the archive within the archive, or null
+         *        for the archive itself
+         * @param name the archive's own name
+         */
+        void expand(File archive, String type, String parent, String name, int depth) throws IOException {
+            if (depth > maxDepth) {
+                throw new RuntimeException("Fail; archive nested more than " + maxDepth + " deep.");
+            }
+
+            InputStream in = new BufferedInputStream(new FileInputStream(archive));
+
+            try {
+                if (DocumentSniffer.TYPE_ZIP.equals(type)) {
+                    expandZip(new ZipInputStream(in), parent, depth);
+                } else if (DocumentSniffer.TYPE_TAR.equals(type)) {
+                    expandTar(in, parent, depth);
+                } else if (DocumentSniffer.TYPE_GZIP.equals(type)) {
+                    add(new GZIPInputStream(in), parent, compressedName(name), depth);
+                } else {
+                    expandBzip2(archive, parent, compressedName(name), depth);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private void expandZip(ZipInputStream in, String parent, int depth) throws IOException {
+            ZipEntry entry;
+
+            while ((entry = nextEntry(in)) != null) {
+                if (!entry.isDirectory()) {
+                    add(in, parent, entry.getName(), depth);
+                }
+            }
+        }
+
+        private ZipEntry nextEntry(ZipInputStream in) throws IOException {
+            try {
+                return in.getNextEntry();
+            } catch (IllegalArgumentException e) {
+                // a name that isn't UTF-8
+                throw new IOException("malformed zip entry name");
+            }
+        }
+
+        /**
+         * Reads ustar headers, with GNU long names and pax paths; regular
+         * files are members, links, devices and the like are skipped.
+         */
+        private void expandTar(InputStream in, String parent, int depth) throws IOException {
+            byte[] header = new byte[TAR_BLOCK_SIZE];
+            String longName = null;
+
+            while (true) {
+                if (readFully(in, header) < TAR_BLOCK_SIZE) {
+                    throw new IOException("tar archive ends within a header");
+                }
+
+                if (isZeroBlock(header)) {
+                    return;
+                }
+
+                long size = tarNumber(header, 124, 12);
+                char typeFlag = (char) header[156];
+                String name = (longName != null) ? longName : tarName(header);
+                EntryInputStream entry = new EntryInputStream(in, size);
+
+                longName = null;
+
+                if ((typeFlag == '0') || (typeFlag == '\0') || (typeFlag == '7')) {
+                    add(entry, parent, name, depth);
+                } else if ((typeFlag == 'L') || (typeFlag == 'x')) {
+                    if (size > MAX_TAR_HEADER_DATA) {
+                        throw new IOException("tar header of " + size + " bytes");
+                    }
+
+                    byte[] data = new byte[(int) size];
+                    readFully(entry, data);
+                    longName = (typeFlag == 'L') ? cString(data, 0, data.length) : paxPath(data);
+                }
+
+                entry.drain();
+                skipFully(in, (TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE);
+            }
+        }
+
+        private void expandBzip2(File archive, String parent, String name, int depth) throws IOException {
+            Process process = new ProcessBuilder("bzip2", "-dc", archive.getAbsolutePath()).start();
+
+            try {
+                process.getOutputStream().close();
+
+                InputStream out = process.getInputStream();
+                try {
+                    add(out, parent, name, depth);
+                } finally {
+                    out.close();
+                }
+
+                if (process.waitFor() != 0) {
+                    throw new IOException("bzip2 could not expand " + name);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted expanding " + name);
+            } finally {
+                // no longer running unless a limit cut it short
+                process.destroy();
+                process.getErrorStream().close();
+            }
+        }
+
+        /**
+         * Copies a member out into the scratch space, counting it towards
+         * the limits, and expands it in turn if it is an archive itself.
+         */
+        private void add(InputStream in, String parent, String name, int depth) throws IOException {
+            if (++entries > maxMembers) {
+                throw new RuntimeException("Fail; archive holds more than " + maxMembers + " members.");
+            }
+
+            String path = (parent == null) ? name : parent + "/" + name;
+            File file = scratch.createFile(FilenameUtils.getName(name));
+            boolean kept = false;
+
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+
+                try {
+                    while ((read = in.read(buffer)) >= 0) {
+                        bytes += read;
+
+                        if (bytes > maxBytes) {
+                            throw new RuntimeException("Fail; archive expands to more than " + maxBytes + " bytes.");
+                        }
+
+                        out.write(buffer, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+
+                String type = DocumentSniffer.sniff(file);
+
+                if (isArchive(type)) {
+                    expand(file, type, path, FilenameUtils.getName(name), depth + 1);
+                } else {
+                    members.add(new Member(path, file));
+                    kept = true;
+                }
+            } finally {
+                if (!kept) {
+                    file.delete();
+                }
+            }
+        }
+
+        void delete() {
+            for (Member member : members) {
+                member.file.delete();
+            }
+        }
+    }
+
+    /**
+     * The name of the one member of a gzip or bzip2 archive, that of the
+     * archive without its suffix, as gunzip and bunzip2 would name it.
+     */
+    private static String compressedName(String name) {
+        String extension = FilenameUtils.getExtension(name).toLowerCase();
+
+        if (extension.equals("tgz") || extension.equals("tbz") || extension.equals("tbz2")) {
+            return FilenameUtils.getBaseName(name) + ".tar";
+        }
+
+        if (extension.equals("gz") || extension.equals("bz2") || extension.equals("bz")) {
+            return FilenameUtils.getBaseName(name);
+        }
+
+        return name;
+    }
+
+    private static String tarName(byte[] header) {
+        String name = cString(header, 0, 100);
+
+        // POSIX ustar splits a long path into a prefix and a name, where
+        // old GNU headers keep times
+        if ((header[257] == 'u') && (header[262] == 0) && (header[345] != 0)) {
+            name = cString(header, 345, 155) + "/" + name;
+        }
+
+        return name;
+    }
+
+    /**
+     * A pax extended header's path record, length, keyword and value, or
+     * null when it has none.
+     */
+    private static String paxPath(byte[] data) throws IOException {
+        String records = new String(data, "UTF-8");
+        int start = 0;
+
+        while (start < records.length()) {
+            int space = records.indexOf(' ', start);
+            int end = records.indexOf('\n', start);
+
+            if ((space < 0) || (end < 0)) {
+                return null;
+            }
+
+            String record = records.substring(space + 1, end);
+
+            if (record.startsWith("path=")) {
+                return record.substring("path=".length());
+            }
+
+            start = end + 1;
+        }
+
+        return null;
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+
+        while ((end < offset + length) && (bytes[end] != 0)) {
+            end++;
+        }
+
+        try {
+            return new String(bytes, offset, end - offset, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * An octal field, or a base-256 one as GNU tar writes sizes too big
+     * for octal.
+     */
+    private static long tarNumber(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+
+            for (int i = offset + 1; i < offset + length; i++) {
+                if (value > (Long.MAX_VALUE >> 8)) {
+                    throw new IOException("tar size out of range");
+                }
+                value = (value << 8) | (header[i] & 0xff);
+            }
+
+            return value;
+        }
+
+        String octal = cString(header, offset, length).trim();
+
+        try {
+            return octal.isEmpty() ? 0 : Long.parseLong(octal, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("not a tar archive, size " + octal);
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+
+        return length;
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read < 0) {
+                throw new IOException("tar archive ends within an entry");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * A tar entry's data, read from the archive's stream without reading
+     * past it or closing the archive.
+     */
+    private static class EntryInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        EntryInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+
+            if (read < 0) {
+                throw new IOException("tar archive ends within an entry");
+            }
+
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // the archive's stream goes on
+        }
+
+        /**
+         * Reads what is left, for an entry skipped, or one cut short.
+         */
+        void drain() throws IOException {
+            skipFully(this, remaining);
+        }
+    }
+}
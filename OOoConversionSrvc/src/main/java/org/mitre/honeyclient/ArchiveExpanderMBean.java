@@ -0,0 +1,26 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the expansion of archives sent in place of documents.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ArchiveExpanderMBean {
+
+    int getMaxDepth();
+
+    int getMaxMembers();
+
+    long getMaxBytes();
+
+    /** archives expanded since start */
+    long getExpanded();
+
+    /** documents expanded from them */
+    long getMembers();
+
+    /** archives over a limit, or that could not be read */
+    long getRefused();
+}
@@ -0,0 +1,129 @@
+package org.mitre.honeyclient;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Puts log records in a bounded buffer and hands them to the handler it
+ * wraps on a thread of its own, so a worker that logs never waits on the
+ * console or a disk.  When the buffer is full records are dropped, and
+ * counted, rather than held up; a warning saying how many is logged once
+ * the writer catches up.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class AsyncLogHandler extends Handler {
+
+    private final Handler target;
+    private final BlockingQueue<LogRecord> buffer;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the most records waiting to be written
+     */
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<LogRecord>(capacity);
+
+        writer = new Thread(new Runnable() {
+
+            public void run() {
+                write();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Wraps every handler of the root logger, so whatever logging is
+     * configured is written asynchronously.
+     */
+    public static void install(int capacity) {
+        Logger root = Logger.getLogger("");
+
+        for (Handler handler : root.getHandlers()) {
+            if (!(handler instanceof AsyncLogHandler)) {
+                root.removeHandler(handler);
+                root.addHandler(new AsyncLogHandler(handler, capacity));
+            }
+        }
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !target.isLoggable(record)) {
+            return;
+        }
+
+        // the caller is worked out from the stack, which has to be this one
+        record.getSourceClassName();
+
+        if (!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void write() {
+        long reported = 0;
+
+        while (!closed || !buffer.isEmpty()) {
+            LogRecord record;
+
+            try {
+                record = buffer.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (record != null) {
+                target.publish(record);
+            }
+
+            long droppedNow = dropped.get();
+
+            if ((droppedNow > reported) && buffer.isEmpty()) {
+                LogRecord warning = new LogRecord(Level.WARNING, "dropped " + (droppedNow - reported) + " log records, the log could not keep up");
+                warning.setLoggerName(AsyncLogHandler.class.getName());
+                target.publish(warning);
+                reported = droppedNow;
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        target.flush();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        target.close();
+    }
+
+    /**
+     * @return records dropped since start because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
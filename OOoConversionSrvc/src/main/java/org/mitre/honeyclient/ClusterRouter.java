@@ -0,0 +1,647 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Spreads requests over conversion servers, the backends, so that a
+ * document goes to the same one every time it is sent and finds its
+ * conversion in that server's cache.  Backends sit on a hash ring by their
+ * address, many points each, and a document's content hash picks the first
+ * backend after it; adding or losing one moves only its share of documents.
+ *
+ * A backend already carrying more than its share of the requests in flight
+ * is passed over for the next on the ring, so one popular document can't
+ * swamp a server while others idle, and one that fails to answer, or fails
+ * its health check, is passed over until it passes one again.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ClusterRouter implements ClusterRouterMBean {
+
+    /** points each backend has on the ring, enough to even out a few backends' shares */
+    static final int VIRTUAL_NODES = 160;
+
+    /** the most job IDs remembered with the backend holding the job */
+    static final int MAX_REMEMBERED_JOBS = 4096;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HEALTH_TIMEOUT_MILLIS = 5000;
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final byte[] HEALTH_REQUEST = {'{', '"', 'm', 'o', 'd', 'e', '"', ':', '"', 'h', 'e', 'a', 'l', 't', 'h', '"', '}'};
+
+    private final List<Backend> backends;
+    private final TreeMap<Long, Backend> ring = new TreeMap<Long, Backend>();
+    private final ScratchSpace scratch;
+    private final ObjectMapper mapper;
+    private final long healthInterval;
+    private final double loadFactor;
+    private final int timeout;
+
+    private final Map<String, Backend> jobs = Collections.synchronizedMap(new LinkedHashMap<String, Backend>() {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Backend> eldest) {
+            return size() > MAX_REMEMBERED_JOBS;
+        }
+    });
+
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    private final ScheduledExecutorService checker;
+
+    /**
+     * @param addresses the backends, conversion servers of their own
+     * @param healthInterval milliseconds between health checks of each backend
+     * @param loadFactor how many times its even share of the requests in
+     *        flight a backend may carry before it is passed over
+     * @param timeout milliseconds a backend may take to answer a request
+     */
+    public ClusterRouter(List<InetSocketAddress> addresses, ScratchSpace scratch, ObjectMapper mapper, long healthInterval, double loadFactor, int timeout) {
+        List<Backend> list = new ArrayList<Backend>();
+        for (InetSocketAddress address : addresses) {
+            Backend backend = new Backend(address);
+            list.add(backend);
+
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(point(backend.getName() + "-" + i), backend);
+            }
+        }
+
+        this.backends = Collections.unmodifiableList(list);
+        this.scratch = scratch;
+        this.mapper = mapper;
+        this.healthInterval = healthInterval;
+        this.loadFactor = loadFactor;
+        this.timeout = timeout;
+
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "router-health");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() {
+        checker.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                for (Backend backend : backends) {
+                    try {
+                        check(backend);
+                    } catch (RuntimeException e) {
+                        Logger.getLogger(ClusterRouter.class.getName()).log(Level.SEVERE, "health check of " + backend.getName() + " failed", e);
+                    }
+                }
+            }
+        }, 0, healthInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * The backends in the order a request for the keyed document tries
+     * them: those on the ring after the key, healthy and within their
+     * share of the load, then healthy ones over it, then the rest, each
+     * in ring order.
+     *
+     * @param key the document's content hash, or whatever else names it
+     */
+    public List<Backend> route(String key) {
+        List<Backend> order = new ArrayList<Backend>(backends.size());
+        long point = point(key);
+
+        addDistinct(order, ring.tailMap(point));
+        addDistinct(order, ring.headMap(point));
+
+        int healthy = 0;
+        int inFlight = 0;
+        for (Backend backend : backends) {
+            if (backend.isHealthy()) {
+                healthy++;
+            }
+            inFlight += backend.getInFlight();
+        }
+
+        // the bound of consistent hashing with bounded loads, at least one
+        int bound = (healthy == 0) ? Integer.MAX_VALUE : (int) Math.ceil(loadFactor * (inFlight + 1) / healthy);
+
+        List<Backend> within = new ArrayList<Backend>();
+        List<Backend> over = new ArrayList<Backend>();
+        List<Backend> down = new ArrayList<Backend>();
+
+        for (Backend backend : order) {
+            if (!backend.isHealthy()) {
+                down.add(backend);
+            } else if (backend.getInFlight() < bound) {
+                within.add(backend);
+            } else {
+                over.add(backend);
+            }
+        }
+
+        if (!within.isEmpty() && (within.get(0) != order.get(0)) && order.get(0).isHealthy()) {
+            spilled.incrementAndGet();
+        }
+
+        within.addAll(over);
+        within.addAll(down);
+        return within;
+    }
+
+    /**
+     * The backends in the order a poll, wait or fetch of a job tries them,
+     * the one the job was submitted to first.
+     */
+    public List<Backend> locate(String jobId) {
+        List<Backend> order = new ArrayList<Backend>(backends);
+        Backend holder = (jobId == null) ? null : jobs.get(jobId);
+
+        if (holder != null) {
+            order.remove(holder);
+            order.add(0, holder);
+        }
+
+        return order;
+    }
+
+    void remember(String jobId, Backend backend) {
+        jobs.put(jobId, backend);
+    }
+
+    void failedOver() {
+        failovers.incrementAndGet();
+    }
+
+    private static void addDistinct(List<Backend> order, SortedMap<Long, Backend> points) {
+        for (Backend backend : points.values()) {
+            if (!order.contains(backend)) {
+                order.add(backend);
+            }
+        }
+    }
+
+    /**
+     * Where a name falls on the ring, the first eight bytes of its MD5.
+     */
+    static long point(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(name.getBytes("UTF-8"));
+            long point = 0;
+            for (int i = 0; i < 8; i++) {
+                point = (point << 8) | (digest[i] & 0xff);
+            }
+            return point;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends a legacy request to a backend and reads its response, which
+     * ends when the backend closes the connection, into a scratch file.
+     */
+    public Reply forwardLegacy(Backend backend, File requestFile) throws IOException {
+        File responseFile = scratch.createFile("response.json");
+        backend.begin();
+
+        try {
+            Socket socket = connect(backend, timeout);
+
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                InputStream in = new BufferedInputStream(new FileInputStream(requestFile));
+                try {
+                    copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.flush();
+
+                OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(responseFile));
+                try {
+                    copy(socket.getInputStream(), fileOut);
+                } finally {
+                    fileOut.close();
+                }
+            } finally {
+                socket.close();
+            }
+
+            if (responseFile.length() == 0) {
+                throw new IOException("Fail; " + backend.getName() + " closed the connection without answering.");
+            }
+
+            Reply reply = new Reply(backend, null, responseFile);
+            scanLegacy(reply);
+            backend.answered();
+            return reply;
+
+        } catch (IOException e) {
+            responseFile.delete();
+            backend.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            responseFile.delete();
+            backend.failed(new IOException(e.getMessage()));
+            throw new IOException(e.getMessage());
+        } finally {
+            backend.end();
+        }
+    }
+
+    /**
+     * Sends a v2 frame to a backend, on a connection of its own, and reads
+     * the one frame it answers with, its body into a scratch file.
+     */
+    public Reply forwardFrame(Backend backend, byte[] header, File bodyFile) throws IOException {
+        backend.begin();
+        File responseFile = null;
+
+        try {
+            Socket socket = connect(backend, timeout);
+            byte[] responseHeader;
+
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.write(FramedProtocol.MAGIC);
+                FramedProtocol.writeHeader(out, header);
+                out.writeLong((bodyFile == null) ? 0 : bodyFile.length());
+                if (bodyFile != null) {
+                    InputStream in = new BufferedInputStream(new FileInputStream(bodyFile));
+                    try {
+                        copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                }
+                out.flush();
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                responseHeader = FramedProtocol.readHeader(in);
+                if (responseHeader == null) {
+                    throw new IOException("Fail; " + backend.getName() + " closed the connection without answering.");
+                }
+
+                long bodyLength = FramedProtocol.readBodyLength(in);
+                if (bodyLength > 0) {
+                    responseFile = scratch.createFile("response");
+                    OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(responseFile));
+                    try {
+                        FramedProtocol.copy(in, fileOut, bodyLength);
+                    } finally {
+                        fileOut.close();
+                    }
+                }
+            } finally {
+                socket.close();
+            }
+
+            Reply reply = new Reply(backend, responseHeader, responseFile);
+            Map<?, ?> fields = mapper.readValue(responseHeader, 0, responseHeader.length, Map.class);
+            reply.msg = (String) fields.get("msg");
+            reply.jobId = (String) fields.get("jobId");
+            backend.answered();
+            return reply;
+
+        } catch (IOException e) {
+            if (responseFile != null) {
+                responseFile.delete();
+            }
+            backend.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            if (responseFile != null) {
+                responseFile.delete();
+            }
+            backend.failed(new IOException(e.getMessage()));
+            throw new IOException(e.getMessage());
+        } finally {
+            backend.end();
+        }
+    }
+
+    /**
+     * Picks the msg and jobId out of a legacy response, skipping over any
+     * output it carries rather than reading it in.
+     */
+    private void scanLegacy(Reply reply) throws IOException {
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(reply.getBody());
+
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Fail; " + reply.getBackend().getName() + " answered with something other than a JSON object.");
+            }
+
+            while ((parser.nextToken() == JsonToken.FIELD_NAME) && ((reply.msg == null) || (reply.jobId == null))) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if ("msg".equals(field) && (value == JsonToken.VALUE_STRING)) {
+                    reply.msg = parser.getText();
+                } else if ("jobId".equals(field) && (value == JsonToken.VALUE_STRING)) {
+                    reply.jobId = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Asks a backend for its health, as a client would; one that doesn't
+     * answer, or hasn't office ready, is down until it does.
+     */
+    private void check(Backend backend) {
+        try {
+            Socket socket = connect(backend, HEALTH_TIMEOUT_MILLIS);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(HEALTH_REQUEST);
+                out.flush();
+                copy(socket.getInputStream(), response);
+            } finally {
+                socket.close();
+            }
+
+            Map<?, ?> fields = mapper.readValue(response.toByteArray(), 0, response.size(), Map.class);
+            Object msg = fields.get("msg");
+            Object health = fields.get("health");
+            boolean ready = (health instanceof Map) && Boolean.TRUE.equals(((Map<?, ?>) health).get("ready"));
+
+            if ((msg instanceof String) && ((String) msg).startsWith("Success") && ready) {
+                backend.up();
+            } else {
+                backend.down("not ready: " + msg);
+            }
+        } catch (IOException e) {
+            backend.down(e.toString());
+        } catch (RuntimeException e) {
+            backend.down(e.toString());
+        }
+    }
+
+    private static Socket connect(Backend backend, int readTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(backend.getAddress(), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buf)) >= 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    /**
+     * The backends' states, as answered to a stats request.
+     */
+    public List<Object> snapshot() {
+        List<Object> states = new ArrayList<Object>();
+
+        for (Backend backend : backends) {
+            Map<String, Object> state = new LinkedHashMap<String, Object>();
+            state.put("address", backend.getName());
+            state.put("healthy", backend.isHealthy());
+            state.put("inFlight", backend.getInFlight());
+            state.put("routed", backend.getRouted());
+            state.put("failures", backend.getFailures());
+            if (backend.getLastError() != null) {
+                state.put("lastError", backend.getLastError());
+            }
+            states.add(state);
+        }
+
+        return states;
+    }
+
+    public int getBackendCount() {
+        return backends.size();
+    }
+
+    public int getHealthyCount() {
+        int healthy = 0;
+        for (Backend backend : backends) {
+            if (backend.isHealthy()) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public long getHealthInterval() {
+        return healthInterval;
+    }
+
+    public double getLoadFactor() {
+        return loadFactor;
+    }
+
+    public long getRouted() {
+        return routed.get();
+    }
+
+    public long getFailovers() {
+        return failovers.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * A conversion server requests are routed to.
+     */
+    public class Backend {
+
+        private final InetSocketAddress address;
+        private final String name;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong routedHere = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        // up until a request or health check says otherwise
+        private volatile boolean healthy = true;
+        private volatile String lastError;
+
+        Backend(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostName() + ":" + address.getPort();
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getRouted() {
+            return routedHere.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        private void begin() {
+            inFlight.incrementAndGet();
+        }
+
+        private void end() {
+            inFlight.decrementAndGet();
+        }
+
+        private void answered() {
+            routedHere.incrementAndGet();
+            routed.incrementAndGet();
+        }
+
+        private void failed(IOException e) {
+            failures.incrementAndGet();
+            down(e.toString());
+        }
+
+        private void up() {
+            if (!healthy) {
+                Logger.getLogger(ClusterRouter.class.getName()).log(Level.INFO, "backend " + name + " is up");
+            }
+            healthy = true;
+        }
+
+        private void down(String reason) {
+            if (healthy) {
+                Logger.getLogger(ClusterRouter.class.getName()).log(Level.WARNING, "backend " + name + " is down, " + reason);
+            }
+            healthy = false;
+            lastError = reason;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A backend's answer: the head of a v2 response, or none for a legacy
+     * one, and the file holding the rest.
+     */
+    public static class Reply {
+
+        private final Backend backend;
+        private final byte[] header;
+        private final File body;
+        private String msg;
+        private String jobId;
+
+        Reply(Backend backend, byte[] header, File body) {
+            this.backend = backend;
+            this.header = header;
+            this.body = body;
+        }
+
+        public Backend getBackend() {
+            return backend;
+        }
+
+        /** the v2 response header, null for a legacy response */
+        public byte[] getHeader() {
+            return header;
+        }
+
+        /** the legacy response, or the v2 response body; null when there is none */
+        public File getBody() {
+            return body;
+        }
+
+        public String getMsg() {
+            return msg;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        /** whether another backend should be asked instead */
+        public boolean isBusy() {
+            return (msg != null) && msg.startsWith("Busy;");
+        }
+
+        public void release() {
+            if (body != null) {
+                body.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the cluster router.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ClusterRouterMBean {
+
+    int getBackendCount();
+
+    /** backends that passed their last health check and haven't failed since */
+    int getHealthyCount();
+
+    long getHealthInterval();
+
+    double getLoadFactor();
+
+    /** requests answered by a backend */
+    long getRouted();
+
+    /** requests tried on another backend after theirs failed or was busy */
+    long getFailovers();
+
+    /** requests passed to another backend than their own to spread the load */
+    long getSpilled();
+}
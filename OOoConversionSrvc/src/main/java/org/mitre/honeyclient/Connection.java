@@ -0,0 +1,554 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The state of one client connection on the front end.  Bytes are read as
+ * they arrive and spooled to disk; once a request is complete it is handed
+ * to a worker, and whatever the worker produces is queued here and written
+ * out as the socket will take it.  Everything but respond() runs on the
+ * selector thread.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class Connection {
+
+    /** v2 requests a single connection may have queued or converting at once */
+    static final int MAX_PIPELINED = 8;
+
+    private enum Phase {
+        DETECT, LEGACY, FRAME_HEADER_LENGTH, FRAME_HEADER, FRAME_BODY_LENGTH, FRAME_BODY, LEGACY_DONE
+    }
+
+    private final NioFrontEnd frontEnd;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private Phase phase = Phase.DETECT;
+    private final ByteBuffer detectBuffer = ByteBuffer.allocate(FramedProtocol.MAGIC.length);
+
+    // legacy request being read
+    private final JsonObjectScanner scanner = new JsonObjectScanner();
+    private File legacyFile;
+    private FileChannel legacyOut;
+    private long legacyLength = 0;
+    private boolean legacyAdmitted = false;
+
+    // v2 frame being read
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+    private ByteBuffer headerBuffer;
+    private Request frameRequest;
+    private String frameError;
+    private long bodyRemaining;
+    private File bodyFile;
+    private FileChannel bodyOut;
+
+    private final Queue<OutgoingResponse> outgoing = new ConcurrentLinkedQueue<OutgoingResponse>();
+    private OutgoingResponse writing;
+
+    /** requests accepted but not yet answered, touched by the selector thread only */
+    private int inFlight = 0;
+    private boolean inputClosed = false;
+    private volatile boolean closed = false;
+    private long lastActivity = System.currentTimeMillis();
+
+    public Connection(NioFrontEnd frontEnd, SocketChannel channel, SelectionKey key) {
+        this.frontEnd = frontEnd;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    public void onReadable(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int len = channel.read(readBuffer);
+
+        if (len < 0) {
+            inputClosed = true;
+            setReading(false);
+            closeIfDrained();
+            return;
+        }
+
+        lastActivity = System.currentTimeMillis();
+        frontEnd.getServer().getStats().addBytesIn(len);
+        readBuffer.flip();
+
+        while (readBuffer.hasRemaining() && !closed && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+            consume(readBuffer);
+        }
+    }
+
+    private void consume(ByteBuffer buffer) throws IOException {
+        switch (phase) {
+            case DETECT:
+                detect(buffer);
+                break;
+            case LEGACY:
+                readLegacy(buffer);
+                break;
+            case FRAME_HEADER_LENGTH:
+                if (fill(lengthBuffer, buffer)) {
+                    int headerLength = lengthBuffer.getInt(0);
+                    if (headerLength < 0 || headerLength > FramedProtocol.MAX_HEADER_LENGTH) {
+                        throw new IOException("Fail; frame header length " + headerLength + " out of range.");
+                    }
+                    headerBuffer = ByteBuffer.allocate(headerLength);
+                    phase = Phase.FRAME_HEADER;
+                }
+                break;
+            case FRAME_HEADER:
+                if (fill(headerBuffer, buffer)) {
+                    readFrameHeader();
+                    lengthBuffer.clear();
+                    phase = Phase.FRAME_BODY_LENGTH;
+                }
+                break;
+            case FRAME_BODY_LENGTH:
+                if (fill(lengthBuffer, buffer)) {
+                    startFrameBody(lengthBuffer.getLong(0));
+                }
+                break;
+            case FRAME_BODY:
+                readFrameBody(buffer);
+                break;
+            default:
+                // a legacy request is complete, anything more is ignored
+                buffer.position(buffer.limit());
+        }
+    }
+
+    private void detect(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && detectBuffer.hasRemaining()) {
+            detectBuffer.put(buffer.get());
+            if (detectBuffer.get(0) != FramedProtocol.MAGIC[0]) {
+                break;
+            }
+        }
+
+        boolean full = !detectBuffer.hasRemaining();
+
+        if (full && detectBuffer.get(0) == FramedProtocol.MAGIC[0] && detectBuffer.get(1) == FramedProtocol.MAGIC[1]
+                && detectBuffer.get(2) == FramedProtocol.MAGIC[2] && detectBuffer.get(3) == FramedProtocol.MAGIC[3]) {
+            lengthBuffer.clear();
+            lengthBuffer.limit(4);
+            phase = Phase.FRAME_HEADER_LENGTH;
+            return;
+        }
+
+        if (full || detectBuffer.get(0) != FramedProtocol.MAGIC[0]) {
+            legacyFile = frontEnd.getServer().getScratch().createFile("request.json");
+            legacyOut = new FileOutputStream(legacyFile).getChannel();
+            phase = Phase.LEGACY;
+
+            detectBuffer.flip();
+            readLegacy(detectBuffer);
+        }
+    }
+
+    private void readLegacy(ByteBuffer buffer) throws IOException {
+        int end = scanner.scan(buffer);
+        int take = (end < 0) ? buffer.remaining() : end;
+
+        legacyLength += take;
+
+        // Base64 is 4/3 the size of the documents, plus room for the fields;
+        // the reader holds each document of a batch to the smaller limit
+        if (legacyLength > (frontEnd.getServer().getBatchSizeMax() / 3L) * 4L + FramedProtocol.MAX_HEADER_LENGTH) {
+            refuseLegacy("Fail; File too big to process.");
+            return;
+        }
+
+        // grown past what its fields alone could need, the request carries a
+        // document, and is only staged while there is room for it
+        if (!legacyAdmitted && (legacyLength > FramedProtocol.MAX_HEADER_LENGTH)) {
+            if (!frontEnd.getServer().getScratch().admit(legacyLength)) {
+                refuseLegacy(Response.MSG_BUSY);
+                return;
+            }
+            legacyAdmitted = true;
+        }
+
+        write(legacyOut, buffer, take);
+
+        if (end >= 0) {
+            closeLegacyFile();
+            phase = Phase.LEGACY_DONE;
+            setReading(false);
+            submitLegacy();
+        }
+    }
+
+    /**
+     * Answers a legacy request without reading the rest of it, and closes.
+     */
+    private void refuseLegacy(String msg) throws IOException {
+        closeLegacyFile();
+        legacyFile.delete();
+        phase = Phase.LEGACY_DONE;
+        setReading(false);
+        inFlight++;
+        queue(new OutgoingResponse(frontEnd.getHandler().legacyResponse(new Response(msg, null, null)), true));
+    }
+
+    private void submitLegacy() throws IOException {
+        final File requestFile = legacyFile;
+        legacyFile = null;
+        inFlight++;
+
+        boolean accepted = frontEnd.submit(new Runnable() {
+
+            public void run() {
+                OutgoingResponse response;
+                try {
+                    response = frontEnd.getHandler().handleLegacy(requestFile);
+                } catch (Exception e) {
+                    Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, e.getMessage());
+                    response = null;
+                } finally {
+                    requestFile.delete();
+                }
+                respond(response);
+            }
+        });
+
+        if (!accepted) {
+            requestFile.delete();
+            queue(new OutgoingResponse(frontEnd.getHandler().legacyResponse(new Response(Response.MSG_BUSY, null, null)), true));
+        }
+    }
+
+    private void readFrameHeader() {
+        frameRequest = null;
+        frameError = null;
+
+        try {
+            frameRequest = frontEnd.getServer().getMapper().readValue(headerBuffer.array(), 0, headerBuffer.capacity(), Request.class);
+        } catch (IOException e) {
+            frameError = "Fail; malformed request header.";
+        }
+
+        // a header of JSON null parses without complaint
+        if ((frameRequest == null) && (frameError == null)) {
+            frameError = "Fail; malformed request header.";
+        }
+
+        headerBuffer = null;
+    }
+
+    private void startFrameBody(long bodyLength) throws IOException {
+        if (bodyLength < 0) {
+            throw new IOException("Fail; frame body length " + bodyLength + " out of range.");
+        }
+
+        bodyRemaining = bodyLength;
+
+        boolean batch = (frameRequest != null) && (frameRequest.getItems() != null);
+
+        if ((frameError == null) && (bodyLength > (batch ? frontEnd.getServer().getBatchSizeMax() : frontEnd.getServer().getFileSizeMax()))) {
+            frameError = "Fail; File too big to process.";
+        }
+
+        if ((frameError == null) && (bodyLength > 0) && !frontEnd.getServer().getScratch().admit(bodyLength)) {
+            frameError = Response.MSG_BUSY;
+        }
+
+        // a refused body is still read, and dropped, to stay on the next frame
+        if ((frameError == null) && (bodyLength > 0)) {
+            bodyFile = frontEnd.getServer().getScratch().createFile(frameRequest.getInputFilename());
+            bodyOut = new FileOutputStream(bodyFile).getChannel();
+        }
+
+        phase = Phase.FRAME_BODY;
+
+        if (bodyRemaining == 0) {
+            completeFrame();
+        }
+    }
+
+    private void readFrameBody(ByteBuffer buffer) throws IOException {
+        int take = (int) Math.min(buffer.remaining(), bodyRemaining);
+
+        if (bodyOut != null) {
+            write(bodyOut, buffer, take);
+        } else {
+            buffer.position(buffer.position() + take);
+        }
+
+        bodyRemaining -= take;
+
+        if (bodyRemaining == 0) {
+            completeFrame();
+        }
+    }
+
+    private void completeFrame() throws IOException {
+        if (bodyOut != null) {
+            bodyOut.close();
+            bodyOut = null;
+        }
+
+        final Request request = frameRequest;
+        final File body = bodyFile;
+        bodyFile = null;
+        frameRequest = null;
+
+        lengthBuffer.clear();
+        lengthBuffer.limit(4);
+        phase = Phase.FRAME_HEADER_LENGTH;
+
+        inFlight++;
+        if (inFlight >= MAX_PIPELINED) {
+            setReading(false);
+        }
+
+        if (frameError != null) {
+            Response response = new Response(frameError, null, null);
+            if (request != null) {
+                response.setId(request.getId());
+            }
+            queue(new OutgoingResponse(frontEnd.getHandler().frameHead(response, 0), false));
+            return;
+        }
+
+        if (frontEnd.getHandler().answersInline(request)) {
+            if (body != null) {
+                body.delete();
+            }
+            Response response;
+            if (Request.MODE_STATS.equals(request.getMode())) {
+                response = frontEnd.getHandler().statsResponse(request);
+            } else if (Request.MODE_HEALTH.equals(request.getMode())) {
+                response = frontEnd.getHandler().healthResponse(request);
+            } else {
+                response = frontEnd.getHandler().pollResponse(request);
+            }
+            queue(new OutgoingResponse(frontEnd.getHandler().frameHead(response, 0), false));
+            return;
+        }
+
+        boolean accepted = frontEnd.submit(new Runnable() {
+
+            public void run() {
+                OutgoingResponse response;
+                try {
+                    response = frontEnd.getHandler().handleFrame(request, body);
+                } catch (Exception e) {
+                    Logger.getLogger(Connection.class.getName()).log(Level.SEVERE, e.getMessage());
+                    if (body != null) {
+                        body.delete();
+                    }
+                    response = null;
+                }
+                respond(response);
+            }
+        });
+
+        if (!accepted) {
+            if (body != null) {
+                body.delete();
+            }
+            Response response = new Response(Response.MSG_BUSY, null, null);
+            response.setId(request.getId());
+            queue(new OutgoingResponse(frontEnd.getHandler().frameHead(response, 0), false));
+        }
+    }
+
+    /**
+     * Called from a worker when a request has been handled.  A null response
+     * means the request failed in a way that leaves nothing sensible to send,
+     * and the connection is dropped.
+     */
+    public void respond(OutgoingResponse response) {
+        if (response == null) {
+            response = new OutgoingResponse(null, true);
+        }
+
+        if (closed) {
+            response.release();
+            return;
+        }
+
+        outgoing.add(response);
+        frontEnd.requestWrite(this);
+
+        // closed while we were queuing, make sure nothing is left behind
+        if (closed) {
+            releaseOutgoing();
+        }
+    }
+
+    /**
+     * Queues a response produced on the selector thread itself.
+     */
+    private void queue(OutgoingResponse response) {
+        outgoing.add(response);
+        enableWrite();
+    }
+
+    public void enableWrite() {
+        if (!closed && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    public void onWritable() throws IOException {
+        while (true) {
+            if (writing == null) {
+                writing = outgoing.poll();
+
+                if (writing == null) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    closeIfDrained();
+                    return;
+                }
+            }
+
+            long written = writing.getWritten();
+            boolean done = writing.writeTo(channel);
+
+            frontEnd.getServer().getStats().addBytesOut(writing.getWritten() - written);
+
+            if (!done) {
+                return;
+            }
+
+            lastActivity = System.currentTimeMillis();
+
+            OutgoingResponse sent = writing;
+            writing = null;
+            sent.release();
+            inFlight--;
+
+            if (sent.isCloseAfter()) {
+                close();
+                return;
+            }
+
+            if (!inputClosed && phase != Phase.LEGACY_DONE && inFlight < MAX_PIPELINED) {
+                setReading(true);
+            }
+        }
+    }
+
+    /**
+     * Whether the connection has sat with nothing to read, convert or write
+     * for longer than timeout milliseconds.
+     */
+    public boolean isIdle(long now, long timeout) {
+        return (inFlight == 0) && (writing == null) && outgoing.isEmpty() && (now - lastActivity > timeout);
+    }
+
+    private void closeIfDrained() {
+        if (inputClosed && inFlight == 0 && writing == null && outgoing.isEmpty()) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //swallow
+        }
+
+        closeLegacyFile();
+        if (legacyFile != null) {
+            legacyFile.delete();
+        }
+
+        if (bodyOut != null) {
+            try {
+                bodyOut.close();
+            } catch (IOException e) {
+                //swallow
+            }
+        }
+        if (bodyFile != null) {
+            bodyFile.delete();
+        }
+
+        if (writing != null) {
+            writing.release();
+            writing = null;
+        }
+        releaseOutgoing();
+
+        Logger.getLogger(Connection.class.getName()).log(Level.FINEST, "closed connection");
+    }
+
+    private void releaseOutgoing() {
+        OutgoingResponse response;
+        while ((response = outgoing.poll()) != null) {
+            response.release();
+        }
+    }
+
+    private void closeLegacyFile() {
+        if (legacyOut != null) {
+            try {
+                legacyOut.close();
+            } catch (IOException e) {
+                //swallow
+            }
+            legacyOut = null;
+        }
+    }
+
+    private void setReading(boolean reading) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (reading) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Moves bytes from source into target until target is full.
+     *
+     * @return true once target is full
+     */
+    private static boolean fill(ByteBuffer target, ByteBuffer source) {
+        while (target.hasRemaining() && source.hasRemaining()) {
+            target.put(source.get());
+        }
+        return !target.hasRemaining();
+    }
+
+    /**
+     * Writes the next length bytes of buffer to the channel, advancing the
+     * buffer past them.
+     */
+    private static void write(FileChannel out, ByteBuffer buffer, int length) throws IOException {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(buffer.position() + length);
+
+        while (slice.hasRemaining()) {
+            out.write(slice);
+        }
+
+        buffer.position(buffer.position() + length);
+    }
+}
@@ -0,0 +1,384 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * An on-disk LRU cache of conversion results keyed by the SHA-1 of the input
+ * document plus the output extension, so the same attachment sent to many
+ * mailboxes is only converted once.  Requests for a key already being
+ * converted wait for that conversion rather than starting their own.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionCache implements ConversionCacheMBean {
+
+    private static final int DIGEST_BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final long maxBytes;
+
+    /** access ordered, eldest first */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final ConcurrentMap<String, Pending> inFlight = new ConcurrentHashMap<String, Pending>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ConversionCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache directory " + directory.getPath());
+        }
+
+        load();
+    }
+
+    /**
+     * Picks up results left by a previous run, oldest first so they are the
+     * first to go.
+     */
+    private synchronized void load() {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                return (a.lastModified() < b.lastModified()) ? -1 : ((a.lastModified() == b.lastModified()) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            } else if (file.isFile()) {
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+
+        evict();
+
+        Logger.getLogger(ConversionCache.class.getName()).log(Level.INFO, "conversion cache loaded " + entries.size() + " entries, " + totalBytes + " bytes from " + directory.getPath());
+    }
+
+    /**
+     * Fills outputFile with the conversion of inputFile, from the cache when
+     * possible, otherwise by converting and remembering the result.
+     */
+    public void convert(File inputFile, File outputFile, InsistOfficeDocumentConverter converter, ConversionOptions options) throws InterruptedException {
+        String key = key(digest(inputFile), outputFile, options);
+
+        if (fetch(key, outputFile)) {
+            hits.incrementAndGet();
+            return;
+        }
+
+        Pending pending = new Pending();
+        Pending existing = inFlight.putIfAbsent(key, pending);
+
+        if (existing != null) {
+            // someone else is already converting this very document
+            existing.await();
+            if (existing.succeeded && fetch(key, outputFile)) {
+                shared.incrementAndGet();
+                return;
+            }
+            if (!existing.converted) {
+                throw new RuntimeException("The file could not be converted.");
+            }
+
+            // converted, but too big to keep or already evicted
+            misses.incrementAndGet();
+            converter.convert(inputFile, outputFile, options);
+            return;
+        }
+
+        misses.incrementAndGet();
+
+        try {
+            converter.convert(inputFile, outputFile, options);
+
+            if (outputFile.exists()) {
+                pending.converted = true;
+                pending.succeeded = store(key, outputFile);
+            }
+        } finally {
+            inFlight.remove(key);
+            pending.done();
+        }
+    }
+
+    /**
+     * Fills each of outputFiles with a conversion of inputFile, taking what
+     * it can from the cache and converting the rest together, so the
+     * document is loaded once however many formats are missing.  Outputs
+     * that could not be produced are left missing rather than failing the
+     * others.
+     */
+    public void convert(File inputFile, List<File> outputFiles, InsistOfficeDocumentConverter converter, ConversionOptions options) throws InterruptedException {
+        String digest = digest(inputFile);
+
+        List<String> ownKeys = new ArrayList<String>();
+        List<File> ownFiles = new ArrayList<File>();
+        List<Pending> ownPending = new ArrayList<Pending>();
+
+        List<String> waitingKeys = new ArrayList<String>();
+        List<File> waitingFiles = new ArrayList<File>();
+        List<Pending> waitingPending = new ArrayList<Pending>();
+
+        for (File outputFile : outputFiles) {
+            String key = key(digest, outputFile, options);
+
+            if (fetch(key, outputFile)) {
+                hits.incrementAndGet();
+                continue;
+            }
+
+            Pending pending = new Pending();
+            Pending existing = inFlight.putIfAbsent(key, pending);
+
+            if (existing != null) {
+                waitingKeys.add(key);
+                waitingFiles.add(outputFile);
+                waitingPending.add(existing);
+            } else {
+                ownKeys.add(key);
+                ownFiles.add(outputFile);
+                ownPending.add(pending);
+            }
+        }
+
+        if (!ownFiles.isEmpty()) {
+            misses.addAndGet(ownFiles.size());
+
+            try {
+                if (ownFiles.size() == 1) {
+                    converter.convert(inputFile, ownFiles.get(0), options);
+                } else {
+                    converter.convert(inputFile, ownFiles, options);
+                }
+
+                for (int i = 0; i < ownFiles.size(); i++) {
+                    if (ownFiles.get(i).exists()) {
+                        ownPending.get(i).converted = true;
+                        ownPending.get(i).succeeded = store(ownKeys.get(i), ownFiles.get(i));
+                    }
+                }
+            } finally {
+                for (int i = 0; i < ownKeys.size(); i++) {
+                    inFlight.remove(ownKeys.get(i));
+                    ownPending.get(i).done();
+                }
+            }
+        }
+
+        // includes outputs of the same format as one of ours, which our own
+        // conversion has just settled
+        List<File> uncached = new ArrayList<File>();
+
+        for (int i = 0; i < waitingFiles.size(); i++) {
+            Pending existing = waitingPending.get(i);
+            existing.await();
+            if (existing.succeeded && fetch(waitingKeys.get(i), waitingFiles.get(i))) {
+                shared.incrementAndGet();
+            } else if (existing.converted && !uncached.contains(waitingFiles.get(i))) {
+                // converted, but too big to keep or already evicted
+                uncached.add(waitingFiles.get(i));
+            }
+        }
+
+        if (!uncached.isEmpty()) {
+            misses.addAndGet(uncached.size());
+
+            if (uncached.size() == 1) {
+                converter.convert(inputFile, uncached.get(0), options);
+            } else {
+                converter.convert(inputFile, uncached, options);
+            }
+        }
+    }
+
+    private boolean fetch(String key, File outputFile) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return false;
+            }
+        }
+
+        try {
+            FileUtils.copyFile(new File(directory, key), outputFile);
+            return true;
+        } catch (IOException e) {
+            // evicted between the lookup and the copy
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the output is in the cache, it isn't when it alone
+     *         would overflow the cache or could not be copied in
+     */
+    private boolean store(String key, File outputFile) {
+        long length = outputFile.length();
+
+        if (length > maxBytes) {
+            return false;
+        }
+
+        File temp = new File(directory, key + ".tmp");
+        File target = new File(directory, key);
+
+        try {
+            FileUtils.copyFile(outputFile, temp);
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                return false;
+            }
+        } catch (IOException e) {
+            Logger.getLogger(ConversionCache.class.getName()).log(Level.WARNING, "could not cache " + key, e);
+            temp.delete();
+            return false;
+        }
+
+        synchronized (this) {
+            Long previous = entries.put(key, length);
+            if (previous != null) {
+                totalBytes -= previous;
+            }
+            totalBytes += length;
+            evict();
+            return entries.containsKey(key);
+        }
+    }
+
+    /**
+     * Drops least recently used entries until the cache fits its budget.
+     * Callers hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+
+        while ((totalBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            new File(directory, eldest.getKey()).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * The document's digest, the variant of the options it is converted
+     * with, so a text-only export isn't served for a full one, and the
+     * extension of the format it is converted to.
+     */
+    private static String key(String digest, File outputFile, ConversionOptions options) {
+        String extension = (options.getOutputFormat() != null) ? options.getOutputFormat() : FilenameUtils.getExtension(outputFile.getName()).toLowerCase();
+        return digest + options.getVariant() + "." + extension;
+    }
+
+    static String digest(File inputFile) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[DIGEST_BUFFER_SIZE];
+            InputStream in = new BufferedInputStream(new FileInputStream(inputFile));
+
+            try {
+                int len;
+                while ((len = in.read(buf)) >= 0) {
+                    digest.update(buf, 0, len);
+                }
+            } finally {
+                in.close();
+            }
+
+            return new String(Hex.encodeHex(digest.digest()));
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail; could not read the input file.");
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getShared() {
+        return shared.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    private static class Pending {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        /** the conversion produced its output */
+        volatile boolean converted = false;
+        /** and the output is in the cache for the waiters to fetch */
+        volatile boolean succeeded = false;
+
+        void await() throws InterruptedException {
+            latch.await();
+        }
+
+        void done() {
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the conversion result cache.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ConversionCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /** requests that waited on an identical conversion already under way */
+    long getShared();
+
+    long getEvictions();
+
+    int getEntryCount();
+
+    long getSizeBytes();
+
+    long getMaxBytes();
+}
@@ -0,0 +1,272 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversions submitted to run in the background, so a client needn't hold
+ * a connection open while office works.  A job is known by a random ID that
+ * the client polls, waits on or fetches; a done job's response, and the
+ * outputs that go with it, are kept for the result TTL and then deleted
+ * whether fetched or not.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionJobs implements ConversionJobsMBean {
+
+    public static final String STATE_PENDING = "pending";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+
+    /** how often expired results are looked for, at most */
+    private static final long MAX_REAP_INTERVAL_MILLIS = 60000;
+
+    private final long resultTtlMillis;
+    private final int maxJobs;
+
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    private final ScheduledExecutorService reaper;
+
+    private ConversionJournal journal;
+
+    /**
+     * @param resultTtlMillis how long a done job is kept for fetching
+     * @param maxJobs the most jobs, pending or done, kept at once
+     */
+    public ConversionJobs(long resultTtlMillis, int maxJobs) {
+        this.resultTtlMillis = resultTtlMillis;
+        this.maxJobs = maxJobs;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "job-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long interval = Math.max(1000, Math.min(resultTtlMillis / 2, MAX_REAP_INTERVAL_MILLIS));
+
+        reaper.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                reap();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A new pending job, or null when as many jobs as allowed are already
+     * kept.
+     */
+    public synchronized Job create() {
+        if (jobs.size() >= maxJobs) {
+            return null;
+        }
+
+        Job job = new Job(UUID.randomUUID().toString());
+        jobs.put(job.getId(), job);
+        submitted.incrementAndGet();
+
+        return job;
+    }
+
+    /**
+     * A pending job by the ID a previous run gave it, taken back from the
+     * journal whether or not there is room.
+     */
+    synchronized Job restore(String id) {
+        Job job = new Job(id);
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Drops a job that could not be accepted after all.
+     */
+    void cancel(Job job) {
+        jobs.remove(job.getId());
+    }
+
+    /**
+     * The job, or null if there never was one by that ID or it has expired.
+     */
+    public Job get(String id) {
+        return (id == null) ? null : jobs.get(id);
+    }
+
+    private void reap() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Job> iterator = jobs.values().iterator(); iterator.hasNext();) {
+            Job job = iterator.next();
+
+            if (job.isExpired(now)) {
+                iterator.remove();
+                job.release();
+                expired.incrementAndGet();
+
+                if (journal != null) {
+                    journal.expired(job.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param journal where jobs are recorded so they survive a restart, or
+     *        null to keep them in memory only
+     */
+    public void setJournal(ConversionJournal journal) {
+        this.journal = journal;
+    }
+
+    public ConversionJournal getJournal() {
+        return journal;
+    }
+
+    public int getPending() {
+        int count = 0;
+        for (Job job : jobs.values()) {
+            if (!STATE_DONE.equals(job.getState())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getDone() {
+        return jobs.size() - getPending();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getResultTtlMillis() {
+        return resultTtlMillis;
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * One submitted conversion.  Whoever is waiting on it is woken when it's
+     * done.
+     */
+    public class Job {
+
+        private final String id;
+        private String state = STATE_PENDING;
+        private Response response;
+        private Map<Response, File> returned = Collections.emptyMap();
+        private long doneAt;
+
+        Job(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public synchronized String getState() {
+            return state;
+        }
+
+        synchronized void started() {
+            state = STATE_RUNNING;
+        }
+
+        /**
+         * @param returned the outputs that go back with the response or its
+         *        items, kept until the job expires
+         */
+        synchronized void done(Response response, Map<Response, File> returned) {
+            done(response, returned, System.currentTimeMillis());
+        }
+
+        /**
+         * @param doneAt when the job was done, its result expiring the TTL
+         *        after
+         */
+        synchronized void done(Response response, Map<Response, File> returned, long doneAt) {
+            this.response = response;
+            this.returned = returned;
+            this.doneAt = doneAt;
+            state = STATE_DONE;
+
+            notifyAll();
+        }
+
+        /**
+         * Waits up to timeoutMillis for the job to be done.
+         *
+         * @return whether it is
+         */
+        public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+            long until = System.currentTimeMillis() + timeoutMillis;
+
+            while (!STATE_DONE.equals(state)) {
+                long remaining = until - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+
+            return true;
+        }
+
+        /**
+         * The response, once done.
+         */
+        public synchronized Response getResponse() {
+            return response;
+        }
+
+        public synchronized Map<Response, File> getReturned() {
+            return returned;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return STATE_DONE.equals(state) && (now - doneAt >= resultTtlMillis);
+        }
+
+        synchronized void release() {
+            for (File file : returned.values()) {
+                file.delete();
+            }
+
+            Logger logger = Logger.getLogger(ConversionJobs.class.getName());
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.log(Level.FINEST, "job " + id + " expired");
+            }
+        }
+    }
+}
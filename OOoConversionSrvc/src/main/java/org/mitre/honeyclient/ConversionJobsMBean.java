@@ -0,0 +1,26 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the asynchronous jobs.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ConversionJobsMBean {
+
+    /** jobs submitted and not yet done */
+    int getPending();
+
+    /** jobs done and waiting to be fetched or to expire */
+    int getDone();
+
+    long getSubmitted();
+
+    /** done jobs dropped once their results had been kept long enough */
+    long getExpired();
+
+    long getResultTtlMillis();
+
+    int getMaxJobs();
+}
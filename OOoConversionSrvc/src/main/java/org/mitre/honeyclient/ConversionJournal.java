@@ -0,0 +1,538 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+
+/**
+ * A record on disk of the jobs submitted, so a restart loses neither the
+ * documents waiting to be converted nor the results waiting to be fetched.
+ * Each job's request and inputs, and later its response and outputs, are
+ * spooled to a directory of its own; an append-only log, synced as each
+ * record is written, says which jobs were accepted, started, done and
+ * expired.  A job's files are always in place before the record that
+ * refers to them, so a crash between the two only leaves a directory that
+ * the next start deletes.
+ *
+ * On start the log is read back: jobs done but not yet expired are kept
+ * for fetching, the others are handed back to be run again, and the log is
+ * rewritten with only those jobs.
+ *
+ * Document passwords are left out of the requests journaled, credentials
+ * aren't kept on disk; a job of a password-protected document run again
+ * after a restart fails for want of one, and is to be submitted again.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionJournal implements ConversionJournalMBean {
+
+    /** a job started this many times without being done is given up on */
+    static final int MAX_STARTS = 3;
+
+    private static final String LOG_NAME = "journal.log";
+
+    private static final String EVENT_ACCEPTED = "accepted";
+    private static final String EVENT_STARTED = "started";
+    private static final String EVENT_DONE = "done";
+    private static final String EVENT_EXPIRED = "expired";
+
+    private static final String REQUEST_NAME = "request.json";
+    private static final String ITEMS_NAME = "items.json";
+    private static final String RESPONSE_NAME = "response.json";
+
+    private static final String ITEM_INPUT = "input";
+    private static final String ITEM_ERROR = "error";
+
+    private static final TypeReference<Map<String, Object>> REQUEST_VALUES = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final File directory;
+    private final ObjectMapper mapper;
+
+    private FileChannel log;
+
+    /** left by the previous run, until handed over */
+    private List<Entry> recovered;
+
+    private final AtomicLong records = new AtomicLong();
+    private long replayed;
+    private long restored;
+
+    /**
+     * Opens the journal in directory, reading back what a previous run left
+     * there.
+     */
+    public ConversionJournal(File directory, ObjectMapper mapper) throws IOException {
+        this.directory = directory;
+        this.mapper = mapper;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create journal directory " + directory.getPath());
+        }
+
+        recovered = load();
+        compact(recovered);
+
+        log = new FileOutputStream(new File(directory, LOG_NAME), true).getChannel();
+
+        for (Entry entry : recovered) {
+            if (entry.isDone()) {
+                restored++;
+            } else {
+                replayed++;
+            }
+        }
+
+        Logger.getLogger(ConversionJournal.class.getName()).log(Level.INFO, "job journal in " + directory.getPath() + " recovered " + replayed + " unfinished and " + restored + " done jobs");
+    }
+
+    /**
+     * The jobs left unfinished or unfetched by the previous run, in the order
+     * they were accepted.  Only given out once.
+     */
+    public synchronized List<Entry> takeRecovered() {
+        List<Entry> entries = recovered;
+        recovered = Collections.emptyList();
+        return entries;
+    }
+
+    /**
+     * Records a job as accepted, moving its inputs into the journal.
+     *
+     * @param errors why each item was refused before conversion, or null
+     * @param inputs each item's uploaded input, or null
+     * @return where each input now is, null where there was none
+     */
+    public List<File> accepted(String id, Request request, List<String> errors, List<File> inputs) throws IOException {
+        File jobDirectory = new File(directory, id);
+
+        if (!jobDirectory.mkdir()) {
+            throw new IOException("could not create " + jobDirectory.getPath());
+        }
+
+        try {
+            List<File> moved = new ArrayList<File>();
+            List<Map<String, String>> items = new ArrayList<Map<String, String>>();
+
+            for (int i = 0; i < inputs.size(); i++) {
+                File input = inputs.get(i);
+                Map<String, String> item = new HashMap<String, String>();
+
+                if (input != null) {
+                    // office keys off the extension
+                    File target = new File(jobDirectory, ITEM_INPUT + "-" + i + "." + FilenameUtils.getExtension(input.getName()));
+                    FileUtils.moveFile(input, target);
+                    sync(target);
+
+                    moved.add(target);
+                    item.put(ITEM_INPUT, target.getName());
+                } else {
+                    moved.add(null);
+                }
+
+                item.put(ITEM_ERROR, errors.get(i));
+                items.add(item);
+            }
+
+            writeSynced(new File(jobDirectory, REQUEST_NAME), withoutPasswords(request));
+            writeSynced(new File(jobDirectory, ITEMS_NAME), items);
+
+            append(EVENT_ACCEPTED, id);
+
+            return moved;
+
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(jobDirectory);
+            throw e;
+        }
+    }
+
+    public void started(String id) throws IOException {
+        append(EVENT_STARTED, id);
+    }
+
+    /**
+     * Records a job as done, moving the outputs that go back with its
+     * response into the journal.
+     *
+     * @return where each output now is
+     */
+    public Map<Response, File> done(String id, Response response, Map<Response, File> returned) throws IOException {
+        File jobDirectory = new File(directory, id);
+        Map<Response, File> moved = new IdentityHashMap<Response, File>();
+        List<Response> leaves = new ArrayList<Response>();
+
+        collectLeaves(response, leaves);
+
+        try {
+            for (int i = 0; i < leaves.size(); i++) {
+                File output = returned.get(leaves.get(i));
+
+                if (output != null) {
+                    File target = outputFile(jobDirectory, i);
+                    FileUtils.moveFile(output, target);
+                    moved.put(leaves.get(i), target);
+                    sync(target);
+                }
+            }
+
+            writeSynced(new File(jobDirectory, RESPONSE_NAME), response);
+
+            append(EVENT_DONE, id);
+
+        } catch (IOException e) {
+            // put back what was moved, so the outputs are where the caller
+            // had them
+            for (Map.Entry<Response, File> entry : moved.entrySet()) {
+                if (!entry.getValue().renameTo(returned.get(entry.getKey()))) {
+                    FileUtils.moveFile(entry.getValue(), returned.get(entry.getKey()));
+                }
+            }
+            throw e;
+        }
+
+        return moved;
+    }
+
+    /**
+     * Records a job as gone and deletes what was kept of it.
+     */
+    public void expired(String id) {
+        try {
+            append(EVENT_EXPIRED, id);
+        } catch (IOException e) {
+            // replayed next start, then expired again
+            Logger.getLogger(ConversionJournal.class.getName()).log(Level.WARNING, "could not journal the expiry of job " + id, e);
+        }
+
+        FileUtils.deleteQuietly(new File(directory, id));
+    }
+
+    private synchronized void append(String event, String id) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(record(System.currentTimeMillis(), event, id).getBytes("UTF-8"));
+
+        while (record.hasRemaining()) {
+            log.write(record);
+        }
+        log.force(false);
+
+        records.incrementAndGet();
+    }
+
+    private static String record(long time, String event, String id) {
+        return time + " " + event + " " + id + "\n";
+    }
+
+    /**
+     * Reads back the log and the jobs it refers to.  A record cut short by a
+     * crash, or a job whose files are not all there, is passed over.
+     */
+    private List<Entry> load() throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        File logFile = new File(directory, LOG_NAME);
+
+        if (logFile.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), "UTF-8"));
+
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+
+                    if (fields.length != 3) {
+                        continue;
+                    }
+
+                    long time;
+                    try {
+                        time = Long.parseLong(fields[0]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+
+                    String event = fields[1];
+                    String id = fields[2];
+                    Entry entry = entries.get(id);
+
+                    if (EVENT_ACCEPTED.equals(event)) {
+                        entries.put(id, new Entry(id, time));
+                    } else if (entry == null) {
+                        continue;
+                    } else if (EVENT_STARTED.equals(event)) {
+                        entry.starts++;
+                    } else if (EVENT_DONE.equals(event)) {
+                        entry.doneAt = time;
+                    } else if (EVENT_EXPIRED.equals(event)) {
+                        entries.remove(id);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        List<Entry> loaded = new ArrayList<Entry>();
+
+        for (Entry entry : entries.values()) {
+            try {
+                read(entry);
+                loaded.add(entry);
+            } catch (IOException e) {
+                Logger.getLogger(ConversionJournal.class.getName()).log(Level.WARNING, "could not recover job " + entry.id + ", dropping it", e);
+            }
+        }
+
+        // whatever the log no longer refers to was expired, or never accepted
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && !entries.containsKey(file.getName())) {
+                    FileUtils.deleteQuietly(file);
+                }
+            }
+        }
+
+        return loaded;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void read(Entry entry) throws IOException {
+        File jobDirectory = new File(directory, entry.id);
+
+        entry.request = mapper.readValue(new File(jobDirectory, REQUEST_NAME), Request.class);
+
+        for (Map<String, String> item : (List<Map<String, String>>) mapper.readValue(new File(jobDirectory, ITEMS_NAME), List.class)) {
+            String input = item.get(ITEM_INPUT);
+
+            // a done job's inputs are deleted, only a job to run again needs them
+            if ((input != null) && !entry.isDone() && !new File(jobDirectory, input).exists()) {
+                throw new IOException("missing " + input);
+            }
+
+            entry.inputs.add((input == null) ? null : new File(jobDirectory, input));
+            entry.errors.add(item.get(ITEM_ERROR));
+        }
+
+        if (entry.isDone()) {
+            entry.response = Response.fromValues((Map<String, Object>) mapper.readValue(new File(jobDirectory, RESPONSE_NAME), Map.class));
+
+            List<Response> leaves = new ArrayList<Response>();
+            collectLeaves(entry.response, leaves);
+
+            for (int i = 0; i < leaves.size(); i++) {
+                File output = outputFile(jobDirectory, i);
+                if (output.exists()) {
+                    entry.returned.put(leaves.get(i), output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the jobs still kept, so it holds no more
+     * than the jobs do.
+     */
+    private void compact(List<Entry> entries) throws IOException {
+        File logFile = new File(directory, LOG_NAME);
+        File temp = new File(directory, LOG_NAME + ".tmp");
+
+        StringBuilder out = new StringBuilder();
+        for (Entry entry : entries) {
+            out.append(record(entry.acceptedAt, EVENT_ACCEPTED, entry.id));
+            for (int i = 0; i < entry.starts; i++) {
+                out.append(record(entry.acceptedAt, EVENT_STARTED, entry.id));
+            }
+            if (entry.isDone()) {
+                out.append(record(entry.doneAt, EVENT_DONE, entry.id));
+            }
+        }
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            stream.write(out.toString().getBytes("UTF-8"));
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+
+        if (!temp.renameTo(logFile)) {
+            throw new IOException("could not replace " + logFile.getPath());
+        }
+    }
+
+    private void writeSynced(File file, Object value) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+
+        // the mapper closes what it writes to, before it could be synced
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mapper.writeValue(bytes, value);
+
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(stream);
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IOException("could not write " + file.getPath());
+        }
+    }
+
+    /**
+     * The request as it is journaled, its items' too.
+     */
+    private Map<String, Object> withoutPasswords(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        mapper.writeValue(bytes, request);
+
+        Map<String, Object> values = mapper.readValue(bytes.toByteArray(), 0, bytes.size(), REQUEST_VALUES);
+        removePasswords(values);
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void removePasswords(Map<String, Object> values) {
+        if (values.get("loadProperties") instanceof Map) {
+            ((Map<String, Object>) values.get("loadProperties")).remove(Request.PASSWORD_PROPERTY);
+        }
+
+        if (values.get("items") instanceof List) {
+            for (Object item : (List<Object>) values.get("items")) {
+                if (item instanceof Map) {
+                    removePasswords((Map<String, Object>) item);
+                }
+            }
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file, true);
+        try {
+            stream.getChannel().force(true);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static File outputFile(File jobDirectory, int leaf) {
+        return new File(jobDirectory, "output-" + leaf);
+    }
+
+    /**
+     * The responses outputs can go back with, depth first, the same order
+     * the frame body has them in.
+     */
+    private static void collectLeaves(Response response, List<Response> leaves) {
+        if (response.getItems() == null) {
+            leaves.add(response);
+        } else {
+            for (Response item : response.getItems()) {
+                collectLeaves(item, leaves);
+            }
+        }
+    }
+
+    public String getDirectory() {
+        return directory.getPath();
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public long getRestored() {
+        return restored;
+    }
+
+    /**
+     * A job as the previous run left it.
+     */
+    public static class Entry {
+
+        private final String id;
+        private final long acceptedAt;
+        private int starts;
+        private long doneAt;
+
+        private Request request;
+        private final List<String> errors = new ArrayList<String>();
+        private final List<File> inputs = new ArrayList<File>();
+
+        private Response response;
+        private final Map<Response, File> returned = new IdentityHashMap<Response, File>();
+
+        Entry(String id, long acceptedAt) {
+            this.id = id;
+            this.acceptedAt = acceptedAt;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** how many times the job was started without being done */
+        public int getStarts() {
+            return starts;
+        }
+
+        public boolean isDone() {
+            return doneAt > 0;
+        }
+
+        public long getDoneAt() {
+            return doneAt;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        /** why each item was refused before conversion, or null */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        /** each item's input, or null */
+        public List<File> getInputs() {
+            return inputs;
+        }
+
+        public Response getResponse() {
+            return response;
+        }
+
+        public Map<Response, File> getReturned() {
+            return returned;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the job journal.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ConversionJournalMBean {
+
+    String getDirectory();
+
+    /** records written since start, each synced to disk */
+    long getRecords();
+
+    /** unfinished jobs found on start and run again */
+    long getReplayed();
+
+    /** done jobs found on start and kept for fetching */
+    long getRestored();
+}
@@ -0,0 +1,413 @@
+package org.mitre.honeyclient;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.artofsolving.jodconverter.document.DocumentFamily;
+import org.artofsolving.jodconverter.document.DocumentFormat;
+
+/**
+ * What a request asks of its conversion beyond the files themselves: how
+ * urgent it is, when it stops being worth doing, and how office is to load
+ * and export the document, as a preset names or the request spells out.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionOptions {
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    /** normal priority, no deadline */
+    public static final ConversionOptions DEFAULT = new ConversionOptions(PRIORITY_NORMAL, 0);
+
+    /** the load properties a request may set, the rest are the server's */
+    private static final Set<String> REQUEST_LOAD_PROPERTIES = new HashSet<String>(Arrays.asList("FilterName", "FilterOptions", Request.PASSWORD_PROPERTY, "RepairPackage"));
+
+    /** the store properties a request may set, the rest are the server's */
+    private static final Set<String> REQUEST_STORE_PROPERTIES = new HashSet<String>(Arrays.asList("FilterName", "FilterOptions", "FilterData"));
+
+    /** properties UNO declares as short, JSON can only give them as numbers */
+    private static final Set<String> SHORT_PROPERTIES = new HashSet<String>(Arrays.asList("UpdateDocMode", "MacroExecutionMode"));
+
+    private static final String FILTER_DATA = "FilterData";
+    private static final String PAGE_RANGE = "PageRange";
+
+    private final int priority;
+    private final long deadline;
+
+    private final String outputFormat;
+    private final int pageLimit;
+    private final Map<String, Object> loadProperties;
+    private final Map<String, Object> storeProperties;
+    private final Map<DocumentFamily, Map<String, Object>> storePropertiesByFamily;
+    private final boolean requestStoreProperties;
+    private final String variant;
+
+    /**
+     * @param priority one of the PRIORITY constants
+     * @param deadline when, in milliseconds since the epoch, the conversion
+     *        is no longer wanted, 0 for never
+     */
+    public ConversionOptions(int priority, long deadline) {
+        this(priority, deadline, null, 0, Collections.<String, Object>emptyMap(), Collections.<String, Object>emptyMap(), Collections.<DocumentFamily, Map<String, Object>>emptyMap(), false);
+    }
+
+    private ConversionOptions(int priority, long deadline, String outputFormat, int pageLimit, Map<String, Object> loadProperties, Map<String, Object> storeProperties, Map<DocumentFamily, Map<String, Object>> storePropertiesByFamily, boolean requestStoreProperties) {
+        this.priority = priority;
+        this.deadline = deadline;
+        this.outputFormat = outputFormat;
+        this.pageLimit = pageLimit;
+        this.loadProperties = loadProperties;
+        this.storeProperties = storeProperties;
+        this.storePropertiesByFamily = storePropertiesByFamily;
+        this.requestStoreProperties = requestStoreProperties;
+        this.variant = variant(pageLimit, loadProperties, storeProperties, storePropertiesByFamily);
+    }
+
+    public static ConversionOptions of(Request request, Request batch) {
+        return of(request, batch, null);
+    }
+
+    /**
+     * The options of a request, or of a batch item, taking what the item
+     * leaves out from its batch, and what both leave out from their preset.
+     * Properties are merged rather than replaced: the preset's, the
+     * batch's over them, the item's over those.
+     *
+     * @param batch the batch the request is an item of, or null
+     * @param presets the server's presets, or null for none
+     */
+    public static ConversionOptions of(Request request, Request batch, ConversionPresets presets) {
+        String priority = request.getPriority();
+        Long deadline = request.getDeadline();
+        String presetName = request.getPreset();
+        String outputFormat = request.getOutputFormat();
+        Long pageLimit = request.getPageLimit();
+
+        if (batch != null) {
+            if (priority == null) {
+                priority = batch.getPriority();
+            }
+            if (deadline == null) {
+                deadline = batch.getDeadline();
+            }
+            if (presetName == null) {
+                presetName = batch.getPreset();
+            }
+            if (outputFormat == null) {
+                outputFormat = batch.getOutputFormat();
+            }
+            if (pageLimit == null) {
+                pageLimit = batch.getPageLimit();
+            }
+        }
+
+        Map<String, Object> loadProperties = new LinkedHashMap<String, Object>();
+        Map<String, Object> storeProperties = new LinkedHashMap<String, Object>();
+        Map<DocumentFamily, Map<String, Object>> storePropertiesByFamily = new LinkedHashMap<DocumentFamily, Map<String, Object>>();
+
+        if (presetName != null) {
+            ConversionPresets.Preset preset = (presets == null) ? null : presets.get(presetName);
+
+            if (preset == null) {
+                throw new RuntimeException("Fail; unknown preset " + presetName + ".");
+            }
+
+            if (outputFormat == null) {
+                outputFormat = preset.getOutputFormat();
+            }
+            if ((pageLimit == null) && (preset.getPageLimit() != null)) {
+                pageLimit = preset.getPageLimit().longValue();
+            }
+
+            merge(loadProperties, preset.getLoadProperties());
+            merge(storeProperties, preset.getStoreProperties());
+
+            for (Map.Entry<DocumentFamily, Map<String, Object>> family : preset.getStorePropertiesByFamily().entrySet()) {
+                storePropertiesByFamily.put(family.getKey(), merge(new LinkedHashMap<String, Object>(), family.getValue()));
+            }
+        }
+
+        boolean requestStoreProperties = false;
+
+        for (Request from : (batch == null) ? Arrays.asList(request) : Arrays.asList(batch, request)) {
+            if (from.getLoadProperties() != null) {
+                merge(loadProperties, checked(from.getLoadProperties(), REQUEST_LOAD_PROPERTIES, "load"));
+            }
+            if (from.getStoreProperties() != null) {
+                // over the preset's for every family, not only those it left alone
+                merge(storeProperties, checked(from.getStoreProperties(), REQUEST_STORE_PROPERTIES, "store"));
+                for (Map<String, Object> familyProperties : storePropertiesByFamily.values()) {
+                    merge(familyProperties, from.getStoreProperties());
+                }
+                requestStoreProperties = true;
+            }
+        }
+
+        if ((pageLimit != null) && ((pageLimit < 0) || (pageLimit > Integer.MAX_VALUE))) {
+            throw new RuntimeException("Fail; pageLimit " + pageLimit + " is out of range.");
+        }
+
+        return new ConversionOptions(parsePriority(priority), (deadline == null) ? 0 : deadline, (outputFormat == null) ? null : outputFormat.toLowerCase(), (pageLimit == null) ? 0 : pageLimit.intValue(),
+                Collections.unmodifiableMap(loadProperties), Collections.unmodifiableMap(storeProperties), Collections.unmodifiableMap(storePropertiesByFamily), requestStoreProperties);
+    }
+
+    /**
+     * These options converting to another format, or to that of the output
+     * file for null.
+     */
+    ConversionOptions withOutputFormat(String outputFormat) {
+        return new ConversionOptions(priority, deadline, outputFormat, pageLimit, loadProperties, storeProperties, storePropertiesByFamily, requestStoreProperties);
+    }
+
+    static int parsePriority(String priority) {
+        if ((priority == null) || Request.PRIORITY_NORMAL.equals(priority)) {
+            return PRIORITY_NORMAL;
+        } else if (Request.PRIORITY_HIGH.equals(priority)) {
+            return PRIORITY_HIGH;
+        } else if (Request.PRIORITY_LOW.equals(priority)) {
+            return PRIORITY_LOW;
+        }
+
+        throw new RuntimeException("Fail; unknown priority " + priority + ".");
+    }
+
+    /**
+     * Refuses a request's properties other than those it may set, for the
+     * rest, Hidden, ReadOnly or the URL to store to, are what keep office
+     * safe and the server's.  FilterData may only hold plain values.
+     */
+    private static Map<String, Object> checked(Map<String, Object> properties, Set<String> allowed, String kind) {
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            if (!allowed.contains(property.getKey())) {
+                throw new RuntimeException("Fail; " + kind + " property " + property.getKey() + " may not be set by a request.");
+            }
+
+            Object value = property.getValue();
+
+            if (FILTER_DATA.equals(property.getKey()) && (value instanceof Map)) {
+                for (Object data : ((Map<?, ?>) value).values()) {
+                    if ((data instanceof Map) || (data == null)) {
+                        throw new RuntimeException("Fail; FilterData may only hold strings, numbers and booleans.");
+                    }
+                }
+            } else if ((value instanceof Map) || (value == null)) {
+                throw new RuntimeException("Fail; " + kind + " property " + property.getKey() + " must be a string, number or boolean.");
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * Puts properties over into, FilterData into FilterData rather than in
+     * its place, each value as UNO wants it.
+     *
+     * @return into
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> merge(Map<String, Object> into, Map<String, ?> properties) {
+        for (Map.Entry<String, ?> property : properties.entrySet()) {
+            Object value = property.getValue();
+
+            if (value instanceof Map) {
+                Object existing = into.get(property.getKey());
+                Map<String, Object> merged = (existing instanceof Map) ? new LinkedHashMap<String, Object>((Map<String, Object>) existing) : new LinkedHashMap<String, Object>();
+                into.put(property.getKey(), merge(merged, (Map<String, ?>) value));
+            } else {
+                into.put(property.getKey(), uno(property.getKey(), value));
+            }
+        }
+
+        return into;
+    }
+
+    /**
+     * JSON numbers come as Long or Integer, UNO's properties are mostly
+     * long, that is int, and a few short.
+     */
+    private static Object uno(String name, Object value) {
+        if (!(value instanceof Number) || (value instanceof Double) || (value instanceof Float)) {
+            return value;
+        }
+
+        long number = ((Number) value).longValue();
+
+        if (SHORT_PROPERTIES.contains(name) && (number >= Short.MIN_VALUE) && (number <= Short.MAX_VALUE)) {
+            return (short) number;
+        }
+        if ((number >= Integer.MIN_VALUE) && (number <= Integer.MAX_VALUE)) {
+            return (int) number;
+        }
+        return number;
+    }
+
+    /**
+     * What tells the output of these options apart from the default's, ""
+     * for options that leave the output as it would be anyway, so the result
+     * cache keeps each apart.
+     */
+    private static String variant(int pageLimit, Map<String, Object> loadProperties, Map<String, Object> storeProperties, Map<DocumentFamily, Map<String, Object>> storePropertiesByFamily) {
+        if ((pageLimit == 0) && loadProperties.isEmpty() && storeProperties.isEmpty() && storePropertiesByFamily.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(pageLimit).append(canonical(loadProperties)).append(canonical(storeProperties));
+
+        for (DocumentFamily family : DocumentFamily.values()) {
+            if (storePropertiesByFamily.containsKey(family)) {
+                canonical.append(family).append(canonical(storePropertiesByFamily.get(family)));
+            }
+        }
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(canonical.toString().getBytes("UTF-8"));
+            return "-" + new String(Hex.encodeHex(digest)).substring(0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Properties in name order, with their values' types, the same for the
+     * same properties however they were given.
+     */
+    @SuppressWarnings("unchecked")
+    private static String canonical(Map<String, Object> properties) {
+        StringBuilder builder = new StringBuilder("{");
+
+        for (Map.Entry<String, Object> property : new TreeMap<String, Object>(properties).entrySet()) {
+            Object value = property.getValue();
+            builder.append(property.getKey()).append('=');
+
+            if (value instanceof Map) {
+                builder.append(canonical((Map<String, Object>) value));
+            } else {
+                builder.append((value == null) ? "null" : value.getClass().getSimpleName() + ":" + value);
+            }
+            builder.append(';');
+        }
+
+        return builder.append('}').toString();
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public boolean isExpired() {
+        return (deadline > 0) && (System.currentTimeMillis() >= deadline);
+    }
+
+    /**
+     * @return the extension of the format to convert to, or null for that
+     *         of the output file
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return the most pages to export, or 0 for all
+     */
+    public int getPageLimit() {
+        return pageLimit;
+    }
+
+    /**
+     * @return whether the request gave store properties of its own, an
+     *         output made without office wouldn't have them
+     */
+    public boolean hasRequestStoreProperties() {
+        return requestStoreProperties;
+    }
+
+    /**
+     * @return "" for options that convert as the default would, otherwise
+     *         a short fingerprint of the properties and page limit
+     */
+    public String getVariant() {
+        return variant;
+    }
+
+    /**
+     * The load properties of a conversion: the server's, and these options'
+     * over them.
+     */
+    public Map<String, ?> loadProperties(Map<String, ?> defaults) {
+        if (loadProperties.isEmpty()) {
+            return defaults;
+        }
+
+        Map<String, Object> merged = new HashMap<String, Object>(defaults);
+        merge(merged, loadProperties);
+        return merged;
+    }
+
+    /**
+     * The output format with these options' store properties over its own,
+     * for each family the format can be stored from.  A family the format
+     * has no filter for is only added when the preset names one.  The page
+     * limit is a PageRange of the filter's data.
+     *
+     * @return outputFormat itself when there is nothing to change
+     */
+    public DocumentFormat apply(DocumentFormat outputFormat) {
+        if ((outputFormat == null) || ((pageLimit == 0) && storeProperties.isEmpty() && storePropertiesByFamily.isEmpty())) {
+            return outputFormat;
+        }
+
+        DocumentFormat applied = new DocumentFormat(outputFormat.getName(), outputFormat.getExtension(), outputFormat.getMediaType());
+        applied.setInputFamily(outputFormat.getInputFamily());
+        applied.setLoadProperties(outputFormat.getLoadProperties());
+
+        for (DocumentFamily family : DocumentFamily.values()) {
+            Map<String, ?> base = outputFormat.getStoreProperties(family);
+            Map<String, Object> familyProperties = storePropertiesByFamily.get(family);
+
+            if ((base == null) && ((familyProperties == null) || !familyProperties.containsKey("FilterName"))) {
+                continue;
+            }
+
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            if (base != null) {
+                merge(properties, base);
+            }
+            merge(properties, storeProperties);
+            if (familyProperties != null) {
+                merge(properties, familyProperties);
+            }
+
+            if (pageLimit > 0) {
+                Map<String, Object> pageRange = new LinkedHashMap<String, Object>();
+                pageRange.put(PAGE_RANGE, "1-" + pageLimit);
+                merge(properties, Collections.<String, Object>singletonMap(FILTER_DATA, pageRange));
+            }
+
+            applied.setStoreProperties(family, properties);
+        }
+
+        return applied;
+    }
+}
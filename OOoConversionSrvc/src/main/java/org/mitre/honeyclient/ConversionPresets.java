@@ -0,0 +1,165 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.artofsolving.jodconverter.document.DocumentFamily;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Named sets of conversion options a request can ask for by name rather
+ * than spell out: the output format, the properties office loads and
+ * stores the document with, and the most pages exported.  The server's
+ * own, in conversion-presets.json, pick the cheapest filters for harvesting
+ * text and links; a file of presets given at start adds to them, or
+ * replaces them by name.
+ *
+ * A preset is a JSON object of "outputFormat", "pageLimit",
+ * "loadProperties", "storeProperties" and "storePropertiesByFamily", the
+ * last keyed by "text", "spreadsheet", "presentation" or "drawing", for
+ * filters that only suit documents of one kind.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionPresets {
+
+    static final String FIELD_OUTPUT_FORMAT = "outputFormat";
+    static final String FIELD_PAGE_LIMIT = "pageLimit";
+    static final String FIELD_LOAD_PROPERTIES = "loadProperties";
+    static final String FIELD_STORE_PROPERTIES = "storeProperties";
+    static final String FIELD_STORE_PROPERTIES_BY_FAMILY = "storePropertiesByFamily";
+
+    private static final Set<String> FIELDS = new HashSet<String>(Arrays.asList(FIELD_OUTPUT_FORMAT, FIELD_PAGE_LIMIT, FIELD_LOAD_PROPERTIES, FIELD_STORE_PROPERTIES, FIELD_STORE_PROPERTIES_BY_FAMILY));
+
+    private static final String BUILT_IN = "org/mitre/honeyclient/conversion-presets.json";
+
+    private final Map<String, Preset> presets;
+
+    private ConversionPresets(Map<String, Preset> presets) {
+        this.presets = Collections.unmodifiableMap(presets);
+    }
+
+    /**
+     * The server's own presets, and those of presetsFile by their side.
+     *
+     * @param presetsFile a JSON object of presets by name, or null
+     */
+    public static ConversionPresets load(ObjectMapper mapper, File presetsFile) throws IOException {
+        Map<String, Preset> presets = new LinkedHashMap<String, Preset>();
+
+        InputStream in = ConversionPresets.class.getClassLoader().getResourceAsStream(BUILT_IN);
+        try {
+            read(mapper.readValue(in, Map.class), presets);
+        } finally {
+            in.close();
+        }
+
+        if (presetsFile != null) {
+            read(mapper.readValue(presetsFile, Map.class), presets);
+        }
+
+        return new ConversionPresets(presets);
+    }
+
+    private static void read(Map<?, ?> json, Map<String, Preset> presets) {
+        for (Map.Entry<?, ?> entry : json.entrySet()) {
+            String name = (String) entry.getKey();
+
+            if (!(entry.getValue() instanceof Map)) {
+                throw new RuntimeException("Fail; preset " + name + " is not a JSON object.");
+            }
+
+            presets.put(name, new Preset(name, (Map<?, ?>) entry.getValue()));
+        }
+    }
+
+    /**
+     * @return the named preset, or null when there is none
+     */
+    public Preset get(String name) {
+        return presets.get(name);
+    }
+
+    public Set<String> getNames() {
+        return presets.keySet();
+    }
+
+    /**
+     * One preset, its properties as given; nothing is asked of them, the
+     * server's operator wrote them.
+     */
+    public static class Preset {
+
+        private final String name;
+        private final String outputFormat;
+        private final Integer pageLimit;
+        private final Map<String, Object> loadProperties;
+        private final Map<String, Object> storeProperties;
+        private final Map<DocumentFamily, Map<String, Object>> storePropertiesByFamily = new LinkedHashMap<DocumentFamily, Map<String, Object>>();
+
+        Preset(String name, Map<?, ?> json) {
+            this.name = name;
+
+            for (Object field : json.keySet()) {
+                if (!FIELDS.contains(field)) {
+                    throw new RuntimeException("Fail; preset " + name + " has an unknown field " + field + ".");
+                }
+            }
+
+            try {
+                outputFormat = (String) json.get(FIELD_OUTPUT_FORMAT);
+                pageLimit = (json.get(FIELD_PAGE_LIMIT) == null) ? null : ((Number) json.get(FIELD_PAGE_LIMIT)).intValue();
+                loadProperties = properties(json.get(FIELD_LOAD_PROPERTIES));
+                storeProperties = properties(json.get(FIELD_STORE_PROPERTIES));
+
+                for (Map.Entry<String, Object> family : properties(json.get(FIELD_STORE_PROPERTIES_BY_FAMILY)).entrySet()) {
+                    storePropertiesByFamily.put(DocumentFamily.valueOf(family.getKey().toUpperCase()), properties(family.getValue()));
+                }
+            } catch (ClassCastException e) {
+                throw new RuntimeException("Fail; preset " + name + " has a field of the wrong type.");
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Fail; preset " + name + " names an unknown document family.");
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Map<String, Object> properties(Object json) {
+            return (json == null) ? Collections.<String, Object>emptyMap() : Collections.unmodifiableMap((Map<String, Object>) json);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** the extension of the format to convert to, or null */
+        public String getOutputFormat() {
+            return outputFormat;
+        }
+
+        /** the most pages exported, or null for all of them */
+        public Integer getPageLimit() {
+            return pageLimit;
+        }
+
+        public Map<String, Object> getLoadProperties() {
+            return loadProperties;
+        }
+
+        public Map<String, Object> getStoreProperties() {
+            return storeProperties;
+        }
+
+        public Map<DocumentFamily, Map<String, Object>> getStorePropertiesByFamily() {
+            return storePropertiesByFamily;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.mitre.honeyclient;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.artofsolving.jodconverter.office.OfficeException;
+
+/**
+ * Decides which conversion goes to office next.  There are as many slots as
+ * office instances; a conversion takes one for each attempt, and when none
+ * is free it waits, higher priorities first, then earliest deadline, then
+ * first come.  A conversion whose deadline passes while it waits is dropped
+ * without reaching office, so a backlog of stale work doesn't hold up
+ * fresh.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ConversionScheduler implements ConversionSchedulerMBean {
+
+    public static final String MSG_EXPIRED = "Fail; the deadline passed before the document reached office.";
+
+    private final int slots;
+
+    private int running = 0;
+    private long sequence = 0;
+    private long expired = 0;
+
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>(16, new Comparator<Waiter>() {
+
+        public int compare(Waiter a, Waiter b) {
+            if (a.priority != b.priority) {
+                return (a.priority < b.priority) ? -1 : 1;
+            }
+            if (a.deadline != b.deadline) {
+                return (a.deadline < b.deadline) ? -1 : 1;
+            }
+            return (a.sequence < b.sequence) ? -1 : ((a.sequence == b.sequence) ? 0 : 1);
+        }
+    });
+
+    public ConversionScheduler(int slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Waits for a slot at office, to be given back with release.
+     *
+     * @throws OfficeException when the deadline passes first
+     */
+    public synchronized void acquire(ConversionOptions options) throws OfficeException, InterruptedException {
+        if (options.isExpired()) {
+            throw expired();
+        }
+
+        if ((running < slots) && waiting.isEmpty()) {
+            running++;
+            return;
+        }
+
+        Waiter waiter = new Waiter(options.getPriority(), (options.getDeadline() > 0) ? options.getDeadline() : Long.MAX_VALUE, sequence++);
+        waiting.add(waiter);
+
+        try {
+            while (!waiter.granted) {
+                if (waiter.dropped) {
+                    throw expired();
+                }
+
+                long remaining = waiter.deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    waiting.remove(waiter);
+                    throw expired();
+                }
+
+                wait((waiter.deadline == Long.MAX_VALUE) ? 0 : remaining);
+            }
+        } catch (InterruptedException e) {
+            if (waiter.granted) {
+                release();
+            } else {
+                waiting.remove(waiter);
+            }
+            throw e;
+        }
+    }
+
+    public synchronized void release() {
+        running--;
+
+        // the slot is handed straight over, so nothing arriving meanwhile
+        // can jump the queue, past anything already too late to bother with
+        long now = System.currentTimeMillis();
+        Waiter next;
+
+        while ((next = waiting.poll()) != null) {
+            if (next.deadline <= now) {
+                next.dropped = true;
+            } else {
+                next.granted = true;
+                running++;
+                break;
+            }
+        }
+
+        notifyAll();
+    }
+
+    private OfficeException expired() {
+        expired++;
+        Logger.getLogger(ConversionScheduler.class.getName()).log(Level.INFO, "dropped a conversion whose deadline had passed");
+        return new OfficeException(MSG_EXPIRED);
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    private static class Waiter {
+
+        final int priority;
+        final long deadline;
+        final long sequence;
+        boolean granted = false;
+        boolean dropped = false;
+
+        Waiter(int priority, long deadline, long sequence) {
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+    }
+}
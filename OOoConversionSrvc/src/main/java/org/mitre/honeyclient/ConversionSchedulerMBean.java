@@ -0,0 +1,23 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the conversions waiting for office.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ConversionSchedulerMBean {
+
+    /** conversions allowed at office at once */
+    int getSlots();
+
+    /** conversions at office now */
+    int getRunning();
+
+    /** conversions waiting their turn */
+    int getWaiting();
+
+    /** conversions dropped because their deadline passed first */
+    long getExpired();
+}
@@ -0,0 +1,30 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Makes an output straight from a document, without office, for the formats
+ * simple enough to read directly.  InsistOfficeDocumentConverter asks each
+ * of its extractors in turn before sending a document to office.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface DocumentExtractor {
+
+    /**
+     * @param inputType what the document is, as DocumentSniffer tells it
+     * @param outputExtension the extension of the output wanted, "urls" for
+     *        a URL list
+     */
+    boolean accepts(String inputType, String outputExtension);
+
+    /**
+     * Writes the output, in the format of outputExtension whatever
+     * outputFile is named.  A document that turns out not to be readable is
+     * an IOException, and the document goes to office after all.
+     */
+    void extract(File inputFile, String inputType, String outputExtension, File outputFile) throws IOException;
+}
@@ -0,0 +1,156 @@
+package org.mitre.honeyclient;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Documents, known by the SHA-1 of their contents, that office has failed
+ * to convert however often it was retried, while it was otherwise up.  A
+ * document that fails often enough is quarantined and never handed to office
+ * again, so one malformed attachment can't keep an instance in a restart
+ * loop; a success clears its record.
+ * The most recently failing documents are remembered, up to a limit.
+ *
+ * Whether office was up is the converter's call: it counts no failure that
+ * met an open circuit breaker or an instance already unhealthy, and when
+ * the breaker opens it pardons the failures counted since the run of
+ * failures that opened it began, as those were office's rather than the
+ * documents'.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class DocumentQuarantine implements DocumentQuarantineMBean {
+
+    static final int MAX_ENTRIES = 10000;
+
+    private final int failureThreshold;
+
+    /** failures by digest, access ordered so the longest quiet go first */
+    private final LinkedHashMap<String, Failures> failures = new LinkedHashMap<String, Failures>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failures> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private long rejected = 0;
+
+    /**
+     * @param failureThreshold failures that quarantine a document, 0 for a
+     *        quarantine that never holds anything
+     */
+    public DocumentQuarantine(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Whether nothing has failed, in which case no document needs its digest
+     * taken to be checked.
+     */
+    public synchronized boolean isEmpty() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Whether the document is quarantined, counting the request as turned
+     * away if so.
+     */
+    public synchronized boolean reject(String digest) {
+        Failures record = failures.get(digest);
+
+        if ((failureThreshold > 0) && (record != null) && (record.count >= failureThreshold)) {
+            rejected++;
+            return true;
+        }
+
+        return false;
+    }
+
+    public synchronized void failed(String digest) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+
+        Failures record = failures.get(digest);
+        if (record == null) {
+            record = new Failures();
+            failures.put(digest, record);
+        }
+
+        record.count++;
+        record.last = System.currentTimeMillis();
+
+        if (record.count == failureThreshold) {
+            Logger.getLogger(DocumentQuarantine.class.getName()).log(Level.WARNING, "document " + digest + " quarantined after failing office " + record.count + " times");
+        }
+    }
+
+    /**
+     * Takes back the latest failure of each document that failed at or
+     * after since, when office turns out to have been down.
+     */
+    public synchronized void pardon(long since) {
+        int pardoned = 0;
+
+        for (Iterator<Failures> i = failures.values().iterator(); i.hasNext();) {
+            Failures record = i.next();
+
+            if (record.last >= since) {
+                pardoned++;
+                if (--record.count == 0) {
+                    i.remove();
+                }
+            }
+        }
+
+        if (pardoned > 0) {
+            Logger.getLogger(DocumentQuarantine.class.getName()).log(Level.INFO, "pardoned " + pardoned + " documents that failed while office was down");
+        }
+    }
+
+    public synchronized void succeeded(String digest) {
+        failures.remove(digest);
+    }
+
+    public synchronized int getQuarantinedCount() {
+        int count = 0;
+        for (Failures record : failures.values()) {
+            if (record.count >= failureThreshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getSuspectCount() {
+        return failures.size() - getQuarantinedCount();
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public synchronized void clear() {
+        failures.clear();
+        Logger.getLogger(DocumentQuarantine.class.getName()).log(Level.INFO, "document quarantine cleared");
+    }
+
+    private static class Failures {
+
+        int count = 0;
+
+        /** when the latest failure was counted */
+        long last = 0;
+    }
+}
@@ -0,0 +1,25 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the documents kept away from office.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface DocumentQuarantineMBean {
+
+    /** documents that will no longer be converted */
+    int getQuarantinedCount();
+
+    /** documents that have failed at least once but not yet enough times */
+    int getSuspectCount();
+
+    /** requests turned away because their document is quarantined */
+    long getRejected();
+
+    int getFailureThreshold();
+
+    /** forgets every failure, letting quarantined documents through again */
+    void clear();
+}
@@ -0,0 +1,248 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tells what a document is from its first bytes rather than its name, which
+ * the client chose and may have got wrong, or lied about.  Types are named
+ * by the extension the format registry knows them by.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class DocumentSniffer {
+
+    static final String TYPE_TEXT = "txt";
+    static final String TYPE_HTML = "html";
+    static final String TYPE_RTF = "rtf";
+    static final String TYPE_PDF = "pdf";
+    static final String TYPE_DOCX = "docx";
+    static final String TYPE_XLSX = "xlsx";
+    static final String TYPE_PPTX = "pptx";
+    static final String TYPE_ODT = "odt";
+    static final String TYPE_ODS = "ods";
+    static final String TYPE_ODP = "odp";
+    static final String TYPE_ODG = "odg";
+    /** a zip that is no office document */
+    static final String TYPE_ZIP = "zip";
+    /** the compound file legacy Word, Excel and PowerPoint documents share */
+    static final String TYPE_OLE = "ole";
+    static final String TYPE_TAR = "tar";
+    static final String TYPE_GZIP = "gz";
+    static final String TYPE_BZIP2 = "bz2";
+
+    /** bytes looked at, enough for the signatures and to tell text */
+    private static final int HEADER_LENGTH = 4096;
+
+    private static final byte[] ZIP_MAGIC = {'P', 'K', 3, 4};
+    private static final byte[] OLE_MAGIC = {(byte) 0xd0, (byte) 0xcf, 0x11, (byte) 0xe0, (byte) 0xa1, (byte) 0xb1, 0x1a, (byte) 0xe1};
+    private static final byte[] PDF_MAGIC = {'%', 'P', 'D', 'F', '-'};
+    private static final byte[] RTF_MAGIC = {'{', '\\', 'r', 't', 'f'};
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] BZIP2_MAGIC = {'B', 'Z', 'h'};
+    /** at TAR_MAGIC_OFFSET, in POSIX and GNU tar headers alike */
+    private static final byte[] TAR_MAGIC = {'u', 's', 't', 'a', 'r'};
+    private static final int TAR_MAGIC_OFFSET = 257;
+
+    private static final String[] HTML_MARKERS = {"<!doctype html", "<html", "<head", "<body"};
+
+    private static final Map<String, String> OPEN_DOCUMENT_TYPES = new HashMap<String, String>();
+
+    static {
+        OPEN_DOCUMENT_TYPES.put("application/vnd.oasis.opendocument.text", TYPE_ODT);
+        OPEN_DOCUMENT_TYPES.put("application/vnd.oasis.opendocument.spreadsheet", TYPE_ODS);
+        OPEN_DOCUMENT_TYPES.put("application/vnd.oasis.opendocument.presentation", TYPE_ODP);
+        OPEN_DOCUMENT_TYPES.put("application/vnd.oasis.opendocument.graphics", TYPE_ODG);
+    }
+
+    private DocumentSniffer() {
+    }
+
+    /**
+     * @return the document's type, TYPE_TEXT for anything without a
+     *         signature that reads as text, or null when there is no telling
+     */
+    static String sniff(File file) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length;
+
+        InputStream in = new FileInputStream(file);
+        try {
+            length = readFully(in, header);
+        } finally {
+            in.close();
+        }
+
+        if (startsWith(header, length, ZIP_MAGIC)) {
+            return sniffZip(file);
+        }
+
+        if (startsWith(header, length, OLE_MAGIC)) {
+            return TYPE_OLE;
+        }
+
+        if (startsWith(header, length, PDF_MAGIC)) {
+            return TYPE_PDF;
+        }
+
+        if (startsWith(header, length, GZIP_MAGIC)) {
+            return TYPE_GZIP;
+        }
+
+        if (startsWith(header, length, BZIP2_MAGIC) && (length > 3) && (header[3] >= '1') && (header[3] <= '9')) {
+            return TYPE_BZIP2;
+        }
+
+        // a tar of text files would otherwise pass for text
+        if (startsWith(header, TAR_MAGIC_OFFSET, length, TAR_MAGIC)) {
+            return TYPE_TAR;
+        }
+
+        int start = skipByteOrderMark(header, length);
+
+        if (startsWith(header, start, length, RTF_MAGIC)) {
+            return TYPE_RTF;
+        }
+
+        if (!isText(header, start, length)) {
+            return null;
+        }
+
+        String text = new String(header, start, length - start, "ISO-8859-1").toLowerCase();
+
+        if (text.trim().startsWith("<")) {
+            for (String marker : HTML_MARKERS) {
+                if (text.contains(marker)) {
+                    return TYPE_HTML;
+                }
+            }
+        }
+
+        return TYPE_TEXT;
+    }
+
+    /**
+     * An OpenDocument names its type in a mimetype entry, an Office Open
+     * XML document is known by its main part.
+     */
+    private static String sniffZip(File file) throws IOException {
+        ZipFile zip;
+
+        try {
+            zip = new ZipFile(file);
+        } catch (IOException e) {
+            // a zip signature on something that won't open as one
+            return null;
+        }
+
+        try {
+            ZipEntry mimetype = zip.getEntry("mimetype");
+
+            if (mimetype != null) {
+                InputStream in = zip.getInputStream(mimetype);
+                try {
+                    byte[] type = new byte[128];
+                    String value = new String(type, 0, readFully(in, type), "US-ASCII").trim();
+
+                    if (OPEN_DOCUMENT_TYPES.containsKey(value)) {
+                        return OPEN_DOCUMENT_TYPES.get(value);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+
+            if (zip.getEntry("[Content_Types].xml") != null) {
+                for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                    String name = entries.nextElement().getName();
+
+                    if (name.equals("word/document.xml")) {
+                        return TYPE_DOCX;
+                    } else if (name.equals("xl/workbook.xml")) {
+                        return TYPE_XLSX;
+                    } else if (name.equals("ppt/presentation.xml")) {
+                        return TYPE_PPTX;
+                    }
+                }
+            }
+
+            return TYPE_ZIP;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+
+        return length;
+    }
+
+    private static int skipByteOrderMark(byte[] header, int length) {
+        if ((length >= 3) && (header[0] == (byte) 0xef) && (header[1] == (byte) 0xbb) && (header[2] == (byte) 0xbf)) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * No NULs and few control characters; UTF-16 text, with its NULs, is
+     * left to the extension.
+     */
+    private static boolean isText(byte[] header, int start, int length) {
+        if (length == start) {
+            return false;
+        }
+
+        int control = 0;
+
+        for (int i = start; i < length; i++) {
+            int b = header[i] & 0xff;
+
+            if (b == 0) {
+                return false;
+            }
+
+            if ((b < 0x20) && (b != '\t') && (b != '\n') && (b != '\r') && (b != '\f') && (b != 0x1b)) {
+                control++;
+            }
+        }
+
+        return control * 20 < (length - start);
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        return startsWith(header, 0, length, magic);
+    }
+
+    private static boolean startsWith(byte[] header, int start, int length, byte[] magic) {
+        if (length - start < magic.length) {
+            return false;
+        }
+
+        for (int i = 0; i < magic.length; i++) {
+            if (header[start + i] != magic[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
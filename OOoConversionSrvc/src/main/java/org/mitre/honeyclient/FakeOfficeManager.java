@@ -0,0 +1,132 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.artofsolving.jodconverter.AbstractConversionTask;
+import org.artofsolving.jodconverter.office.DefaultOfficeManagerConfiguration;
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeManager;
+import org.artofsolving.jodconverter.office.OfficeTask;
+
+/**
+ * An office manager that does no office work: each task takes a fixed time,
+ * fails at a given rate, and otherwise copies its input to its outputs as is.
+ * Stands in for OpenOffice.org when sizing the server, or measuring
+ * everything around the conversion, on a machine without office installed.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class FakeOfficeManager implements OfficeManager {
+
+    // jodconverter keeps a task's files to itself
+    private static final Field INPUT_FILE = taskField("inputFile");
+    private static final Field OUTPUT_FILE = taskField("outputFile");
+
+    private final long conversionDelay;
+    private final double failureRate;
+    private final long startDelay;
+    private final Random random = new Random();
+
+    /**
+     * @param conversionDelay milliseconds each task takes
+     * @param failureRate the fraction of tasks that fail, from 0 to 1
+     */
+    public FakeOfficeManager(long conversionDelay, double failureRate) {
+        this(conversionDelay, failureRate, 0);
+    }
+
+    /**
+     * @param startDelay milliseconds starting takes, as office's would
+     */
+    public FakeOfficeManager(long conversionDelay, double failureRate, long startDelay) {
+        if ((failureRate < 0) || (failureRate > 1)) {
+            throw new IllegalArgumentException("failure rate must be from 0 to 1");
+        }
+
+        this.conversionDelay = conversionDelay;
+        this.failureRate = failureRate;
+        this.startDelay = startDelay;
+    }
+
+    /**
+     * A pool of fake instances, one per port, yet to be started.
+     */
+    public static OfficeInstancePool createPool(int[] ports, long conversionDelay, double failureRate) {
+        return createPool(ports, conversionDelay, failureRate, 0);
+    }
+
+    /**
+     * A pool of fake instances, one per port, yet to be started, each
+     * taking startDelay milliseconds to start.
+     */
+    public static OfficeInstancePool createPool(int[] ports, final long conversionDelay, final double failureRate, final long startDelay) {
+        return new OfficeInstancePool(new DefaultOfficeManagerConfiguration(), ports) {
+
+            @Override
+            protected OfficeManager buildOfficeManager(int port) {
+                return new FakeOfficeManager(conversionDelay, failureRate, startDelay);
+            }
+        };
+    }
+
+    public void start() throws OfficeException {
+        if (startDelay > 0) {
+            try {
+                Thread.sleep(startDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OfficeException("fake start interrupted", e);
+            }
+        }
+    }
+
+    public void stop() {
+    }
+
+    public void execute(OfficeTask task) throws OfficeException {
+        if (conversionDelay > 0) {
+            try {
+                Thread.sleep(conversionDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OfficeException("fake conversion interrupted", e);
+            }
+        }
+
+        if (random.nextDouble() < failureRate) {
+            throw new OfficeException("fake conversion failed");
+        }
+
+        try {
+            File inputFile = (File) INPUT_FILE.get(task);
+
+            if (task instanceof MultiFormatConversionTask) {
+                for (File outputFile : ((MultiFormatConversionTask) task).getOutputFiles()) {
+                    FileUtils.copyFile(inputFile, outputFile);
+                }
+            } else {
+                FileUtils.copyFile(inputFile, (File) OUTPUT_FILE.get(task));
+            }
+        } catch (IllegalAccessException e) {
+            throw new OfficeException("fake conversion could not read the task", e);
+        } catch (IOException e) {
+            throw new OfficeException("fake conversion could not copy the input", e);
+        }
+    }
+
+    private static Field taskField(String name) {
+        try {
+            Field field = AbstractConversionTask.class.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("jodconverter no longer has AbstractConversionTask." + name, e);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.mitre.honeyclient;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The length-prefixed binary protocol (v2).  A connection opens with the
+ * four byte MAGIC, then carries any number of request frames, each answered
+ * by a response frame on the same connection:
+ *
+ * <pre>
+ *   int   headerLength
+ *   byte  header[headerLength]   UTF-8 JSON, a Request (or Response) without Base64 contents
+ *   long  bodyLength
+ *   byte  body[bodyLength]       the raw document bytes
+ * </pre>
+ *
+ * Legacy clients start with '{' and are served the original JSON protocol.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public final class FramedProtocol {
+
+    public static final byte[] MAGIC = {'O', 'C', 'S', '2'};
+    public static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private FramedProtocol() {
+    }
+
+    /**
+     * Reads the header of the next frame, or returns null when the peer
+     * closed the connection cleanly between frames.
+     */
+    public static byte[] readHeader(DataInputStream in) throws IOException {
+        int headerLength;
+
+        try {
+            headerLength = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (headerLength < 0 || headerLength > MAX_HEADER_LENGTH) {
+            throw new IOException("Fail; frame header length " + headerLength + " out of range.");
+        }
+
+        byte[] header = new byte[headerLength];
+        in.readFully(header);
+        return header;
+    }
+
+    public static long readBodyLength(DataInputStream in) throws IOException {
+        long bodyLength = in.readLong();
+
+        if (bodyLength < 0) {
+            throw new IOException("Fail; frame body length " + bodyLength + " out of range.");
+        }
+
+        return bodyLength;
+    }
+
+    public static void writeHeader(DataOutputStream out, byte[] header) throws IOException {
+        out.writeInt(header.length);
+        out.write(header);
+    }
+
+    /**
+     * Copies exactly length bytes, failing if the stream ends first.
+     */
+    public static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        long remaining = length;
+
+        while (remaining > 0) {
+            int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (len < 0) {
+                throw new EOFException("Fail; connection closed with " + remaining + " bytes of the frame body outstanding.");
+            }
+            out.write(buf, 0, len);
+            remaining -= len;
+        }
+    }
+
+    /**
+     * Discards exactly length bytes, keeping the stream aligned on frames
+     * after a body has been refused.
+     */
+    public static void skip(InputStream in, long length) throws IOException {
+        long remaining = length;
+
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Fail; connection closed with " + remaining + " bytes of the frame body outstanding.");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
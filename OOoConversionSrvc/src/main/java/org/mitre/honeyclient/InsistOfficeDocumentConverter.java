@@ -1,21 +1,34 @@
 package org.mitre.honeyclient;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.artofsolving.jodconverter.document.DefaultDocumentFormatRegistry;
 import org.artofsolving.jodconverter.document.DocumentFormat;
 import org.artofsolving.jodconverter.document.DocumentFormatRegistry;
 import org.artofsolving.jodconverter.office.OfficeException;
-import org.artofsolving.jodconverter.office.OfficeManager;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.artofsolving.jodconverter.StandardConversionTask;
 
 /**
+ * Converts documents on the office pool, insisting, within limits, until
+ * office manages it.  Documents simple enough to read directly are served
+ * by the first of its extractors that can make the output wanted, and never
+ * reach office.  What a document is, for both, is told from its first bytes
+ * rather than its extension.
  *
  * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
  * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
@@ -23,16 +36,40 @@ import org.artofsolving.jodconverter.StandardConversionTask;
  */
 public class InsistOfficeDocumentConverter {
 
-    private final OfficeManager officeManager;
+    /**
+     * The extension of the one output format the service makes itself: the
+     * URLs a document links to, one per line, in UTF-8.
+     */
+    public static final String URL_LIST_EXTENSION = "urls";
+
+    /** the export URL lists are scanned from, it keeps every link as an anchor */
+    private static final String URL_SCAN_EXTENSION = "html";
+
+    /** the extensions a compound file may go by, office tells them apart */
+    private static final Set<String> OLE_EXTENSIONS = new HashSet<String>(Arrays.asList("doc", "dot", "xls", "xlt", "xlw", "ppt", "pps", "pot", "vsd", "pub", "wps"));
+
+    private final OfficeInstancePool officePool;
     private final DocumentFormatRegistry formatRegistry;
     private Map<String, ?> defaultLoadProperties = createDefaultLoadProperties();
+    private ServerStats stats;
+
+    /** attempts at a task before it is given up on, 0 for no limit */
+    private int maxAttempts = 0;
+    private long retryBackoffMillis = 0;
+    private long retryBackoffMaxMillis = 0;
+
+    private ConversionScheduler scheduler;
+    private OfficeCircuitBreaker circuitBreaker;
+    private DocumentQuarantine quarantine;
+    private ScratchSpace scratch;
+    private volatile List<DocumentExtractor> extractors = Collections.<DocumentExtractor>unmodifiableList(Arrays.asList(new TextDocumentExtractor(), new ZipDocumentExtractor()));
 
-    public InsistOfficeDocumentConverter(OfficeManager officeManager) {
-        this(officeManager, new DefaultDocumentFormatRegistry());
+    public InsistOfficeDocumentConverter(OfficeInstancePool officePool) {
+        this(officePool, new DefaultDocumentFormatRegistry());
     }
 
-    public InsistOfficeDocumentConverter(OfficeManager officeManager, DocumentFormatRegistry formatRegistry) {
-        this.officeManager = officeManager;
+    public InsistOfficeDocumentConverter(OfficeInstancePool officePool, DocumentFormatRegistry formatRegistry) {
+        this.officePool = officePool;
         this.formatRegistry = formatRegistry;
     }
 
@@ -47,34 +84,455 @@ public class InsistOfficeDocumentConverter {
         this.defaultLoadProperties = defaultLoadProperties;
     }
 
+    /**
+     * @param stats where office attempts and retries are recorded, or null
+     */
+    public void setStats(ServerStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * How hard a task is tried before it fails.  The wait before each retry
+     * doubles from retryBackoffMillis, up to retryBackoffMaxMillis.
+     *
+     * @param maxAttempts attempts at a task, 0 to try until one succeeds
+     */
+    public void setRetryPolicy(int maxAttempts, long retryBackoffMillis, long retryBackoffMaxMillis) {
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.retryBackoffMaxMillis = retryBackoffMaxMillis;
+    }
+
+    /**
+     * @param scheduler what orders tasks waiting for office, or null to send
+     *        each straight to the pool
+     */
+    public void setScheduler(ConversionScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public ConversionScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param circuitBreaker what stops tasks going to office while it is
+     *        down, or null
+     */
+    public void setCircuitBreaker(OfficeCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public OfficeCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @param quarantine what keeps documents that fail office over and over
+     *        from being tried again, or null
+     */
+    public void setQuarantine(DocumentQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    public DocumentQuarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * @param scratch where the files an export brings with it are staged, or
+     *        null for the default temp directory
+     */
+    public void setScratch(ScratchSpace scratch) {
+        this.scratch = scratch;
+    }
+
+    /**
+     * @param extractors what is asked, in order, to make an output without
+     *        office before the document goes to office; empty to send every
+     *        document to office
+     */
+    public void setExtractors(List<DocumentExtractor> extractors) {
+        this.extractors = Collections.unmodifiableList(new ArrayList<DocumentExtractor>(extractors));
+    }
+
+    public List<DocumentExtractor> getExtractors() {
+        return extractors;
+    }
+
+    public OfficeInstancePool getOfficePool() {
+        return officePool;
+    }
+
     public DocumentFormatRegistry getFormatRegistry() {
         return formatRegistry;
     }
 
     public void convert(File inputFile, File outputFile) throws OfficeException, InterruptedException {
-        String outputExtension = FilenameUtils.getExtension(outputFile.getName());
+        convert(inputFile, outputFile, ConversionOptions.DEFAULT);
+    }
+
+    /**
+     * Converts to the format options name, or else to that of outputFile's
+     * extension.
+     */
+    public void convert(File inputFile, File outputFile, ConversionOptions options) throws OfficeException, InterruptedException {
+        String outputExtension = (options.getOutputFormat() != null) ? options.getOutputFormat() : FilenameUtils.getExtension(outputFile.getName());
+        String inputType = detectType(inputFile);
+
+        if (extract(inputFile, inputType, outputExtension, outputFile, options)) {
+            return;
+        }
+
+        if (URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+            extractUrls(inputFile, inputType, outputFile, options);
+            return;
+        }
+
         DocumentFormat outputFormat = formatRegistry.getFormatByExtension(outputExtension);
-        convert(inputFile, outputFile, outputFormat);
+        convert(inputFile, inputType, outputFile, outputFormat, options);
     }
 
     public void convert(File inputFile, File outputFile, DocumentFormat outputFormat) throws OfficeException, InterruptedException {
-        String inputExtension = FilenameUtils.getExtension(inputFile.getName());
-        DocumentFormat inputFormat = formatRegistry.getFormatByExtension(inputExtension);
-        StandardConversionTask conversionTask = new StandardConversionTask(inputFile, outputFile, outputFormat);
-        conversionTask.setDefaultLoadProperties(defaultLoadProperties);
-        conversionTask.setInputFormat(inputFormat);
+        convert(inputFile, outputFile, outputFormat, ConversionOptions.DEFAULT);
+    }
+
+    public void convert(File inputFile, File outputFile, DocumentFormat outputFormat, ConversionOptions options) throws OfficeException, InterruptedException {
+        convert(inputFile, detectType(inputFile), outputFile, outputFormat, options);
+    }
+
+    private void convert(File inputFile, String inputType, File outputFile, DocumentFormat outputFormat, ConversionOptions options) throws OfficeException, InterruptedException {
+        StandardConversionTask conversionTask = new StandardConversionTask(inputFile, outputFile, options.apply(outputFormat));
+        conversionTask.setDefaultLoadProperties(options.loadProperties(defaultLoadProperties));
+        conversionTask.setInputFormat(inputFormat(inputType));
+
+        execute(conversionTask, inputFile, outputFile, options);
+    }
+
+    /**
+     * Loads the input once and stores it to every output, each in the format
+     * of its extension.  Outputs that can't be produced, including those of
+     * an unknown extension, are left missing for the caller to notice.
+     */
+    public void convert(File inputFile, List<File> outputFiles) throws OfficeException, InterruptedException {
+        convert(inputFile, outputFiles, ConversionOptions.DEFAULT);
+    }
 
-        boolean notDone = true;
+    public void convert(File inputFile, List<File> outputFiles, ConversionOptions options) throws OfficeException, InterruptedException {
+        List<File> knownFiles = new ArrayList<File>();
+        List<DocumentFormat> knownFormats = new ArrayList<DocumentFormat>();
+        String inputType = detectType(inputFile);
+
+        for (File outputFile : outputFiles) {
+            String outputExtension = FilenameUtils.getExtension(outputFile.getName());
+            DocumentFormat outputFormat = formatRegistry.getFormatByExtension(outputExtension);
+
+            if (extract(inputFile, inputType, outputExtension, outputFile, options)) {
+                continue;
+            } else if (URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+                // made from an export of its own
+                extractUrls(inputFile, inputType, outputFile, options);
+            } else if (outputFormat != null) {
+                knownFiles.add(outputFile);
+                knownFormats.add(options.apply(outputFormat));
+            } else {
+                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.WARNING, "no output format for " + outputFile.getName());
+            }
+        }
+
+        if (knownFiles.isEmpty()) {
+            return;
+        }
+
+        MultiFormatConversionTask conversionTask = new MultiFormatConversionTask(inputFile, knownFiles, knownFormats);
+        conversionTask.setDefaultLoadProperties(options.loadProperties(defaultLoadProperties));
+        conversionTask.setInputFormat(inputFormat(inputType));
+
+        execute(conversionTask, inputFile, knownFiles.get(0), options);
+    }
+
+    /**
+     * Writes the de-duplicated URLs inputFile links to into outputFile, taken
+     * from the document's hyperlinks as office sees them and from a scan of
+     * its HTML export.
+     */
+    public void extractUrls(File inputFile, File outputFile) throws OfficeException, InterruptedException {
+        extractUrls(inputFile, outputFile, ConversionOptions.DEFAULT);
+    }
+
+    public void extractUrls(File inputFile, File outputFile, ConversionOptions options) throws OfficeException, InterruptedException {
+        String inputType = detectType(inputFile);
+
+        if (!extract(inputFile, inputType, URL_LIST_EXTENSION, outputFile, options)) {
+            extractUrls(inputFile, inputType, outputFile, options);
+        }
+    }
+
+    private void extractUrls(File inputFile, String inputType, File outputFile, ConversionOptions options) throws OfficeException, InterruptedException {
+
+        // an export may bring files of its own, presentations a page each
+        File exportDirectory = null;
+
+        try {
+            if (scratch != null) {
+                exportDirectory = scratch.createDirectory("export");
+            } else {
+                exportDirectory = File.createTempFile("export", "");
+                if (!exportDirectory.delete() || !exportDirectory.mkdir()) {
+                    throw new RuntimeException("Fail; could not create an export directory.");
+                }
+            }
+
+            File exportFile = new File(exportDirectory, "document." + URL_SCAN_EXTENSION);
+
+            UrlExtractionTask extractionTask = new UrlExtractionTask(inputFile, exportFile, options.apply(formatRegistry.getFormatByExtension(URL_SCAN_EXTENSION)));
+            extractionTask.setDefaultLoadProperties(options.loadProperties(defaultLoadProperties));
+            extractionTask.setInputFormat(inputFormat(inputType));
+
+            execute(extractionTask, inputFile, outputFile, options);
+
+            Set<String> urls = new LinkedHashSet<String>();
+
+            for (String hyperlink : extractionTask.getHyperlinks()) {
+                UrlScanner.add(urls, hyperlink);
+            }
+
+            if (exportFile.exists()) {
+                UrlScanner.scan(exportFile, urls);
+            }
+
+            FileUtils.writeLines(outputFile, "UTF-8", urls);
+
+        } catch (IOException e) {
+            Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.SEVERE, e.toString());
+            outputFile.delete();
+        } finally {
+            FileUtils.deleteQuietly(exportDirectory);
+        }
+    }
+
+    /**
+     * What the document is, by its content where that tells, otherwise by
+     * its extension: the extension of the format it is in, or null when
+     * office is best left to work it out.  Content without a signature
+     * that reads as text is text only when the extension says nothing
+     * else, so CSV stays CSV.
+     */
+    private String detectType(File inputFile) {
+        String extension = FilenameUtils.getExtension(inputFile.getName()).toLowerCase();
+        String sniffed;
+
+        try {
+            sniffed = DocumentSniffer.sniff(inputFile);
+        } catch (IOException e) {
+            // office gets to find that out for itself
+            return extension;
+        }
+
+        if (DocumentSniffer.TYPE_OLE.equals(sniffed)) {
+            return OLE_EXTENSIONS.contains(extension) ? extension : null;
+        }
+
+        if ((sniffed != null) && !DocumentSniffer.TYPE_TEXT.equals(sniffed)) {
+            return sniffed;
+        }
+
+        if (formatRegistry.getFormatByExtension(extension) != null) {
+            return extension;
+        }
+
+        return sniffed;
+    }
+
+    private DocumentFormat inputFormat(String inputType) {
+        return (inputType == null) ? null : formatRegistry.getFormatByExtension(inputType);
+    }
+
+    /**
+     * Makes the output with the first extractor that can, without office,
+     * unless the request gave store properties of its own, which only
+     * office's filters know what to do with.
+     *
+     * @return whether one did; one that fails leaves the output to office
+     */
+    private boolean extract(File inputFile, String inputType, String outputExtension, File outputFile, ConversionOptions options) {
+        if (options.hasRequestStoreProperties()) {
+            return false;
+        }
+
+        for (DocumentExtractor extractor : extractors) {
+            if (!extractor.accepts(inputType, outputExtension)) {
+                continue;
+            }
 
-        while (notDone) {
             try {
-                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.INFO, "handling conversion task for " + Thread.currentThread().getName() + "...");
-                officeManager.execute(conversionTask);
-                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.INFO, "handled conversion task for " + Thread.currentThread().getName() + "...");
-                notDone = false;
-            } catch (OfficeException e) {
-                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.SEVERE, e.toString());
+                extractor.extract(inputFile, inputType, outputExtension, outputFile);
+
+                if (stats != null) {
+                    stats.extracted();
+                }
+                return true;
+            } catch (IOException e) {
+                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.WARNING, "could not read " + inputFile.getName() + " as " + inputType + " without office, " + e.getMessage());
+            } catch (RuntimeException e) {
+                Logger.getLogger(InsistOfficeDocumentConverter.class.getName()).log(Level.WARNING, "could not read " + inputFile.getName() + " as " + inputType + " without office", e);
             }
+
+            outputFile.delete();
+            return false;
         }
+
+        return false;
+    }
+
+    /**
+     * Runs a task until an office instance manages it, the attempts run out,
+     * the circuit breaker opens or its deadline passes while it waits its
+     * turn at office.  A document whose attempts all run out, each on an
+     * instance that was healthy with the breaker closed before and after,
+     * is counted against in the quarantine; one already quarantined isn't
+     * tried at all.
+     *
+     * @param inputFile the task's input, outputFile the output its format is
+     *        known by, both only for the record
+     */
+    private void execute(StandardConversionTask conversionTask, File inputFile, File outputFile, ConversionOptions options) throws OfficeException, InterruptedException {
+        // the input's digest, taken only once some document has failed
+        String digest = null;
+
+        if ((quarantine != null) && !quarantine.isEmpty()) {
+            digest = ConversionCache.digest(inputFile);
+
+            if (quarantine.reject(digest)) {
+                throw new OfficeException("Fail; the document is quarantined, it has repeatedly failed to convert.");
+            }
+        }
+
+        OfficeException lastFailure = null;
+
+        // whether office looked up for every attempt, so the failures are the
+        // document's own
+        boolean officeUp = true;
+
+        // whether the last instance picked was being recycled and turned the
+        // task away, which costs neither an attempt nor a wait
+        boolean recycled = false;
+
+        for (int attempt = 1; (maxAttempts <= 0) || (attempt <= maxAttempts); attempt++) {
+            if ((attempt > 1) && !recycled) {
+                backoff(attempt - 1);
+            }
+
+            recycled = false;
+
+            if (scheduler != null) {
+                scheduler.acquire(options);
+            }
+
+            boolean succeeded = false;
+
+            try {
+                if ((circuitBreaker != null) && !circuitBreaker.allowAttempt()) {
+                    throw new OfficeException("Fail; office is unavailable.", lastFailure);
+                }
+
+                // re-select on every attempt so a retry lands on another instance
+                // when the last one fell over
+                OfficeInstance instance = officePool.selectInstance();
+
+                if (!instance.isHealthy()) {
+                    officeUp = false;
+                }
+
+                long start = System.nanoTime();
+
+                Logger logger = Logger.getLogger(InsistOfficeDocumentConverter.class.getName());
+
+                try {
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, "handling conversion task for " + Thread.currentThread().getName() + " on office port " + instance.getPort() + "...");
+                    }
+                    instance.execute(conversionTask);
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, "handled conversion task for " + Thread.currentThread().getName() + " on office port " + instance.getPort() + "...");
+                    }
+                    succeeded = true;
+                } catch (OfficeException e) {
+                    if (instance.isRetired()) {
+                        logger.log(Level.FINE, e.toString());
+
+                        recycled = true;
+                    } else {
+                        logger.log(Level.SEVERE, e.toString());
+
+                        lastFailure = e;
+
+                        if ((stats != null) && ((maxAttempts <= 0) || (attempt < maxAttempts))) {
+                            stats.retried();
+                        }
+                    }
+                } finally {
+                    if (circuitBreaker != null) {
+                        if (succeeded) {
+                            circuitBreaker.succeeded();
+                        } else if (recycled) {
+                            circuitBreaker.abandoned();
+                        } else if (circuitBreaker.failed() && (quarantine != null)) {
+                            // the failures that opened it were office's
+                            quarantine.pardon(circuitBreaker.getFailingSince());
+                        }
+                    }
+
+                    if (stats != null) {
+                        stats.record(ServerStats.STAGE_OFFICE, inputFile, outputFile, start);
+                    }
+                }
+            } finally {
+                if (scheduler != null) {
+                    scheduler.release();
+                }
+            }
+
+            if (succeeded) {
+                if (digest != null) {
+                    quarantine.succeeded(digest);
+                }
+                return;
+            }
+
+            if (recycled) {
+                attempt--;
+            }
+        }
+
+        if ((quarantine != null) && officeUp && ((circuitBreaker == null) || circuitBreaker.isClosed())) {
+            quarantine.failed((digest != null) ? digest : ConversionCache.digest(inputFile));
+        }
+
+        throw new OfficeException("Fail; the document could not be converted in " + maxAttempts + " attempts.", lastFailure);
+    }
+
+    /**
+     * Waits before the next attempt, twice as long as before each time.
+     */
+    private void backoff(int failures) throws InterruptedException {
+        long delay = backoffDelay(failures, retryBackoffMillis, retryBackoffMaxMillis);
+
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * @return how long to wait after the given number of failed attempts
+     */
+    static long backoffDelay(int failures, long backoffMillis, long backoffMaxMillis) {
+        long delay = backoffMillis;
+
+        for (int i = 1; (i < failures) && (delay < backoffMaxMillis); i++) {
+            delay *= 2;
+        }
+
+        return Math.min(delay, backoffMaxMillis);
     }
 }
@@ -0,0 +1,56 @@
+package org.mitre.honeyclient;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the end of a JSON object as its bytes arrive, a buffer at a time,
+ * without parsing it.  Used by the front end to know when a legacy request
+ * has been read in full.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class JsonObjectScanner {
+
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private boolean started = false;
+
+    /**
+     * Scans the remaining bytes of buffer without consuming them.
+     *
+     * @return the number of bytes up to and including the closing brace of
+     *         the object, or -1 if it hasn't arrived yet
+     */
+    public int scan(ByteBuffer buffer) {
+        int start = buffer.position();
+
+        for (int i = start; i < buffer.limit(); i++) {
+            byte b = buffer.get(i);
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+                started = true;
+            } else if (b == '}' || b == ']') {
+                depth--;
+                if (started && depth == 0) {
+                    return i - start + 1;
+                }
+            }
+        }
+
+        return -1;
+    }
+}
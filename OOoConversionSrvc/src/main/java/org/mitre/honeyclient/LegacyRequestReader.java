@@ -0,0 +1,630 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Reads a legacy JSON request off the wire without ever holding the
+ * document in the heap.  The Base64 contents are decoded a block at a time
+ * into a spool file as they arrive; the remaining fields are small and kept
+ * as strings.
+ *
+ * Jackson's JsonParser (1.2) materializes each string token in full, so the
+ * one object this protocol carries is scanned here instead.  The request is
+ * complete when its closing brace is read, not when a read happens to end
+ * in '}'.
+ *
+ * A batch request carries its documents as an "items" array of request
+ * objects, each decoded into a spool file of its own.  An item over the
+ * file size limit is read past and marked failed rather than failing the
+ * batch.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class LegacyRequestReader {
+
+    static final String FIELD_ID = "id";
+    static final String FIELD_MODE = "mode";
+    static final String FIELD_URL_SCHEMES = "urlSchemes";
+    static final String FIELD_INPUT_FILENAME = "inputFilename";
+    static final String FIELD_OUTPUT_FILENAME = "outputFilename";
+    static final String FIELD_INPUT_CONTENTS = "inputBase64FileContents";
+    static final String FIELD_OUTPUT_FILENAMES = "outputFilenames";
+    static final String FIELD_ITEMS = "items";
+    static final String FIELD_PRIORITY = "priority";
+    static final String FIELD_DEADLINE = "deadline";
+    static final String FIELD_JOB_ID = "jobId";
+    static final String FIELD_TIMEOUT = "timeout";
+    static final String FIELD_EXPAND = "expand";
+    static final String FIELD_OUTPUT_FORMAT = "outputFormat";
+    static final String FIELD_PRESET = "preset";
+    static final String FIELD_PAGE_LIMIT = "pageLimit";
+    static final String FIELD_LOAD_PROPERTIES = "loadProperties";
+    static final String FIELD_STORE_PROPERTIES = "storeProperties";
+
+    static final String MSG_TOO_BIG = "Fail; File too big to process.";
+
+    /** Base64 characters decoded per block, a multiple of four */
+    private static final int DECODE_BLOCK_SIZE = 4 * 2048;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final long fileSizeMax;
+    private final long batchSizeMax;
+    private final ScratchSpace scratch;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPosition = 0;
+    private int readLimit = 0;
+
+    private final Map<Request, File> spoolFiles = new IdentityHashMap<Request, File>();
+    private final Map<Request, String> errors = new IdentityHashMap<Request, String>();
+    private long contentsLength = 0;
+
+    /**
+     * @param fileSizeMax the most bytes a single document may decode to
+     * @param batchSizeMax the most bytes all the documents of a request may
+     *        decode to
+     */
+    public LegacyRequestReader(InputStream in, long fileSizeMax, long batchSizeMax) {
+        this(in, fileSizeMax, batchSizeMax, null);
+    }
+
+    /**
+     * @param scratch where documents are spooled, or null for the default
+     *        temp directory
+     */
+    public LegacyRequestReader(InputStream in, long fileSizeMax, long batchSizeMax, ScratchSpace scratch) {
+        this.in = in;
+        this.fileSizeMax = fileSizeMax;
+        this.batchSizeMax = batchSizeMax;
+        this.scratch = scratch;
+    }
+
+    /**
+     * @return the total decoded length of every document read
+     */
+    public long getContentsLength() {
+        return contentsLength;
+    }
+
+    /**
+     * @return the file the request's, or batch item's, contents were
+     *         decoded into, or null when it carried none
+     */
+    public File getSpoolFile(Request request) {
+        return spoolFiles.get(request);
+    }
+
+    /**
+     * @return why a batch item's contents were refused, or null
+     */
+    public String getError(Request request) {
+        return errors.get(request);
+    }
+
+    /**
+     * Deletes whatever spool files are left.
+     */
+    public void release() {
+        for (File file : spoolFiles.values()) {
+            file.delete();
+        }
+        spoolFiles.clear();
+    }
+
+    /**
+     * Reads one request object.  Fields other than those of Request are
+     * skipped.
+     */
+    public Request read() throws IOException {
+        Request request = new Request();
+
+        expect('{');
+        readFields(request, true);
+
+        return request;
+    }
+
+    /**
+     * Reads the fields of an object the opening brace of which has just been
+     * read, through its closing brace.
+     */
+    private void readFields(Request request, boolean topLevel) throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return;
+        }
+
+        while (true) {
+            if (c != '"') {
+                throw malformed();
+            }
+
+            String name = readString();
+            expect(':');
+            c = nextNonWhitespace();
+
+            if (c == '"') {
+                if (FIELD_INPUT_CONTENTS.equals(name)) {
+                    readContents(request, topLevel);
+                } else {
+                    String value = readString();
+
+                    if (FIELD_ID.equals(name)) {
+                        request.setId(value);
+                    } else if (FIELD_MODE.equals(name)) {
+                        request.setMode(value);
+                    } else if (FIELD_INPUT_FILENAME.equals(name)) {
+                        request.setInputFilename(value);
+                    } else if (FIELD_OUTPUT_FILENAME.equals(name)) {
+                        request.setOutputFilename(value);
+                    } else if (FIELD_PRIORITY.equals(name)) {
+                        request.setPriority(value);
+                    } else if (FIELD_JOB_ID.equals(name)) {
+                        request.setJobId(value);
+                    } else if (FIELD_OUTPUT_FORMAT.equals(name)) {
+                        request.setOutputFormat(value);
+                    } else if (FIELD_PRESET.equals(name)) {
+                        request.setPreset(value);
+                    }
+                }
+            } else if (c == '[' && FIELD_OUTPUT_FILENAMES.equals(name)) {
+                request.setOutputFilenames(readStrings());
+            } else if (c == '[' && FIELD_URL_SCHEMES.equals(name)) {
+                request.setUrlSchemes(readStrings());
+            } else if (c == '[' && topLevel && FIELD_ITEMS.equals(name)) {
+                request.setItems(readItems());
+            } else if (FIELD_DEADLINE.equals(name)) {
+                request.setDeadline(readLong(c));
+            } else if (FIELD_TIMEOUT.equals(name)) {
+                request.setTimeout(readLong(c));
+            } else if (FIELD_EXPAND.equals(name)) {
+                request.setExpand(readBoolean(c));
+            } else if (FIELD_PAGE_LIMIT.equals(name)) {
+                request.setPageLimit(readLong(c));
+            } else if (c == '{' && FIELD_LOAD_PROPERTIES.equals(name)) {
+                request.setLoadProperties(readProperties());
+            } else if (c == '{' && FIELD_STORE_PROPERTIES.equals(name)) {
+                request.setStoreProperties(readProperties());
+            } else {
+                readLiteral(c);
+            }
+
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw malformed();
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads an array of strings the opening bracket of which has just been
+     * read.
+     */
+    private List<String> readStrings() throws IOException {
+        List<String> values = new ArrayList<String>();
+
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return values;
+        }
+
+        while (true) {
+            if (c != '"') {
+                throw malformed();
+            }
+
+            values.add(readString());
+
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return values;
+            }
+            if (c != ',') {
+                throw malformed();
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads an object of office properties the opening brace of which has
+     * just been read: strings, numbers, true, false, null and objects of
+     * the same, as FilterData is.
+     */
+    private Map<String, Object> readProperties() throws IOException {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+        int c = nextNonWhitespace();
+        if (c == '}') {
+            return properties;
+        }
+
+        while (true) {
+            if (c != '"') {
+                throw malformed();
+            }
+
+            String name = readString();
+            expect(':');
+            c = nextNonWhitespace();
+
+            if (c == '"') {
+                properties.put(name, readString());
+            } else if (c == '{') {
+                properties.put(name, readProperties());
+            } else {
+                properties.put(name, readScalar(c));
+            }
+
+            c = nextNonWhitespace();
+            if (c == '}') {
+                return properties;
+            }
+            if (c != ',') {
+                throw malformed();
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Reads the array of batch items the opening bracket of which has just
+     * been read.
+     */
+    private List<Request> readItems() throws IOException {
+        List<Request> items = new ArrayList<Request>();
+
+        int c = nextNonWhitespace();
+        if (c == ']') {
+            return items;
+        }
+
+        while (true) {
+            if (c != '{') {
+                throw malformed();
+            }
+
+            if (items.size() == RequestHandler.MAX_BATCH_ITEMS) {
+                throw new RuntimeException("Fail; more than " + RequestHandler.MAX_BATCH_ITEMS + " documents in the batch.");
+            }
+
+            Request item = new Request();
+            readFields(item, false);
+            items.add(item);
+
+            c = nextNonWhitespace();
+            if (c == ']') {
+                return items;
+            }
+            if (c != ',') {
+                throw malformed();
+            }
+            c = nextNonWhitespace();
+        }
+    }
+
+    /**
+     * Decodes the Base64 string value the opening quote of which has just
+     * been read, block by block, into a spool file for request.
+     *
+     * @param topLevel whether a document over the size limit fails the whole
+     *        request, otherwise the rest of it is read past and the item
+     *        marked failed
+     */
+    private void readContents(Request request, boolean topLevel) throws IOException {
+        byte[] block = new byte[DECODE_BLOCK_SIZE];
+        int blockLength = 0;
+        long length = 0;
+
+        File spoolFile = spoolFiles.get(request);
+        if (spoolFile == null) {
+            spoolFile = (scratch == null) ? File.createTempFile("upload", ".tmp") : scratch.createFile("upload.tmp");
+            spoolFiles.put(request, spoolFile);
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(spoolFile));
+
+        try {
+            while (true) {
+                int c = next();
+
+                if (c == '"') {
+                    if (blockLength == 0) {
+                        break;
+                    }
+                } else {
+                    if (c == '\\') {
+                        c = readEscape();
+                    }
+
+                    // anything but the encoding, such as the line breaks
+                    // Ruby's pack('m') inserts, is dropped
+                    if (!isBase64(c) || (out == null)) {
+                        continue;
+                    }
+
+                    block[blockLength++] = (byte) c;
+
+                    if (blockLength < block.length) {
+                        continue;
+                    }
+                }
+
+                byte[] decoded = Base64.decodeBase64(trim(block, blockLength));
+                blockLength = 0;
+
+                length += decoded.length;
+
+                if (length > fileSizeMax) {
+                    if (topLevel) {
+                        throw new RuntimeException(MSG_TOO_BIG);
+                    }
+
+                    out.close();
+                    out = null;
+                    spoolFiles.remove(request).delete();
+                    errors.put(request, MSG_TOO_BIG);
+                } else {
+                    contentsLength += decoded.length;
+
+                    if (contentsLength > batchSizeMax) {
+                        throw new RuntimeException("Fail; batch too big to process.");
+                    }
+
+                    out.write(decoded);
+                }
+
+                if (c == '"') {
+                    break;
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    private static byte[] trim(byte[] block, int length) {
+        if (length == block.length) {
+            return block;
+        }
+
+        byte[] trimmed = new byte[length];
+        System.arraycopy(block, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    private static boolean isBase64(int c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/' || c == '=';
+    }
+
+    /**
+     * Reads the rest of a string value the opening quote of which has just
+     * been read.
+     */
+    private String readString() throws IOException {
+        StringBuilder builder = new StringBuilder();
+
+        while (true) {
+            int c = next();
+
+            if (c == '"') {
+                return builder.toString();
+            }
+
+            if (c == '\\') {
+                c = readEscape();
+            } else if (c >= 0x80) {
+                c = readUtf8(c);
+            }
+
+            builder.appendCodePoint(c);
+        }
+    }
+
+    private int readEscape() throws IOException {
+        int c = next();
+
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) {
+                        throw malformed();
+                    }
+                    value = (value << 4) | digit;
+                }
+                return value;
+            default:
+                throw malformed();
+        }
+    }
+
+    private int readUtf8(int first) throws IOException {
+        int extra;
+        int value;
+
+        if ((first & 0xE0) == 0xC0) {
+            extra = 1;
+            value = first & 0x1F;
+        } else if ((first & 0xF0) == 0xE0) {
+            extra = 2;
+            value = first & 0x0F;
+        } else if ((first & 0xF8) == 0xF0) {
+            extra = 3;
+            value = first & 0x07;
+        } else {
+            throw malformed();
+        }
+
+        for (int i = 0; i < extra; i++) {
+            value = (value << 6) | (next() & 0x3F);
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads a number, true, false or null the first character of which has
+     * just been read; nested values other than the string lists, batch
+     * items and property objects aren't part of the protocol.
+     */
+    private String readLiteral(int c) throws IOException {
+        if (c == '{' || c == '[') {
+            throw malformed();
+        }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append((char) c);
+
+        while (true) {
+            c = peek();
+            if (c == ',' || c == '}' || isWhitespace(c)) {
+                return builder.toString();
+            }
+            builder.append((char) next());
+        }
+    }
+
+    /**
+     * Reads an integer, or null, the first character of which has just been
+     * read.
+     */
+    private Long readLong(int c) throws IOException {
+        String literal = readLiteral(c);
+
+        if ("null".equals(literal)) {
+            return null;
+        }
+
+        try {
+            return Long.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw malformed();
+        }
+    }
+
+    /**
+     * Reads true, false or null, the first character of which has just been
+     * read.
+     */
+    private Boolean readBoolean(int c) throws IOException {
+        String literal = readLiteral(c);
+
+        if ("null".equals(literal)) {
+            return null;
+        } else if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        } else if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+
+        throw malformed();
+    }
+
+    /**
+     * Reads a number, true, false or null, the first character of which
+     * has just been read, as Long, Double, Boolean or null.
+     */
+    private Object readScalar(int c) throws IOException {
+        String literal = readLiteral(c);
+
+        if ("null".equals(literal)) {
+            return null;
+        } else if ("true".equals(literal)) {
+            return Boolean.TRUE;
+        } else if ("false".equals(literal)) {
+            return Boolean.FALSE;
+        }
+
+        try {
+            if (literal.indexOf('.') >= 0 || literal.indexOf('e') >= 0 || literal.indexOf('E') >= 0) {
+                return Double.valueOf(literal);
+            }
+            return Long.valueOf(literal);
+        } catch (NumberFormatException e) {
+            throw malformed();
+        }
+    }
+
+    private void expect(int expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw malformed();
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private int peek() throws IOException {
+        if (readPosition == readLimit) {
+            fill();
+        }
+        return readBuffer[readPosition] & 0xFF;
+    }
+
+    private int next() throws IOException {
+        if (readPosition == readLimit) {
+            fill();
+        }
+        return readBuffer[readPosition++] & 0xFF;
+    }
+
+    private void fill() throws IOException {
+        int len = in.read(readBuffer, 0, readBuffer.length);
+        if (len < 0) {
+            throw new EOFException("Fail; connection closed before the request was complete.");
+        }
+        readPosition = 0;
+        readLimit = len;
+    }
+
+    private static RuntimeException malformed() {
+        return new RuntimeException("Fail; malformed request.");
+    }
+}
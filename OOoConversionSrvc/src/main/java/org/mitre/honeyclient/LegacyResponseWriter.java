@@ -0,0 +1,177 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Writes a legacy JSON response, Base64 encoding the output file straight
+ * from disk onto the wire a block at a time.  A batch or multi-format
+ * response carries an "items" array of responses, each encoded from its own
+ * output file.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class LegacyResponseWriter {
+
+    static final String FIELD_ID = "id";
+    static final String FIELD_MSG = "msg";
+    static final String FIELD_OUTPUT_FILENAME = "outputFilename";
+    static final String FIELD_OUTPUT_CONTENTS = "outputBase64FileContents";
+    static final String FIELD_ITEMS = "items";
+    static final String FIELD_URLS = "urls";
+    static final String FIELD_STATS = "stats";
+    static final String FIELD_HEALTH = "health";
+    static final String FIELD_JOB_ID = "jobId";
+    static final String FIELD_JOB_STATE = "jobState";
+
+    /** bytes encoded per block, a multiple of three so blocks concatenate */
+    private static final int ENCODE_BLOCK_SIZE = 3 * 4096;
+
+    private LegacyResponseWriter() {
+    }
+
+    /**
+     * @param outputFiles the file to return Base64 encoded with the response
+     *        or any of its items, by response
+     */
+    public static void write(JsonFactory factory, OutputStream out, Response response, Map<Response, File> outputFiles) throws IOException {
+        JsonGenerator generator = factory.createJsonGenerator(out, JsonEncoding.UTF8);
+
+        // the caller owns the socket
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+        writeObject(generator, response, outputFiles);
+
+        generator.flush();
+    }
+
+    private static void writeObject(JsonGenerator generator, Response response, Map<Response, File> outputFiles) throws IOException {
+        File outputFile = outputFiles.get(response);
+
+        generator.writeStartObject();
+        writeStringOrNullField(generator, FIELD_ID, response.getId());
+        writeStringOrNullField(generator, FIELD_MSG, response.getMsg());
+        writeStringOrNullField(generator, FIELD_OUTPUT_FILENAME, response.getOutputFilename());
+
+        generator.writeFieldName(FIELD_OUTPUT_CONTENTS);
+
+        if (outputFile != null) {
+            // the opening quote goes through writeRawValue so the generator
+            // counts it as the field's value, the rest is appended raw
+            generator.writeRawValue("\"");
+            writeEncoded(generator, outputFile);
+            generator.writeRaw('"');
+        } else if (response.getOutputBase64FileContents() != null) {
+            generator.writeString(response.getOutputBase64FileContents());
+        } else {
+            generator.writeNull();
+        }
+
+        if (response.getUrls() != null) {
+            generator.writeFieldName(FIELD_URLS);
+            generator.writeStartArray();
+
+            for (String url : response.getUrls()) {
+                generator.writeString(url);
+            }
+
+            generator.writeEndArray();
+        }
+
+        if (response.getJobId() != null) {
+            writeStringOrNullField(generator, FIELD_JOB_ID, response.getJobId());
+            writeStringOrNullField(generator, FIELD_JOB_STATE, response.getJobState());
+        }
+
+        if (response.getStats() != null) {
+            // plain maps, lists and numbers, left to the factory's mapper
+            generator.writeFieldName(FIELD_STATS);
+            generator.writeObject(response.getStats());
+        }
+
+        if (response.getHealth() != null) {
+            generator.writeFieldName(FIELD_HEALTH);
+            generator.writeObject(response.getHealth());
+        }
+
+        if (response.getItems() != null) {
+            generator.writeFieldName(FIELD_ITEMS);
+            generator.writeStartArray();
+
+            for (Response item : response.getItems()) {
+                writeObject(generator, item, outputFiles);
+            }
+
+            generator.writeEndArray();
+        }
+
+        generator.writeEndObject();
+    }
+
+    private static void writeStringOrNullField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        } else {
+            generator.writeNullField(name);
+        }
+    }
+
+    private static void writeEncoded(JsonGenerator generator, File file) throws IOException {
+        byte[] block = new byte[ENCODE_BLOCK_SIZE];
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            while (true) {
+                int blockLength = readFully(in, block);
+
+                if (blockLength == 0) {
+                    return;
+                }
+
+                byte[] encoded;
+                if (blockLength == block.length) {
+                    encoded = Base64.encodeBase64(block);
+                } else {
+                    byte[] last = new byte[blockLength];
+                    System.arraycopy(block, 0, last, 0, blockLength);
+                    encoded = Base64.encodeBase64(last);
+                }
+
+                generator.writeRaw(new String(encoded, "US-ASCII"));
+
+                if (blockLength < block.length) {
+                    return;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] block) throws IOException {
+        int read = 0;
+
+        while (read < block.length) {
+            int len = in.read(block, read, block.length - read);
+            if (len < 0) {
+                break;
+            }
+            read += len;
+        }
+
+        return read;
+    }
+}
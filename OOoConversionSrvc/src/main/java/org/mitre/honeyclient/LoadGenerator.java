@@ -0,0 +1,557 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Replays a directory of documents against a running OOoConversionServer,
+ * either as fast as a fixed number of clients can go or at a fixed arrival
+ * rate, and reports throughput, latency percentiles, errors and the server's
+ * heap.  Pair it with a server started with --officeBackend fake to size
+ * workers and hardware on a machine without office.
+ *
+ * At a fixed rate each request's latency runs from when it was due, not
+ * from when a client got round to sending it, so a server that falls
+ * behind shows it.
+ *
+ * The same few documents come round again and again, so start the server
+ * with --cacheMaxBytes 0 unless the cache is what's being measured.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class LoadGenerator {
+
+    public static final String PARAMETER_HOST = "host";
+    public static final String PARAMETER_PORT = "port";
+    public static final String PARAMETER_DOCUMENTS = "documents";
+    public static final String PARAMETER_OUTPUT_EXTENSION = "outputExtension";
+    public static final String PARAMETER_PROTOCOL = "protocol";
+    public static final String PARAMETER_CONCURRENCY = "concurrency";
+    public static final String PARAMETER_RATE = "rate";
+    public static final String PARAMETER_DURATION = "duration";
+    public static final String PARAMETER_REQUESTS = "requests";
+    public static final String PARAMETER_REPORT_INTERVAL = "reportInterval";
+
+    public static final String PROTOCOL_LEGACY = "legacy";
+    public static final String PROTOCOL_V2 = "v2";
+
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    private final String host;
+    private final int port;
+    private final List<Document> documents;
+    private final String outputExtension;
+    private final boolean framed;
+    private final int concurrency;
+    private final double rate;
+    private final long duration;
+    private final long requests;
+    private final long reportInterval;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicInteger nextDocument = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private volatile long heapUsed = -1;
+    private volatile long heapPeak = -1;
+    private volatile long heapMax = -1;
+    private volatile Map<?, ?> serverStats;
+
+    private final ThreadLocal<FramedConnection> connections = new ThreadLocal<FramedConnection>();
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLineParser parser = new PosixParser();
+        Options options = new Options();
+
+        options.addOption("h", "help", false, "print this message");
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_DOCUMENTS).withDescription("The directory of documents to replay, each file's extension taken as its format.  Required.").hasArg().withArgName("PATH").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_HOST).withDescription("The host the service runs on.  Default is 'localhost'.").hasArg().withArgName("HOST").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_PORT).withDescription("The port the service listens on.  Default is '8080'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OUTPUT_EXTENSION).withDescription("The format to convert every document to.  Default is 'html'.").hasArg().withArgName("EXTENSION").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_PROTOCOL).withDescription("'" + PROTOCOL_LEGACY + "' for a Base64 JSON request per connection, or '" + PROTOCOL_V2 + "' for frames on one connection per client.  Default is '" + PROTOCOL_LEGACY + "'.").hasArg().withArgName("legacy|v2").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CONCURRENCY).withDescription("The number of clients sending requests at once.  Default is '4'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_RATE).withDescription("Requests a second to send, the clients sharing them out; 0 has each client send its next request as soon as its last is answered.  Default is '0'.").hasArg().withArgName("DECIMAL").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_DURATION).withDescription("The number of seconds to send requests for.  Default is '60'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_REQUESTS).withDescription("The number of requests to send, 0 for as many as the duration allows.  Default is '0'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_REPORT_INTERVAL).withDescription("The number of seconds between progress reports, and polls of the server's statistics.  Default is '10'.").hasArg().withArgName("INTEGER").create());
+
+        CommandLine cmd;
+
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            cmd = null;
+        }
+
+        if ((cmd == null) || cmd.hasOption("h") || !cmd.hasOption(PARAMETER_DOCUMENTS)) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("LoadGenerator", options);
+            System.exit((cmd != null) && cmd.hasOption("h") ? 0 : 1);
+        }
+
+        String protocol = cmd.getOptionValue(PARAMETER_PROTOCOL, PROTOCOL_LEGACY);
+
+        if (!PROTOCOL_LEGACY.equals(protocol) && !PROTOCOL_V2.equals(protocol)) {
+            throw new RuntimeException(
+                    "protocol must be '" + PROTOCOL_LEGACY + "' or '" + PROTOCOL_V2 + "'.");
+        }
+
+        LoadGenerator generator = new LoadGenerator(
+                cmd.getOptionValue(PARAMETER_HOST, "localhost"),
+                (int) parseLong(cmd, PARAMETER_PORT, "8080"),
+                new File(cmd.getOptionValue(PARAMETER_DOCUMENTS)),
+                cmd.getOptionValue(PARAMETER_OUTPUT_EXTENSION, "html"),
+                PROTOCOL_V2.equals(protocol),
+                (int) parseLong(cmd, PARAMETER_CONCURRENCY, "4"),
+                parseDouble(cmd, PARAMETER_RATE, "0"),
+                parseLong(cmd, PARAMETER_DURATION, "60"),
+                parseLong(cmd, PARAMETER_REQUESTS, "0"),
+                parseLong(cmd, PARAMETER_REPORT_INTERVAL, "10"));
+
+        generator.run();
+
+        System.exit(0);
+    }
+
+    private static long parseLong(CommandLine cmd, String name, String defaultValue) {
+        try {
+            return Long.parseLong(cmd.getOptionValue(name, defaultValue).trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(
+                    name + " must be an integer value.");
+        }
+    }
+
+    private static double parseDouble(CommandLine cmd, String name, String defaultValue) {
+        try {
+            return Double.parseDouble(cmd.getOptionValue(name, defaultValue).trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(
+                    name + " must be a decimal value.");
+        }
+    }
+
+    public LoadGenerator(String host, int port, File documentDirectory, String outputExtension, boolean framed,
+            int concurrency, double rate, long duration, long requests, long reportInterval) throws IOException {
+
+        if (concurrency < 1) {
+            throw new RuntimeException(
+                    "concurrency must be at least 1.");
+        }
+
+        if (rate < 0) {
+            throw new RuntimeException(
+                    "rate must not be negative.");
+        }
+
+        if ((duration < 1) || (reportInterval < 1)) {
+            throw new RuntimeException(
+                    "duration and reportInterval must be at least 1.");
+        }
+
+        this.host = host;
+        this.port = port;
+        this.outputExtension = outputExtension;
+        this.framed = framed;
+        this.concurrency = concurrency;
+        this.rate = rate;
+        this.duration = duration;
+        this.requests = requests;
+        this.reportInterval = reportInterval;
+
+        documents = new ArrayList<Document>();
+
+        File[] files = documentDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && (FilenameUtils.getExtension(file.getName()).length() > 0)) {
+                    documents.add(new Document(file, !framed));
+                }
+            }
+        }
+
+        if (documents.isEmpty()) {
+            throw new RuntimeException(
+                    "documents must name a directory of files with extensions.");
+        }
+    }
+
+    public void run() throws InterruptedException {
+
+        System.out.println("Replaying " + documents.size() + " documents to " + host + ":" + port + " over " + (framed ? PROTOCOL_V2 : PROTOCOL_LEGACY) + ", "
+                + concurrency + " clients, " + ((rate > 0) ? rate + " requests/s" : "closed loop") + ", for " + duration + "s"
+                + ((requests > 0) ? " or " + requests + " requests" : "") + ".");
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(duration);
+
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+
+        if (rate > 0) {
+            // the requests that fall due while every client is busy wait in
+            // the pool's queue, their latency running all the while
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+            for (long due = start; (due < deadline) && !isRequestLimitReached(); due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                issued.incrementAndGet();
+
+                final long dueNanos = due;
+                clients.execute(new Runnable() {
+
+                    public void run() {
+                        send(dueNanos);
+                    }
+                });
+
+                reportIfDue(start);
+            }
+        } else {
+            for (int i = 0; i < concurrency; i++) {
+                clients.execute(new Runnable() {
+
+                    public void run() {
+                        while ((System.nanoTime() < deadline) && (reserveRequest())) {
+                            send(System.nanoTime());
+                        }
+                    }
+                });
+            }
+
+            while (!clients.awaitTermination(0, TimeUnit.SECONDS) && (System.nanoTime() < deadline) && !isRequestLimitReached()) {
+                TimeUnit.MILLISECONDS.sleep(100);
+                reportIfDue(start);
+            }
+        }
+
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        pollServer();
+        report(System.nanoTime() - start);
+    }
+
+    private boolean isRequestLimitReached() {
+        return (requests > 0) && (issued.get() >= requests);
+    }
+
+    /**
+     * Counts a request against the limit, if it's within it.
+     */
+    private boolean reserveRequest() {
+        if (requests <= 0) {
+            issued.incrementAndGet();
+            return true;
+        }
+
+        long count;
+        while ((count = issued.get()) < requests) {
+            if (issued.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private long lastReport = 0;
+    private long lastCompleted = 0;
+
+    private void reportIfDue(long start) {
+        long elapsed = System.nanoTime() - start;
+
+        if (elapsed - lastReport < TimeUnit.SECONDS.toNanos(reportInterval)) {
+            return;
+        }
+
+        pollServer();
+
+        long completed = completed();
+        double rateSince = (completed - lastCompleted) / ((elapsed - lastReport) / 1e9);
+
+        System.out.println(String.format("%6.1fs  %8d done  %8.1f/s  p99 %9.1f ms  busy %d  failed %d  errors %d  server heap %s  queued %s",
+                elapsed / 1e9, completed, rateSince, latency.getP99Millis(), busy.get(), failed.get(), errors.get(),
+                (heapUsed < 0) ? "?" : String.format("%.1f MB", heapUsed / MEGABYTE),
+                (serverStats == null) ? "?" : String.valueOf(serverStats.get("queued"))));
+
+        lastReport = elapsed;
+        lastCompleted = completed;
+    }
+
+    private long completed() {
+        return succeeded.get() + busy.get() + failed.get() + errors.get();
+    }
+
+    private void send(long startNanos) {
+        Document document = documents.get((nextDocument.getAndIncrement() & Integer.MAX_VALUE) % documents.size());
+
+        try {
+            String msg = framed ? sendFrame(document) : sendLegacy(document);
+
+            if (msg == null) {
+                errors.incrementAndGet();
+            } else if (msg.startsWith("Busy")) {
+                busy.incrementAndGet();
+            } else if (msg.startsWith("Success")) {
+                latency.recordSince(startNanos);
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+
+            FramedConnection connection = connections.get();
+            if (connection != null) {
+                connection.close();
+                connections.remove();
+            }
+        }
+    }
+
+    private String sendLegacy(Document document) throws IOException {
+        Socket socket = new Socket(host, port);
+
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            out.write(("{\"id\":\"load\",\"inputFilename\":\"" + document.inputFilename + "\",\"outputFilename\":\"document." + outputExtension + "\",\"inputBase64FileContents\":\"").getBytes("UTF-8"));
+            out.write(document.encoded);
+            out.write("\"}".getBytes("UTF-8"));
+            out.flush();
+
+            bytesSent.addAndGet(document.encoded.length);
+
+            return readMsg(new BufferedInputStream(socket.getInputStream()));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String sendFrame(Document document) throws IOException {
+        FramedConnection connection = connections.get();
+
+        if (connection == null) {
+            connection = new FramedConnection(new Socket(host, port));
+            connections.set(connection);
+        }
+
+        Request request = new Request();
+        request.setId("load");
+        request.setInputFilename(document.inputFilename);
+        request.setOutputFilename("document." + outputExtension);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        mapper.writeValue(header, request);
+
+        FramedProtocol.writeHeader(connection.out, header.toByteArray());
+        connection.out.writeLong(document.contents.length);
+        connection.out.write(document.contents);
+        connection.out.flush();
+
+        bytesSent.addAndGet(document.contents.length);
+
+        byte[] responseHeader = FramedProtocol.readHeader(connection.in);
+        if (responseHeader == null) {
+            throw new IOException("connection closed");
+        }
+
+        FramedProtocol.skip(connection.in, FramedProtocol.readBodyLength(connection.in));
+
+        return readMsg(new ByteArrayInputStream(responseHeader));
+    }
+
+    /**
+     * The top level "msg" of a JSON response, skipping over the rest,
+     * output contents included, without keeping it.
+     */
+    private String readMsg(InputStream in) throws IOException {
+        JsonParser parser = mapper.getJsonFactory().createJsonParser(in);
+        String msg = null;
+
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if ("msg".equals(name) && (value == JsonToken.VALUE_STRING)) {
+                    msg = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        return msg;
+    }
+
+    /**
+     * Asks the server for its statistics, remembering its heap; a server
+     * that doesn't answer leaves the last figures standing.
+     */
+    private void pollServer() {
+        try {
+            Socket socket = new Socket(host, port);
+
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write("{\"mode\":\"stats\"}".getBytes("UTF-8"));
+                out.flush();
+
+                Map<?, ?> response = mapper.readValue(socket.getInputStream(), Map.class);
+                Map<?, ?> stats = (Map<?, ?>) response.get("stats");
+
+                if (stats != null) {
+                    serverStats = stats;
+                    heapUsed = ((Number) stats.get("heapUsed")).longValue();
+                    heapMax = ((Number) stats.get("heapMax")).longValue();
+                    heapPeak = Math.max(heapPeak, heapUsed);
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (Exception e) {
+            // an older server, or one too busy to answer
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long completed = completed();
+
+        System.out.println();
+        System.out.println(String.format("requests     %d in %.1fs, %.1f/s, %.2f MB/s sent", completed, seconds, completed / seconds, bytesSent.get() / MEGABYTE / seconds));
+        System.out.println(String.format("succeeded    %d", succeeded.get()));
+        System.out.println(String.format("busy         %d", busy.get()));
+        System.out.println(String.format("failed       %d", failed.get()));
+        System.out.println(String.format("errors       %d", errors.get()));
+        System.out.println(String.format("latency ms   mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                latency.getMeanMillis(), latency.getP50Millis(), latency.percentileMillis(0.90), latency.getP99Millis(), latency.getMaxMillis()));
+
+        if (heapUsed >= 0) {
+            System.out.println(String.format("server heap  %.1f MB used, %.1f MB peak sampled, of %.1f MB", heapUsed / MEGABYTE, heapPeak / MEGABYTE, heapMax / MEGABYTE));
+        }
+
+        Map<?, ?> stats = serverStats;
+
+        if ((stats != null) && (stats.get("latency") instanceof Map)) {
+            System.out.println("server stages, ms over the server's lifetime:");
+
+            for (Map.Entry<?, ?> stage : ((Map<?, ?>) stats.get("latency")).entrySet()) {
+                Map<?, ?> all = (Map<?, ?>) ((Map<?, ?>) stage.getValue()).get(ServerStats.ALL_FORMATS);
+
+                if (all != null) {
+                    System.out.println(String.format("  %-8s count %d  p50 %.1f  p99 %.1f  max %.1f", stage.getKey(),
+                            ((Number) all.get("count")).longValue(), ((Number) all.get("p50")).doubleValue(),
+                            ((Number) all.get("p99")).doubleValue(), ((Number) all.get("max")).doubleValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * A document to replay, read once up front so the disk isn't measured.
+     */
+    private static class Document {
+
+        final String inputFilename;
+        final byte[] contents;
+        final byte[] encoded;
+
+        Document(File file, boolean encode) throws IOException {
+            inputFilename = "document." + FilenameUtils.getExtension(file.getName());
+            contents = FileUtils.readFileToByteArray(file);
+            encoded = encode ? Base64.encodeBase64(contents) : null;
+        }
+    }
+
+    /**
+     * A client's v2 connection, kept open between its requests.
+     */
+    private static class FramedConnection {
+
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        FramedConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            out.write(FramedProtocol.MAGIC);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //swallow
+            }
+        }
+    }
+}
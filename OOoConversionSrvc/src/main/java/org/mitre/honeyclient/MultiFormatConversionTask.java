@@ -0,0 +1,99 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.star.frame.XStorable;
+import com.sun.star.io.IOException;
+import com.sun.star.lang.XComponent;
+import com.sun.star.lang.XServiceInfo;
+
+import org.artofsolving.jodconverter.StandardConversionTask;
+import org.artofsolving.jodconverter.document.DocumentFamily;
+import org.artofsolving.jodconverter.document.DocumentFormat;
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeUtils;
+
+/**
+ * A conversion that loads the input document once and stores it to several
+ * outputs, each in its own format.  Loading is most of the cost for large
+ * documents, so asking for HTML and text together costs little more than
+ * asking for either.
+ *
+ * The first output is stored by StandardConversionTask as usual; the others
+ * are stored while the document is open, just before it.  An extra output
+ * that can't be stored is logged and left missing, it doesn't fail the
+ * rest.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class MultiFormatConversionTask extends StandardConversionTask {
+
+    private final List<File> outputFiles;
+    private final List<DocumentFormat> outputFormats;
+
+    /**
+     * @param outputFiles where to store the document, at least one
+     * @param outputFormats the format of each output file, in the same order
+     */
+    public MultiFormatConversionTask(File inputFile, List<File> outputFiles, List<DocumentFormat> outputFormats) {
+        super(inputFile, outputFiles.get(0), outputFormats.get(0));
+
+        this.outputFiles = outputFiles;
+        this.outputFormats = outputFormats;
+    }
+
+    List<File> getOutputFiles() {
+        return outputFiles;
+    }
+
+    @Override
+    protected void modifyDocument(XComponent document) throws OfficeException {
+        super.modifyDocument(document);
+
+        DocumentFamily family = getDocumentFamily(document);
+
+        for (int i = 1; i < outputFiles.size(); i++) {
+            File outputFile = outputFiles.get(i);
+            Map<String, ?> storeProperties = outputFormats.get(i).getStoreProperties(family);
+
+            if (storeProperties == null) {
+                Logger.getLogger(MultiFormatConversionTask.class.getName()).log(Level.WARNING, "unsupported conversion of a " + family + " document to " + outputFile.getName());
+                continue;
+            }
+
+            try {
+                OfficeUtils.cast(XStorable.class, document).storeToURL(OfficeUtils.toUrl(outputFile), OfficeUtils.toUnoProperties(storeProperties));
+            } catch (IOException e) {
+                Logger.getLogger(MultiFormatConversionTask.class.getName()).log(Level.WARNING, "could not store " + outputFile.getName() + ": " + e.getMessage());
+                outputFile.delete();
+            }
+        }
+    }
+
+    /**
+     * The same test jodconverter makes, its own being package private.
+     */
+    private static DocumentFamily getDocumentFamily(XComponent document) throws OfficeException {
+        XServiceInfo serviceInfo = OfficeUtils.cast(XServiceInfo.class, document);
+
+        if (serviceInfo.supportsService("com.sun.star.text.GenericTextDocument")) {
+            // includes Writer, Web and Master documents
+            return DocumentFamily.TEXT;
+        } else if (serviceInfo.supportsService("com.sun.star.sheet.SpreadsheetDocument")) {
+            return DocumentFamily.SPREADSHEET;
+        } else if (serviceInfo.supportsService("com.sun.star.presentation.PresentationDocument")) {
+            return DocumentFamily.PRESENTATION;
+        } else if (serviceInfo.supportsService("com.sun.star.drawing.DrawingDocument")) {
+            return DocumentFamily.DRAWING;
+        } else {
+            throw new OfficeException("document of unknown family: " + serviceInfo.getImplementationName());
+        }
+    }
+}
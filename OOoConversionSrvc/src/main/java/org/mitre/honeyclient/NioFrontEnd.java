@@ -0,0 +1,204 @@
+package org.mitre.honeyclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread that accepts connections and reads and writes
+ * them without blocking.  Only complete requests reach the worker pool, so a
+ * slow or idle client costs a selection key rather than a worker.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class NioFrontEnd {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private final OOoConversionServer server;
+    private final RequestHandler handler;
+    private final AddressAllowList allowList;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+    public NioFrontEnd(OOoConversionServer server, int port, AddressAllowList allowList) throws IOException {
+        this.server = server;
+        this.handler = (server.getRouter() == null) ? new RequestHandler(server) : new RoutingRequestHandler(server, server.getRouter());
+        this.allowList = allowList;
+
+        selector = Selector.open();
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public OOoConversionServer getServer() {
+        return server;
+    }
+
+    public RequestHandler getHandler() {
+        return handler;
+    }
+
+    public void run() {
+
+        long lastIdleCheck = System.currentTimeMillis();
+
+        while (true) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL);
+
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    connection.enableWrite();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    connection = (Connection) key.attachment();
+
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        Logger logger = Logger.getLogger(NioFrontEnd.class.getName());
+                        if (logger.isLoggable(Level.FINE)) {
+                            logger.log(Level.FINE, "dropping connection: " + e.getMessage());
+                        }
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // a bug costs the connection it hit, not the selector thread
+                        Logger.getLogger(NioFrontEnd.class.getName()).log(Level.SEVERE, "dropping connection", e);
+                        connection.close();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdle(now);
+                    lastIdleCheck = now;
+                }
+
+            } catch (IOException e) {
+                Logger.getLogger(NioFrontEnd.class.getName()).log(Level.SEVERE, null, e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+
+        if (!allowList.isAllowed(channel.socket().getInetAddress())) {
+            Logger.getLogger(NioFrontEnd.class.getName()).log(Level.WARNING, "refused connection from " + channel.socket().getInetAddress().getHostAddress());
+
+            // best effort, a short message fits in the socket buffer
+            try {
+                channel.write(ByteBuffer.wrap(handler.legacyResponse(new Response("Remote connections not allowed.", null, null))));
+            } catch (IOException e) {
+                //swallow
+            } finally {
+                channel.close();
+            }
+            return;
+        }
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(this, channel, key));
+    }
+
+    private void closeIdle(long now) {
+        long timeout = server.getConnectionIdleTimeout();
+
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+
+            if (key.isValid() && (attachment instanceof Connection) && ((Connection) attachment).isIdle(now, timeout)) {
+                Logger.getLogger(NioFrontEnd.class.getName()).log(Level.FINEST, "closing idle connection");
+                ((Connection) attachment).close();
+            }
+        }
+    }
+
+    /**
+     * Hands a complete request to the worker pool.
+     *
+     * @return false when the pool's queue is full
+     */
+    public boolean submit(final Runnable task) {
+        final long queued = System.nanoTime();
+
+        try {
+            server.getWorkerExecutor().execute(new Runnable() {
+
+                public void run() {
+                    ServerStats stats = server.getStats();
+
+                    stats.record(ServerStats.STAGE_QUEUE, queued);
+                    stats.started();
+                    try {
+                        task.run();
+                    } finally {
+                        stats.finished();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Logger.getLogger(NioFrontEnd.class.getName()).log(Level.WARNING, "Worker queue full, turning away request.");
+            return false;
+        }
+    }
+
+    /**
+     * Asks the selector thread to start writing a connection's queued
+     * responses, safe to call from any thread.
+     */
+    public void requestWrite(Connection connection) {
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+}
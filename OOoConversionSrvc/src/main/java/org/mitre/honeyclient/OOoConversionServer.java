@@ -1,8 +1,6 @@
 package org.mitre.honeyclient;
 
 import java.io.BufferedReader;
-import java.net.ServerSocket;
-import java.net.Socket;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
@@ -10,11 +8,25 @@ import java.io.File;
 import java.io.IOException;
 
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.artofsolving.jodconverter.office.DefaultOfficeManagerConfiguration;
-import org.artofsolving.jodconverter.office.OfficeManager;
 
 import org.codehaus.jackson.map.ObjectMapper;
 
@@ -28,7 +40,6 @@ import org.apache.commons.cli.PosixParser;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.artofsolving.jodconverter.office.OfficeException;
 
 /**
  * A service for MS Office and the like document conversion
@@ -41,18 +52,73 @@ import org.artofsolving.jodconverter.office.OfficeException;
 public class OOoConversionServer {
 
     public static final String PARAMETER_OFFICE_PORT = "officePort";
+    public static final String PARAMETER_OFFICE_PORTS = "officePorts";
+    public static final String PARAMETER_OFFICE_COUNT = "officeCount";
     public static final String PARAMETER_OFFICE_HOME = "officeHome";
     public static final String PARAMETER_OFFICE_PROFILE = "officeProfile";
     public static final String PARAMETER_FILEUPLOAD_MAX_SIZE = "fileUploadMaxSize";
     public static final String PARAMETER_SERVER_PORT = "serverPort";
     public static final String PARAMETER_TASK_EXECUTION_TIMEOUT = "taskExectionTimeout";
-
-    private OfficeManager officeManager;
+    public static final String PARAMETER_WORKER_COUNT = "workerCount";
+    public static final String PARAMETER_WORKER_QUEUE_DEPTH = "workerQueueDepth";
+    public static final String PARAMETER_CONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+    public static final String PARAMETER_ALLOWED_CLIENTS = "allowedClients";
+    public static final String PARAMETER_CACHE_DIR = "cacheDir";
+    public static final String PARAMETER_CACHE_MAX_BYTES = "cacheMaxBytes";
+    public static final String PARAMETER_BATCH_UPLOAD_MAX_SIZE = "batchUploadMaxSize";
+    public static final String PARAMETER_OFFICE_BACKEND = "officeBackend";
+    public static final String PARAMETER_FAKE_CONVERSION_DELAY = "fakeConversionDelay";
+    public static final String PARAMETER_FAKE_FAILURE_RATE = "fakeFailureRate";
+    public static final String PARAMETER_FAKE_START_DELAY = "fakeStartDelay";
+    public static final String PARAMETER_OFFICE_MAX_ATTEMPTS = "officeMaxAttempts";
+    public static final String PARAMETER_OFFICE_RETRY_BACKOFF = "officeRetryBackoff";
+    public static final String PARAMETER_OFFICE_RETRY_BACKOFF_MAX = "officeRetryBackoffMax";
+    public static final String PARAMETER_CIRCUIT_BREAKER_THRESHOLD = "circuitBreakerThreshold";
+    public static final String PARAMETER_CIRCUIT_BREAKER_OPEN_TIME = "circuitBreakerOpenTime";
+    public static final String PARAMETER_QUARANTINE_THRESHOLD = "quarantineThreshold";
+    public static final String PARAMETER_JOB_RESULT_TTL = "jobResultTtl";
+    public static final String PARAMETER_JOB_MAX_COUNT = "jobMaxCount";
+    public static final String PARAMETER_JOB_JOURNAL_DIR = "jobJournalDir";
+    public static final String PARAMETER_SCRATCH_DIR = "scratchDir";
+    public static final String PARAMETER_SCRATCH_MAX_BYTES = "scratchMaxBytes";
+    public static final String PARAMETER_LOG_BUFFER_SIZE = "logBufferSize";
+    public static final String PARAMETER_OFFICE_RECYCLE_CONVERSIONS = "officeRecycleConversions";
+    public static final String PARAMETER_OFFICE_RECYCLE_MEMORY = "officeRecycleMemory";
+    public static final String PARAMETER_OFFICE_RECYCLE_LATENCY_FACTOR = "officeRecycleLatencyFactor";
+    public static final String PARAMETER_OFFICE_STANDBY_PORT = "officeStandbyPort";
+    public static final String PARAMETER_FAST_PATH_EXTRACTION = "fastPathExtraction";
+    public static final String PARAMETER_ARCHIVE_MAX_DEPTH = "archiveMaxDepth";
+    public static final String PARAMETER_ARCHIVE_MAX_MEMBERS = "archiveMaxMembers";
+    public static final String PARAMETER_ARCHIVE_MAX_BYTES = "archiveMaxBytes";
+    public static final String PARAMETER_ROUTER_BACKENDS = "routerBackends";
+    public static final String PARAMETER_ROUTER_HEALTH_INTERVAL = "routerHealthInterval";
+    public static final String PARAMETER_ROUTER_LOAD_FACTOR = "routerLoadFactor";
+    public static final String PARAMETER_ROUTER_TIMEOUT = "routerTimeout";
+    public static final String PARAMETER_CONVERSION_PRESETS = "conversionPresets";
+
+    /** conversions done by OpenOffice.org, the default */
+    public static final String OFFICE_BACKEND_OFFICE = "office";
+    /** conversions faked by FakeOfficeManager, for load testing without office */
+    public static final String OFFICE_BACKEND_FAKE = "fake";
+
+    private OfficeInstancePool officePool;
     private InsistOfficeDocumentConverter documentConverter;
     private int serverPort = 0;
     private int fileSizeMax = 0;
-    private ServerSocket serverSocket = null;
+    private int batchSizeMax = 0;
+    private int connectionIdleTimeout = 0;
+    private NioFrontEnd frontEnd = null;
+    private ThreadPoolExecutor workerExecutor;
+    private ThreadPoolExecutor batchExecutor;
+    private ThreadPoolExecutor jobExecutor;
+    private ConversionJobs jobs;
+    private ConversionCache conversionCache;
+    private ScratchSpace scratch;
+    private ArchiveExpander archiveExpander;
+    private ClusterRouter router;
+    private ServerStats stats;
     private ObjectMapper mapper;
+    private ConversionPresets presets;
 
     public static void main(String[] args) throws Exception {
 
@@ -71,22 +137,66 @@ public class OOoConversionServer {
         DefaultOfficeManagerConfiguration configuration = new DefaultOfficeManagerConfiguration();
 
         String officePortParam = properties.getProperty(PARAMETER_OFFICE_PORT);
+        String officePortsParam = properties.getProperty(PARAMETER_OFFICE_PORTS);
+        String officeCountParam = properties.getProperty(PARAMETER_OFFICE_COUNT);
         String officeHomeParam = properties.getProperty(PARAMETER_OFFICE_HOME);
         String officeProfileParam = properties.getProperty(PARAMETER_OFFICE_PROFILE);
         String serverPortParam = properties.getProperty(PARAMETER_SERVER_PORT);
         String fileSizeMaxParam = properties.getProperty(PARAMETER_FILEUPLOAD_MAX_SIZE);
         String taskExectionTimeout = properties.getProperty(PARAMETER_TASK_EXECUTION_TIMEOUT);
+        String workerCountParam = properties.getProperty(PARAMETER_WORKER_COUNT);
+        String workerQueueDepthParam = properties.getProperty(PARAMETER_WORKER_QUEUE_DEPTH);
+        String connectionIdleTimeoutParam = properties.getProperty(PARAMETER_CONNECTION_IDLE_TIMEOUT);
+        String allowedClientsParam = properties.getProperty(PARAMETER_ALLOWED_CLIENTS);
+        String cacheDirParam = properties.getProperty(PARAMETER_CACHE_DIR);
+        String cacheMaxBytesParam = properties.getProperty(PARAMETER_CACHE_MAX_BYTES);
+        String batchSizeMaxParam = properties.getProperty(PARAMETER_BATCH_UPLOAD_MAX_SIZE);
+        String officeBackendParam = properties.getProperty(PARAMETER_OFFICE_BACKEND);
+        String fakeConversionDelayParam = properties.getProperty(PARAMETER_FAKE_CONVERSION_DELAY);
+        String fakeFailureRateParam = properties.getProperty(PARAMETER_FAKE_FAILURE_RATE);
+        String fakeStartDelayParam = properties.getProperty(PARAMETER_FAKE_START_DELAY);
+        String officeMaxAttemptsParam = properties.getProperty(PARAMETER_OFFICE_MAX_ATTEMPTS);
+        String officeRetryBackoffParam = properties.getProperty(PARAMETER_OFFICE_RETRY_BACKOFF);
+        String officeRetryBackoffMaxParam = properties.getProperty(PARAMETER_OFFICE_RETRY_BACKOFF_MAX);
+        String circuitBreakerThresholdParam = properties.getProperty(PARAMETER_CIRCUIT_BREAKER_THRESHOLD);
+        String circuitBreakerOpenTimeParam = properties.getProperty(PARAMETER_CIRCUIT_BREAKER_OPEN_TIME);
+        String quarantineThresholdParam = properties.getProperty(PARAMETER_QUARANTINE_THRESHOLD);
+        String jobResultTtlParam = properties.getProperty(PARAMETER_JOB_RESULT_TTL);
+        String jobMaxCountParam = properties.getProperty(PARAMETER_JOB_MAX_COUNT);
+        String jobJournalDirParam = properties.getProperty(PARAMETER_JOB_JOURNAL_DIR);
+        String scratchDirParam = properties.getProperty(PARAMETER_SCRATCH_DIR);
+        String scratchMaxBytesParam = properties.getProperty(PARAMETER_SCRATCH_MAX_BYTES);
+        String logBufferSizeParam = properties.getProperty(PARAMETER_LOG_BUFFER_SIZE);
+        String officeRecycleConversionsParam = properties.getProperty(PARAMETER_OFFICE_RECYCLE_CONVERSIONS);
+        String officeRecycleMemoryParam = properties.getProperty(PARAMETER_OFFICE_RECYCLE_MEMORY);
+        String officeRecycleLatencyFactorParam = properties.getProperty(PARAMETER_OFFICE_RECYCLE_LATENCY_FACTOR);
+        String officeStandbyPortParam = properties.getProperty(PARAMETER_OFFICE_STANDBY_PORT);
+        String fastPathExtractionParam = properties.getProperty(PARAMETER_FAST_PATH_EXTRACTION);
+        String archiveMaxDepthParam = properties.getProperty(PARAMETER_ARCHIVE_MAX_DEPTH);
+        String archiveMaxMembersParam = properties.getProperty(PARAMETER_ARCHIVE_MAX_MEMBERS);
+        String archiveMaxBytesParam = properties.getProperty(PARAMETER_ARCHIVE_MAX_BYTES);
+        String routerBackendsParam = properties.getProperty(PARAMETER_ROUTER_BACKENDS);
+        String routerHealthIntervalParam = properties.getProperty(PARAMETER_ROUTER_HEALTH_INTERVAL);
+        String routerLoadFactorParam = properties.getProperty(PARAMETER_ROUTER_LOAD_FACTOR);
+        String routerTimeoutParam = properties.getProperty(PARAMETER_ROUTER_TIMEOUT);
+        String conversionPresetsParam = properties.getProperty(PARAMETER_CONVERSION_PRESETS);
 
         CommandLineParser parser = new PosixParser();
         Options options = new Options();
 
         options.addOption("h", "help", false, "print this message");
 
-        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_PORT).withDescription("The port the service listens on.  Default is '" + serverPortParam + "'.").hasArg().withArgName("INTEGER").create());
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_SERVER_PORT).withDescription("The port the service listens on.  Default is '" + serverPortParam + "'.").hasArg().withArgName("INTEGER").create());
 
         options.addOption(OptionBuilder.withLongOpt(PARAMETER_FILEUPLOAD_MAX_SIZE).withDescription("The largest file size that can be uploaded.  Default is '" + fileSizeMaxParam + "'.").hasArg().withArgName("INTEGER").create());
 
-        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_PORT).withDescription("The port OpenOffice service daemon will listen on.  Default is '" + officePortParam + "'.").hasArg().withArgName("INTEGER").create());
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_BATCH_UPLOAD_MAX_SIZE).withDescription("The largest total size of the documents uploaded in one batch request.  Default is '" + batchSizeMaxParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_PORT).withDescription("The port OpenOffice service daemon will listen on, or the first port of the pool when '" + PARAMETER_OFFICE_COUNT + "' is greater than one.  Default is '" + officePortParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_COUNT).withDescription("The number of OpenOffice instances to run on consecutive ports starting at '" + PARAMETER_OFFICE_PORT + "'.  Default is '" + officeCountParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_PORTS).withDescription("A comma separated list of ports, one OpenOffice instance per port.  Overrides '" + PARAMETER_OFFICE_PORT + "' and '" + PARAMETER_OFFICE_COUNT + "'.").hasArg().withArgName("INTEGER,...").create());
 
         options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_HOME).withDescription("The home directory of OpenOffice.  Default is '" + officeHomeParam + "'.").hasArg().withArgName("PATH").create());
 
@@ -94,6 +204,76 @@ public class OOoConversionServer {
 
         options.addOption(OptionBuilder.withLongOpt(PARAMETER_TASK_EXECUTION_TIMEOUT).withDescription("The number of seconds a conversion is given between re-attempts.  Default is '" + taskExectionTimeout + "'.").hasArg().withArgName("INTEGER").create());
 
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_WORKER_COUNT).withDescription("The number of worker threads handling requests.  Default is '" + workerCountParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_WORKER_QUEUE_DEPTH).withDescription("The number of accepted connections allowed to wait for a worker before clients are told to retry later.  Default is '" + workerQueueDepthParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CONNECTION_IDLE_TIMEOUT).withDescription("The number of milliseconds a connection may sit idle, with no request being read, converted or answered, before it is closed.  Default is '" + connectionIdleTimeoutParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ALLOWED_CLIENTS).withDescription("A comma separated list of client IP addresses or CIDR blocks allowed to connect.  Default is '" + allowedClientsParam + "'.").hasArg().withArgName("CIDR,...").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CACHE_DIR).withDescription("The directory conversion results are cached in.  Default is '" + cacheDirParam + "', blank meaning a directory under java.io.tmpdir.").hasArg().withArgName("PATH").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CACHE_MAX_BYTES).withDescription("The most bytes of conversion results to cache, 0 disables the cache.  Default is '" + cacheMaxBytesParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_BACKEND).withDescription("What converts documents, '" + OFFICE_BACKEND_OFFICE + "' for OpenOffice.org or '" + OFFICE_BACKEND_FAKE + "' to copy each input unchanged, for load testing without office.  Default is '" + officeBackendParam + "'.").hasArg().withArgName("office|fake").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_FAKE_CONVERSION_DELAY).withDescription("The number of milliseconds each fake conversion takes.  Default is '" + fakeConversionDelayParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_FAKE_FAILURE_RATE).withDescription("The fraction of fake conversion attempts that fail, from 0 to 1.  Default is '" + fakeFailureRateParam + "'.").hasArg().withArgName("DECIMAL").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_FAKE_START_DELAY).withDescription("The number of milliseconds each fake instance takes to start.  Default is '" + fakeStartDelayParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_MAX_ATTEMPTS).withDescription("The number of times office is tried with a document before it fails, 0 to try until it converts.  Default is '" + officeMaxAttemptsParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_RETRY_BACKOFF).withDescription("The number of milliseconds waited before retrying a failed conversion, doubling with each retry.  Default is '" + officeRetryBackoffParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_RETRY_BACKOFF_MAX).withDescription("The most milliseconds waited before any one retry.  Default is '" + officeRetryBackoffMaxParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CIRCUIT_BREAKER_THRESHOLD).withDescription("The number of consecutive failed conversion attempts, on any instance, after which conversions fail straight away until office recovers, 0 to never stop trying.  Keep it above officeMaxAttempts times quarantineThreshold so one bad document can't trip it.  Default is '" + circuitBreakerThresholdParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CIRCUIT_BREAKER_OPEN_TIME).withDescription("The number of milliseconds conversions fail straight away before office is tried again.  Default is '" + circuitBreakerOpenTimeParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_QUARANTINE_THRESHOLD).withDescription("The number of requests for a document that may run out of attempts before it is refused for good, 0 to never refuse one.  Default is '" + quarantineThresholdParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_JOB_RESULT_TTL).withDescription("The number of milliseconds a submitted job's result is kept for fetching once done.  Default is '" + jobResultTtlParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_JOB_MAX_COUNT).withDescription("The number of submitted jobs, pending or done, kept at once before clients are told to retry later, 0 disables jobs.  Default is '" + jobMaxCountParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_JOB_JOURNAL_DIR).withDescription("The directory submitted jobs, their documents and results are journaled in, so they survive a restart.  Default is '" + jobJournalDirParam + "', blank meaning jobs are kept in memory only.").hasArg().withArgName("PATH").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_SCRATCH_DIR).withDescription("The directory uploads, outputs and responses are staged in, a tmpfs mount keeps them off the disk; the server stages in a directory of its own under it, emptied on start.  Default is '" + scratchDirParam + "', blank meaning java.io.tmpdir.").hasArg().withArgName("PATH").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_SCRATCH_MAX_BYTES).withDescription("The most bytes staged before clients sending documents are told to retry later, 0 for no limit.  Default is '" + scratchMaxBytesParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_LOG_BUFFER_SIZE).withDescription("The number of log records buffered for a thread of its own to write, so requests never wait on the log, 0 to write them as they are logged.  Default is '" + logBufferSizeParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_RECYCLE_CONVERSIONS).withDescription("The number of conversions after which an OpenOffice instance is replaced by a standby and stopped, 0 for no limit.  Default is '" + officeRecycleConversionsParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_RECYCLE_MEMORY).withDescription("The resident bytes, read from /proc, above which an OpenOffice instance is replaced by a standby and stopped, 0 for no limit.  Default is '" + officeRecycleMemoryParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_RECYCLE_LATENCY_FACTOR).withDescription("How many times slower than it started out an OpenOffice instance may get before it is replaced by a standby and stopped, 0 for no limit.  Default is '" + officeRecycleLatencyFactorParam + "'.").hasArg().withArgName("DECIMAL").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_OFFICE_STANDBY_PORT).withDescription("The port the standby OpenOffice instance first listens on; after that it takes the port of the last instance recycled.  Default is '" + officeStandbyPortParam + "', blank meaning one above the highest office port.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_FAST_PATH_EXTRACTION).withDescription("Whether text, HTML, RTF, Office Open XML and OpenDocument files are read without office where the output allows, URL lists of all of them and text of plain text, docx and odt, or every document goes to office.  Default is '" + fastPathExtractionParam + "'.").hasArg().withArgName("true|false").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ARCHIVE_MAX_DEPTH).withDescription("How many archives deep, the archive sent counting as one, documents may be in an archive sent for expansion.  Default is '" + archiveMaxDepthParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ARCHIVE_MAX_MEMBERS).withDescription("The most members, those of archives within included, an archive sent for expansion may hold, 0 disables expansion.  Default is '" + archiveMaxMembersParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ARCHIVE_MAX_BYTES).withDescription("The most bytes an archive sent for expansion may expand to, archives within included.  Default is '" + archiveMaxBytesParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ROUTER_BACKENDS).withDescription("A comma separated list of conversion servers to route requests to by document content, running no office of its own; each worker then relays one request, so unless '" + PARAMETER_WORKER_COUNT + "' is given there are that many per backend.  Default is '" + routerBackendsParam + "', blank meaning the server converts.").hasArg().withArgName("HOST:PORT,...").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ROUTER_HEALTH_INTERVAL).withDescription("The milliseconds between health checks of each backend, a backend that fails one or a request is passed over until it passes one.  Default is '" + routerHealthIntervalParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ROUTER_LOAD_FACTOR).withDescription("How many times its even share of the requests in flight a backend may carry before documents routed to it go to the next backend instead.  Default is '" + routerLoadFactorParam + "'.").hasArg().withArgName("DECIMAL").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_ROUTER_TIMEOUT).withDescription("The milliseconds a backend may take to answer a request before it is taken for down and the request tried on another.  Default is '" + routerTimeoutParam + "'.").hasArg().withArgName("INTEGER").create());
+
+        options.addOption(OptionBuilder.withLongOpt(PARAMETER_CONVERSION_PRESETS).withDescription("A JSON file of conversion presets, output formats and office load and store properties requests can name, over the server's own 'text', 'links' and 'firstPages'.  Default is '" + conversionPresetsParam + "', blank meaning only the server's own.").hasArg().withArgName("PATH").create());
+
         CommandLine cmd = parser.parse(options, args);
 
         if (cmd.hasOption("h")) {
@@ -102,9 +282,20 @@ public class OOoConversionServer {
             System.exit(0);
         }
 
-        if (cmd.hasOption(PARAMETER_OFFICE_PORT)) {
+        int logBufferSize = parseIntParameter(cmd, PARAMETER_LOG_BUFFER_SIZE, logBufferSizeParam);
+
+        if (logBufferSize < 0) {
+            throw new RuntimeException(
+                    "logBufferSize must not be negative.");
+        }
+
+        if (logBufferSize > 0) {
+            AsyncLogHandler.install(logBufferSize);
+        }
+
+        if (cmd.hasOption(PARAMETER_SERVER_PORT)) {
             try {
-                serverPort = Integer.parseInt(cmd.getOptionValue(PARAMETER_OFFICE_PORT));
+                serverPort = Integer.parseInt(cmd.getOptionValue(PARAMETER_SERVER_PORT));
             } catch (Exception e) {
                 throw new RuntimeException(
                         "serverPort must be an integer value.");
@@ -124,37 +315,82 @@ public class OOoConversionServer {
             fileSizeMax = Integer.parseInt(fileSizeMaxParam);
         }
 
-        if (cmd.hasOption(PARAMETER_OFFICE_PORT)) {
+        int[] officePorts;
+
+        if (cmd.hasOption(PARAMETER_OFFICE_PORTS) || ((officePortsParam != null) && (officePortsParam.trim().length() > 0))) {
+            String[] values = (cmd.hasOption(PARAMETER_OFFICE_PORTS) ? cmd.getOptionValue(PARAMETER_OFFICE_PORTS) : officePortsParam).split(",");
+            officePorts = new int[values.length];
             try {
-                configuration.setPortNumber(Integer.parseInt(cmd.getOptionValue(PARAMETER_OFFICE_PORT)));
+                for (int i = 0; i < values.length; i++) {
+                    officePorts[i] = Integer.parseInt(values[i].trim());
+                }
             } catch (Exception e) {
                 throw new RuntimeException(
-                        "officePort must be an integer value.");
+                        "officePorts must be a comma separated list of integer values.");
             }
         } else {
-            configuration.setPortNumber(Integer.parseInt(officePortParam));
-        }
+            int officePort;
+            int officeCount;
 
-        if (cmd.hasOption(PARAMETER_OFFICE_HOME)) {
             try {
-                configuration.setOfficeHome(cmd.getOptionValue(PARAMETER_OFFICE_HOME));
+                officePort = Integer.parseInt(cmd.hasOption(PARAMETER_OFFICE_PORT) ? cmd.getOptionValue(PARAMETER_OFFICE_PORT) : officePortParam);
             } catch (Exception e) {
                 throw new RuntimeException(
-                        "officePath must be a file path.");
+                        "officePort must be an integer value.");
             }
-        } else {
-            configuration.setOfficeHome(new File(officeHomeParam));
-        }
 
-        if (cmd.hasOption(PARAMETER_OFFICE_PROFILE)) {
             try {
-                configuration.setTemplateProfileDir(new File(cmd.getOptionValue(PARAMETER_OFFICE_PROFILE)));
+                officeCount = Integer.parseInt(cmd.hasOption(PARAMETER_OFFICE_COUNT) ? cmd.getOptionValue(PARAMETER_OFFICE_COUNT) : officeCountParam);
             } catch (Exception e) {
                 throw new RuntimeException(
-                        "officePath must be a file path.");
+                        "officeCount must be an integer value.");
+            }
+
+            if (officeCount < 1) {
+                throw new RuntimeException(
+                        "officeCount must be at least 1.");
+            }
+
+            officePorts = new int[officeCount];
+            for (int i = 0; i < officeCount; i++) {
+                officePorts[i] = officePort + i;
+            }
+        }
+
+        List<InetSocketAddress> routerBackends = parseAddresses(cmd, PARAMETER_ROUTER_BACKENDS, routerBackendsParam);
+
+        String officeBackend = (cmd.hasOption(PARAMETER_OFFICE_BACKEND) ? cmd.getOptionValue(PARAMETER_OFFICE_BACKEND) : officeBackendParam).trim();
+
+        if (!OFFICE_BACKEND_OFFICE.equals(officeBackend) && !OFFICE_BACKEND_FAKE.equals(officeBackend)) {
+            throw new RuntimeException(
+                    "officeBackend must be '" + OFFICE_BACKEND_OFFICE + "' or '" + OFFICE_BACKEND_FAKE + "'.");
+        }
+
+        boolean fakeOffice = OFFICE_BACKEND_FAKE.equals(officeBackend);
+
+        // a fake backend needs no office install to point at, nor does a router
+        if (!fakeOffice && routerBackends.isEmpty()) {
+            if (cmd.hasOption(PARAMETER_OFFICE_HOME)) {
+                try {
+                    configuration.setOfficeHome(cmd.getOptionValue(PARAMETER_OFFICE_HOME));
+                } catch (Exception e) {
+                    throw new RuntimeException(
+                            "officePath must be a file path.");
+                }
+            } else {
+                configuration.setOfficeHome(new File(officeHomeParam));
+            }
+
+            if (cmd.hasOption(PARAMETER_OFFICE_PROFILE)) {
+                try {
+                    configuration.setTemplateProfileDir(new File(cmd.getOptionValue(PARAMETER_OFFICE_PROFILE)));
+                } catch (Exception e) {
+                    throw new RuntimeException(
+                            "officePath must be a file path.");
+                }
+            } else {
+                configuration.setTemplateProfileDir(new File(officeProfileParam));
             }
-        } else {
-            configuration.setTemplateProfileDir(new File(officeProfileParam));
         }
 
         if (cmd.hasOption(PARAMETER_TASK_EXECUTION_TIMEOUT)) {
@@ -168,67 +404,406 @@ public class OOoConversionServer {
             configuration.setTaskExecutionTimeout(Integer.parseInt(taskExectionTimeout));
         }
 
-        killOfficeDaemon(false);
+        int workerCount = parseIntParameter(cmd, PARAMETER_WORKER_COUNT, workerCountParam);
+        int workerQueueDepth = parseIntParameter(cmd, PARAMETER_WORKER_QUEUE_DEPTH, workerQueueDepthParam);
+
+        connectionIdleTimeout = parseIntParameter(cmd, PARAMETER_CONNECTION_IDLE_TIMEOUT, connectionIdleTimeoutParam);
+
+        batchSizeMax = parseIntParameter(cmd, PARAMETER_BATCH_UPLOAD_MAX_SIZE, batchSizeMaxParam);
+
+        if (batchSizeMax < fileSizeMax) {
+            throw new RuntimeException(
+                    "batchUploadMaxSize must be at least fileUploadMaxSize.");
+        }
+
+        if (workerCount < 1) {
+            throw new RuntimeException(
+                    "workerCount must be at least 1.");
+        }
+
+        if (workerQueueDepth < 1) {
+            throw new RuntimeException(
+                    "workerQueueDepth must be at least 1.");
+        }
+
+        int officeMaxAttempts = parseIntParameter(cmd, PARAMETER_OFFICE_MAX_ATTEMPTS, officeMaxAttemptsParam);
+        long officeRetryBackoff = parseLongParameter(cmd, PARAMETER_OFFICE_RETRY_BACKOFF, officeRetryBackoffParam);
+        long officeRetryBackoffMax = parseLongParameter(cmd, PARAMETER_OFFICE_RETRY_BACKOFF_MAX, officeRetryBackoffMaxParam);
+        int circuitBreakerThreshold = parseIntParameter(cmd, PARAMETER_CIRCUIT_BREAKER_THRESHOLD, circuitBreakerThresholdParam);
+        long circuitBreakerOpenTime = parseLongParameter(cmd, PARAMETER_CIRCUIT_BREAKER_OPEN_TIME, circuitBreakerOpenTimeParam);
+        int quarantineThreshold = parseIntParameter(cmd, PARAMETER_QUARANTINE_THRESHOLD, quarantineThresholdParam);
+
+        if ((officeMaxAttempts < 0) || (circuitBreakerThreshold < 0) || (quarantineThreshold < 0)) {
+            throw new RuntimeException(
+                    "officeMaxAttempts, circuitBreakerThreshold and quarantineThreshold must not be negative.");
+        }
+
+        if ((officeRetryBackoff < 0) || (officeRetryBackoffMax < officeRetryBackoff)) {
+            throw new RuntimeException(
+                    "officeRetryBackoffMax must be at least officeRetryBackoff, which must not be negative.");
+        }
+
+        if (circuitBreakerOpenTime < 0) {
+            throw new RuntimeException(
+                    "circuitBreakerOpenTime must not be negative.");
+        }
+
+        long jobResultTtl = parseLongParameter(cmd, PARAMETER_JOB_RESULT_TTL, jobResultTtlParam);
+        int jobMaxCount = parseIntParameter(cmd, PARAMETER_JOB_MAX_COUNT, jobMaxCountParam);
+
+        if ((jobResultTtl < 0) || (jobMaxCount < 0)) {
+            throw new RuntimeException(
+                    "jobResultTtl and jobMaxCount must not be negative.");
+        }
+
+        String jobJournalDir = (cmd.hasOption(PARAMETER_JOB_JOURNAL_DIR) ? cmd.getOptionValue(PARAMETER_JOB_JOURNAL_DIR) : jobJournalDirParam);
+
+        if ((jobJournalDir != null) && (jobJournalDir.trim().length() == 0)) {
+            jobJournalDir = null;
+        }
+
+        if ((jobJournalDir != null) && (jobMaxCount == 0)) {
+            throw new RuntimeException(
+                    "jobJournalDir needs jobs, jobMaxCount must be above 0.");
+        }
+
+        AddressAllowList allowList;
+
+        try {
+            allowList = new AddressAllowList(cmd.hasOption(PARAMETER_ALLOWED_CLIENTS) ? cmd.getOptionValue(PARAMETER_ALLOWED_CLIENTS) : allowedClientsParam);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException(
+                    "allowedClients must be a comma separated list of IP addresses or CIDR blocks; " + e.getMessage());
+        }
+
+        long cacheMaxBytes = parseLongParameter(cmd, PARAMETER_CACHE_MAX_BYTES, cacheMaxBytesParam);
+
+        // a router's backends cache, it has nothing to
+        if ((cacheMaxBytes > 0) && routerBackends.isEmpty()) {
+            String cacheDir = cmd.hasOption(PARAMETER_CACHE_DIR) ? cmd.getOptionValue(PARAMETER_CACHE_DIR) : cacheDirParam;
+
+            if ((cacheDir == null) || (cacheDir.trim().length() == 0)) {
+                cacheDir = new File(System.getProperty("java.io.tmpdir"), "OOoConversionSrvc-cache").getPath();
+            }
+
+            conversionCache = new ConversionCache(new File(cacheDir.trim()), cacheMaxBytes);
+            registerMBean(conversionCache, "org.mitre.honeyclient:type=ConversionCache");
+        }
+
+        long scratchMaxBytes = parseLongParameter(cmd, PARAMETER_SCRATCH_MAX_BYTES, scratchMaxBytesParam);
+
+        if (scratchMaxBytes < 0) {
+            throw new RuntimeException(
+                    "scratchMaxBytes must not be negative.");
+        }
+
+        String scratchDir = cmd.hasOption(PARAMETER_SCRATCH_DIR) ? cmd.getOptionValue(PARAMETER_SCRATCH_DIR) : scratchDirParam;
+
+        if ((scratchDir == null) || (scratchDir.trim().length() == 0)) {
+            scratchDir = System.getProperty("java.io.tmpdir");
+        }
+
+        // one per port, so servers side by side can share the mount
+        scratch = new ScratchSpace(new File(scratchDir.trim(), "OOoConversionSrvc-scratch-" + serverPort), scratchMaxBytes);
+        registerMBean(scratch, "org.mitre.honeyclient:type=ScratchSpace");
+
+        if (!routerBackends.isEmpty()) {
+            long routerHealthInterval = parseLongParameter(cmd, PARAMETER_ROUTER_HEALTH_INTERVAL, routerHealthIntervalParam);
+            double routerLoadFactor = parseDoubleParameter(cmd, PARAMETER_ROUTER_LOAD_FACTOR, routerLoadFactorParam);
+            int routerTimeout = parseIntParameter(cmd, PARAMETER_ROUTER_TIMEOUT, routerTimeoutParam);
+
+            if ((routerHealthInterval < 1) || (routerLoadFactor < 1) || (routerTimeout < 1)) {
+                throw new RuntimeException(
+                        "routerHealthInterval and routerTimeout must be at least 1, and routerLoadFactor at least 1.0.");
+            }
+
+            if (!cmd.hasOption(PARAMETER_WORKER_COUNT)) {
+                workerCount *= routerBackends.size();
+            }
+
+            mapper = new ObjectMapper();
+
+            router = new ClusterRouter(routerBackends, scratch, mapper, routerHealthInterval, routerLoadFactor, routerTimeout);
+            registerMBean(router, "org.mitre.honeyclient:type=ClusterRouter");
+            router.start();
+
+            workerExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(workerQueueDepth), new WorkerThreadFactory("worker-"));
+
+            stats = new ServerStats(this);
+            registerMBean(stats, "org.mitre.honeyclient:type=ServerStats");
+
+            Logger.getLogger(OOoConversionServer.class.getName()).log(Level.INFO, "Routing to " + routerBackends + ", no office started.");
+
+            listen(allowList);
+            return;
+        }
+
+        long officeRecycleConversions = parseLongParameter(cmd, PARAMETER_OFFICE_RECYCLE_CONVERSIONS, officeRecycleConversionsParam);
+        long officeRecycleMemory = parseLongParameter(cmd, PARAMETER_OFFICE_RECYCLE_MEMORY, officeRecycleMemoryParam);
+        double officeRecycleLatencyFactor = parseDoubleParameter(cmd, PARAMETER_OFFICE_RECYCLE_LATENCY_FACTOR, officeRecycleLatencyFactorParam);
+
+        if ((officeRecycleConversions < 0) || (officeRecycleMemory < 0) || (officeRecycleLatencyFactor < 0)) {
+            throw new RuntimeException(
+                    "officeRecycleConversions, officeRecycleMemory and officeRecycleLatencyFactor must not be negative.");
+        }
 
-        officeManager = configuration.buildOfficeManager();
+        boolean fastPathExtraction = parseBooleanParameter(cmd, PARAMETER_FAST_PATH_EXTRACTION, fastPathExtractionParam);
 
-        boolean retry = true;
-        while (retry) {
+        int archiveMaxDepth = parseIntParameter(cmd, PARAMETER_ARCHIVE_MAX_DEPTH, archiveMaxDepthParam);
+        int archiveMaxMembers = parseIntParameter(cmd, PARAMETER_ARCHIVE_MAX_MEMBERS, archiveMaxMembersParam);
+        long archiveMaxBytes = parseLongParameter(cmd, PARAMETER_ARCHIVE_MAX_BYTES, archiveMaxBytesParam);
+
+        if ((archiveMaxDepth < 1) || (archiveMaxMembers < 0) || (archiveMaxBytes < 1)) {
+            throw new RuntimeException(
+                    "archiveMaxDepth and archiveMaxBytes must be at least 1, and archiveMaxMembers must not be negative.");
+        }
+
+        String officeStandbyPortValue = cmd.hasOption(PARAMETER_OFFICE_STANDBY_PORT) ? cmd.getOptionValue(PARAMETER_OFFICE_STANDBY_PORT) : officeStandbyPortParam;
+        int officeStandbyPort = 0;
+
+        if ((officeStandbyPortValue == null) || (officeStandbyPortValue.trim().length() == 0)) {
+            for (int port : officePorts) {
+                officeStandbyPort = Math.max(officeStandbyPort, port + 1);
+            }
+        } else {
             try {
-                officeManager.start();
-                retry = false;
-            } catch (OfficeException e) {
+                officeStandbyPort = Integer.parseInt(officeStandbyPortValue.trim());
+            } catch (Exception e) {
+                throw new RuntimeException(
+                        "officeStandbyPort must be an integer value.");
+            }
 
-                // little bugger failed to start for whatever reason
-                Logger.getLogger(WorkerThread.class.getName()).log(Level.SEVERE, null, e);
+            for (int port : officePorts) {
+                if (port == officeStandbyPort) {
+                    throw new RuntimeException(
+                            "officeStandbyPort must not be one of the office ports.");
+                }
+            }
+        }
 
-                killOfficeDaemon(false);
+        if (fakeOffice) {
+            long fakeConversionDelay = parseLongParameter(cmd, PARAMETER_FAKE_CONVERSION_DELAY, fakeConversionDelayParam);
+            double fakeFailureRate = parseDoubleParameter(cmd, PARAMETER_FAKE_FAILURE_RATE, fakeFailureRateParam);
+            long fakeStartDelay = parseLongParameter(cmd, PARAMETER_FAKE_START_DELAY, fakeStartDelayParam);
 
-                officeManager = configuration.buildOfficeManager();
-                
+            if ((fakeFailureRate < 0) || (fakeFailureRate > 1)) {
+                throw new RuntimeException(
+                        "fakeFailureRate must be from 0 to 1.");
             }
+
+            Logger.getLogger(OOoConversionServer.class.getName()).log(Level.WARNING, "Faking conversions, documents will be returned unconverted.");
+
+            officePool = FakeOfficeManager.createPool(officePorts, fakeConversionDelay, fakeFailureRate, fakeStartDelay);
+        } else {
+            // the standby instance's port too, whether or not it is wanted
+            int[] ownPorts = Arrays.copyOf(officePorts, officePorts.length + 1);
+            ownPorts[officePorts.length] = officeStandbyPort;
+            killOfficeDaemon(ownPorts, false);
+
+            officePool = new OfficeInstancePool(configuration, officePorts);
         }
 
-        documentConverter = new InsistOfficeDocumentConverter(officeManager);
+        // instances come up in the background, the listener is bound and
+        // answering, if only to say office is starting, in the meantime
+        officePool.startInBackground();
 
-        mapper = new ObjectMapper();
+        if ((officeRecycleConversions > 0) || (officeRecycleMemory > 0) || (officeRecycleLatencyFactor > 0)) {
+            OfficeRecycler recycler = new OfficeRecycler(officePool, officeStandbyPort, officeRecycleConversions, officeRecycleMemory, officeRecycleLatencyFactor);
+            registerMBean(recycler, "org.mitre.honeyclient:type=OfficeRecycler");
+            recycler.start();
+        }
+
+        initialize(workerCount, workerQueueDepth);
+
+        documentConverter.setRetryPolicy(officeMaxAttempts, officeRetryBackoff, officeRetryBackoffMax);
+
+        String conversionPresets = cmd.hasOption(PARAMETER_CONVERSION_PRESETS) ? cmd.getOptionValue(PARAMETER_CONVERSION_PRESETS) : conversionPresetsParam;
+        presets = ConversionPresets.load(mapper, ((conversionPresets == null) || (conversionPresets.trim().length() == 0)) ? null : new File(conversionPresets.trim()));
+        Logger.getLogger(OOoConversionServer.class.getName()).log(Level.INFO, "Conversion presets " + presets.getNames());
 
+        if (!fastPathExtraction) {
+            documentConverter.setExtractors(Collections.<DocumentExtractor>emptyList());
+        }
+
+        if (archiveMaxMembers > 0) {
+            archiveExpander = new ArchiveExpander(scratch, archiveMaxDepth, archiveMaxMembers, archiveMaxBytes);
+            registerMBean(archiveExpander, "org.mitre.honeyclient:type=ArchiveExpander");
+        }
+
+        OfficeCircuitBreaker circuitBreaker = new OfficeCircuitBreaker(circuitBreakerThreshold, circuitBreakerOpenTime);
+        documentConverter.setCircuitBreaker(circuitBreaker);
+        registerMBean(circuitBreaker, "org.mitre.honeyclient:type=OfficeCircuitBreaker");
+
+        DocumentQuarantine quarantine = new DocumentQuarantine(quarantineThreshold);
+        documentConverter.setQuarantine(quarantine);
+        registerMBean(quarantine, "org.mitre.honeyclient:type=DocumentQuarantine");
+
+        if (jobMaxCount > 0) {
+            jobs = new ConversionJobs(jobResultTtl, jobMaxCount);
+            registerMBean(jobs, "org.mitre.honeyclient:type=ConversionJobs");
+
+            if (jobJournalDir != null) {
+                ConversionJournal journal = new ConversionJournal(new File(jobJournalDir.trim()), mapper);
+                jobs.setJournal(journal);
+                registerMBean(journal, "org.mitre.honeyclient:type=ConversionJournal");
+
+                // before any client can submit; office may still be coming
+                // up, recovered jobs wait in runJob for its first instance
+                new RequestHandler(this).recoverJobs();
+            }
+        }
+
+        listen(allowList);
+    }
+
+    private void listen(AddressAllowList allowList) {
         try {
-            serverSocket = new ServerSocket(serverPort);
+            frontEnd = new NioFrontEnd(this, serverPort, allowList);
 
-            Logger.getLogger(WorkerThread.class.getName()).log(Level.INFO, "Listening for clients on " + serverPortParam + "...");
+            Logger.getLogger(OOoConversionServer.class.getName()).log(Level.INFO, "Listening for clients on " + serverPort + "...");
 
         } catch (IOException e) {
-            Logger.getLogger(WorkerThread.class.getName()).log(Level.SEVERE, null, e);
+            Logger.getLogger(OOoConversionServer.class.getName()).log(Level.SEVERE, null, e);
             System.exit(-1);
         }
     }
 
+    /**
+     * A server without a front end or cache, around an office pool of the
+     * caller's making, for benchmarks driving RequestHandler directly.
+     */
+    OOoConversionServer(OfficeInstancePool officePool, int fileSizeMax, int batchSizeMax, int workerCount, int workerQueueDepth) throws IOException {
+        this.officePool = officePool;
+        this.fileSizeMax = fileSizeMax;
+        this.batchSizeMax = batchSizeMax;
+
+        scratch = new ScratchSpace(new File(System.getProperty("java.io.tmpdir"), "OOoConversionSrvc-scratch-bench"), 0);
+
+        initialize(workerCount, workerQueueDepth);
+
+        presets = ConversionPresets.load(mapper, null);
+    }
+
+    /**
+     * Sets up what handling requests needs once the office pool is started.
+     */
+    private void initialize(int workerCount, int workerQueueDepth) {
+        documentConverter = new InsistOfficeDocumentConverter(officePool);
+        documentConverter.setScratch(scratch);
+
+        mapper = new ObjectMapper();
+
+        // a fixed set of workers in front of a bounded queue, anything beyond
+        // that is turned away so a burst can't pile up threads and payloads
+        workerExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workerQueueDepth), new WorkerThreadFactory("worker-"));
+
+        // the documents of a batch are converted side by side, one thread per
+        // office instance; more would only queue inside the pool.  Work here
+        // never waits on other work here, so the queue can be unbounded, it
+        // is limited by the workers feeding it.  With no more threads than
+        // scheduler slots, batch items do their waiting in its queue, so
+        // that is kept in the scheduler's order
+        int officeCapacity = officePool.getInstances().size();
+        batchExecutor = new ThreadPoolExecutor(officeCapacity, officeCapacity, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory("batch-"));
+
+        // one turn at office per instance, so conversions wait their turn
+        // here, in priority order, rather than inside the pool
+        ConversionScheduler scheduler = new ConversionScheduler(officeCapacity);
+        documentConverter.setScheduler(scheduler);
+        registerMBean(scheduler, "org.mitre.honeyclient:type=ConversionScheduler");
+
+        // submitted jobs run as requests would on the workers, but without
+        // holding a worker or a connection; their number is limited by the
+        // jobs kept, so the queue needn't be
+        jobExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("job-"));
+
+        stats = new ServerStats(this);
+        documentConverter.setStats(stats);
+        registerMBean(stats, "org.mitre.honeyclient:type=ServerStats");
+    }
+
     public void run() {
+        frontEnd.run();
+    }
 
-        boolean shutdown = false;
+    private static long parseLongParameter(CommandLine cmd, String name, String defaultValue) {
+        try {
+            return Long.parseLong(cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue.trim());
+        } catch (Exception e) {
+            throw new RuntimeException(
+                    name + " must be an integer value.");
+        }
+    }
 
-        while (!shutdown) {
-            try {
-                Socket socket = serverSocket.accept();
+    private static double parseDoubleParameter(CommandLine cmd, String name, String defaultValue) {
+        try {
+            return Double.parseDouble(cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue.trim());
+        } catch (Exception e) {
+            throw new RuntimeException(
+                    name + " must be a decimal value.");
+        }
+    }
 
-                if ((socket.getInetAddress().getHostName()).equals("localhost.localdomain")) {
-                    WorkerThread workerThread = new WorkerThread(socket, this);
-                    workerThread.start();
-                } else {
+    private static boolean parseBooleanParameter(CommandLine cmd, String name, String defaultValue) {
+        String value = (cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue).trim();
 
-                    try {
-                        OutputStream out = socket.getOutputStream();
-                        mapper.writeValue(out, new Response("Remote connections not allowed.", null, null));
-                    } catch (IOException e) {
-                        //swallow
-                    }
+        if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+            throw new RuntimeException(
+                    name + " must be true or false.");
+        }
 
-                }
-            } catch (IOException e) {
-                Logger.getLogger(WorkerThread.class.getName()).log(Level.SEVERE, null, e);
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * A comma separated list of host:port, blank for none.
+     */
+    private static List<InetSocketAddress> parseAddresses(CommandLine cmd, String name, String defaultValue) {
+        String value = cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue;
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+        if (value == null) {
+            return addresses;
+        }
+
+        for (String address : value.split(",")) {
+            address = address.trim();
+            if (address.length() == 0) {
+                continue;
+            }
+
+            int colon = address.lastIndexOf(':');
+
+            try {
+                addresses.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            } catch (Exception e) {
+                throw new RuntimeException(
+                        name + " must be a comma separated list of host:port.");
             }
         }
+
+        return addresses;
+    }
+
+    static void registerMBean(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            Logger.getLogger(OOoConversionServer.class.getName()).log(Level.WARNING, "could not register " + name, e);
+        }
+    }
+
+    private static int parseIntParameter(CommandLine cmd, String name, String defaultValue) {
+        try {
+            return Integer.parseInt(cmd.hasOption(name) ? cmd.getOptionValue(name) : defaultValue.trim());
+        } catch (Exception e) {
+            throw new RuntimeException(
+                    name + " must be an integer value.");
+        }
     }
 
     public ObjectMapper getMapper() {
@@ -239,32 +814,136 @@ public class OOoConversionServer {
         return fileSizeMax;
     }
 
+    public int getBatchSizeMax() {
+        return batchSizeMax;
+    }
+
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * @return the result cache, or null when caching is disabled
+     */
+    public ConversionCache getConversionCache() {
+        return conversionCache;
+    }
+
+    /**
+     * @return where files are staged on their way through
+     */
+    public ScratchSpace getScratch() {
+        return scratch;
+    }
+
+    /**
+     * @return what expands archives sent in place of documents, or null
+     *         when expansion is disabled
+     */
+    public ArchiveExpander getArchiveExpander() {
+        return archiveExpander;
+    }
+
+    /**
+     * @return the presets requests can name
+     */
+    public ConversionPresets getConversionPresets() {
+        return presets;
+    }
+
+    /**
+     * @return what routes requests to backends, or null when the server
+     *         converts them itself
+     */
+    public ClusterRouter getRouter() {
+        return router;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
     public InsistOfficeDocumentConverter getDocumentConverter() {
         return documentConverter;
     }
 
-    public void killOfficeDaemon(boolean showCmdLineOutpout) throws IOException {
+    public ThreadPoolExecutor getWorkerExecutor() {
+        return workerExecutor;
+    }
 
-        Process p = Runtime.getRuntime().exec("killall soffice.bin");
+    /**
+     * @return the executor the documents of a batch request are converted on
+     */
+    public ThreadPoolExecutor getBatchExecutor() {
+        return batchExecutor;
+    }
 
-        if (showCmdLineOutpout) {
-            String s = null;
+    /**
+     * @return the executor submitted jobs are converted on
+     */
+    public ThreadPoolExecutor getJobExecutor() {
+        return jobExecutor;
+    }
+
+    /**
+     * @return the submitted jobs, or null when jobs are disabled
+     */
+    public ConversionJobs getJobs() {
+        return jobs;
+    }
 
-            BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
+    /**
+     * Kills office processes left listening on the given ports, by an
+     * earlier run that never got to stop them, and only those: other
+     * servers on the host, a router's backends among them, keep theirs.
+     */
+    public void killOfficeDaemon(int[] ports, boolean showCmdLineOutpout) throws IOException {
 
-            BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+        for (int port : ports) {
+            // office is started accepting on socket,host=127.0.0.1,port=N,...
+            Process p = Runtime.getRuntime().exec(new String[] {"pkill", "-f", "soffice.*-accept=socket,host=127\\.0\\.0\\.1,port=" + port + "[,;]"});
 
-            // read the output from the command
-            System.out.println("Here is the standard output of the command:\n");
-            while ((s = stdInput.readLine()) != null) {
-                System.out.println(s);
+            if (showCmdLineOutpout) {
+                String s = null;
+
+                BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
+
+                BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+
+                // read the output from the command
+                System.out.println("Here is the standard output of the command:\n");
+                while ((s = stdInput.readLine()) != null) {
+                    System.out.println(s);
+                }
+
+                // read any errors from the attempted command
+                System.out.println("Here is the standard error of the command (if any):\n");
+                while ((s = stdError.readLine()) != null) {
+                    System.out.println(s);
+                }
             }
 
-            // read any errors from the attempted command
-            System.out.println("Here is the standard error of the command (if any):\n");
-            while ((s = stdError.readLine()) != null) {
-                System.out.println(s);
+            // done before office is started, which it would otherwise kill too
+            try {
+                p.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted killing office");
             }
         }
     }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + count.incrementAndGet());
+        }
+    }
 }
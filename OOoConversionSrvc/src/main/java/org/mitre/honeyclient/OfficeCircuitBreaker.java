@@ -0,0 +1,145 @@
+package org.mitre.honeyclient;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops the service from sending work to office while office is down.
+ * After enough consecutive failed attempts, across every instance, the
+ * breaker opens and conversions fail straight away rather than waiting out
+ * retries that can't succeed.  Once the open time has passed a single
+ * attempt is let through; its success closes the breaker again, its failure
+ * keeps it open for another spell.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeCircuitBreaker implements OfficeCircuitBreakerMBean {
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long failingSince = 0;
+    private long openUntil = 0;
+    private long openCount = 0;
+    private long rejected = 0;
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker, 0
+     *        for a breaker that never opens
+     * @param openMillis how long the breaker stays open before office is
+     *        tried again
+     */
+    public OfficeCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether an attempt may go to office now.  Each attempt allowed must be
+     * followed by a call to succeeded, failed or abandoned.
+     */
+    public synchronized boolean allowAttempt() {
+        switch (state) {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if (System.currentTimeMillis() >= openUntil) {
+                    // this attempt is the trial, everyone else waits on it
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        rejected++;
+        return false;
+    }
+
+    public synchronized void succeeded() {
+        if (state != State.CLOSED) {
+            Logger.getLogger(OfficeCircuitBreaker.class.getName()).log(Level.INFO, "office is converting again, circuit breaker closed");
+        }
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Gives back an attempt that never reached office, a trial included, so
+     * the next attempt is the trial instead.
+     */
+    public synchronized void abandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return whether this failure opened the breaker
+     */
+    public synchronized boolean failed() {
+        if (consecutiveFailures++ == 0) {
+            failingSince = System.currentTimeMillis();
+        }
+
+        if ((state == State.HALF_OPEN) || ((state == State.CLOSED) && (failureThreshold > 0) && (consecutiveFailures >= failureThreshold))) {
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openMillis;
+            openCount++;
+
+            Logger.getLogger(OfficeCircuitBreaker.class.getName()).log(Level.WARNING, "circuit breaker opened for " + openMillis + "ms after " + consecutiveFailures + " consecutive office failures");
+            return true;
+        }
+
+        return false;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return when the current run of consecutive failures began, in
+     *         milliseconds since the epoch
+     */
+    public synchronized long getFailingSince() {
+        return failingSince;
+    }
+
+    public synchronized String getState() {
+        return state.name().toLowerCase().replace('_', '-');
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+}
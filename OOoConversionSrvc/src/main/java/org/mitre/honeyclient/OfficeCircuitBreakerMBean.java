@@ -0,0 +1,27 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the circuit breaker in front of office.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface OfficeCircuitBreakerMBean {
+
+    /** closed, open or half-open */
+    String getState();
+
+    /** office attempts that have failed since the last success */
+    int getConsecutiveFailures();
+
+    /** how many times the breaker has opened */
+    long getOpenCount();
+
+    /** conversions turned away while the breaker was open */
+    long getRejected();
+
+    int getFailureThreshold();
+
+    long getOpenMillis();
+}
@@ -0,0 +1,186 @@
+package org.mitre.honeyclient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeManager;
+import org.artofsolving.jodconverter.office.OfficeTask;
+
+/**
+ * A single OpenOffice.org process, listening on its own port, along with the
+ * health and in-flight bookkeeping the pool uses to route work to it.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeInstance {
+
+    /** consecutive failures after which the instance is taken out of rotation */
+    static final int MAX_CONSECUTIVE_FAILURES = 2;
+    /** how long an unhealthy instance sits out before it is tried again */
+    static final long UNHEALTHY_BACKOFF_MILLIS = 5000;
+    /** conversions averaged for the latency the instance started out with */
+    static final int LATENCY_BASELINE_CONVERSIONS = 20;
+    /** weight of the latest conversion in the recent latency */
+    static final double LATENCY_SMOOTHING = 0.1;
+
+    private final int port;
+    private volatile OfficeManager officeManager;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong conversions = new AtomicLong();
+    private long baselineNanos = 0;
+    private long baselineSamples = 0;
+    private double recentNanos = 0;
+    private volatile boolean started = false;
+    private volatile boolean retired = false;
+    private volatile long unhealthyUntil = 0;
+
+    public OfficeInstance(int port, OfficeManager officeManager) {
+        this.port = port;
+        this.officeManager = officeManager;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void start() throws OfficeException {
+        officeManager.start();
+        started = true;
+        consecutiveFailures.set(0);
+        unhealthyUntil = 0;
+        conversions.set(0);
+
+        synchronized (this) {
+            baselineNanos = 0;
+            baselineSamples = 0;
+            recentNanos = 0;
+        }
+    }
+
+    /**
+     * Takes the instance out of rotation, leaving it running so the tasks
+     * it has in flight can finish before it is stopped.  Tasks that picked
+     * it just before are turned away, rather than reaching a stopped office.
+     */
+    void retire() {
+        retired = true;
+        started = false;
+    }
+
+    /**
+     * @return whether the instance was taken out of rotation to be recycled
+     */
+    public boolean isRetired() {
+        return retired;
+    }
+
+    public void stop() throws OfficeException {
+        started = false;
+        officeManager.stop();
+    }
+
+    /**
+     * Swaps in a freshly built office manager, used when the previous one
+     * failed to start.
+     */
+    void replaceOfficeManager(OfficeManager officeManager) {
+        this.officeManager = officeManager;
+        restarts.incrementAndGet();
+    }
+
+    public void execute(OfficeTask task) throws OfficeException {
+        // counted in flight before the check, so that a recycle either sees
+        // the task and waits for it, or the task sees the instance retired
+        inFlight.incrementAndGet();
+
+        if (retired) {
+            inFlight.decrementAndGet();
+            throw new OfficeException("office instance on port " + port + " was retired");
+        }
+
+        long start = System.nanoTime();
+        try {
+            officeManager.execute(task);
+            completed.incrementAndGet();
+            conversions.incrementAndGet();
+            converted(System.nanoTime() - start);
+            consecutiveFailures.set(0);
+            unhealthyUntil = 0;
+        } catch (OfficeException e) {
+            failed.incrementAndGet();
+            if (consecutiveFailures.incrementAndGet() >= MAX_CONSECUTIVE_FAILURES) {
+                unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_BACKOFF_MILLIS;
+                Logger.getLogger(OfficeInstance.class.getName()).log(Level.WARNING, "office instance on port " + port + " marked unhealthy after " + consecutiveFailures.get() + " consecutive failures");
+            }
+            throw e;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private synchronized void converted(long nanos) {
+        if (baselineSamples < LATENCY_BASELINE_CONVERSIONS) {
+            baselineNanos += nanos;
+            baselineSamples++;
+            recentNanos = (double) baselineNanos / baselineSamples;
+        } else {
+            recentNanos += LATENCY_SMOOTHING * (nanos - recentNanos);
+        }
+    }
+
+    public boolean isHealthy() {
+        return started && (System.currentTimeMillis() >= unhealthyUntil);
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return how many times the office manager has been replaced
+     */
+    public long getRestarts() {
+        return restarts.get();
+    }
+
+    /**
+     * @return conversions done since the instance was last started
+     */
+    public long getConversions() {
+        return conversions.get();
+    }
+
+    /**
+     * @return recent conversion latency as a multiple of what it was over
+     *         the first conversions after start, 0 until there were enough
+     */
+    public synchronized double getLatencyDrift() {
+        if (baselineSamples < LATENCY_BASELINE_CONVERSIONS) {
+            return 0;
+        }
+        return recentNanos / ((double) baselineNanos / baselineSamples);
+    }
+
+    @Override
+    public String toString() {
+        return "OfficeInstance [" + "port=" + port + ", " + "healthy=" + isHealthy() + ", " + "inFlight=" + inFlight.get() + ", " + "completed=" + completed.get() + ", " + "failed=" + failed.get() + ", " + "restarts=" + restarts.get() + "]";
+    }
+}
@@ -0,0 +1,324 @@
+package org.mitre.honeyclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.artofsolving.jodconverter.office.DefaultOfficeManagerConfiguration;
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeManager;
+import org.artofsolving.jodconverter.office.OfficeTask;
+
+/**
+ * A pool of OpenOffice.org instances, one process per port, that hands each
+ * task to the least-loaded healthy instance.  An instance can be recycled
+ * while the pool is in use, swapped for a standby already started on a port
+ * of its own, then drained and stopped.
+ *
+ * Instances are started side by side, each on a thread of its own, and the
+ * pool can be put to use as soon as the first is up.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeInstancePool implements OfficeManager {
+
+    private final DefaultOfficeManagerConfiguration configuration;
+    // copied on write, so tasks pick instances without a lock while one is
+    // swapped in for another
+    private final List<OfficeInstance> instances = new CopyOnWriteArrayList<OfficeInstance>();
+    private final AtomicInteger nextOffset = new AtomicInteger();
+    private final AtomicLong recycles = new AtomicLong();
+    private final AtomicInteger warming = new AtomicInteger();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile OfficeInstance standby = null;
+    // guarded by the pool's lock, set while a standby is being launched
+    private boolean standbyStarting = false;
+
+    public OfficeInstancePool(DefaultOfficeManagerConfiguration configuration, int[] ports) {
+        if (ports == null || ports.length == 0) {
+            throw new IllegalArgumentException("at least one office port is required");
+        }
+
+        this.configuration = configuration;
+
+        for (int port : ports) {
+            instances.add(new OfficeInstance(port, buildOfficeManager(port)));
+        }
+    }
+
+    /**
+     * Builds an office manager bound to a single port.  The shared
+     * configuration is mutable, hence the lock.
+     */
+    protected synchronized OfficeManager buildOfficeManager(int port) {
+        configuration.setPortNumber(port);
+        return configuration.buildOfficeManager();
+    }
+
+    /**
+     * Starts every instance, rebuilding the office manager of any instance that
+     * fails to come up until it does, and returns once they all have.
+     */
+    public void start() throws OfficeException {
+        for (Thread starter : launch()) {
+            try {
+                starter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OfficeException("interrupted starting office", e);
+            }
+        }
+    }
+
+    /**
+     * Starts every instance as start does, but returns at once; awaitReady
+     * tells when the pool can take work.
+     */
+    public void startInBackground() {
+        launch();
+    }
+
+    private List<Thread> launch() {
+        List<Thread> starters = new ArrayList<Thread>();
+
+        warming.set(instances.size());
+
+        for (final OfficeInstance instance : instances) {
+            Thread starter = new Thread(new Runnable() {
+
+                public void run() {
+                    startUntilUp(instance);
+                }
+            }, "office-start-" + instance.getPort());
+            starter.setDaemon(true);
+            starter.start();
+            starters.add(starter);
+        }
+
+        return starters;
+    }
+
+    private void startUntilUp(OfficeInstance instance) {
+        boolean retry = true;
+        while (retry) {
+            try {
+                instance.start();
+                retry = false;
+                Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.INFO, "started office instance on port " + instance.getPort());
+            } catch (OfficeException e) {
+
+                // little bugger failed to start for whatever reason
+                Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.SEVERE, "office instance on port " + instance.getPort() + " failed to start", e);
+
+                instance.replaceOfficeManager(buildOfficeManager(instance.getPort()));
+            }
+        }
+
+        warming.decrementAndGet();
+        ready.countDown();
+    }
+
+    /**
+     * @return whether an instance has come up since the pool was started
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Waits for the first instance to come up.
+     */
+    public void awaitReady() throws InterruptedException {
+        ready.await();
+    }
+
+    /**
+     * @return instances not yet up since the pool was started
+     */
+    public int getWarmingCount() {
+        return warming.get();
+    }
+
+    public void stop() throws OfficeException {
+        for (OfficeInstance instance : instances) {
+            try {
+                instance.stop();
+            } catch (OfficeException e) {
+                Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.SEVERE, "office instance on port " + instance.getPort() + " failed to stop", e);
+            }
+        }
+
+        OfficeInstance idle = standby;
+        if (idle != null) {
+            try {
+                idle.stop();
+            } catch (OfficeException e) {
+                Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.SEVERE, "standby office instance on port " + idle.getPort() + " failed to stop", e);
+            }
+        }
+    }
+
+    /**
+     * Starts an instance on the given port to stand by for the next one
+     * recycled.  Only tried once, the caller tries again later when it
+     * fails.  Office is launched outside the pool's lock, so a crashed
+     * instance can be rebuilt meanwhile.
+     *
+     * @return whether the standby is up
+     */
+    public boolean startStandby(int port) {
+        synchronized (this) {
+            if (standby != null) {
+                return true;
+            }
+            if (standbyStarting) {
+                return false;
+            }
+            standbyStarting = true;
+        }
+
+        OfficeInstance instance = new OfficeInstance(port, buildOfficeManager(port));
+        boolean up = false;
+
+        try {
+            instance.start();
+            up = true;
+        } catch (OfficeException e) {
+            Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.SEVERE, "standby office instance on port " + port + " failed to start", e);
+        } finally {
+            synchronized (this) {
+                if (up) {
+                    standby = instance;
+                }
+                standbyStarting = false;
+            }
+        }
+
+        if (up) {
+            Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.INFO, "started standby office instance on port " + port);
+        }
+        return up;
+    }
+
+    /**
+     * Puts the standby in service in place of the given instance, then
+     * waits for what the old instance has in flight to finish, or for the
+     * timeout, before stopping it.  Tasks never wait for an instance to come
+     * up, the standby is running before the swap.  Only the swap holds the
+     * pool's lock, the old instance is drained and stopped outside it.
+     *
+     * @return whether there was a standby to swap in
+     */
+    public boolean recycle(OfficeInstance instance, long drainTimeoutMillis) {
+        OfficeInstance replacement;
+
+        synchronized (this) {
+            int index = instances.indexOf(instance);
+
+            if ((standby == null) || (index < 0)) {
+                return false;
+            }
+
+            replacement = standby;
+            // retired before the swap, so no task gets onto it once the
+            // drain below has started counting
+            instance.retire();
+            instances.set(index, replacement);
+            standby = null;
+        }
+
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+
+        while ((instance.getInFlight() > 0) && (System.currentTimeMillis() < deadline)) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (instance.getInFlight() > 0) {
+            Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.WARNING, "office instance on port " + instance.getPort() + " still had " + instance.getInFlight() + " tasks in flight, stopping it anyway");
+        }
+
+        try {
+            instance.stop();
+        } catch (OfficeException e) {
+            Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.SEVERE, "office instance on port " + instance.getPort() + " failed to stop", e);
+        }
+
+        recycles.incrementAndGet();
+        Logger.getLogger(OfficeInstancePool.class.getName()).log(Level.INFO, "recycled office instance on port " + instance.getPort() + " after " + instance.getConversions() + " conversions, port " + replacement.getPort() + " took over");
+        return true;
+    }
+
+    /**
+     * @return the instance standing by to replace one recycled, or null
+     */
+    public OfficeInstance getStandby() {
+        return standby;
+    }
+
+    /**
+     * @return instances recycled since start
+     */
+    public long getRecycles() {
+        return recycles.get();
+    }
+
+    public void execute(OfficeTask task) throws OfficeException {
+        selectInstance().execute(task);
+    }
+
+    /**
+     * Picks the healthy instance with the fewest tasks in flight.  Ties are
+     * broken by rotating the starting point so idle instances share the load.
+     * When no instance is healthy the least-loaded one is returned anyway, so
+     * that callers retrying a conversion also probe for recovery.
+     */
+    public OfficeInstance selectInstance() {
+        int size = instances.size();
+        int offset = (nextOffset.getAndIncrement() & Integer.MAX_VALUE) % size;
+
+        OfficeInstance best = null;
+        OfficeInstance fallback = null;
+
+        for (int i = 0; i < size; i++) {
+            OfficeInstance instance = instances.get((offset + i) % size);
+
+            if (fallback == null || instance.getInFlight() < fallback.getInFlight()) {
+                fallback = instance;
+            }
+
+            if (instance.isHealthy() && (best == null || instance.getInFlight() < best.getInFlight())) {
+                best = instance;
+            }
+        }
+
+        return (best != null) ? best : fallback;
+    }
+
+    public List<OfficeInstance> getInstances() {
+        return Collections.unmodifiableList(instances);
+    }
+
+    public int getHealthyCount() {
+        int count = 0;
+        for (OfficeInstance instance : instances) {
+            if (instance.isHealthy()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,220 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Recycles office instances before they wear out rather than after they
+ * fall over.  Office leaks memory and slows down the longer it runs, so an
+ * instance is replaced once it has done enough conversions, grown too big,
+ * or become too slow compared to when it started.  A standby instance is
+ * kept running on a spare port and put in service before the worn one is
+ * drained and stopped, its port becoming the spare for the next standby.
+ *
+ * One instance is recycled at a time, at most one per check.  Memory is
+ * read from /proc, so that trigger only works on Linux; elsewhere it never
+ * fires.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeRecycler implements OfficeRecyclerMBean {
+
+    private static final long CHECK_INTERVAL_MILLIS = 5000;
+    /** how long tasks in flight on a recycled instance are given to finish */
+    static final long DRAIN_TIMEOUT_MILLIS = 120000;
+
+    private final OfficeInstancePool pool;
+    private final long maxConversions;
+    private final long maxMemoryBytes;
+    private final double maxLatencyDrift;
+    private final ScheduledExecutorService checker;
+    private volatile int standbyPort;
+
+    /**
+     * @param standbyPort the port the first standby listens on
+     * @param maxConversions conversions after which an instance is recycled,
+     *        0 for no limit
+     * @param maxMemoryBytes resident memory above which an instance is
+     *        recycled, 0 for no limit
+     * @param maxLatencyDrift how many times slower than it started out an
+     *        instance may get before it is recycled, 0 for no limit
+     */
+    public OfficeRecycler(OfficeInstancePool pool, int standbyPort, long maxConversions, long maxMemoryBytes, double maxLatencyDrift) {
+        this.pool = pool;
+        this.standbyPort = standbyPort;
+        this.maxConversions = maxConversions;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxLatencyDrift = maxLatencyDrift;
+
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "office-recycler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() {
+        checker.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    Logger.getLogger(OfficeRecycler.class.getName()).log(Level.SEVERE, "office recycling check failed", e);
+                }
+            }
+        }, 0, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        if ((pool.getStandby() == null) && !pool.startStandby(standbyPort)) {
+            return;
+        }
+
+        for (OfficeInstance instance : pool.getInstances()) {
+            String reason = wornOut(instance);
+
+            if (reason != null) {
+                Logger.getLogger(OfficeRecycler.class.getName()).log(Level.INFO, "recycling office instance on port " + instance.getPort() + ", " + reason);
+
+                if (pool.recycle(instance, DRAIN_TIMEOUT_MILLIS)) {
+                    standbyPort = instance.getPort();
+                    pool.startStandby(standbyPort);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return why the instance should be recycled, or null when it needn't
+     */
+    private String wornOut(OfficeInstance instance) {
+        if ((maxConversions > 0) && (instance.getConversions() >= maxConversions)) {
+            return instance.getConversions() + " conversions done";
+        }
+
+        if (maxLatencyDrift > 0) {
+            double drift = instance.getLatencyDrift();
+
+            if (drift >= maxLatencyDrift) {
+                return "converting " + String.format("%.1f", drift) + " times slower than when started";
+            }
+        }
+
+        if (maxMemoryBytes > 0) {
+            long memory = residentBytes(instance.getPort());
+
+            if (memory >= maxMemoryBytes) {
+                return memory + " bytes resident";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the office process accepting on the port by its command line
+     * and reads how much memory it has resident.
+     *
+     * @return the resident bytes, or -1 when the process could not be found
+     */
+    static long residentBytes(int port) {
+        File[] processes = new File("/proc").listFiles();
+
+        if (processes == null) {
+            return -1;
+        }
+
+        String accept = "port=" + port + ";";
+
+        for (File process : processes) {
+            if (!process.getName().matches("[0-9]+")) {
+                continue;
+            }
+
+            String commandLine;
+
+            try {
+                InputStream in = new FileInputStream(new File(process, "cmdline"));
+                try {
+                    commandLine = IOUtils.toString(in, "ISO-8859-1");
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // gone already, or not ours to read
+                continue;
+            }
+
+            if (commandLine.contains("soffice") && commandLine.contains(accept)) {
+                return residentBytes(new File(process, "status"));
+            }
+        }
+
+        return -1;
+    }
+
+    private static long residentBytes(File status) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        // VmRSS:    123456 kB
+                        String[] fields = line.trim().split("\\s+");
+                        return Long.parseLong(fields[1]) * 1024;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        return -1;
+    }
+
+    public long getRecycles() {
+        return pool.getRecycles();
+    }
+
+    public int getStandbyPort() {
+        OfficeInstance standby = pool.getStandby();
+        return (standby == null) ? -1 : standby.getPort();
+    }
+
+    public long getMaxConversions() {
+        return maxConversions;
+    }
+
+    public long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public double getMaxLatencyDrift() {
+        return maxLatencyDrift;
+    }
+}
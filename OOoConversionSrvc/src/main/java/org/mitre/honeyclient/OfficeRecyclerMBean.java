@@ -0,0 +1,23 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the office recycler.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface OfficeRecyclerMBean {
+
+    /** instances recycled since start */
+    long getRecycles();
+
+    /** the port of the standby instance, -1 while there is none */
+    int getStandbyPort();
+
+    long getMaxConversions();
+
+    long getMaxMemoryBytes();
+
+    double getMaxLatencyDrift();
+}
@@ -0,0 +1,138 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A response waiting to go out on a connection: a small head held in memory,
+ * optionally followed by files sent one after another with
+ * FileChannel.transferTo, so documents never pass through the heap.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class OutgoingResponse {
+
+    private final ByteBuffer head;
+    private final List<File> bodies;
+    private final boolean closeAfter;
+    private final List<File> cleanup = new ArrayList<File>();
+
+    private int bodyIndex = 0;
+    private FileChannel bodyChannel;
+    private long bodyPosition = 0;
+    private long bodyLength = 0;
+    private long written = 0;
+
+    /**
+     * A response with no body.
+     *
+     * @param head bytes to send, may be null
+     * @param closeAfter whether the connection is closed once this is sent
+     */
+    public OutgoingResponse(byte[] head, boolean closeAfter) {
+        this(head, Collections.<File>emptyList(), closeAfter);
+    }
+
+    /**
+     * @param head bytes sent first, may be null
+     * @param body file sent after the head, may be null
+     * @param closeAfter whether the connection is closed once this is sent
+     */
+    public OutgoingResponse(byte[] head, File body, boolean closeAfter) {
+        this(head, (body == null) ? Collections.<File>emptyList() : Collections.singletonList(body), closeAfter);
+    }
+
+    /**
+     * @param bodies files sent in order after the head
+     */
+    public OutgoingResponse(byte[] head, List<File> bodies, boolean closeAfter) {
+        this.head = (head == null) ? ByteBuffer.allocate(0) : ByteBuffer.wrap(head);
+        this.bodies = bodies;
+        this.closeAfter = closeAfter;
+    }
+
+    /**
+     * Marks a file to be deleted once the response has been sent or
+     * abandoned.
+     */
+    public OutgoingResponse deleteAfter(File file) {
+        if (file != null) {
+            cleanup.add(file);
+        }
+        return this;
+    }
+
+    public boolean isCloseAfter() {
+        return closeAfter;
+    }
+
+    /**
+     * Writes as much as the channel will take.
+     *
+     * @return true once everything has been written
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (head.hasRemaining()) {
+            int headWritten = channel.write(head);
+            if (headWritten == 0) {
+                return false;
+            }
+            written += headWritten;
+        }
+
+        while (bodyIndex < bodies.size()) {
+            if (bodyChannel == null) {
+                bodyChannel = new FileInputStream(bodies.get(bodyIndex)).getChannel();
+                bodyPosition = 0;
+                bodyLength = bodyChannel.size();
+            }
+
+            while (bodyPosition < bodyLength) {
+                long transferred = bodyChannel.transferTo(bodyPosition, bodyLength - bodyPosition, channel);
+                if (transferred == 0) {
+                    return false;
+                }
+                bodyPosition += transferred;
+                written += transferred;
+            }
+
+            bodyChannel.close();
+            bodyChannel = null;
+            bodyIndex++;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the bytes written so far
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    public void release() {
+        if (bodyChannel != null) {
+            try {
+                bodyChannel.close();
+            } catch (IOException e) {
+                //swallow
+            }
+            bodyChannel = null;
+        }
+
+        for (File file : cleanup) {
+            file.delete();
+        }
+        cleanup.clear();
+    }
+}
@@ -1,5 +1,9 @@
 package org.mitre.honeyclient;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * A POJO used for JSON-based request
  *
@@ -10,9 +14,89 @@ package org.mitre.honeyclient;
  */
 public class Request {
 
+    /** convert the document and return the output, the default */
+    public static final String MODE_CONVERT = "convert";
+
+    /** convert the document and return only the URLs it links to */
+    public static final String MODE_EXTRACT_URLS = "extractUrls";
+
+    /** return the server's statistics, no document needed */
+    public static final String MODE_STATS = "stats";
+
+    /** return whether office is up to convert, no document needed */
+    public static final String MODE_HEALTH = "health";
+
+    /** convert in the background, answering at once with a job ID */
+    public static final String MODE_SUBMIT = "submit";
+
+    /** return the state of the job named by jobId */
+    public static final String MODE_POLL = "poll";
+
+    /** as fetch once the job is done, or as poll if it isn't within timeout */
+    public static final String MODE_WAIT = "wait";
+
+    /** return the result of the job named by jobId, output included */
+    public static final String MODE_FETCH = "fetch";
+
+    /** converted ahead of everything else waiting */
+    public static final String PRIORITY_HIGH = "high";
+
+    /** the default */
+    public static final String PRIORITY_NORMAL = "normal";
+
+    /** converted once nothing more urgent is waiting, for bulk work */
+    public static final String PRIORITY_LOW = "low";
+
+    /** the load property holding a document's password, never logged or journaled */
+    public static final String PASSWORD_PROPERTY = "Password";
+
+    String id;
+    String mode;
+    List<String> urlSchemes;
     String outputFilename;
+    List<String> outputFilenames;
     String inputFilename;
     String inputBase64FileContents;
+    List<Request> items;
+    Long length;
+    String priority;
+    Long deadline;
+    String jobId;
+    Long timeout;
+    Boolean expand;
+    String outputFormat;
+    String preset;
+    Long pageLimit;
+    Map<String, Object> loadProperties;
+    Map<String, Object> storeProperties;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * The schemes of the URLs to return in extractUrls mode, for example
+     * "http" and "mailto", or null for all.
+     */
+    public List<String> getUrlSchemes() {
+        return urlSchemes;
+    }
+
+    public void setUrlSchemes(List<String> urlSchemes) {
+        this.urlSchemes = urlSchemes;
+    }
 
     public String getInputBase64FileContents() {
         return inputBase64FileContents;
@@ -38,8 +122,193 @@ public class Request {
         this.outputFilename = outputFilename;
     }
 
+    /**
+     * Several outputs, each in the format of its extension, to be made from
+     * one load of the document; used in place of outputFilename.
+     */
+    public List<String> getOutputFilenames() {
+        return outputFilenames;
+    }
+
+    public void setOutputFilenames(List<String> outputFilenames) {
+        this.outputFilenames = outputFilenames;
+    }
+
+    /**
+     * The documents of a batch request, each converted on its own, or null
+     * for a single document request.
+     */
+    public List<Request> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Request> items) {
+        this.items = items;
+    }
+
+    /**
+     * The length of this item's document within the v2 frame body, items
+     * follow one another in order.  Null or 0 for an item naming files on
+     * the local disk.
+     */
+    public Long getLength() {
+        return length;
+    }
+
+    public void setLength(Long length) {
+        this.length = length;
+    }
+
+    /**
+     * How urgent the conversion is, high, normal or low, or null for
+     * normal.  A batch's priority applies to items without their own.
+     */
+    public String getPriority() {
+        return priority;
+    }
+
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * When, in milliseconds since the epoch by the server's clock, the
+     * conversion is no longer wanted, or null for never.  A document still
+     * waiting for office by then is failed without being converted.  A
+     * batch's deadline applies to items without their own.
+     */
+    public Long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(Long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * The job to poll, wait for or fetch, as answered to its submit.
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * How many milliseconds to wait for a job to finish, in wait mode.
+     */
+    public Long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Whether the document is a zip, tar, gzip or bzip2 archive, each
+     * document within which is converted, or has its URLs extracted, as the
+     * request asks in place of the archive itself.  Each member is converted
+     * to the format of outputFilename's extension.
+     */
+    public Boolean getExpand() {
+        return expand;
+    }
+
+    public void setExpand(Boolean expand) {
+        this.expand = expand;
+    }
+
+    /**
+     * The extension of the format to convert to, for example "pdf" or
+     * "txt", over that of outputFilename, which then only names the output.
+     * Without an outputFilename the output is named for the input.  A
+     * batch's outputFormat applies to items without their own.
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+
+    /**
+     * The name of a server preset, the output format, properties and page
+     * limit of which apply where the request doesn't give its own, for
+     * example "text" for the cheapest plain text export.  A batch's preset
+     * applies to items without their own.
+     */
+    public String getPreset() {
+        return preset;
+    }
+
+    public void setPreset(String preset) {
+        this.preset = preset;
+    }
+
+    /**
+     * The most pages to export, from the first, or null for all.  Only
+     * export filters with a page range, PDF's, honour it.
+     */
+    public Long getPageLimit() {
+        return pageLimit;
+    }
+
+    public void setPageLimit(Long pageLimit) {
+        this.pageLimit = pageLimit;
+    }
+
+    /**
+     * Office load properties, such as FilterName, FilterOptions or
+     * Password, over the server's own.  Only those a request may set are
+     * accepted.
+     */
+    public Map<String, Object> getLoadProperties() {
+        return loadProperties;
+    }
+
+    public void setLoadProperties(Map<String, Object> loadProperties) {
+        this.loadProperties = loadProperties;
+    }
+
+    /**
+     * Office store properties, such as FilterName, FilterOptions or
+     * FilterData, over those of the output format.  Only those a request
+     * may set are accepted.
+     */
+    public Map<String, Object> getStoreProperties() {
+        return storeProperties;
+    }
+
+    public void setStoreProperties(Map<String, Object> storeProperties) {
+        this.storeProperties = storeProperties;
+    }
+
+    /**
+     * Properties fit to log, a password replaced.
+     */
+    static Map<String, Object> redact(Map<String, Object> properties) {
+        if (!properties.containsKey(PASSWORD_PROPERTY)) {
+            return properties;
+        }
+
+        Map<String, Object> redacted = new LinkedHashMap<String, Object>(properties);
+        redacted.put(PASSWORD_PROPERTY, "<redacted>");
+        return redacted;
+    }
+
+    /**
+     * A payload as its length, it can run to megabytes.
+     */
+    static String summarize(String contents) {
+        return (contents == null) ? "null" : "<" + contents.length() + " chars>";
+    }
+
     @Override
     public String toString() {
-        return "Request [" + "inputBase64FileContents=" + (inputBase64FileContents == null ? "null" : "\"" + inputBase64FileContents + "\"") + ", " + "inputFilename=" + (inputFilename == null ? "null" : "\"" + inputFilename + "\"") + ", " + "outputFilename=" + (outputFilename == null ? "null" : "\"" + outputFilename + "\"") + "]";
+        return "Request [" + "id=" + (id == null ? "null" : "\"" + id + "\"") + ", " + (mode == null ? "" : "mode=\"" + mode + "\", ") + "inputBase64FileContents=" + summarize(inputBase64FileContents) + ", " + "inputFilename=" + (inputFilename == null ? "null" : "\"" + inputFilename + "\"") + ", " + "outputFilename=" + (outputFilename == null ? "null" : "\"" + outputFilename + "\"") + (outputFilenames == null ? "" : ", outputFilenames=" + outputFilenames) + (priority == null ? "" : ", priority=\"" + priority + "\"") + (deadline == null ? "" : ", deadline=" + deadline) + (jobId == null ? "" : ", jobId=\"" + jobId + "\"") + (expand == null ? "" : ", expand=" + expand) + (outputFormat == null ? "" : ", outputFormat=\"" + outputFormat + "\"") + (preset == null ? "" : ", preset=\"" + preset + "\"") + (pageLimit == null ? "" : ", pageLimit=" + pageLimit) + (loadProperties == null ? "" : ", loadProperties=" + redact(loadProperties)) + (storeProperties == null ? "" : ", storeProperties=" + storeProperties) + (items == null ? "" : ", items=" + items) + "]";
     }
 }
@@ -0,0 +1,1202 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * The conversion stage.  Runs on a worker thread once the front end has
+ * read a complete request, and never touches the client's socket; what it
+ * produces is handed back to the front end to send.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class RequestHandler {
+
+    /** the most documents one batch request may carry */
+    static final int MAX_BATCH_ITEMS = 64;
+
+    /** the most output formats one document may be converted to at once */
+    static final int MAX_OUTPUT_FORMATS = 8;
+
+    /** the longest a wait request may hold a worker */
+    static final long MAX_WAIT_MILLIS = 5 * 60 * 1000;
+
+    static final String MSG_JOB_RETURNED = "Success; output returned with the job";
+
+    private final OOoConversionServer server;
+
+    public RequestHandler(OOoConversionServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Handles the original protocol, a single JSON request carrying the
+     * document in Base64 format, or a batch of them.  The Base64 is decoded
+     * into input files and the response, output encoded, is written to a
+     * file for the front end to send.
+     *
+     * @param requestFile the raw JSON request as read off the wire
+     */
+    public OutgoingResponse handleLegacy(File requestFile) throws IOException {
+
+        long start = System.nanoTime();
+        long decoded = 0;
+        List<Item> items = new ArrayList<Item>();
+        Response response = null;
+        Request request = null;
+        InputStream in = new BufferedInputStream(new FileInputStream(requestFile));
+        LegacyRequestReader reader = new LegacyRequestReader(in, server.getFileSizeMax(), server.getBatchSizeMax(), server.getScratch());
+
+        try {
+
+            request = reader.read();
+
+            if (Request.MODE_STATS.equals(request.getMode())) {
+                reader.release();
+                return new OutgoingResponse(legacyResponse(statsResponse(request)), true);
+            }
+
+            if (Request.MODE_HEALTH.equals(request.getMode())) {
+                reader.release();
+                return new OutgoingResponse(legacyResponse(healthResponse(request)), true);
+            }
+
+            if (isJobQuery(request)) {
+                reader.release();
+                Map<Response, File> returned = new IdentityHashMap<Response, File>();
+                response = jobResponse(request, returned);
+                long answered = System.nanoTime();
+                OutgoingResponse outgoing = legacyOutgoing(response, returned);
+                AccessLog.log(AccessLog.PROTOCOL_LEGACY, request, response, requestFile.length(), returned, start, start, answered, System.nanoTime());
+                return outgoing;
+            }
+
+            Logger logger = Logger.getLogger(RequestHandler.class.getName());
+            if (logger.isLoggable(Level.FINEST)) {
+                logger.log(Level.FINEST, Thread.currentThread().getName() + " request : " + request);
+            }
+
+            for (Request itemRequest : (request.getItems() != null) ? request.getItems() : Collections.singletonList(request)) {
+                Item item = new Item(itemRequest);
+                items.add(item);
+
+                item.error = reader.getError(itemRequest);
+
+                File spoolFile = reader.getSpoolFile(itemRequest);
+
+                if ((item.error == null) && (spoolFile != null)) {
+                    // give the spooled upload the extension office keys off
+                    item.inputFile = server.getScratch().createFile(itemRequest.getInputFilename());
+                    item.spooled = true;
+
+                    if (!spoolFile.renameTo(item.inputFile)) {
+                        item.error = "Fail; could not stage the input file.";
+                    }
+                }
+            }
+
+            server.getStats().record(ServerStats.STAGE_DECODE, start);
+            decoded = System.nanoTime();
+
+            if (Request.MODE_SUBMIT.equals(request.getMode())) {
+                response = submit(request, items);
+            } else if (!server.getDocumentConverter().getOfficePool().isReady()) {
+                response = new Response(Response.MSG_STARTING, null, null);
+            } else {
+                response = convert(request, items, "Success; output returned in Base64 format");
+            }
+
+        } catch (RuntimeException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        } catch (IOException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        } finally {
+            in.close();
+        }
+
+        if (request != null) {
+            response.setId(request.getId());
+        }
+
+        OutgoingResponse outgoing;
+
+        try {
+            long encodeStart = System.nanoTime();
+            Map<Response, File> returned = returnedFiles(items);
+            outgoing = legacyOutgoing(response, returned);
+            server.getStats().record(ServerStats.STAGE_ENCODE, encodeStart);
+            server.getStats().record(ServerStats.STAGE_TOTAL, start);
+            AccessLog.log(AccessLog.PROTOCOL_LEGACY, request, response, requestFile.length(), returned, start, (decoded == 0) ? encodeStart : decoded, encodeStart, System.nanoTime());
+        } finally {
+            reader.release();
+
+            for (Item item : items) {
+                item.release();
+            }
+        }
+
+        return outgoing;
+    }
+
+    /**
+     * A legacy response written out to a file, outputs encoded, for the
+     * front end to send and then delete.
+     */
+    private OutgoingResponse legacyOutgoing(Response response, Map<Response, File> returned) throws IOException {
+        File responseFile = server.getScratch().createFile("response.json");
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(responseFile));
+        try {
+            LegacyResponseWriter.write(server.getMapper().getJsonFactory(), out, response, returned);
+        } finally {
+            out.close();
+        }
+
+        return new OutgoingResponse(null, responseFile, true).deleteAfter(responseFile);
+    }
+
+    /**
+     * Handles one v2 request frame.  A batch frame's body holds its items'
+     * documents one after another, each item giving its length, and the
+     * response body holds the outputs the same way, as does that of a
+     * request for several output formats.
+     *
+     * @param bodyFile the document as read from the frame body, or null when
+     *        the request names files on the local disk
+     */
+    public OutgoingResponse handleFrame(Request request, File bodyFile) throws IOException {
+
+        long start = System.nanoTime();
+        long decoded = start;
+        long bytesIn = (bodyFile == null) ? 0 : bodyFile.length();
+        List<Item> items = new ArrayList<Item>();
+        Response response = null;
+
+        if (isJobQuery(request)) {
+            if (bodyFile != null) {
+                bodyFile.delete();
+            }
+            Map<Response, File> returned = new IdentityHashMap<Response, File>();
+            response = jobResponse(request, returned);
+            long answered = System.nanoTime();
+            OutgoingResponse outgoing = frameOutgoing(response, returned);
+            AccessLog.log(AccessLog.PROTOCOL_FRAME, request, response, bytesIn, returned, start, start, answered, System.nanoTime());
+            return outgoing;
+        }
+
+        try {
+
+            if (request.getItems() != null) {
+                splitFrameBody(request, bodyFile, items);
+                server.getStats().record(ServerStats.STAGE_DECODE, start);
+                decoded = System.nanoTime();
+            } else {
+                Item item = new Item(request);
+                items.add(item);
+
+                item.inputFile = bodyFile;
+                item.spooled = (bodyFile != null);
+            }
+
+            if (Request.MODE_SUBMIT.equals(request.getMode())) {
+                response = submit(request, items);
+            } else if (!server.getDocumentConverter().getOfficePool().isReady()) {
+                response = new Response(Response.MSG_STARTING, null, null);
+            } else {
+                response = convert(request, items, "Success; output returned in the frame body");
+            }
+
+        } catch (RuntimeException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        } catch (IOException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        }
+
+        response.setId(request.getId());
+
+        long encodeStart = System.nanoTime();
+        Map<Response, File> returned = returnedFiles(items);
+        OutgoingResponse outgoing = frameOutgoing(response, returned);
+        server.getStats().record(ServerStats.STAGE_ENCODE, encodeStart);
+        server.getStats().record(ServerStats.STAGE_TOTAL, start);
+        AccessLog.log(AccessLog.PROTOCOL_FRAME, request, response, bytesIn, returned, start, decoded, encodeStart, System.nanoTime());
+
+        // a submitted document's body is its job's input, only a batch's
+        // body, already cut into items, is done with
+        if ((response.getJobId() == null) || (request.getItems() != null)) {
+            outgoing.deleteAfter(bodyFile);
+        }
+
+        for (Item item : items) {
+            if (item.spooled) {
+                outgoing.deleteAfter(item.inputFile);
+                for (File outputFile : item.outputFiles) {
+                    outgoing.deleteAfter(outputFile);
+                }
+            }
+
+            for (File memberFile : item.memberFiles) {
+                outgoing.deleteAfter(memberFile);
+            }
+        }
+
+        return outgoing;
+    }
+
+    /**
+     * A response frame, its body the outputs that go back with the response
+     * or its items.
+     */
+    private OutgoingResponse frameOutgoing(Response response, Map<Response, File> returned) throws IOException {
+        List<File> bodies = new ArrayList<File>();
+
+        if (response.getItems() != null) {
+            collectBodies(response, returned, bodies);
+        } else if (returned.get(response) != null) {
+            bodies.add(returned.get(response));
+        }
+
+        long bodyLength = 0;
+        for (File body : bodies) {
+            bodyLength += body.length();
+        }
+
+        return new OutgoingResponse(frameHead(response, bodyLength), bodies, false);
+    }
+
+    /**
+     * Gives every leaf of a response with items its output's length, and
+     * lists the outputs in the same, depth first, order.
+     */
+    private static void collectBodies(Response response, Map<Response, File> returned, List<File> bodies) {
+        for (Response item : response.getItems()) {
+            if (item.getItems() != null) {
+                collectBodies(item, returned, bodies);
+            } else {
+                File body = returned.get(item);
+
+                item.setLength((body == null) ? 0L : body.length());
+                if (body != null) {
+                    bodies.add(body);
+                }
+            }
+        }
+    }
+
+    private static Map<Response, File> returnedFiles(List<Item> items) {
+        Map<Response, File> returned = new IdentityHashMap<Response, File>();
+        for (Item item : items) {
+            returned.putAll(item.returned);
+        }
+        return returned;
+    }
+
+    /**
+     * Cuts a batch frame's body into one input file per item.
+     */
+    private void splitFrameBody(Request request, File bodyFile, List<Item> items) throws IOException {
+
+        if (request.getItems().size() > MAX_BATCH_ITEMS) {
+            throw new RuntimeException("Fail; more than " + MAX_BATCH_ITEMS + " documents in the batch.");
+        }
+
+        long total = 0;
+        for (Request itemRequest : request.getItems()) {
+            long length = (itemRequest.getLength() == null) ? 0 : itemRequest.getLength();
+            if (length < 0) {
+                throw new RuntimeException("Fail; malformed request header.");
+            }
+            total += length;
+        }
+
+        if (total != ((bodyFile == null) ? 0 : bodyFile.length())) {
+            throw new RuntimeException("Fail; item lengths do not add up to the frame body.");
+        }
+
+        if (bodyFile == null) {
+            for (Request itemRequest : request.getItems()) {
+                items.add(new Item(itemRequest));
+            }
+            return;
+        }
+
+        FileChannel body = new FileInputStream(bodyFile).getChannel();
+
+        try {
+            long position = 0;
+
+            for (Request itemRequest : request.getItems()) {
+                Item item = new Item(itemRequest);
+                items.add(item);
+
+                long length = (itemRequest.getLength() == null) ? 0 : itemRequest.getLength();
+
+                if (length > server.getFileSizeMax()) {
+                    item.error = LegacyRequestReader.MSG_TOO_BIG;
+                } else if (length > 0) {
+                    item.inputFile = server.getScratch().createFile(itemRequest.getInputFilename());
+                    item.spooled = true;
+
+                    FileChannel out = new FileOutputStream(item.inputFile).getChannel();
+                    try {
+                        long copied = 0;
+                        while (copied < length) {
+                            copied += body.transferTo(position + copied, length - copied, out);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                }
+
+                position += length;
+            }
+        } finally {
+            body.close();
+            bodyFile.delete();
+        }
+    }
+
+    /**
+     * Converts the items of a request and builds its response, a batch
+     * response when the request is a batch.
+     *
+     * @param returnedMsg the message for a document returned to the client
+     */
+    private Response convert(Request request, List<Item> items, String returnedMsg) {
+
+        if (request.getItems() == null) {
+            convertItem(items.get(0), null, returnedMsg);
+            return items.get(0).response;
+        }
+
+        if (items.isEmpty()) {
+            throw new RuntimeException("Fail; no documents in the batch.");
+        }
+
+        convertItems(items, request, returnedMsg);
+
+        List<Response> responses = new ArrayList<Response>();
+        int converted = 0;
+
+        for (Item item : items) {
+            responses.add(item.response);
+            if (item.converted) {
+                converted++;
+            }
+        }
+
+        Response response = new Response("Success; " + converted + " of " + items.size() + " documents converted", null, null);
+        response.setItems(responses);
+
+        return response;
+    }
+
+    /**
+     * Converts the documents of a batch side by side on the batch executor,
+     * one per office instance, and waits for them all.  The executor takes
+     * what waits for it in the scheduler's order, so a bulk batch queued
+     * first doesn't hold up an urgent one.
+     */
+    private void convertItems(List<Item> items, final Request batch, final String returnedMsg) {
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (final Item item : items) {
+            ConversionOptions options;
+            try {
+                options = ConversionOptions.of(item.request, batch, server.getConversionPresets());
+            } catch (RuntimeException e) {
+                // the item fails on its own once it runs
+                options = ConversionOptions.DEFAULT;
+            }
+
+            BatchTask task = new BatchTask(new Runnable() {
+
+                public void run() {
+                    convertItem(item, batch, returnedMsg);
+                }
+            }, options);
+
+            server.getBatchExecutor().execute(task);
+            futures.add(task);
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            Item item = items.get(i);
+
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.getCause().toString());
+                item.fail("Fail; " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                for (int j = i; j < futures.size(); j++) {
+                    futures.get(j).cancel(true);
+                    if (items.get(j).response == null) {
+                        items.get(j).fail("Fail; interrupted.");
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles one document, in whichever mode it asks for, never throwing;
+     * the outcome is left in the item's response.
+     *
+     * @param batch the batch the item belongs to, or null
+     */
+    private void convertItem(Item item, Request batch, String returnedMsg) {
+
+        Request request = item.request;
+        Response response;
+
+        try {
+
+            if (item.error != null) {
+                throw new RuntimeException(item.error);
+            }
+
+            item.options = ConversionOptions.of(request, batch, server.getConversionPresets());
+
+            if (Boolean.TRUE.equals(request.getExpand())) {
+                response = expand(item, batch, returnedMsg);
+            } else if (Request.MODE_EXTRACT_URLS.equals(request.getMode())) {
+                response = extractUrls(item);
+            } else if ((request.getMode() == null) || Request.MODE_CONVERT.equals(request.getMode()) || Request.MODE_SUBMIT.equals(request.getMode())) {
+                response = convertFormats(item, returnedMsg);
+            } else {
+                throw new RuntimeException("Fail; unknown mode " + request.getMode() + ".");
+            }
+
+        } catch (RuntimeException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        } catch (IOException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Response("Fail; interrupted.", null, null);
+        }
+
+        response.setId(request.getId());
+        item.response = response;
+    }
+
+    /**
+     * Converts a document to one format or several.
+     */
+    private Response convertFormats(Item item, String returnedMsg) throws IOException, InterruptedException {
+
+        Request request = item.request;
+        boolean multiFormat = (request.getOutputFilenames() != null);
+        String outputFilename = outputFilename(item);
+        List<String> outputFilenames = multiFormat ? request.getOutputFilenames() : Collections.singletonList(outputFilename);
+        Response response;
+
+        if (outputFilenames.isEmpty() || (outputFilenames.size() > MAX_OUTPUT_FORMATS)) {
+            throw new RuntimeException("Fail; between 1 and " + MAX_OUTPUT_FORMATS + " output filenames are required.");
+        }
+
+        if (multiFormat) {
+            if (request.getOutputFormat() != null) {
+                throw new RuntimeException("Fail; outputFormat can't be given with outputFilenames, their extensions are the formats.");
+            }
+
+            // a preset's format gives way to the extensions
+            item.options = item.options.withOutputFormat(null);
+        } else if ((item.options.getOutputFormat() != null) && !InsistOfficeDocumentConverter.URL_LIST_EXTENSION.equals(item.options.getOutputFormat())
+                && (server.getDocumentConverter().getFormatRegistry().getFormatByExtension(item.options.getOutputFormat()) == null)) {
+            throw new RuntimeException("Fail; unknown output format " + item.options.getOutputFormat() + ".");
+        }
+
+        if (item.spooled) {
+
+            for (String name : outputFilenames) {
+                // only the name is wanted, an output that office never
+                // writes has to be seen to be missing
+                File outputFile = server.getScratch().createFile(name);
+                outputFile.delete();
+                item.outputFiles.add(outputFile);
+            }
+
+        } else if ((request.getInputFilename() != null) && !outputFilenames.contains(null) && (new File(request.getInputFilename()).exists())) {
+
+            item.inputFile = new File(request.getInputFilename());
+            for (String name : outputFilenames) {
+                item.outputFiles.add(new File(name));
+            }
+
+        } else {
+            throw new RuntimeException("No document contents, nor path provided with input filename.");
+        }
+
+        String successMsg = item.spooled ? returnedMsg : "Success; output can found in the output file";
+
+        if (!multiFormat) {
+            convert(item.inputFile, item.outputFiles.get(0), item.options);
+            item.converted = true;
+
+            response = new Response(successMsg, outputFilename, null);
+            if (item.spooled) {
+                item.returned.put(response, item.outputFiles.get(0));
+            }
+
+        } else {
+            convert(item.inputFile, item.outputFiles, item.options);
+
+            List<Response> outputs = new ArrayList<Response>();
+            int converted = 0;
+
+            for (int i = 0; i < outputFilenames.size(); i++) {
+                File outputFile = item.outputFiles.get(i);
+
+                if (outputFile.exists()) {
+                    Response output = new Response(successMsg, outputFilenames.get(i), null);
+                    if (item.spooled) {
+                        item.returned.put(output, outputFile);
+                    }
+                    outputs.add(output);
+                    converted++;
+                } else {
+                    outputs.add(new Response("The file could not be converted.", null, null));
+                }
+            }
+
+            if (converted == 0) {
+                throw new RuntimeException("The file could not be converted.");
+            }
+
+            item.converted = true;
+
+            response = new Response("Success; " + converted + " of " + outputFilenames.size() + " formats converted", null, null);
+            response.setItems(outputs);
+        }
+
+        return response;
+    }
+
+    /**
+     * The name of a single output: the one asked for, or, when only an
+     * output format is, the input's name with the format's extension.
+     */
+    private static String outputFilename(Item item) {
+        Request request = item.request;
+        String format = item.options.getOutputFormat();
+
+        if ((request.getOutputFilename() != null) || (request.getOutputFilenames() != null) || (format == null)) {
+            return request.getOutputFilename();
+        }
+
+        String inputFilename = (request.getInputFilename() != null) ? request.getInputFilename() : "document";
+        return FilenameUtils.removeExtension(inputFilename) + "." + format;
+    }
+
+    /**
+     * Converts a document only to find the URLs it links to, so the output
+     * itself never leaves the server.
+     */
+    private Response extractUrls(Item item) throws IOException, InterruptedException {
+
+        Request request = item.request;
+
+        if (!item.spooled) {
+            if ((request.getInputFilename() != null) && (new File(request.getInputFilename()).exists())) {
+                item.inputFile = new File(request.getInputFilename());
+            } else {
+                throw new RuntimeException("No document contents, nor path provided with input filename.");
+            }
+        }
+
+        File urlsFile = server.getScratch().createFile("urls." + InsistOfficeDocumentConverter.URL_LIST_EXTENSION);
+        urlsFile.delete();
+
+        List<String> urls;
+
+        try {
+            convert(item.inputFile, urlsFile, item.options.withOutputFormat(InsistOfficeDocumentConverter.URL_LIST_EXTENSION));
+            // commons-io predates generics
+            @SuppressWarnings("unchecked")
+            List<String> lines = FileUtils.readLines(urlsFile, "UTF-8");
+            urls = lines;
+        } finally {
+            urlsFile.delete();
+        }
+
+        UrlScanner.retainSchemes(urls, request.getUrlSchemes());
+        item.converted = true;
+
+        Response response = new Response("Success; " + urls.size() + " URLs extracted", null, null);
+        response.setUrls(urls);
+
+        return response;
+    }
+
+    /**
+     * Expands an archive and handles each document in it as the request
+     * asks, side by side as a batch's documents are, answering with a
+     * response per member, its path within the archive for its ID.  URLs
+     * extracted are also gathered into one list.
+     */
+    private Response expand(Item item, Request batch, String returnedMsg) throws IOException {
+
+        Request request = item.request;
+        ArchiveExpander expander = server.getArchiveExpander();
+        boolean extractUrls = Request.MODE_EXTRACT_URLS.equals(request.getMode());
+
+        if (expander == null) {
+            throw new RuntimeException("Fail; archive expansion is disabled.");
+        }
+
+        // its members would wait on the threads the batch holds
+        if (batch != null) {
+            throw new RuntimeException("Fail; an archive is expanded only in a request of its own.");
+        }
+
+        String memberFormat = (item.options.getOutputFormat() != null) ? item.options.getOutputFormat() : FilenameUtils.getExtension(request.getOutputFilename());
+
+        if (!extractUrls && ((memberFormat == null) || (memberFormat.length() == 0))) {
+            throw new RuntimeException("Fail; an output format, or an output filename the extension of which is one, is required for the members.");
+        }
+
+        if (!item.spooled) {
+            if ((request.getInputFilename() != null) && (new File(request.getInputFilename()).exists())) {
+                item.inputFile = new File(request.getInputFilename());
+            } else {
+                throw new RuntimeException("No document contents, nor path provided with input filename.");
+            }
+        }
+
+        String archiveName = (request.getInputFilename() != null) ? request.getInputFilename() : item.inputFile.getName();
+        List<Item> members = new ArrayList<Item>();
+
+        for (ArchiveExpander.Member member : expander.expand(item.inputFile, archiveName)) {
+            Request memberRequest = new Request();
+            memberRequest.setId(member.getPath());
+            memberRequest.setInputFilename(member.getPath());
+
+            if (extractUrls) {
+                memberRequest.setMode(Request.MODE_EXTRACT_URLS);
+                memberRequest.setUrlSchemes(request.getUrlSchemes());
+            } else {
+                memberRequest.setOutputFilename(FilenameUtils.removeExtension(member.getPath()) + "." + memberFormat);
+            }
+
+            Item memberItem = new Item(memberRequest);
+            memberItem.inputFile = member.getFile();
+            memberItem.spooled = true;
+            members.add(memberItem);
+        }
+
+        try {
+            // the archive stands in for the batch, its priority and deadline
+            // are its members'
+            convertItems(members, request, returnedMsg);
+        } finally {
+            for (Item member : members) {
+                member.inputFile.delete();
+                item.memberFiles.addAll(member.outputFiles);
+                item.returned.putAll(member.returned);
+            }
+        }
+
+        List<Response> responses = new ArrayList<Response>();
+        Set<String> urls = new LinkedHashSet<String>();
+        int converted = 0;
+
+        for (Item member : members) {
+            responses.add(member.response);
+
+            if (member.converted) {
+                converted++;
+
+                if (member.response.getUrls() != null) {
+                    urls.addAll(member.response.getUrls());
+                }
+            }
+        }
+
+        item.converted = true;
+
+        Response response;
+
+        if (extractUrls) {
+            response = new Response("Success; " + urls.size() + " URLs extracted from " + converted + " of " + members.size() + " members", null, null);
+            response.setUrls(new ArrayList<String>(urls));
+        } else {
+            response = new Response("Success; " + converted + " of " + members.size() + " members converted", null, null);
+        }
+
+        response.setItems(responses);
+
+        return response;
+    }
+
+    /**
+     * The header and body length of a response frame, the body itself is
+     * sent separately.
+     */
+    public byte[] frameHead(Response response, long bodyLength) throws IOException {
+        ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+        server.getMapper().writeValue(headerOut, response);
+        byte[] header = headerOut.toByteArray();
+
+        ByteArrayOutputStream frameOut = new ByteArrayOutputStream(header.length + 12);
+        DataOutputStream dataOut = new DataOutputStream(frameOut);
+        FramedProtocol.writeHeader(dataOut, header);
+        dataOut.writeLong(bodyLength);
+        dataOut.flush();
+
+        return frameOut.toByteArray();
+    }
+
+    /**
+     * Hands the items of a request to a new job to convert in the
+     * background, answering with its ID.  Once accepted the items, and the
+     * files they hold, are the job's, and are taken out of the list.
+     */
+    private Response submit(final Request request, List<Item> items) {
+
+        if (server.getJobs() == null) {
+            throw new RuntimeException("Fail; jobs are not enabled.");
+        }
+
+        if ((request.getItems() != null) && items.isEmpty()) {
+            throw new RuntimeException("Fail; no documents in the batch.");
+        }
+
+        final ConversionJobs.Job job = server.getJobs().create();
+
+        if (job == null) {
+            return new Response(Response.MSG_BUSY, null, null);
+        }
+
+        if (server.getJobs().getJournal() != null) {
+            journal(job, request, items);
+        }
+
+        final List<Item> jobItems = new ArrayList<Item>(items);
+        items.clear();
+
+        server.getJobExecutor().execute(new Runnable() {
+
+            public void run() {
+                runJob(job, request, jobItems);
+            }
+        });
+
+        Response response = new Response("Success; job submitted", null, null);
+        response.setJobId(job.getId());
+        response.setJobState(ConversionJobs.STATE_PENDING);
+
+        return response;
+    }
+
+    /**
+     * Records a job as accepted before it is answered, its inputs moving
+     * into the journal.
+     */
+    private void journal(ConversionJobs.Job job, Request request, List<Item> items) {
+        List<String> errors = new ArrayList<String>();
+        List<File> inputs = new ArrayList<File>();
+
+        for (Item item : items) {
+            errors.add(item.error);
+            inputs.add(item.spooled ? item.inputFile : null);
+        }
+
+        try {
+            List<File> journaled = server.getJobs().getJournal().accepted(job.getId(), request, errors, inputs);
+
+            for (int i = 0; i < items.size(); i++) {
+                if (journaled.get(i) != null) {
+                    items.get(i).inputFile = journaled.get(i);
+                }
+            }
+        } catch (IOException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, "could not journal job " + job.getId(), e);
+            server.getJobs().cancel(job);
+            throw new RuntimeException("Fail; could not journal the job.");
+        }
+    }
+
+    /**
+     * Takes back the jobs the journal kept through a restart: those done are
+     * there to be fetched again, the others are run again, unless they
+     * have been started too often already, most likely by the very
+     * document that brought the server down.
+     */
+    void recoverJobs() {
+        ConversionJournal journal = server.getJobs().getJournal();
+
+        for (ConversionJournal.Entry entry : journal.takeRecovered()) {
+            final ConversionJobs.Job job = server.getJobs().restore(entry.getId());
+
+            if (entry.isDone()) {
+                job.done(entry.getResponse(), entry.getReturned(), entry.getDoneAt());
+                continue;
+            }
+
+            final Request request = entry.getRequest();
+            final List<Item> items = new ArrayList<Item>();
+            List<Request> itemRequests = (request.getItems() != null) ? request.getItems() : Collections.singletonList(request);
+
+            for (int i = 0; i < itemRequests.size(); i++) {
+                Item item = new Item(itemRequests.get(i));
+                items.add(item);
+
+                item.error = entry.getErrors().get(i);
+                item.inputFile = entry.getInputs().get(i);
+                item.spooled = (item.inputFile != null);
+            }
+
+            if (entry.getStarts() >= ConversionJournal.MAX_STARTS) {
+                Logger.getLogger(RequestHandler.class.getName()).log(Level.WARNING, "giving up on job " + job.getId() + " after " + entry.getStarts() + " starts");
+                finishJob(job, request, items, new Response("Fail; the job was interrupted " + entry.getStarts() + " times.", null, null));
+                continue;
+            }
+
+            server.getJobExecutor().execute(new Runnable() {
+
+                public void run() {
+                    runJob(job, request, items);
+                }
+            });
+        }
+    }
+
+    private void runJob(ConversionJobs.Job job, Request request, List<Item> items) {
+        job.started();
+
+        ConversionJournal journal = server.getJobs().getJournal();
+
+        if (journal != null) {
+            try {
+                journal.started(job.getId());
+            } catch (IOException e) {
+                Logger.getLogger(RequestHandler.class.getName()).log(Level.WARNING, "could not journal the start of job " + job.getId(), e);
+            }
+        }
+
+        Response response;
+
+        try {
+            // a job has no client waiting to be told to retry, it waits
+            // for office to come up instead
+            server.getDocumentConverter().getOfficePool().awaitReady();
+            response = convert(request, items, MSG_JOB_RETURNED);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = new Response("Fail; interrupted waiting for office.", null, null);
+        } catch (RuntimeException e) {
+            Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            response = new Response(e.getMessage(), null, null);
+        }
+
+        finishJob(job, request, items, response);
+    }
+
+    private void finishJob(ConversionJobs.Job job, Request request, List<Item> items, Response response) {
+        response.setId(request.getId());
+        response.setJobId(job.getId());
+        response.setJobState(ConversionJobs.STATE_DONE);
+
+        Map<Response, File> returned = returnedFiles(items);
+        ConversionJournal journal = server.getJobs().getJournal();
+
+        if (journal != null) {
+            try {
+                returned = journal.done(job.getId(), response, returned);
+            } catch (IOException e) {
+                // still fetchable until the TTL, only not after a restart
+                Logger.getLogger(RequestHandler.class.getName()).log(Level.SEVERE, "could not journal job " + job.getId() + " as done", e);
+            }
+        }
+
+        // only the outputs going back are kept for fetching
+        for (Item item : items) {
+            if (item.spooled) {
+                if (item.inputFile != null) {
+                    item.inputFile.delete();
+                }
+
+                for (File outputFile : item.outputFiles) {
+                    if (!returned.containsValue(outputFile)) {
+                        outputFile.delete();
+                    }
+                }
+            }
+
+            for (File memberFile : item.memberFiles) {
+                if (!returned.containsValue(memberFile)) {
+                    memberFile.delete();
+                }
+            }
+        }
+
+        job.done(response, returned);
+    }
+
+    static boolean isJobQuery(Request request) {
+        return Request.MODE_POLL.equals(request.getMode()) || Request.MODE_WAIT.equals(request.getMode()) || Request.MODE_FETCH.equals(request.getMode());
+    }
+
+    /**
+     * The answer to a poll, wait or fetch.  A done job, waited for or
+     * fetched, is answered with its own response.
+     *
+     * @param returned filled with the outputs that go back with a done job
+     */
+    private Response jobResponse(Request request, Map<Response, File> returned) {
+        ConversionJobs.Job job = (server.getJobs() == null) ? null : server.getJobs().get(request.getJobId());
+        Response response;
+
+        if (job == null) {
+            response = new Response("Fail; no job " + request.getJobId() + ", it may have expired.", null, null);
+            response.setId(request.getId());
+            return response;
+        }
+
+        boolean done;
+
+        try {
+            if (Request.MODE_WAIT.equals(request.getMode())) {
+                long timeout = (request.getTimeout() == null) ? 0 : request.getTimeout();
+                done = job.await(Math.max(0, Math.min(timeout, MAX_WAIT_MILLIS)));
+            } else {
+                done = ConversionJobs.STATE_DONE.equals(job.getState());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+
+        if (done && !Request.MODE_POLL.equals(request.getMode())) {
+            returned.putAll(job.getReturned());
+            return job.getResponse();
+        }
+
+        String msg = Request.MODE_FETCH.equals(request.getMode()) ? "Fail; job " + job.getId() + " is not done." : "Success; job " + job.getState();
+
+        response = new Response(msg, null, null);
+        response.setId(request.getId());
+        response.setJobId(job.getId());
+        response.setJobState(job.getState());
+
+        return response;
+    }
+
+    /**
+     * Whether the front end answers a request itself, on its own thread,
+     * rather than queue it for a worker: stats, health and polls, so they
+     * still get through when every worker is busy, which is when they're
+     * wanted.
+     */
+    public boolean answersInline(Request request) {
+        return Request.MODE_STATS.equals(request.getMode()) || Request.MODE_HEALTH.equals(request.getMode()) || Request.MODE_POLL.equals(request.getMode());
+    }
+
+    /**
+     * The answer to a poll, without outputs; cheap enough for the front end
+     * to answer itself.
+     */
+    public Response pollResponse(Request request) {
+        return jobResponse(request, new IdentityHashMap<Response, File>());
+    }
+
+    /**
+     * The answer to a stats request.
+     */
+    public Response statsResponse(Request request) {
+        Response response = new Response("Success; statistics returned", null, null);
+        response.setId(request.getId());
+        response.setStats(server.getStats().snapshot());
+        return response;
+    }
+
+    /**
+     * The answer to a health request: whether office has come up to
+     * convert, and how many instances are ready and still warming up.
+     */
+    public Response healthResponse(Request request) {
+        OfficeInstancePool pool = server.getDocumentConverter().getOfficePool();
+        boolean ready = pool.isReady();
+
+        Map<String, Object> health = new LinkedHashMap<String, Object>();
+        health.put("ready", ready);
+        health.put("readyInstances", pool.getHealthyCount());
+        health.put("warmingInstances", pool.getWarmingCount());
+        health.put("standby", pool.getStandby() != null);
+
+        Response response = new Response(ready ? "Success; ready" : "Success; office is starting", null, null);
+        response.setId(request.getId());
+        response.setHealth(health);
+        return response;
+    }
+
+    /**
+     * A complete legacy response without output contents, for refusals.
+     */
+    public byte[] legacyResponse(Response response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LegacyResponseWriter.write(server.getMapper().getJsonFactory(), out, response, Collections.<Response, File>emptyMap());
+        return out.toByteArray();
+    }
+
+    private void convert(File inputFile, File outputFile, ConversionOptions options) throws InterruptedException {
+
+        Logger logger = Logger.getLogger(RequestHandler.class.getName());
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "calling convert of " + inputFile.getPath() + " to " + outputFile.getPath());
+        }
+
+        long start = System.nanoTime();
+
+        if (server.getConversionCache() != null) {
+            server.getConversionCache().convert(inputFile, outputFile, server.getDocumentConverter(), options);
+        } else {
+            server.getDocumentConverter().convert(inputFile, outputFile, options);
+        }
+
+        server.getStats().record(ServerStats.STAGE_CONVERT, inputFile, outputFile, start);
+
+        if (!outputFile.exists())
+            throw new RuntimeException("The file could not be converted.");
+    }
+
+    /**
+     * A batch item waiting for a batch thread, ordered as the scheduler
+     * orders conversions waiting for office.
+     */
+    private static class BatchTask extends FutureTask<Object> implements Comparable<BatchTask> {
+
+        private static final AtomicLong nextSequence = new AtomicLong();
+
+        private final int priority;
+        private final long deadline;
+        private final long sequence = nextSequence.getAndIncrement();
+
+        BatchTask(Runnable runnable, ConversionOptions options) {
+            super(runnable, null);
+            this.priority = options.getPriority();
+            this.deadline = (options.getDeadline() > 0) ? options.getDeadline() : Long.MAX_VALUE;
+        }
+
+        public int compareTo(BatchTask other) {
+            if (priority != other.priority) {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            if (deadline != other.deadline) {
+                return (deadline < other.deadline) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+
+    /**
+     * One document of a request on its way through conversion.
+     */
+    private static class Item {
+
+        final Request request;
+
+        /** why the document was refused before conversion, or null */
+        String error;
+
+        /** whether the input was uploaded, and input and output are ours to delete */
+        boolean spooled;
+
+        File inputFile;
+        final List<File> outputFiles = new ArrayList<File>();
+        boolean converted;
+        ConversionOptions options = ConversionOptions.DEFAULT;
+        volatile Response response;
+
+        /** the outputs of an expanded archive's members, always ours to delete */
+        final List<File> memberFiles = new ArrayList<File>();
+
+        /** the output to send back with each response that has one */
+        final Map<Response, File> returned = new IdentityHashMap<Response, File>();
+
+        Item(Request request) {
+            this.request = request;
+        }
+
+        void fail(String msg) {
+            response = new Response(msg, null, null);
+            response.setId(request.getId());
+        }
+
+        void release() {
+            if (spooled) {
+                if (inputFile != null) {
+                    inputFile.delete();
+                }
+
+                for (File outputFile : outputFiles) {
+                    outputFile.delete();
+                }
+            }
+
+            for (File memberFile : memberFiles) {
+                memberFile.delete();
+            }
+        }
+    }
+
+    private void convert(File inputFile, List<File> outputFiles, ConversionOptions options) throws InterruptedException {
+
+        Logger logger = Logger.getLogger(RequestHandler.class.getName());
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "calling convert of " + inputFile.getPath() + " to " + outputFiles);
+        }
+
+        long start = System.nanoTime();
+
+        if (server.getConversionCache() != null) {
+            server.getConversionCache().convert(inputFile, outputFiles, server.getDocumentConverter(), options);
+        } else {
+            server.getDocumentConverter().convert(inputFile, outputFiles, options);
+        }
+
+        // filed under the first format, the rest came along with it
+        server.getStats().record(ServerStats.STAGE_CONVERT, inputFile, outputFiles.get(0), start);
+    }
+}
@@ -1,5 +1,9 @@
 package org.mitre.honeyclient;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,16 +17,67 @@ import java.util.logging.Logger;
  */
 public class Response {
 
+    public static final String MSG_BUSY = "Busy; server at capacity, retry later.";
+    public static final String MSG_STARTING = "Busy; office is starting, retry later.";
+
+    String id;
     String msg;
     String outputFilename;
     String outputBase64FileContents;
+    List<Response> items;
+    List<String> urls;
+    Map<String, Object> stats;
+    Map<String, Object> health;
+    Long length;
+    String jobId;
+    String jobState;
 
     public Response(String msg, String outputFilename, String outputBase64FileContents) {
         this.msg = msg;
         this.outputFilename = outputFilename;
         this.outputBase64FileContents = outputBase64FileContents;
 
-        Logger.getLogger(Response.class.getName()).log(Level.INFO, "Created: " + toString());
+        Logger logger = Logger.getLogger(Response.class.getName());
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "Created: " + toString());
+        }
+    }
+
+    /**
+     * Rebuilds a response from the values it was written out as, such as a
+     * v2 frame header or a journaled job's response.
+     */
+    @SuppressWarnings("unchecked")
+    public static Response fromValues(Map<String, Object> values) {
+        Response response = new Response((String) values.get("msg"), (String) values.get("outputFilename"), (String) values.get("outputBase64FileContents"));
+        response.setId((String) values.get("id"));
+        response.setUrls((List<String>) values.get("urls"));
+        response.setJobId((String) values.get("jobId"));
+        response.setJobState((String) values.get("jobState"));
+        response.setStats((Map<String, Object>) values.get("stats"));
+        response.setHealth((Map<String, Object>) values.get("health"));
+
+        if (values.get("length") != null) {
+            response.setLength(((Number) values.get("length")).longValue());
+        }
+
+        if (values.get("items") != null) {
+            List<Response> items = new ArrayList<Response>();
+            for (Map<String, Object> item : (List<Map<String, Object>>) values.get("items")) {
+                items.add(fromValues(item));
+            }
+            response.setItems(items);
+        }
+
+        return response;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
     }
 
     public String getMsg() {
@@ -49,8 +104,89 @@ public class Response {
         this.outputFilename = outputFilename;
     }
 
+    /**
+     * The URLs the document links to, in extractUrls mode.
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    public void setUrls(List<String> urls) {
+        this.urls = urls;
+    }
+
+    /**
+     * The server's statistics, in stats mode.
+     */
+    public Map<String, Object> getStats() {
+        return stats;
+    }
+
+    public void setStats(Map<String, Object> stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Whether office is ready and how many instances are up, in health
+     * mode.
+     */
+    public Map<String, Object> getHealth() {
+        return health;
+    }
+
+    public void setHealth(Map<String, Object> health) {
+        this.health = health;
+    }
+
+    /**
+     * The outcome of each document of a batch request, in request order, or
+     * null for a single document response.
+     */
+    public List<Response> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Response> items) {
+        this.items = items;
+    }
+
+    /**
+     * The length of this item's output within the v2 frame body, items
+     * follow one another in order.
+     */
+    public Long getLength() {
+        return length;
+    }
+
+    public void setLength(Long length) {
+        this.length = length;
+    }
+
+    /**
+     * The job a submitted request became, or that was polled, waited for or
+     * fetched.
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * pending, running or done, alongside jobId.
+     */
+    public String getJobState() {
+        return jobState;
+    }
+
+    public void setJobState(String jobState) {
+        this.jobState = jobState;
+    }
+
     @Override
     public String toString() {
-        return "Response [" + "msg=" + (msg == null ? "null" : "\"" + msg + "\"") + ", " + "outputBase64FileContents=" +  (outputBase64FileContents == null ? "null" : "\"" + outputBase64FileContents + "\"") + ", " + "outputFilename=" + (outputFilename == null ? "null" : "\"" + outputFilename + "\"") + "]";
+        return "Response [" + "id=" + (id == null ? "null" : "\"" + id + "\"") + ", " + "msg=" + (msg == null ? "null" : "\"" + msg + "\"") + ", " + "outputBase64FileContents=" + Request.summarize(outputBase64FileContents) + ", " + "outputFilename=" + (outputFilename == null ? "null" : "\"" + outputFilename + "\"") + (jobId == null ? "" : ", jobId=\"" + jobId + "\", jobState=\"" + jobState + "\"") + (items == null ? "" : ", items=" + items) + "]";
     }
 }
@@ -0,0 +1,303 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The request stage of a router.  Rather than convert, it relays each
+ * request as it came to the backend the cluster router picks for its first
+ * document, and the backend's response as it came back to the client;
+ * another backend is tried when that one can't be reached or is busy.
+ *
+ * Documents are decoded, or read from the frame body, only to be hashed,
+ * and stats and health requests are answered by the router itself.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class RoutingRequestHandler extends RequestHandler {
+
+    static final String MSG_NO_BACKEND = "Busy; no backend could take the request, retry later.";
+
+    private static final int DIGEST_BUFFER_SIZE = 8192;
+
+    private final OOoConversionServer server;
+    private final ClusterRouter router;
+
+    public RoutingRequestHandler(OOoConversionServer server, ClusterRouter router) {
+        super(server);
+        this.server = server;
+        this.router = router;
+    }
+
+    /**
+     * A backend's answer to a request, for relay() to try backends with.
+     */
+    private interface Forward {
+
+        ClusterRouter.Reply to(ClusterRouter.Backend backend) throws IOException;
+    }
+
+    @Override
+    public OutgoingResponse handleLegacy(final File requestFile) throws IOException {
+
+        long start = System.nanoTime();
+        Request request = null;
+        String key = null;
+        InputStream in = new BufferedInputStream(new FileInputStream(requestFile));
+        LegacyRequestReader reader = new LegacyRequestReader(in, server.getFileSizeMax(), server.getBatchSizeMax(), server.getScratch());
+
+        try {
+            request = reader.read();
+
+            if (Request.MODE_STATS.equals(request.getMode())) {
+                return new OutgoingResponse(legacyResponse(statsResponse(request)), true);
+            }
+
+            if (Request.MODE_HEALTH.equals(request.getMode())) {
+                return new OutgoingResponse(legacyResponse(healthResponse(request)), true);
+            }
+
+            if (!isJobQuery(request)) {
+                Request first = ((request.getItems() != null) && !request.getItems().isEmpty()) ? request.getItems().get(0) : request;
+                File spoolFile = reader.getSpoolFile(first);
+                key = (spoolFile != null) ? digest(spoolFile, spoolFile.length()) : first.getInputFilename();
+            }
+
+        } catch (RuntimeException e) {
+            Logger.getLogger(RoutingRequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            return new OutgoingResponse(legacyResponse(response(request, e.getMessage())), true);
+        } catch (IOException e) {
+            Logger.getLogger(RoutingRequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            return new OutgoingResponse(legacyResponse(response(request, e.getMessage())), true);
+        } finally {
+            in.close();
+            reader.release();
+        }
+
+        long decoded = System.nanoTime();
+
+        ClusterRouter.Reply reply = relay(request, key, new Forward() {
+
+            public ClusterRouter.Reply to(ClusterRouter.Backend backend) throws IOException {
+                return router.forwardLegacy(backend, requestFile);
+            }
+        });
+
+        long relayed = System.nanoTime();
+        server.getStats().record(ServerStats.STAGE_TOTAL, start);
+
+        if (reply == null) {
+            Response response = response(request, MSG_NO_BACKEND);
+            AccessLog.log(AccessLog.PROTOCOL_LEGACY, request, response, requestFile.length(), Collections.<Response, File>emptyMap(), start, decoded, relayed, relayed);
+            return new OutgoingResponse(legacyResponse(response), true);
+        }
+
+        AccessLog.log(AccessLog.PROTOCOL_LEGACY, request, response(request, reply.getMsg()), requestFile.length(), Collections.<Response, File>emptyMap(), start, decoded, relayed, relayed);
+
+        return new OutgoingResponse(null, reply.getBody(), true).deleteAfter(reply.getBody());
+    }
+
+    @Override
+    public OutgoingResponse handleFrame(Request request, final File bodyFile) throws IOException {
+
+        long start = System.nanoTime();
+        long bytesIn = (bodyFile == null) ? 0 : bodyFile.length();
+        ClusterRouter.Reply reply;
+
+        try {
+            String key = null;
+
+            if (!isJobQuery(request)) {
+                Request first = ((request.getItems() != null) && !request.getItems().isEmpty()) ? request.getItems().get(0) : request;
+
+                if (bodyFile == null) {
+                    key = first.getInputFilename();
+                } else {
+                    // a batch's first document is the first item's length of the body
+                    key = digest(bodyFile, ((request.getItems() != null) && (first.getLength() != null)) ? first.getLength() : bodyFile.length());
+                }
+            }
+
+            ByteArrayOutputStream headerOut = new ByteArrayOutputStream();
+            server.getMapper().writeValue(headerOut, request);
+            final byte[] header = headerOut.toByteArray();
+
+            reply = relay(request, key, new Forward() {
+
+                public ClusterRouter.Reply to(ClusterRouter.Backend backend) throws IOException {
+                    return router.forwardFrame(backend, header, bodyFile);
+                }
+            });
+
+        } catch (RuntimeException e) {
+            Logger.getLogger(RoutingRequestHandler.class.getName()).log(Level.SEVERE, e.toString());
+            return new OutgoingResponse(frameHead(response(request, e.getMessage()), 0), false);
+        } finally {
+            if (bodyFile != null) {
+                bodyFile.delete();
+            }
+        }
+
+        long relayed = System.nanoTime();
+        server.getStats().record(ServerStats.STAGE_TOTAL, start);
+
+        if (reply == null) {
+            Response response = response(request, MSG_NO_BACKEND);
+            AccessLog.log(AccessLog.PROTOCOL_FRAME, request, response, bytesIn, Collections.<Response, File>emptyMap(), start, start, relayed, relayed);
+            return new OutgoingResponse(frameHead(response, 0), false);
+        }
+
+        AccessLog.log(AccessLog.PROTOCOL_FRAME, request, response(request, reply.getMsg()), bytesIn, Collections.<Response, File>emptyMap(), start, start, relayed, relayed);
+
+        // the backend's frame as it came, head rebuilt around its header
+        ByteArrayOutputStream frameOut = new ByteArrayOutputStream(reply.getHeader().length + 12);
+        DataOutputStream dataOut = new DataOutputStream(frameOut);
+        FramedProtocol.writeHeader(dataOut, reply.getHeader());
+        dataOut.writeLong((reply.getBody() == null) ? 0 : reply.getBody().length());
+        dataOut.flush();
+
+        return new OutgoingResponse(frameOut.toByteArray(), reply.getBody(), false).deleteAfter(reply.getBody());
+    }
+
+    /**
+     * Tries the backends in turn until one answers other than busy, or, for
+     * a job query, other than that it has no such job.  Submitted jobs are
+     * remembered with the backend that took them.
+     *
+     * @param key what the request is routed by, unused for a job query
+     * @return the answer, the last busy one when every backend is busy, or
+     *         null when none answered at all
+     */
+    private ClusterRouter.Reply relay(Request request, String key, Forward forward) {
+        boolean jobQuery = isJobQuery(request);
+        List<ClusterRouter.Backend> candidates = jobQuery ? router.locate(request.getJobId()) : router.route((key == null) ? "" : key);
+        ClusterRouter.Reply kept = null;
+
+        for (ClusterRouter.Backend backend : candidates) {
+            ClusterRouter.Reply reply;
+
+            try {
+                reply = forward.to(backend);
+            } catch (IOException e) {
+                Logger.getLogger(RoutingRequestHandler.class.getName()).log(Level.WARNING, "could not relay to " + backend.getName() + ", " + e.getMessage());
+                if (!jobQuery) {
+                    router.failedOver();
+                }
+                continue;
+            }
+
+            boolean elsewhere = jobQuery ? isNoJob(reply) : reply.isBusy();
+
+            if (kept != null) {
+                kept.release();
+            }
+            kept = reply;
+
+            if (!elsewhere) {
+                if (Request.MODE_SUBMIT.equals(request.getMode()) && (reply.getJobId() != null)) {
+                    router.remember(reply.getJobId(), backend);
+                }
+                return reply;
+            }
+
+            if (!jobQuery) {
+                router.failedOver();
+            }
+        }
+
+        return kept;
+    }
+
+    private static boolean isNoJob(ClusterRouter.Reply reply) {
+        return (reply.getMsg() != null) && reply.getMsg().startsWith("Fail; no job ");
+    }
+
+    /**
+     * A response of the router's own, or one standing in for a backend's
+     * in the access log.
+     */
+    private static Response response(Request request, String msg) {
+        Response response = new Response(msg, null, null);
+        if (request != null) {
+            response.setId(request.getId());
+        }
+        return response;
+    }
+
+    /**
+     * Stats and health are the router's own, and cheap; polls have to go
+     * to a backend, and so to a worker.
+     */
+    @Override
+    public boolean answersInline(Request request) {
+        return Request.MODE_STATS.equals(request.getMode()) || Request.MODE_HEALTH.equals(request.getMode());
+    }
+
+    /**
+     * The answer to a health request: whether any backend is ready, and
+     * how many of them are.
+     */
+    @Override
+    public Response healthResponse(Request request) {
+        int healthy = router.getHealthyCount();
+
+        Map<String, Object> health = new LinkedHashMap<String, Object>();
+        health.put("ready", healthy > 0);
+        health.put("readyBackends", healthy);
+        health.put("backends", router.getBackendCount());
+
+        Response response = new Response((healthy > 0) ? "Success; ready" : "Success; no backend is ready", null, null);
+        response.setId(request.getId());
+        response.setHealth(health);
+        return response;
+    }
+
+    /**
+     * The SHA-1 of the first length bytes of a file, as the result cache
+     * keys a whole document, so a document routes the same way whichever
+     * protocol it came by.
+     */
+    static String digest(File file, long length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[DIGEST_BUFFER_SIZE];
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                long remaining = length;
+                int len;
+                while ((remaining > 0) && ((len = in.read(buf, 0, (int) Math.min(buf.length, remaining))) >= 0)) {
+                    digest.update(buf, 0, len);
+                    remaining -= len;
+                }
+            } finally {
+                in.close();
+            }
+
+            return new String(Hex.encodeHex(digest.digest()));
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail; could not read the input file.");
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Where uploads, outputs and responses are staged on their way through the
+ * server.  Each thread gets a directory of its own, made once and kept, and
+ * names its files from a counter, so staging a file is a single create in
+ * a small directory no other thread touches, rather than a randomly named
+ * create in a shared temp directory.  Pointed at a tmpfs mount, documents
+ * never reach a disk at all.
+ *
+ * What the directory holds is measured a few times a second; while it is
+ * over its quota new uploads are turned away, and clients told to retry,
+ * until what is in flight drains.  The quota is a soft one, bytes admitted
+ * since the last measure are counted towards it but outputs are not known
+ * until they are written.
+ *
+ * The directory belongs to one server and is emptied when it starts.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ScratchSpace implements ScratchSpaceMBean {
+
+    private static final long MEASURE_INTERVAL_MILLIS = 250;
+
+    private final File directory;
+    private final long maxBytes;
+
+    private final ThreadLocal<ThreadDirectory> threadDirectories = new ThreadLocal<ThreadDirectory>() {
+
+        @Override
+        protected ThreadDirectory initialValue() {
+            return new ThreadDirectory(new File(directory, Thread.currentThread().getName().replaceAll("[^A-Za-z0-9._-]", "_")));
+        }
+    };
+
+    private volatile long measuredBytes = 0;
+    private final AtomicLong admittedBytes = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    private final ScheduledExecutorService meter;
+
+    /**
+     * @param maxBytes the most bytes staged before uploads are turned away,
+     *        0 for no limit
+     */
+    public ScratchSpace(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (directory.isDirectory()) {
+            // left by a run that never got to clean up
+            FileUtils.cleanDirectory(directory);
+        } else if (!directory.mkdirs()) {
+            throw new IOException("could not create scratch directory " + directory.getPath());
+        }
+
+        meter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "scratch-meter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        meter.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                measure();
+            }
+        }, MEASURE_INTERVAL_MILLIS, MEASURE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        Logger.getLogger(ScratchSpace.class.getName()).log(Level.INFO, "staging files in " + directory.getPath() + ((maxBytes > 0) ? ", at most " + maxBytes + " bytes" : ""));
+    }
+
+    /**
+     * A new empty file in the calling thread's directory, named after
+     * filename and keeping its extension, which office goes by.
+     */
+    public File createFile(String filename) throws IOException {
+        String prefix = (filename == null) ? "" : FilenameUtils.getBaseName(filename).replaceAll("[^A-Za-z0-9._-]", "_");
+        String extension = (filename == null) ? "" : FilenameUtils.getExtension(filename);
+
+        if (prefix.length() > 32) {
+            prefix = prefix.substring(0, 32);
+        }
+
+        ThreadDirectory threadDirectory = threadDirectory();
+
+        while (true) {
+            File file = new File(threadDirectory.directory, prefix + "-" + (++threadDirectory.sequence) + (extension.length() == 0 ? "" : "." + extension));
+
+            // only a thread that happens to share a name makes this fail
+            if (file.createNewFile()) {
+                created.incrementAndGet();
+                return file;
+            }
+        }
+    }
+
+    /**
+     * A new empty directory in the calling thread's directory, for a task
+     * that writes files of its own beside its output.  What it holds counts
+     * towards the quota.
+     */
+    public File createDirectory(String name) throws IOException {
+        ThreadDirectory threadDirectory = threadDirectory();
+
+        while (true) {
+            File subdirectory = new File(threadDirectory.directory, name + "-" + (++threadDirectory.sequence));
+
+            if (subdirectory.mkdir()) {
+                created.incrementAndGet();
+                return subdirectory;
+            }
+
+            if (!subdirectory.exists()) {
+                throw new IOException("could not create scratch directory " + subdirectory.getPath());
+            }
+        }
+    }
+
+    private ThreadDirectory threadDirectory() throws IOException {
+        ThreadDirectory threadDirectory = threadDirectories.get();
+
+        if (!threadDirectory.directory.isDirectory() && !threadDirectory.directory.mkdirs()) {
+            throw new IOException("could not create scratch directory " + threadDirectory.directory.getPath());
+        }
+
+        return threadDirectory;
+    }
+
+    /**
+     * Whether an upload of the given length may be staged, counting it
+     * towards the quota when it is.  One bigger than the whole quota is
+     * still let in once nothing else is staged.
+     */
+    public boolean admit(long bytes) {
+        if (maxBytes <= 0) {
+            return true;
+        }
+
+        long used = measuredBytes + admittedBytes.get();
+
+        if ((used > 0) && (used + bytes > maxBytes)) {
+            refused.incrementAndGet();
+            return false;
+        }
+
+        admittedBytes.addAndGet(bytes);
+        return true;
+    }
+
+    /**
+     * Takes the size of what is staged, which from now on includes what was
+     * admitted before.
+     */
+    private void measure() {
+        long admitted = admittedBytes.get();
+
+        measuredBytes = sizeOf(directory);
+        admittedBytes.addAndGet(-admitted);
+    }
+
+    /**
+     * The size of a file, or of what a directory holds, files that go
+     * while it is taken counting for nothing.
+     */
+    private static long sizeOf(File file) {
+        File[] files = file.listFiles();
+
+        if (files == null) {
+            return file.length();
+        }
+
+        long bytes = 0;
+        for (File child : files) {
+            bytes += sizeOf(child);
+        }
+        return bytes;
+    }
+
+    public String getDirectory() {
+        return directory.getPath();
+    }
+
+    public long getUsedBytes() {
+        return measuredBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    private static class ThreadDirectory {
+
+        final File directory;
+        long sequence = 0;
+
+        ThreadDirectory(File directory) {
+            this.directory = directory;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the scratch space files are staged in.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ScratchSpaceMBean {
+
+    String getDirectory();
+
+    /** bytes staged as last measured */
+    long getUsedBytes();
+
+    long getMaxBytes();
+
+    /** uploads turned away while the quota was used up */
+    long getRefused();
+
+    /** files staged since start */
+    long getCreated();
+}
@@ -0,0 +1,270 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Where the time goes, and how busy the server is.  Each stage of handling a
+ * request keeps a latency histogram, overall and by conversion format, and
+ * the whole lot is published over JMX and answered to "stats" requests.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ServerStats implements ServerStatsMBean {
+
+    /** waiting in the worker queue */
+    public static final String STAGE_QUEUE = "queue";
+    /** reading the request, Base64 decoding each document into its input file */
+    public static final String STAGE_DECODE = "decode";
+    /** producing the output, cache included, as the request sees it */
+    public static final String STAGE_CONVERT = "convert";
+    /** each attempt at a conversion by an office instance, failed ones too */
+    public static final String STAGE_OFFICE = "office";
+    /** writing the response, Base64 encoding any output */
+    public static final String STAGE_ENCODE = "encode";
+    /** a worker's handling of a request, until its response is ready */
+    public static final String STAGE_TOTAL = "total";
+
+    /** the histogram of a stage across all formats */
+    static final String ALL_FORMATS = "all";
+    /** where formats go once a stage has tracked MAX_FORMATS of them */
+    static final String OTHER_FORMATS = "other";
+
+    /** formats are named by clients, so their number is capped */
+    static final int MAX_FORMATS = 64;
+
+    private final OOoConversionServer server;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> stages = new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong extracted = new AtomicLong();
+
+    public ServerStats(OOoConversionServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Records the time since startNanos, a System.nanoTime() reading, against
+     * a stage.
+     */
+    public void record(String stage, long startNanos) {
+        histogram(stage, ALL_FORMATS).recordSince(startNanos);
+    }
+
+    /**
+     * Records against a stage both overall and for the conversion of
+     * inputFile to outputFile's format.
+     */
+    public void record(String stage, File inputFile, File outputFile, long startNanos) {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+
+        histogram(stage, ALL_FORMATS).record(micros);
+        histogram(stage, format(inputFile, outputFile)).record(micros);
+    }
+
+    static String format(File inputFile, File outputFile) {
+        return FilenameUtils.getExtension(inputFile.getName()).toLowerCase() + ">" + FilenameUtils.getExtension(outputFile.getName()).toLowerCase();
+    }
+
+    private LatencyHistogram histogram(String stage, String format) {
+        ConcurrentMap<String, LatencyHistogram> formats = stages.get(stage);
+
+        if (formats == null) {
+            stages.putIfAbsent(stage, new ConcurrentHashMap<String, LatencyHistogram>());
+            formats = stages.get(stage);
+        }
+
+        LatencyHistogram histogram = formats.get(format);
+
+        if (histogram == null) {
+            if ((formats.size() >= MAX_FORMATS) && !ALL_FORMATS.equals(format)) {
+                format = OTHER_FORMATS;
+            }
+
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = formats.putIfAbsent(format, created);
+
+            if (histogram == null) {
+                histogram = created;
+                OOoConversionServer.registerMBean(histogram, "org.mitre.honeyclient:type=Latency,stage=" + stage + ",format=" + ObjectName.quote(format));
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * A request has been taken off the queue by a worker.
+     */
+    public void started() {
+        inFlight.incrementAndGet();
+    }
+
+    public void finished() {
+        inFlight.decrementAndGet();
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.addAndGet(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.addAndGet(bytes);
+    }
+
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    public void extracted() {
+        extracted.incrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return server.getWorkerExecutor().getQueue().size();
+    }
+
+    public int getBatchQueued() {
+        // a router has no batches of its own to convert
+        return (server.getBatchExecutor() == null) ? 0 : server.getBatchExecutor().getQueue().size();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getExtracted() {
+        return extracted.get();
+    }
+
+    public long getOfficeRestarts() {
+        long restarts = 0;
+        if (server.getDocumentConverter() != null) {
+            for (OfficeInstance instance : server.getDocumentConverter().getOfficePool().getInstances()) {
+                restarts += instance.getRestarts();
+            }
+        }
+        return restarts;
+    }
+
+    /**
+     * Everything above in one map, as answered to a stats request: counts,
+     * the scheduler's, jobs', circuit breaker's and quarantine's, scratch
+     * space, heap, then "latency" by stage and format, then
+     * "officeInstances", or a router's "backends" instead.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        InsistOfficeDocumentConverter converter = server.getDocumentConverter();
+
+        snapshot.put("inFlight", getInFlight());
+        snapshot.put("queued", getQueued());
+        snapshot.put("batchQueued", getBatchQueued());
+        snapshot.put("bytesIn", getBytesIn());
+        snapshot.put("bytesOut", getBytesOut());
+        snapshot.put("retries", getRetries());
+        snapshot.put("extracted", getExtracted());
+        snapshot.put("officeRestarts", getOfficeRestarts());
+        snapshot.put("officeRecycles", (converter == null) ? 0 : converter.getOfficePool().getRecycles());
+
+        ConversionScheduler scheduler = (converter == null) ? null : converter.getScheduler();
+        if (scheduler != null) {
+            snapshot.put("officeWaiting", scheduler.getWaiting());
+            snapshot.put("expired", scheduler.getExpired());
+        }
+
+        ConversionJobs jobs = server.getJobs();
+        if (jobs != null) {
+            snapshot.put("jobsPending", jobs.getPending());
+            snapshot.put("jobsDone", jobs.getDone());
+        }
+
+        OfficeCircuitBreaker circuitBreaker = (converter == null) ? null : converter.getCircuitBreaker();
+        if (circuitBreaker != null) {
+            snapshot.put("circuitBreaker", circuitBreaker.getState());
+        }
+
+        DocumentQuarantine quarantine = (converter == null) ? null : converter.getQuarantine();
+        if (quarantine != null) {
+            snapshot.put("quarantined", quarantine.getQuarantinedCount());
+        }
+
+        ScratchSpace scratch = server.getScratch();
+        if (scratch != null) {
+            snapshot.put("scratchBytes", scratch.getUsedBytes());
+            snapshot.put("scratchRefused", scratch.getRefused());
+        }
+
+        // the JVM publishes these over JMX itself, they're here for clients
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        snapshot.put("heapUsed", heap.getUsed());
+        snapshot.put("heapMax", heap.getMax());
+
+        Map<String, Object> latency = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> stage : stages.entrySet()) {
+            Map<String, Object> formats = new TreeMap<String, Object>();
+            for (Map.Entry<String, LatencyHistogram> format : stage.getValue().entrySet()) {
+                formats.put(format.getKey(), format.getValue().snapshot());
+            }
+            latency.put(stage.getKey(), formats);
+        }
+        snapshot.put("latency", latency);
+
+        ClusterRouter router = server.getRouter();
+        if (router != null) {
+            snapshot.put("routed", router.getRouted());
+            snapshot.put("failovers", router.getFailovers());
+            snapshot.put("spilled", router.getSpilled());
+            snapshot.put("backends", router.snapshot());
+            return snapshot;
+        }
+
+        List<Object> instances = new ArrayList<Object>();
+        for (OfficeInstance instance : converter.getOfficePool().getInstances()) {
+            Map<String, Object> state = new LinkedHashMap<String, Object>();
+            state.put("port", instance.getPort());
+            state.put("healthy", instance.isHealthy());
+            state.put("inFlight", instance.getInFlight());
+            state.put("completed", instance.getCompleted());
+            state.put("failed", instance.getFailed());
+            state.put("restarts", instance.getRestarts());
+            state.put("conversions", instance.getConversions());
+            instances.add(state);
+        }
+        snapshot.put("officeInstances", instances);
+
+        return snapshot;
+    }
+}
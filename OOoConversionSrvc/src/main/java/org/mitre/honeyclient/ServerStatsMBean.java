@@ -0,0 +1,34 @@
+package org.mitre.honeyclient;
+
+/**
+ * JMX view of the server's load and traffic.  The latencies of each stage
+ * are registered alongside, as LatencyHistogram beans.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public interface ServerStatsMBean {
+
+    /** requests being handled by a worker */
+    int getInFlight();
+
+    /** requests waiting for a worker */
+    int getQueued();
+
+    /** documents of batch requests waiting for an office instance */
+    int getBatchQueued();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /** office attempts that failed and were tried again */
+    long getRetries();
+
+    /** outputs made without office, by an extractor */
+    long getExtracted();
+
+    /** office processes rebuilt after failing to start */
+    long getOfficeRestarts();
+}
@@ -0,0 +1,73 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Reads plain text, HTML and RTF documents without office: the URLs they
+ * link to, from HTML's attributes and anything written out as a URL in the
+ * text, and plain text's own text.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class TextDocumentExtractor implements DocumentExtractor {
+
+    /** control words, hex escapes and group braces, none of which is text */
+    private static final Pattern RTF_MARKUP = Pattern.compile("\\\\[a-zA-Z]+-?[0-9]* ?|\\\\'[0-9a-fA-F]{2}|[{}]");
+
+    public boolean accepts(String inputType, String outputExtension) {
+        if (InsistOfficeDocumentConverter.URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+            return DocumentSniffer.TYPE_TEXT.equals(inputType) || DocumentSniffer.TYPE_HTML.equals(inputType) || DocumentSniffer.TYPE_RTF.equals(inputType);
+        }
+
+        return DocumentSniffer.TYPE_TEXT.equals(inputType) && DocumentSniffer.TYPE_TEXT.equalsIgnoreCase(outputExtension);
+    }
+
+    public void extract(File inputFile, String inputType, String outputExtension, File outputFile) throws IOException {
+        if (!InsistOfficeDocumentConverter.URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+            FileUtils.copyFile(inputFile, outputFile);
+            return;
+        }
+
+        Set<String> urls = new LinkedHashSet<String>();
+
+        if (DocumentSniffer.TYPE_HTML.equals(inputType)) {
+            UrlScanner.scan(inputFile, urls);
+        } else if (DocumentSniffer.TYPE_RTF.equals(inputType)) {
+            scanRtf(inputFile, urls);
+        } else {
+            UrlScanner.scanText(inputFile, urls);
+        }
+
+        FileUtils.writeLines(outputFile, "UTF-8", urls);
+    }
+
+    /**
+     * A hyperlink field's target is written out in its instruction, so the
+     * text left once the markup is gone holds it, as it does any URL
+     * typed into the document.
+     */
+    private static void scanRtf(File inputFile, Set<String> urls) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "ISO-8859-1"));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                UrlScanner.scanText(RTF_MARKUP.matcher(line).replaceAll(" "), urls);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.mitre.honeyclient;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.star.beans.XPropertySet;
+import com.sun.star.container.XEnumeration;
+import com.sun.star.container.XEnumerationAccess;
+import com.sun.star.container.XIndexAccess;
+import com.sun.star.drawing.XDrawPagesSupplier;
+import com.sun.star.lang.XComponent;
+import com.sun.star.text.XText;
+import com.sun.star.text.XTextDocument;
+import com.sun.star.text.XTextFieldsSupplier;
+import com.sun.star.uno.UnoRuntime;
+
+import org.artofsolving.jodconverter.StandardConversionTask;
+import org.artofsolving.jodconverter.document.DocumentFormat;
+import org.artofsolving.jodconverter.office.OfficeException;
+
+/**
+ * A conversion that, while the document is open, also collects the targets
+ * of its hyperlinks: URL text fields, hyperlinked text in Writer documents
+ * and in the shapes of Impress and Draw pages.  What this walk misses, such
+ * as links in spreadsheet cells, still shows up in the exported output.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class UrlExtractionTask extends StandardConversionTask {
+
+    private final List<String> hyperlinks = new ArrayList<String>();
+
+    public UrlExtractionTask(File inputFile, File outputFile, DocumentFormat outputFormat) {
+        super(inputFile, outputFile, outputFormat);
+    }
+
+    /**
+     * @return the hyperlink targets found by the last execution, in document
+     *         order, possibly repeated
+     */
+    public List<String> getHyperlinks() {
+        return hyperlinks;
+    }
+
+    @Override
+    protected void modifyDocument(XComponent document) throws OfficeException {
+        super.modifyDocument(document);
+
+        // a retry starts over
+        hyperlinks.clear();
+
+        try {
+            collectTextFields(document);
+
+            XTextDocument textDocument = cast(XTextDocument.class, document);
+            if (textDocument != null) {
+                collectText(textDocument.getText());
+            }
+
+            XDrawPagesSupplier drawPagesSupplier = cast(XDrawPagesSupplier.class, document);
+            if (drawPagesSupplier != null) {
+                collectDrawPages(drawPagesSupplier.getDrawPages());
+            }
+        } catch (com.sun.star.uno.Exception e) {
+            // the exported output is still scanned, so this is not fatal
+            Logger.getLogger(UrlExtractionTask.class.getName()).log(Level.WARNING, "could not walk the document's hyperlinks: " + e.getMessage());
+        }
+    }
+
+    private void collectTextFields(XComponent document) throws com.sun.star.uno.Exception {
+        XTextFieldsSupplier fieldsSupplier = cast(XTextFieldsSupplier.class, document);
+
+        if (fieldsSupplier == null) {
+            return;
+        }
+
+        XEnumeration fields = fieldsSupplier.getTextFields().createEnumeration();
+
+        while (fields.hasMoreElements()) {
+            addProperty(cast(XPropertySet.class, fields.nextElement()), "URL");
+        }
+    }
+
+    private void collectDrawPages(XIndexAccess pages) throws com.sun.star.uno.Exception {
+        for (int i = 0; i < pages.getCount(); i++) {
+            XIndexAccess shapes = cast(XIndexAccess.class, pages.getByIndex(i));
+
+            if (shapes == null) {
+                continue;
+            }
+
+            for (int j = 0; j < shapes.getCount(); j++) {
+                XText text = cast(XText.class, shapes.getByIndex(j));
+
+                if (text != null) {
+                    collectText(text);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the paragraphs of a text and the portions of each, taking both
+     * hyperlinked text and URL fields.
+     */
+    private void collectText(XText text) throws com.sun.star.uno.Exception {
+        XEnumerationAccess paragraphAccess = cast(XEnumerationAccess.class, text);
+
+        if (paragraphAccess == null) {
+            return;
+        }
+
+        XEnumeration paragraphs = paragraphAccess.createEnumeration();
+
+        while (paragraphs.hasMoreElements()) {
+            // tables are enumerated alongside paragraphs but have no portions
+            XEnumerationAccess portionAccess = cast(XEnumerationAccess.class, paragraphs.nextElement());
+
+            if (portionAccess == null) {
+                continue;
+            }
+
+            XEnumeration portions = portionAccess.createEnumeration();
+
+            while (portions.hasMoreElements()) {
+                XPropertySet portion = cast(XPropertySet.class, portions.nextElement());
+
+                if (portion == null) {
+                    continue;
+                }
+
+                addProperty(portion, "HyperLinkURL");
+
+                if (portion.getPropertySetInfo().hasPropertyByName("TextField")) {
+                    addProperty(cast(XPropertySet.class, portion.getPropertyValue("TextField")), "URL");
+                }
+            }
+        }
+    }
+
+    private void addProperty(XPropertySet properties, String name) throws com.sun.star.uno.Exception {
+        if ((properties == null) || !properties.getPropertySetInfo().hasPropertyByName(name)) {
+            return;
+        }
+
+        Object value = properties.getPropertyValue(name);
+
+        if ((value instanceof String) && (((String) value).length() > 0)) {
+            hyperlinks.add((String) value);
+        }
+    }
+
+    private static <T> T cast(Class<T> type, Object object) {
+        return (object == null) ? null : type.cast(UnoRuntime.queryInterface(type, object));
+    }
+}
@@ -0,0 +1,192 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pulls URLs out of an HTML export: the targets of its href and src
+ * attributes, and anything that looks like a URL in its text.  Works a line
+ * at a time, so a large export is never held in full.  Plain text is
+ * scanned for the URLs written out in it alone.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+class UrlScanner {
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("(?i)\\b(?:href|src)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+    private static final Pattern TAG = Pattern.compile("<[^>]*>");
+    private static final Pattern URL = Pattern.compile("(?i)\\b(?:[a-z][a-z0-9+.-]*://|mailto:)[^\\s<>\"'`\\u00a0]+");
+    private static final Pattern ENTITY = Pattern.compile("&(#[0-9]+|#[xX][0-9a-fA-F]+|amp|lt|gt|quot|apos|nbsp);");
+
+    /** an absolute URL, relative links and in-document anchors are dropped */
+    private static final Pattern ABSOLUTE = Pattern.compile("(?i)^(?:[a-z][a-z0-9+.-]*://[^/]|mailto:.).*");
+
+    private UrlScanner() {
+    }
+
+    /**
+     * Adds the URLs found in an HTML file to urls, in the order found.
+     */
+    public static void scan(File htmlFile, Collection<String> urls) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(htmlFile), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                Matcher attribute = ATTRIBUTE.matcher(line);
+                while (attribute.find()) {
+                    add(urls, unescape((attribute.group(1) != null) ? attribute.group(1) : attribute.group(2)));
+                }
+
+                Matcher url = URL.matcher(unescape(TAG.matcher(line).replaceAll(" ")));
+                while (url.find()) {
+                    add(urls, url.group());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Adds the URLs written out in a plain text file to urls, in the order
+     * found.
+     */
+    public static void scanText(File textFile, Collection<String> urls) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(textFile), "UTF-8"));
+
+        try {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                scanText(line, urls);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Adds the URLs written out in text to urls, in the order found.
+     */
+    public static void scanText(String text, Collection<String> urls) {
+        Matcher url = URL.matcher(text);
+        while (url.find()) {
+            add(urls, url.group());
+        }
+    }
+
+    /**
+     * Adds a link target to urls if it is an absolute URL.
+     */
+    public static void add(Collection<String> urls, String link) {
+        String url = clean(link.trim());
+
+        if (ABSOLUTE.matcher(url).matches()) {
+            urls.add(url);
+        }
+    }
+
+    /**
+     * Keeps only URLs of the given schemes, all when schemes is null.
+     */
+    public static void retainSchemes(Collection<String> urls, List<String> schemes) {
+        if (schemes == null) {
+            return;
+        }
+
+        Iterator<String> iterator = urls.iterator();
+
+        while (iterator.hasNext()) {
+            String url = iterator.next();
+            String urlScheme = url.substring(0, Math.max(url.indexOf(':'), 0));
+
+            boolean keep = false;
+            for (String scheme : schemes) {
+                if (urlScheme.equalsIgnoreCase(scheme)) {
+                    keep = true;
+                    break;
+                }
+            }
+
+            if (!keep) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the punctuation that ends the sentence a URL sits in, and a
+     * trailing slash, the way the Ruby side always has.
+     */
+    static String clean(String url) {
+        int end = url.length();
+
+        while (end > 0 && ".,;:!?)]}>'\"".indexOf(url.charAt(end - 1)) >= 0) {
+            end--;
+        }
+
+        if (end > 0 && url.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        return url.substring(0, end);
+    }
+
+    private static String codePoint(String entity) {
+        try {
+            boolean hex = entity.startsWith("#x") || entity.startsWith("#X");
+            return new String(Character.toChars(Integer.parseInt(entity.substring(hex ? 2 : 1), hex ? 16 : 10)));
+        } catch (IllegalArgumentException e) {
+            // out of range, including NumberFormatException
+            return " ";
+        }
+    }
+
+    static String unescape(String text) {
+        if (text.indexOf('&') < 0) {
+            return text;
+        }
+
+        Matcher matcher = ENTITY.matcher(text);
+        StringBuffer unescaped = new StringBuffer();
+
+        while (matcher.find()) {
+            String entity = matcher.group(1);
+            String replacement;
+
+            if (entity.startsWith("#")) {
+                replacement = codePoint(entity);
+            } else if (entity.equals("amp")) {
+                replacement = "&";
+            } else if (entity.equals("lt")) {
+                replacement = "<";
+            } else if (entity.equals("gt")) {
+                replacement = ">";
+            } else if (entity.equals("quot")) {
+                replacement = "\"";
+            } else if (entity.equals("apos")) {
+                replacement = "'";
+            } else {
+                replacement = " ";
+            }
+
+            matcher.appendReplacement(unescaped, Matcher.quoteReplacement(replacement));
+        }
+
+        matcher.appendTail(unescaped);
+
+        return unescaped.toString();
+    }
+}
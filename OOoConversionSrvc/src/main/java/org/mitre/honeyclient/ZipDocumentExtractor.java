@@ -0,0 +1,335 @@
+package org.mitre.honeyclient;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Reads Office Open XML and OpenDocument files, which are zips of XML
+ * parts, without office.  The URLs a document links to are the external
+ * targets of its relationship files, the href attributes of its parts and
+ * anything written out as a URL in its text; a word processing document's
+ * text is that of its paragraphs, a line each.
+ *
+ * Parts are read as a stream of XML events, never held in full, and with
+ * DTDs and external entities turned off, documents being untrusted.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ZipDocumentExtractor implements DocumentExtractor {
+
+    /** text gathered before it is scanned for URLs, a paragraph is usually less */
+    private static final int MAX_SCANNED_TEXT = 65536;
+
+    // a factory isn't promised to be thread safe, so each thread has its own
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORIES = new ThreadLocal<XMLInputFactory>() {
+
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    };
+
+    public boolean accepts(String inputType, String outputExtension) {
+        if (InsistOfficeDocumentConverter.URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+            return DocumentSniffer.TYPE_DOCX.equals(inputType) || DocumentSniffer.TYPE_XLSX.equals(inputType) || DocumentSniffer.TYPE_PPTX.equals(inputType)
+                    || DocumentSniffer.TYPE_ODT.equals(inputType) || DocumentSniffer.TYPE_ODS.equals(inputType) || DocumentSniffer.TYPE_ODP.equals(inputType)
+                    || DocumentSniffer.TYPE_ODG.equals(inputType);
+        }
+
+        return DocumentSniffer.TYPE_TEXT.equalsIgnoreCase(outputExtension) && (DocumentSniffer.TYPE_DOCX.equals(inputType) || DocumentSniffer.TYPE_ODT.equals(inputType));
+    }
+
+    public void extract(File inputFile, String inputType, String outputExtension, File outputFile) throws IOException {
+        ZipFile zip = new ZipFile(inputFile);
+
+        try {
+            if (InsistOfficeDocumentConverter.URL_LIST_EXTENSION.equalsIgnoreCase(outputExtension)) {
+                Set<String> urls = new LinkedHashSet<String>();
+                extractUrls(zip, urls);
+                FileUtils.writeLines(outputFile, "UTF-8", urls);
+            } else {
+                extractText(zip, inputType, outputFile);
+            }
+        } catch (XMLStreamException e) {
+            outputFile.delete();
+            throw new IOException("malformed part in " + inputFile.getName() + ": " + e.getMessage());
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void extractUrls(ZipFile zip, Set<String> urls) throws IOException, XMLStreamException {
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (name.endsWith(".rels")) {
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    scanRelationships(in, urls);
+                } finally {
+                    in.close();
+                }
+            } else if (name.endsWith(".xml") && !name.equals("[Content_Types].xml")) {
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    scanPart(in, urls);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The targets of a part's external relationships, its hyperlinks among
+     * them.
+     */
+    private static void scanRelationships(InputStream in, Set<String> urls) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORIES.get().createXMLStreamReader(in);
+
+        try {
+            while (reader.hasNext()) {
+                if ((reader.next() == XMLStreamConstants.START_ELEMENT) && "Relationship".equals(reader.getLocalName())
+                        && "External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+                    String target = reader.getAttributeValue(null, "Target");
+
+                    if (target != null) {
+                        UrlScanner.add(urls, target);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The href attributes of a part, OpenDocument's links, and the URLs
+     * written out in its text, a block at a time.
+     */
+    private static void scanPart(InputStream in, Set<String> urls) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORIES.get().createXMLStreamReader(in);
+        StringBuilder text = new StringBuilder();
+
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            if ("href".equals(reader.getAttributeLocalName(i))) {
+                                UrlScanner.add(urls, reader.getAttributeValue(i));
+                            }
+                        }
+                        break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        if (text.length() > MAX_SCANNED_TEXT) {
+                            UrlScanner.scanText(text.toString(), urls);
+                            text.setLength(0);
+                        }
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        // runs of a paragraph are scanned together, a URL
+                        // may well be split across them
+                        if (isBlock(reader.getLocalName())) {
+                            UrlScanner.scanText(text.toString(), urls);
+                            text.setLength(0);
+                        } else if (!isInline(reader.getLocalName())) {
+                            // the text of elements side by side, properties
+                            // say, is not one word
+                            text.append(' ');
+                        }
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+
+            UrlScanner.scanText(text.toString(), urls);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Paragraphs, headings, shared strings and cells.
+     */
+    private static boolean isBlock(String localName) {
+        return "p".equals(localName) || "h".equals(localName) || "si".equals(localName) || "c".equals(localName) || "instrText".equals(localName);
+    }
+
+    /**
+     * Runs, spans and links, the pieces of a paragraph.
+     */
+    private static boolean isInline(String localName) {
+        return "t".equals(localName) || "r".equals(localName) || "span".equals(localName) || "a".equals(localName) || "hyperlink".equals(localName);
+    }
+
+    private static void extractText(ZipFile zip, String inputType, File outputFile) throws IOException, XMLStreamException {
+        boolean openDocument = DocumentSniffer.TYPE_ODT.equals(inputType);
+        ZipEntry entry = zip.getEntry(openDocument ? "content.xml" : "word/document.xml");
+
+        if (entry == null) {
+            throw new IOException("no main part in " + zip.getName());
+        }
+
+        InputStream in = zip.getInputStream(entry);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
+
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORIES.get().createXMLStreamReader(in);
+
+            try {
+                if (openDocument) {
+                    writeOpenDocumentText(reader, out);
+                } else {
+                    writeWordprocessingText(reader, out);
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * The text of w:t elements, a line per w:p, with the tabs and breaks
+     * of runs; deleted text and field instructions are left out.
+     */
+    private static void writeWordprocessingText(XMLStreamReader reader, Writer out) throws IOException, XMLStreamException {
+        List<String> elements = new ArrayList<String>();
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String localName = reader.getLocalName();
+                    String parent = elements.isEmpty() ? null : elements.get(elements.size() - 1);
+
+                    // a tab within tab stops is a setting, within a run a character
+                    if ("r".equals(parent)) {
+                        if ("tab".equals(localName)) {
+                            out.write('\t');
+                        } else if ("br".equals(localName) || "cr".equals(localName)) {
+                            out.write('\n');
+                        }
+                    }
+
+                    elements.add(localName);
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!elements.isEmpty() && "t".equals(elements.get(elements.size() - 1))) {
+                        out.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    elements.remove(elements.size() - 1);
+
+                    if ("p".equals(reader.getLocalName())) {
+                        out.write('\n');
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The text of text:p and text:h elements, a line each, with their
+     * spaces, tabs and line breaks; annotations and tracked changes are
+     * left out.
+     */
+    private static void writeOpenDocumentText(XMLStreamReader reader, Writer out) throws IOException, XMLStreamException {
+        int paragraphs = 0;
+        int skipped = 0;
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String localName = reader.getLocalName();
+
+                    if ("annotation".equals(localName) || "tracked-changes".equals(localName) || (skipped > 0)) {
+                        skipped++;
+                    } else if ("p".equals(localName) || "h".equals(localName)) {
+                        paragraphs++;
+                    } else if (paragraphs > 0) {
+                        if ("s".equals(localName)) {
+                            String count = reader.getAttributeValue(null, "c");
+                            int spaces = 1;
+                            try {
+                                spaces = (count == null) ? 1 : Math.min(Integer.parseInt(count), 1024);
+                            } catch (NumberFormatException e) {
+                                // one it is
+                            }
+                            for (int i = 0; i < spaces; i++) {
+                                out.write(' ');
+                            }
+                        } else if ("tab".equals(localName)) {
+                            out.write('\t');
+                        } else if ("line-break".equals(localName)) {
+                            out.write('\n');
+                        }
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if ((paragraphs > 0) && (skipped == 0)) {
+                        out.write(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (skipped > 0) {
+                        skipped--;
+                    } else if ("p".equals(reader.getLocalName()) || "h".equals(reader.getLocalName())) {
+                        paragraphs--;
+                        out.write('\n');
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.mitre.honeyclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Expands small archives made on the spot, tar headers written by hand so
+ * each kind the expander reads, and each limit, is seen to work.
+ *
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class ArchiveExpanderTest extends TestCase {
+
+    private File directory;
+    private ScratchSpace scratch;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("archive-test", "");
+        directory.delete();
+        directory.mkdir();
+
+        scratch = new ScratchSpace(new File(directory, "scratch"), 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testNestedTarGz() throws Exception {
+        byte[] zip = zip("b.txt", "bee");
+        byte[] tar = tar(entry("a.txt", "ay".getBytes("UTF-8")), entry("inner.zip", zip));
+
+        List<ArchiveExpander.Member> members = expander(3, 10, 100000).expand(write("docs.tar.gz", gzip(tar)), "docs.tar.gz");
+
+        assertPaths(members, "docs.tar/a.txt", "docs.tar/inner.zip/b.txt");
+        assertContents(members.get(0), "ay");
+        assertContents(members.get(1), "bee");
+    }
+
+    public void testTgzNamesItsTar() throws Exception {
+        byte[] tar = tar(entry("a.txt", "ay".getBytes("UTF-8")));
+
+        assertPaths(expander(3, 10, 100000).expand(write("docs.tgz", gzip(tar)), "docs.tgz"), "docs.tar/a.txt");
+    }
+
+    public void testGnuLongName() throws Exception {
+        String longName = repeat("long/", 40) + "name.txt";
+        byte[] nameData = (longName + "\0").getBytes("UTF-8");
+
+        byte[] tar = tar(concat(header("././@LongLink", nameData.length, 'L', false), padded(nameData)), entry(longName.substring(0, 99), "long".getBytes("UTF-8")));
+
+        List<ArchiveExpander.Member> members = expander(3, 10, 100000).expand(write("a.tar", tar), "a.tar");
+
+        assertPaths(members, longName);
+        assertContents(members.get(0), "long");
+    }
+
+    public void testPaxPath() throws Exception {
+        String path = repeat("pax/", 50) + "name.txt";
+        byte[] records = concat(paxRecord("mtime", "1262304000"), paxRecord("path", path));
+
+        byte[] tar = tar(concat(header("PaxHeaders/name.txt", records.length, 'x', true), padded(records)), entry("name.txt", "pax".getBytes("UTF-8")));
+
+        List<ArchiveExpander.Member> members = expander(3, 10, 100000).expand(write("a.tar", tar), "a.tar");
+
+        assertPaths(members, path);
+        assertContents(members.get(0), "pax");
+    }
+
+    public void testUstarPrefix() throws Exception {
+        byte[] header = header("name.txt", 3, '0', true);
+        byte[] prefix = "some/prefix".getBytes("UTF-8");
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+        checksum(header);
+
+        byte[] tar = tar(concat(header, padded("pre".getBytes("UTF-8"))));
+
+        assertPaths(expander(3, 10, 100000).expand(write("a.tar", tar), "a.tar"), "some/prefix/name.txt");
+    }
+
+    public void testBase256Size() throws Exception {
+        byte[] data = "base 256".getBytes("UTF-8");
+        byte[] header = header("big.txt", 0, '0', false);
+
+        Arrays.fill(header, 124, 136, (byte) 0);
+        header[124] = (byte) 0x80;
+        header[135] = (byte) data.length;
+        checksum(header);
+
+        List<ArchiveExpander.Member> members = expander(3, 10, 100000).expand(write("a.tar", tar(concat(header, padded(data)))), "a.tar");
+
+        assertPaths(members, "big.txt");
+        assertContents(members.get(0), "base 256");
+    }
+
+    public void testSkipsDirectoriesAndLinks() throws Exception {
+        byte[] tar = tar(concat(header("dir/", 0, '5', true)), concat(header("dir/link", 0, '2', true)), entry("dir/a.txt", "ay".getBytes("UTF-8")));
+
+        assertPaths(expander(3, 10, 100000).expand(write("a.tar", tar), "a.tar"), "dir/a.txt");
+    }
+
+    public void testTruncatedTarFails() throws Exception {
+        byte[] tar = entry("a.txt", new byte[2000]);
+
+        try {
+            expander(3, 10, 100000).expand(write("a.tar", Arrays.copyOf(tar, 1000)), "a.tar");
+            fail("expanded a truncated tar");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, stagedFiles());
+    }
+
+    public void testMemberLimit() throws Exception {
+        byte[] zip = zip("a.txt", "a", "b.txt", "b", "c.txt", "c");
+
+        assertEquals(3, expander(3, 3, 100000).expand(write("a.zip", zip), "a.zip").size());
+        assertRefused(expander(3, 2, 100000), write("b.zip", zip), "more than 2 members");
+    }
+
+    public void testMembersWithinCountTowardsTheLimit() throws Exception {
+        byte[] inner = zip("a.txt", "a", "b.txt", "b");
+        byte[] tar = tar(entry("inner.zip", inner));
+
+        // the inner archive is a member of its own
+        assertRefused(expander(3, 2, 100000), write("a.tar", tar), "more than 2 members");
+    }
+
+    public void testByteLimit() throws Exception {
+        byte[] tar = tar(entry("a.txt", new byte[600]), entry("b.txt", new byte[600]));
+
+        assertEquals(2, expander(3, 10, 1200).expand(write("a.tar", tar), "a.tar").size());
+        assertRefused(expander(3, 10, 1000), write("b.tar", tar), "more than 1000 bytes");
+    }
+
+    public void testByteLimitGoesByWhatIsRead() throws Exception {
+        // a megabyte of zeros compresses to a kilobyte or so
+        byte[] bomb = gzip(new byte[1 << 20]);
+        assertTrue(bomb.length < 8192);
+
+        assertRefused(expander(3, 10, 65536), write("bomb.txt.gz", bomb), "more than 65536 bytes");
+    }
+
+    public void testDepthLimit() throws Exception {
+        byte[] innermost = zip("a.txt", "ay");
+        byte[] middle = zip("innermost.zip", innermost);
+        byte[] outer = tar(entry("middle.zip", middle));
+
+        assertPaths(expander(3, 10, 100000).expand(write("a.tar", outer), "a.tar"), "middle.zip/innermost.zip/a.txt");
+        assertRefused(expander(2, 10, 100000), write("b.tar", outer), "nested more than 2 deep");
+    }
+
+    public void testBzip2() throws Exception {
+        File tar = write("a.tar", tar(entry("a.txt", "ay".getBytes("UTF-8"))));
+
+        Process process = new ProcessBuilder("bzip2", tar.getAbsolutePath()).start();
+        if (process.waitFor() != 0) {
+            fail("bzip2 could not compress the test archive");
+        }
+
+        File bzip2 = new File(tar.getPath() + ".bz2");
+        List<ArchiveExpander.Member> members = expander(3, 10, 100000).expand(bzip2, bzip2.getName());
+
+        assertPaths(members, "a.tar/a.txt");
+        assertContents(members.get(0), "ay");
+    }
+
+    public void testNotAnArchive() throws Exception {
+        try {
+            expander(3, 10, 100000).expand(write("a.txt", "plain text".getBytes("UTF-8")), "a.txt");
+            fail("expanded a text file");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("Fail;"));
+        }
+    }
+
+    private ArchiveExpander expander(int maxDepth, int maxMembers, long maxBytes) {
+        return new ArchiveExpander(scratch, maxDepth, maxMembers, maxBytes);
+    }
+
+    private void assertRefused(ArchiveExpander expander, File archive, String reason) throws IOException {
+        int staged = stagedFiles();
+
+        try {
+            expander.expand(archive, archive.getName());
+            fail("expanded " + archive.getName() + " past its limits");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Fail;") && e.getMessage().contains(reason));
+        }
+
+        // what was expanded before the limit was reached is gone again
+        assertEquals(1, expander.getRefused());
+        assertEquals(staged, stagedFiles());
+    }
+
+    private static void assertPaths(List<ArchiveExpander.Member> members, String... paths) {
+        List<String> actual = new ArrayList<String>();
+        for (ArchiveExpander.Member member : members) {
+            actual.add(member.getPath());
+        }
+        assertEquals(Arrays.asList(paths), actual);
+    }
+
+    private static void assertContents(ArchiveExpander.Member member, String contents) throws IOException {
+        assertEquals(contents, FileUtils.readFileToString(member.getFile(), "UTF-8"));
+    }
+
+    /**
+     * Files left in the scratch space, whatever the members returned.
+     */
+    private int stagedFiles() {
+        return FileUtils.listFiles(new File(directory, "scratch"), null, true).size();
+    }
+
+    private File write(String name, byte[] contents) throws IOException {
+        File file = new File(directory, name);
+        FileUtils.writeByteArrayToFile(file, contents);
+        return file;
+    }
+
+    /**
+     * @param entries each entry's name then its contents, a String or bytes
+     */
+    private static byte[] zip(Object... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+
+        for (int i = 0; i < entries.length; i += 2) {
+            out.putNextEntry(new ZipEntry((String) entries[i]));
+            out.write((entries[i + 1] instanceof String) ? ((String) entries[i + 1]).getBytes("UTF-8") : (byte[]) entries[i + 1]);
+            out.closeEntry();
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] contents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(bytes);
+        out.write(contents);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Entries followed by the two zero blocks that end an archive.
+     */
+    private static byte[] tar(byte[]... entries) {
+        return concat(concat(entries), new byte[1024]);
+    }
+
+    private static byte[] entry(String name, byte[] contents) {
+        return concat(header(name, contents.length, '0', true), padded(contents));
+    }
+
+    /**
+     * A header block, POSIX ustar or old GNU.
+     */
+    private static byte[] header(String name, long size, char type, boolean posix) {
+        byte[] header = new byte[512];
+
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 108, "0000000");
+        put(header, 116, "0000000");
+        put(header, 124, String.format("%011o", size));
+        put(header, 136, "00000000000");
+        header[156] = (byte) type;
+        put(header, 257, posix ? "ustar\u000000" : "ustar  ");
+
+        checksum(header);
+        return header;
+    }
+
+    private static void checksum(byte[] header) {
+        Arrays.fill(header, 148, 156, (byte) ' ');
+
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+
+        put(header, 148, String.format("%06o", sum));
+        header[154] = 0;
+    }
+
+    private static void put(byte[] header, int offset, String value) {
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            System.arraycopy(bytes, 0, header, offset, bytes.length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A pax record, its length counting itself.
+     */
+    private static byte[] paxRecord(String keyword, String value) throws IOException {
+        String rest = " " + keyword + "=" + value + "\n";
+        int length = rest.length() + 1;
+
+        while (Integer.toString(length).length() + rest.length() != length) {
+            length++;
+        }
+
+        return (length + rest).getBytes("UTF-8");
+    }
+
+    private static byte[] padded(byte[] data) {
+        return Arrays.copyOf(data, ((data.length + 511) / 512) * 512);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package org.mitre.honeyclient;
+
+import junit.framework.TestCase;
+
+/**
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class DocumentQuarantineTest extends TestCase {
+
+    public void testQuarantinedAtThreshold() {
+        DocumentQuarantine quarantine = new DocumentQuarantine(3);
+
+        assertTrue(quarantine.isEmpty());
+
+        quarantine.failed("a");
+        quarantine.failed("a");
+        assertFalse(quarantine.reject("a"));
+        assertEquals(0, quarantine.getQuarantinedCount());
+        assertEquals(1, quarantine.getSuspectCount());
+
+        quarantine.failed("a");
+        assertTrue(quarantine.reject("a"));
+        assertFalse(quarantine.reject("b"));
+        assertEquals(1, quarantine.getQuarantinedCount());
+        assertEquals(0, quarantine.getSuspectCount());
+        assertEquals(1, quarantine.getRejected());
+    }
+
+    public void testSuccessClearsTheRecord() {
+        DocumentQuarantine quarantine = new DocumentQuarantine(2);
+
+        quarantine.failed("a");
+        quarantine.succeeded("a");
+        quarantine.failed("a");
+
+        assertFalse(quarantine.reject("a"));
+    }
+
+    public void testZeroThresholdHoldsNothing() {
+        DocumentQuarantine quarantine = new DocumentQuarantine(0);
+
+        for (int i = 0; i < 10; i++) {
+            quarantine.failed("a");
+        }
+
+        assertTrue(quarantine.isEmpty());
+        assertFalse(quarantine.reject("a"));
+    }
+
+    public void testPardonTakesBackFailuresSince() throws InterruptedException {
+        DocumentQuarantine quarantine = new DocumentQuarantine(2);
+
+        quarantine.failed("old");
+        quarantine.failed("twice");
+        Thread.sleep(20);
+
+        long since = System.currentTimeMillis();
+        quarantine.failed("new");
+        quarantine.failed("twice");
+        assertTrue(quarantine.reject("twice"));
+
+        quarantine.pardon(since);
+
+        assertFalse(quarantine.reject("twice"));
+        assertEquals(2, quarantine.getSuspectCount());
+
+        // what failed before the outage still counts
+        quarantine.failed("old");
+        assertTrue(quarantine.reject("old"));
+    }
+
+    public void testOldestQuietRecordsAreForgotten() {
+        DocumentQuarantine quarantine = new DocumentQuarantine(1);
+
+        quarantine.failed("first");
+
+        for (int i = 0; i < DocumentQuarantine.MAX_ENTRIES; i++) {
+            quarantine.failed("doc" + i);
+        }
+
+        assertFalse(quarantine.reject("first"));
+        assertTrue(quarantine.reject("doc0"));
+    }
+
+    public void testClear() {
+        DocumentQuarantine quarantine = new DocumentQuarantine(1);
+
+        quarantine.failed("a");
+        quarantine.clear();
+
+        assertTrue(quarantine.isEmpty());
+        assertFalse(quarantine.reject("a"));
+    }
+}
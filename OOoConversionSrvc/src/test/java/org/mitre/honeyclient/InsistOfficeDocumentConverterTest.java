@@ -0,0 +1,29 @@
+package org.mitre.honeyclient;
+
+import junit.framework.TestCase;
+
+/**
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class InsistOfficeDocumentConverterTest extends TestCase {
+
+    public void testBackoffDoublesUpToTheMaximum() {
+        assertEquals(100, InsistOfficeDocumentConverter.backoffDelay(1, 100, 1000));
+        assertEquals(200, InsistOfficeDocumentConverter.backoffDelay(2, 100, 1000));
+        assertEquals(400, InsistOfficeDocumentConverter.backoffDelay(3, 100, 1000));
+        assertEquals(800, InsistOfficeDocumentConverter.backoffDelay(4, 100, 1000));
+        assertEquals(1000, InsistOfficeDocumentConverter.backoffDelay(5, 100, 1000));
+        assertEquals(1000, InsistOfficeDocumentConverter.backoffDelay(1000, 100, 1000));
+    }
+
+    public void testBackoffStartsAtTheMaximumIfBelowTheBase() {
+        assertEquals(50, InsistOfficeDocumentConverter.backoffDelay(1, 100, 50));
+    }
+
+    public void testNoBackoff() {
+        assertEquals(0, InsistOfficeDocumentConverter.backoffDelay(1, 0, 1000));
+        assertEquals(0, InsistOfficeDocumentConverter.backoffDelay(5, 0, 1000));
+    }
+}
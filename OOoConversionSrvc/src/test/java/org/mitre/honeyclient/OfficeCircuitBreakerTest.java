@@ -0,0 +1,132 @@
+package org.mitre.honeyclient;
+
+import junit.framework.TestCase;
+
+/**
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeCircuitBreakerTest extends TestCase {
+
+    public void testOpensAfterThresholdConsecutiveFailures() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(3, 60000);
+
+        assertTrue(breaker.allowAttempt());
+        assertFalse(breaker.failed());
+        assertFalse(breaker.failed());
+        assertEquals("closed", breaker.getState());
+        assertTrue(breaker.failed());
+
+        assertEquals("open", breaker.getState());
+        assertFalse(breaker.isClosed());
+        assertEquals(1, breaker.getOpenCount());
+        assertFalse(breaker.allowAttempt());
+        assertFalse(breaker.allowAttempt());
+        assertEquals(2, breaker.getRejected());
+    }
+
+    public void testSuccessResetsTheRun() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(3, 60000);
+
+        breaker.failed();
+        breaker.failed();
+        breaker.succeeded();
+        assertEquals(0, breaker.getConsecutiveFailures());
+
+        assertFalse(breaker.failed());
+        assertFalse(breaker.failed());
+        assertTrue(breaker.isClosed());
+    }
+
+    public void testHalfOpenLetsOneTrialThrough() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(1, 0);
+
+        breaker.failed();
+        assertEquals("open", breaker.getState());
+
+        // the open time has passed, one trial goes, the rest wait on it
+        assertTrue(breaker.allowAttempt());
+        assertEquals("half-open", breaker.getState());
+        assertFalse(breaker.allowAttempt());
+
+        breaker.succeeded();
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.allowAttempt());
+    }
+
+    public void testFailedTrialReopens() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(2, 0);
+
+        breaker.failed();
+        breaker.failed();
+        assertTrue(breaker.allowAttempt());
+        assertEquals("half-open", breaker.getState());
+
+        assertTrue(breaker.failed());
+        assertEquals("open", breaker.getState());
+        assertEquals(2, breaker.getOpenCount());
+    }
+
+    public void testAbandonedTrialLetsTheNextOneThrough() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(1, 0);
+
+        breaker.failed();
+        assertTrue(breaker.allowAttempt());
+        assertFalse(breaker.allowAttempt());
+
+        // the trial never reached office, another goes in its place
+        breaker.abandoned();
+        assertEquals(1, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowAttempt());
+        assertEquals("half-open", breaker.getState());
+    }
+
+    public void testAbandonedWhileClosedChangesNothing() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(2, 60000);
+
+        breaker.failed();
+        breaker.abandoned();
+        assertTrue(breaker.isClosed());
+        assertEquals(1, breaker.getConsecutiveFailures());
+    }
+
+    public void testStaysOpenForOpenMillis() throws InterruptedException {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(1, 100);
+
+        breaker.failed();
+        assertFalse(breaker.allowAttempt());
+
+        Thread.sleep(150);
+        assertTrue(breaker.allowAttempt());
+    }
+
+    public void testZeroThresholdNeverOpens() {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(0, 60000);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(breaker.failed());
+        }
+
+        assertTrue(breaker.allowAttempt());
+        assertEquals(100, breaker.getConsecutiveFailures());
+    }
+
+    public void testFailingSinceMarksTheStartOfTheRun() throws InterruptedException {
+        OfficeCircuitBreaker breaker = new OfficeCircuitBreaker(0, 0);
+
+        long before = System.currentTimeMillis();
+        breaker.failed();
+        long since = breaker.getFailingSince();
+        assertTrue(since >= before);
+
+        Thread.sleep(20);
+        breaker.failed();
+        assertEquals(since, breaker.getFailingSince());
+
+        breaker.succeeded();
+        Thread.sleep(20);
+        breaker.failed();
+        assertTrue(breaker.getFailingSince() > since);
+    }
+}
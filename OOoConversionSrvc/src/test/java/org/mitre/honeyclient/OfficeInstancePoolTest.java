@@ -0,0 +1,200 @@
+package org.mitre.honeyclient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.artofsolving.jodconverter.office.DefaultOfficeManagerConfiguration;
+import org.artofsolving.jodconverter.office.OfficeContext;
+import org.artofsolving.jodconverter.office.OfficeException;
+import org.artofsolving.jodconverter.office.OfficeManager;
+import org.artofsolving.jodconverter.office.OfficeTask;
+
+/**
+ * @author    Michael Joseph Walsh (mailto:mjwalsh_n_o__s_p_a_m@mitre.org)
+ * Copyright:: Copyright (c) 2010 The MITRE Corporation.  All Rights Reserved.
+ * License:: GNU GENERAL PUBLIC LICENSE
+ */
+public class OfficeInstancePoolTest extends TestCase {
+
+    private static final OfficeTask TASK = new OfficeTask() {
+
+        public void execute(OfficeContext context) {
+        }
+    };
+
+    // held shut by a test to keep a task, or the standby's start, waiting
+    private CountDownLatch executeGate;
+    private CountDownLatch startGate;
+    private int gatedPort;
+
+    @Override
+    protected void setUp() {
+        executeGate = new CountDownLatch(0);
+        startGate = new CountDownLatch(0);
+        gatedPort = -1;
+    }
+
+    public void testRetiredInstanceTurnsTasksAway() throws Exception {
+        OfficeInstancePool pool = createPool(new int[] { 1 });
+        pool.start();
+        assertTrue(pool.startStandby(2));
+
+        // picked just before the recycle, run just after
+        OfficeInstance old = pool.selectInstance();
+        assertTrue(pool.recycle(old, 1000));
+
+        try {
+            old.execute(TASK);
+            fail("a retired instance took a task");
+        } catch (OfficeException e) {
+            assertTrue(old.isRetired());
+        }
+
+        assertEquals(0, old.getInFlight());
+        assertEquals(0, old.getFailed());
+        assertEquals(2, pool.selectInstance().getPort());
+        pool.selectInstance().execute(TASK);
+    }
+
+    public void testRecycleDrainsOutsideTheLock() throws Exception {
+        final OfficeInstancePool pool = createPool(new int[] { 1 });
+        pool.start();
+        assertTrue(pool.startStandby(2));
+
+        final OfficeInstance old = pool.selectInstance();
+        executeGate = new CountDownLatch(1);
+
+        Thread task = run(new Task() {
+
+            public void run() throws Exception {
+                old.execute(TASK);
+            }
+        });
+
+        while (old.getInFlight() == 0) {
+            Thread.sleep(10);
+        }
+
+        final boolean[] recycled = new boolean[1];
+
+        Thread recycler = run(new Task() {
+
+            public void run() {
+                recycled[0] = pool.recycle(old, 60000);
+            }
+        });
+
+        while (!old.isRetired()) {
+            Thread.sleep(10);
+        }
+
+        // the recycle is draining, a crashed instance can still be rebuilt
+        assertBuildsPromptly(pool);
+        assertTrue(recycler.isAlive());
+
+        executeGate.countDown();
+        task.join(5000);
+        recycler.join(5000);
+        assertFalse(recycler.isAlive());
+        assertTrue(recycled[0]);
+        assertEquals(1, pool.getRecycles());
+    }
+
+    public void testStandbyStartsOutsideTheLock() throws Exception {
+        final OfficeInstancePool pool = createPool(new int[] { 1 });
+        pool.start();
+
+        startGate = new CountDownLatch(1);
+        gatedPort = 2;
+
+        final boolean[] up = new boolean[1];
+
+        Thread starter = run(new Task() {
+
+            public void run() {
+                up[0] = pool.startStandby(2);
+            }
+        });
+
+        Thread.sleep(100);
+        assertBuildsPromptly(pool);
+        assertNull(pool.getStandby());
+
+        // already on its way up, not started twice
+        assertFalse(pool.startStandby(2));
+
+        startGate.countDown();
+        starter.join(5000);
+        assertTrue(up[0]);
+        assertEquals(2, pool.getStandby().getPort());
+    }
+
+    private void assertBuildsPromptly(final OfficeInstancePool pool) throws InterruptedException {
+        Thread builder = run(new Task() {
+
+            public void run() {
+                pool.buildOfficeManager(3);
+            }
+        });
+
+        builder.join(1000);
+        assertFalse("building an office manager waited on the pool", builder.isAlive());
+    }
+
+    private OfficeInstancePool createPool(int[] ports) {
+        return new OfficeInstancePool(new DefaultOfficeManagerConfiguration(), ports) {
+
+            @Override
+            protected OfficeManager buildOfficeManager(final int port) {
+                return new OfficeManager() {
+
+                    public void start() throws OfficeException {
+                        if (port == gatedPort) {
+                            await(startGate);
+                        }
+                    }
+
+                    public void stop() {
+                    }
+
+                    public void execute(OfficeTask task) throws OfficeException {
+                        await(executeGate);
+                    }
+                };
+            }
+        };
+    }
+
+    private static void await(CountDownLatch gate) throws OfficeException {
+        try {
+            if (!gate.await(10, TimeUnit.SECONDS)) {
+                throw new OfficeException("gate never opened");
+            }
+        } catch (InterruptedException e) {
+            throw new OfficeException("interrupted", e);
+        }
+    }
+
+    private interface Task {
+
+        void run() throws Exception;
+    }
+
+    private static Thread run(final Task task) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -78,4 +78,319 @@ class TestOOoConversionServer < Test::Unit::TestCase
 
   end
 
+  def test_send_extract_urls_request
+
+    request = {}
+
+    request['mode'] = 'extractUrls'
+    request['urlSchemes'] = ['http', 'https']
+    request['inputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc'
+    request['inputBase64FileContents'] = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    start = Time.now
+
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    buffer = client_socket.read
+
+    response = JSON.parse(buffer)
+    client_socket.close
+
+    finished = Time.now - start
+
+    puts "response in #{finished} seconds"
+
+    assert(((!response['urls'].nil?) && (response['msg'].downcase.index('success') != nil)), true)
+    assert_nil(response['outputBase64FileContents'])
+    assert_equal(response['urls'].uniq, response['urls'])
+
+  end
+
+  def test_send_request_with_text_preset
+
+    request = {}
+
+    request['preset'] = 'text'
+    request['inputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc'
+    request['inputBase64FileContents'] = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    start = Time.now
+
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    buffer = client_socket.read
+
+    response = JSON.parse(buffer)
+    client_socket.close
+
+    finished = Time.now - start
+
+    puts "response in #{finished} seconds"
+
+    assert(((!response['outputBase64FileContents'].nil?) && (response['msg'].downcase.index('success') != nil)), true)
+    assert_equal('537aaf39-9416-80ac-ce45-0bd6ff531a88.txt', response['outputFilename'])
+
+    request.delete('preset')
+    request['outputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.txt'
+    request['loadProperties'] = { 'Hidden' => false }
+
+    client_socket = TCPSocket.new('localhost', 8080)
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_equal(0, response['msg'].index('Fail'))
+
+  end
+
+  def test_send_archive_to_expand
+
+    request = {}
+
+    request['mode'] = 'extractUrls'
+    request['expand'] = true
+    request['inputFilename'] = 'samples.zip'
+    request['inputBase64FileContents'] = [IO.read('/home/walsh/samples/samples.zip')].pack("m")
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_not_nil(response['msg'].downcase.index('success'))
+    assert_not_nil(response['urls'])
+    assert(response['items'].size > 0)
+    response['items'].each do |item|
+      assert_not_nil(item['id'])
+    end
+
+  end
+
+  def test_send_stats_request
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    client_socket.write(JSON.generate({'mode' => 'stats'}))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_not_nil(response['msg'].downcase.index('success'))
+    assert_not_nil(response['stats']['latency'])
+    assert(response['stats']['queued'] >= 0)
+    assert(response['stats']['scratchBytes'] >= 0)
+    assert(response['stats']['officeRecycles'] >= 0)
+    assert(response['stats']['extracted'] >= 0)
+    assert_equal(response['stats']['officeInstances'].size > 0, true)
+
+  end
+
+  def test_send_health_request
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    client_socket.write(JSON.generate({'mode' => 'health'}))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_not_nil(response['msg'].downcase.index('success'))
+    assert_not_nil(response['health']['ready'])
+    assert(response['health']['readyInstances'] >= 0)
+    assert(response['health']['warmingInstances'] >= 0)
+
+  end
+
+  # expects a router on 8081 in front of conversion servers
+  def test_send_same_document_through_router_twice
+
+    contents = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+    backends = []
+
+    2.times do
+      client_socket = TCPSocket.new('localhost', 8081)
+      client_socket.write(JSON.generate({'mode' => 'stats'}))
+      client_socket.flush
+      before = JSON.parse(client_socket.read)['stats']['backends']
+      client_socket.close
+
+      request = {}
+
+      request['outputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.txt'
+      request['inputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc'
+      request['inputBase64FileContents'] = contents
+
+      client_socket = TCPSocket.new('localhost', 8081)
+      client_socket.write(JSON.generate(request))
+      client_socket.flush
+      response = JSON.parse(client_socket.read)
+      client_socket.close
+
+      assert_not_nil(response['msg'].downcase.index('success'))
+
+      client_socket = TCPSocket.new('localhost', 8081)
+      client_socket.write(JSON.generate({'mode' => 'stats'}))
+      client_socket.flush
+      after = JSON.parse(client_socket.read)['stats']['backends']
+      client_socket.close
+
+      backends << after.zip(before).select { |a, b| a['routed'] != b['routed'] }.collect { |a, b| a['address'] }
+    end
+
+    assert_equal(1, backends[0].size)
+    assert_equal(backends[0], backends[1])
+
+  end
+
+  def test_send_requests_with_priorities
+
+    ['high', 'urgent'].each do |priority|
+      request = {}
+
+      request['outputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.txt'
+      request['inputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc'
+      request['inputBase64FileContents'] = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+      request['priority'] = priority
+      request['deadline'] = ((Time.now.to_f + 60) * 1000).to_i
+
+      client_socket = TCPSocket.new('localhost', 8080)
+
+      client_socket.write(JSON.generate(request))
+      client_socket.flush
+
+      response = JSON.parse(client_socket.read)
+      client_socket.close
+
+      if priority == 'high'
+        assert_not_nil(response['msg'].downcase.index('success'))
+      else
+        assert_not_nil(response['msg'].index('unknown priority'))
+      end
+    end
+
+  end
+
+  def test_submit_job_then_wait_for_it
+
+    request = {}
+
+    request['mode'] = 'submit'
+    request['outputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.txt'
+    request['inputFilename'] = '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc'
+    request['inputBase64FileContents'] = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_not_nil(response['jobId'])
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    client_socket.write(JSON.generate({'mode' => 'wait', 'jobId' => response['jobId'], 'timeout' => 60000}))
+    client_socket.flush
+
+    response = JSON.parse(client_socket.read)
+    client_socket.close
+
+    assert_equal('done', response['jobState'])
+    assert(((!response['outputBase64FileContents'].nil?)  && (response['msg'].downcase.index('success') != nil)), true)
+
+  end
+
+  def test_send_framed_requests_on_one_connection
+
+    client_socket = TCPSocket.new('localhost', 8080)
+    client_socket.write('OCS2')
+
+    start = Time.now
+
+    2.times do |i|
+      header = JSON.generate({
+        'id' => i.to_s,
+        'inputFilename' => '537aaf39-9416-80ac-ce45-0bd6ff531a88.doc',
+        'outputFilename' => '537aaf39-9416-80ac-ce45-0bd6ff531a88.txt'})
+      body = IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc', :mode => 'rb')
+
+      client_socket.write([header.bytesize].pack('N') + header)
+      client_socket.write([body.bytesize >> 32, body.bytesize & 0xffffffff].pack('NN') + body)
+      client_socket.flush
+
+      response = JSON.parse(client_socket.read(client_socket.read(4).unpack('N')[0]))
+      high, low = client_socket.read(8).unpack('NN')
+      output = client_socket.read((high << 32) | low)
+
+      assert_equal(i.to_s, response['id'])
+      assert(((!output.empty?) && (response['msg'].downcase.index('success') != nil)), true)
+    end
+
+    client_socket.close
+
+    finished = Time.now - start
+
+    puts "responses in #{finished} seconds"
+
+  end
+
+  def test_send_batch_request_with_one_bad_item
+
+    contents = [IO.read('/home/walsh/samples/537aaf39-9416-80ac-ce45-0bd6ff531a88.doc')].pack("m")
+
+    request = {}
+
+    request['id'] = 'batch'
+    request['items'] = (0..2).collect { |i|
+      {
+        'id' => i.to_s,
+        'inputFilename' => "#{i}.doc",
+        'outputFilename' => "#{i}.txt",
+        'inputBase64FileContents' => contents
+      }
+    }
+    request['items'] << { 'id' => 'missing', 'inputFilename' => 'missing.doc', 'outputFilename' => 'missing.txt' }
+
+    client_socket = TCPSocket.new('localhost', 8080)
+
+    start = Time.now
+
+    client_socket.write(JSON.generate(request))
+    client_socket.flush
+
+    buffer = client_socket.read
+
+    response = JSON.parse(buffer)
+    client_socket.close
+
+    finished = Time.now - start
+
+    puts "response in #{finished} seconds"
+
+    assert_equal('batch', response['id'])
+    assert_equal(4, response['items'].size)
+
+    response['items'][0..2].each do |item|
+      assert(((!item['outputBase64FileContents'].nil?)  && (item['msg'].downcase.index('success') != nil)), true)
+    end
+
+    assert_nil(response['items'][3]['msg'].downcase.index('success'))
+
+  end
+
 end
@@ -22,6 +22,8 @@ class OOoConversionSrvcClient
   OPENOFFICE_PORT = 8100
   HOSTNAME = 'localhost'
   PORT = 8080
+  BUSY_RETRIES = 5
+  BUSY_BACKOFF = 0.25 # seconds, doubled on every retry
 
   LOG = Logger.new(STDOUT)
   LOG.level = Logger::DEBUG #DEBUG INFO ERROR WARN
@@ -43,24 +45,122 @@ class OOoConversionSrvcClient
     request['inputBase64FileContents'] = stream.pack('m')
     request['outputFilename'] = output_filename
 
-    client_socket = TCPSocket.new(HOSTNAME, PORT)
+    start = Time.now
+
+    response = send_request(JSON.generate(request))
+
+    if (LOG.level == Logger::DEBUG)
+      LOG.debug(" => OOoConversioSrvc handled the request in #{Time.now - start} seconds.")
+    end
+
+    if ((response['msg'].downcase.index('success') != nil) && (response['outputBase64FileContents'] != nil))
+      return response['outputBase64FileContents'].unpack('m')
+    else
+      raise ConversionError.new(response['msg'])
+    end
+  end
+
+  # converts several documents in one round trip, each an array of
+  # [stream, input_suffix, output_suffix]; returns, in order, either the
+  # converted stream or the ConversionError for that document
+  def process_document_texts(documents)
+
+    request = {}
+
+    request['items'] = documents.collect { |stream, input_suffix, output_suffix|
+      guid = "#{Guid.new.to_s}"
+
+      {
+        'inputFilename' => "#{guid}.#{input_suffix}",
+        'inputBase64FileContents' => stream.pack('m'),
+        'outputFilename' => "#{guid}.#{output_suffix}"
+      }
+    }
 
     start = Time.now
 
-    client_socket.write(JSON.generate(request))
-    client_socket.flush
+    response = send_request(JSON.generate(request))
+
+    if (LOG.level == Logger::DEBUG)
+      LOG.debug(" => OOoConversioSrvc handled the batch of #{documents.size} in #{Time.now - start} seconds.")
+    end
+
+    raise ConversionError.new(response['msg']) if response['items'].nil?
 
-    buffer = client_socket.read
+    response['items'].collect { |item|
+      if ((item['msg'].downcase.index('success') != nil) && (item['outputBase64FileContents'] != nil))
+        item['outputBase64FileContents'].unpack('m')
+      else
+        ConversionError.new(item['msg'])
+      end
+    }
+  end
+
+  # has the service convert the document and pull the URLs out of it, so
+  # only the de-duplicated list comes back; uri_schemes limits the result
+  # to those schemes, all when nil
+  def extract_urls(stream, input_suffix, uri_schemes = nil)
+
+    request = {}
 
-    response = JSON.parse(buffer)
-    client_socket.close
+    request['mode'] = 'extractUrls'
+    request['inputFilename'] = "#{Guid.new.to_s}.#{input_suffix}"
+    request['inputBase64FileContents'] = stream.pack('m')
+    request['urlSchemes'] = uri_schemes unless uri_schemes.nil?
+
+    start = Time.now
+
+    response = send_request(JSON.generate(request))
 
     if (LOG.level == Logger::DEBUG)
       LOG.debug(" => OOoConversioSrvc handled the request in #{Time.now - start} seconds.")
     end
 
-    if ((response['msg'].downcase.index('success') != nil) && (response['outputBase64FileContents'] != nil))
-      return response['outputBase64FileContents'].unpack('m')
+    if ((response['msg'].downcase.index('success') != nil) && (response['urls'] != nil))
+      return response['urls']
+    else
+      raise ConversionError.new(response['msg'])
+    end
+  end
+
+  # has the service expand a zip, tar, gzip or bzip2 archive and pull the
+  # URLs out of every document in it, archives within included; returns
+  # the URLs by the path of the member they came from
+  def extract_archive_urls(stream, archive_suffix, uri_schemes = nil)
+
+    request = {}
+
+    request['mode'] = 'extractUrls'
+    request['expand'] = true
+    request['inputFilename'] = "#{Guid.new.to_s}.#{archive_suffix}"
+    request['inputBase64FileContents'] = stream.pack('m')
+    request['urlSchemes'] = uri_schemes unless uri_schemes.nil?
+
+    start = Time.now
+
+    response = send_request(JSON.generate(request))
+
+    if (LOG.level == Logger::DEBUG)
+      LOG.debug(" => OOoConversioSrvc handled the request in #{Time.now - start} seconds.")
+    end
+
+    if ((response['msg'].downcase.index('success') != nil) && (response['items'] != nil))
+      urls = {}
+      response['items'].each { |item|
+        urls[item['id']] = item['urls'] unless item['urls'].nil?
+      }
+      return urls
+    else
+      raise ConversionError.new(response['msg'])
+    end
+  end
+
+  # the service's latency histograms, queue depths and traffic counts
+  def stats
+    response = send_request(JSON.generate({'mode' => 'stats'}))
+
+    if ((response['msg'].downcase.index('success') != nil) && (response['stats'] != nil))
+      return response['stats']
     else
       raise ConversionError.new(response['msg'])
     end
@@ -74,22 +174,15 @@ class OOoConversionSrvcClient
     request['inputBase64FileContents'] = nil
     request['outputFilename'] = output_filename
 
-    client_socket = TCPSocket.new(HOSTNAME, PORT)
-
     start = Time.now
 
-    client_socket.write(json_request = JSON.generate(request))
+    json_request = JSON.generate(request)
 
     LOG.debug("Request sent to OOoConversionSrvc: #{json_request}")
 
-    client_socket.flush
-
-    buffer = client_socket.read
-
-    LOG.debug("Response from OOoConversionSrvc: #{buffer}")
+    response = send_request(json_request)
 
-    response = JSON.parse(buffer)
-    client_socket.close
+    LOG.debug("Response from OOoConversionSrvc: #{response.inspect}")
 
     if (LOG.level == Logger::DEBUG)
       LOG.debug(" => OOoConversioSrvc handled the request in #{Time.now - start} seconds.")
@@ -102,6 +195,32 @@ class OOoConversionSrvcClient
     end
   end
 
+  # converts a file on the local disk to several formats, each named by its
+  # output filename, loading it only once; returns the output filenames the
+  # service could produce
+  def process_office_file_formats(input_filename, output_filenames)
+
+    request = {}
+
+    request['inputFilename'] = input_filename
+    request['inputBase64FileContents'] = nil
+    request['outputFilenames'] = output_filenames
+
+    start = Time.now
+
+    response = send_request(JSON.generate(request))
+
+    if (LOG.level == Logger::DEBUG)
+      LOG.debug(" => OOoConversioSrvc handled the request in #{Time.now - start} seconds.")
+    end
+
+    if ((response['msg'].downcase.index('success') != nil) && (response['items'] != nil))
+      return response['items'].collect { |item| item['outputFilename'] }.compact
+    else
+      raise ConversionError.new(response['msg'])
+    end
+  end
+
   def start
     IO.popen("java -jar ../../OOoConversionSrvc/executable/OOoConversionSrvc-1.0-SNAPSHOT-executable.jar 2>&1 &") unless running?
 
@@ -167,6 +286,32 @@ class OOoConversionSrvcClient
 
   private
 
+  # sends the request, backing off and retrying while the service reports
+  # it is too busy to take it
+  def send_request(json_request)
+
+    backoff = BUSY_BACKOFF
+
+    BUSY_RETRIES.times do
+      client_socket = TCPSocket.new(HOSTNAME, PORT)
+      client_socket.write(json_request)
+      client_socket.flush
+
+      buffer = client_socket.read
+      client_socket.close
+
+      response = JSON.parse(buffer)
+
+      return response if (response['msg'].nil? || response['msg'].downcase.index('busy') != 0)
+
+      LOG.debug("OOoConversionSrvc is busy, retrying in #{backoff} seconds.")
+      sleep backoff
+      backoff *= 2
+    end
+
+    raise ServiceNotAvailable.new('OOoConversionSrvc too busy.')
+  end
+
   def get_openoffice_pid
 
     # although "netstat -nlp | grep #{openoffice_port" would allow me to